@@ -35,6 +35,10 @@ android {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
     }
+    testOptions {
+        // The classes under test log, and set their threads' priorities.
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
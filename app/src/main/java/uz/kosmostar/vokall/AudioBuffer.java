@@ -12,6 +12,7 @@ public abstract class AudioBuffer {
 
   final int size;
   final int sampleRate;
+  final int frameSize;
   final byte[] data;
 
   protected AudioBuffer() {
@@ -35,9 +36,30 @@ public abstract class AudioBuffer {
 
     this.size = size;
     this.sampleRate = sampleRate;
+    this.frameSize = size;
     data = new byte[size];
   }
 
+  /**
+   * A buffer for a sample rate that's already been agreed on with the other device. Audio moves in
+   * chunks of {@code frameSize} bytes, while the platform buffer is at least twice that so a late
+   * read or write doesn't glitch. A {@code frameSize} of 0 means "whatever the platform likes".
+   */
+  protected AudioBuffer(int sampleRate, int frameSize) {
+    int size = getMinBufferSize(sampleRate);
+    if (!validSize(size)) {
+      size = 1024;
+    }
+    if (frameSize <= 0) {
+      frameSize = size;
+    }
+
+    this.size = Math.max(size, 2 * frameSize);
+    this.sampleRate = sampleRate;
+    this.frameSize = frameSize;
+    data = new byte[frameSize];
+  }
+
   protected abstract boolean validSize(int size);
 
   protected abstract int getMinBufferSize(int sampleRate);
@@ -0,0 +1,168 @@
+package uz.kosmostar.vokall;
+
+import static uz.kosmostar.vokall.Constants.TAG;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps an {@link AudioRecorder} and an {@link AudioPlayer} ready across calls, and starts and stops
+ * them without the UI thread ever waiting on audio I/O.
+ *
+ * <p>{@link #prepare(AudioRecorder, AudioPlayer)} opens the microphone, its effects and the speaker
+ * ahead of time. Between calls they sit paused; {@link #resume()} and {@link #pause()} only flip a
+ * flag, so a call starts capturing and playing the moment it connects. They're only rebuilt when a
+ * call needs a different format.
+ *
+ * <p>Building and tearing down happens on a lifecycle thread of its own, in the order it was asked
+ * for, so a new recorder always starts after the old audio thread is gone. Stopping is bounded: an
+ * audio thread gets {@link #STOP_TIMEOUT_MS} to notice it should finish, then its blocked read or
+ * write is forced to return, and it gets the same again. If it's still stuck after that, we log it
+ * and move on rather than hang.
+ *
+ * <p>Call it from one thread, normally the UI thread.
+ */
+public class AudioEngine {
+    /** How long each step of stopping an audio thread may take. */
+    static final long STOP_TIMEOUT_MS = 250;
+
+    /** Told when a stop has finished. */
+    public interface CompletionListener {
+        /**
+         * @param clean True if every audio thread finished. False if one had to be abandoned.
+         */
+        void onComplete(boolean clean);
+    }
+
+    private final ExecutorService mLifecycle =
+            Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "AudioEngine"));
+    private final Executor mCallbackExecutor;
+
+    @Nullable private AudioRecorder mRecorder;
+    @Nullable private AudioPlayer mPlayer;
+
+    /** @param callbackExecutor Where {@link CompletionListener}s are called, e.g. the UI thread. */
+    public AudioEngine(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Replaces the recorder and player with these, and gets their devices ready, paused. Whatever
+     * was there before is stopped first. If the old ones were resumed, the new ones are too.
+     */
+    public void prepare(AudioRecorder recorder, AudioPlayer player) {
+        AudioRecorder previousRecorder = mRecorder;
+        AudioPlayer previousPlayer = mPlayer;
+        mRecorder = recorder;
+        mPlayer = player;
+        if (previousRecorder != null && previousRecorder.isRecording()) {
+            recorder.resume();
+        }
+        if (previousPlayer != null && previousPlayer.isPlaying()) {
+            player.resume();
+        }
+        mLifecycle.execute(
+                () -> {
+                    if (previousRecorder != null) {
+                        stopThread(previousRecorder);
+                    }
+                    if (previousPlayer != null) {
+                        stopThread(previousPlayer);
+                    }
+                    recorder.prepare();
+                    player.prepare();
+                });
+    }
+
+    /** Starts capturing and playing. Returns straight away. */
+    public void resume() {
+        resumeRecording();
+        resumePlayback();
+    }
+
+    /** Starts capturing. Returns straight away. */
+    public void resumeRecording() {
+        if (mRecorder != null) {
+            mRecorder.resume();
+        }
+    }
+
+    /**
+     * Starts capturing again within the same call, keeping what the DSP has learned. For push-to-
+     * talk. Returns straight away.
+     */
+    public void resumeTalkSpurt() {
+        if (mRecorder != null) {
+            mRecorder.resumeTalkSpurt();
+        }
+    }
+
+    /** Stops capturing, but keeps playing. Returns straight away. */
+    public void pauseRecording() {
+        if (mRecorder != null) {
+            mRecorder.pause();
+        }
+    }
+
+    /** Starts playing. Returns straight away. */
+    public void resumePlayback() {
+        if (mPlayer != null) {
+            mPlayer.resume();
+        }
+    }
+
+    /** Stops capturing and playing, but keeps the devices ready for the next call. */
+    public void pause() {
+        if (mRecorder != null) {
+            mRecorder.pause();
+        }
+        if (mPlayer != null) {
+            mPlayer.pause();
+        }
+    }
+
+    /** Stops both the recorder and the player, and releases their devices. */
+    public void stop(@Nullable CompletionListener listener) {
+        AudioRecorder recorder = mRecorder;
+        AudioPlayer player = mPlayer;
+        mRecorder = null;
+        mPlayer = null;
+        mLifecycle.execute(
+                () -> {
+                    boolean clean = recorder == null || stopThread(recorder);
+                    clean &= player == null || stopThread(player);
+                    complete(listener, clean);
+                });
+    }
+
+    /** Stops everything and shuts the lifecycle thread down. The engine can't be used after. */
+    public void release() {
+        stop(null);
+        mLifecycle.shutdown();
+    }
+
+    private boolean stopThread(AudioRecorder recorder) {
+        boolean clean = recorder.stop(STOP_TIMEOUT_MS);
+        if (!clean) {
+            Log.e(TAG, "AudioRecorder thread is stuck; abandoning it");
+        }
+        return clean;
+    }
+
+    private boolean stopThread(AudioPlayer player) {
+        boolean clean = player.stop(STOP_TIMEOUT_MS);
+        if (!clean) {
+            Log.e(TAG, "AudioPlayer thread is stuck; abandoning it");
+        }
+        return clean;
+    }
+
+    private void complete(@Nullable CompletionListener listener, boolean clean) {
+        if (listener != null) {
+            mCallbackExecutor.execute(() -> listener.onComplete(clean));
+        }
+    }
+}
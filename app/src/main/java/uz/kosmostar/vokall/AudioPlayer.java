@@ -6,57 +6,172 @@ import static uz.kosmostar.vokall.Constants.TAG;
 
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.util.Log;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
- * A fire-once class. When created, you must pass a {@link InputStream}. Once {@link #start()} is
- * called, the input stream will be read from until either {@link #stop()} is called or the stream
- * ends.
+ * Plays the frames handed to {@link #addAudioData(byte[])}. Meant to live across calls: {@link
+ * #prepare()} sets up the {@link AudioTrack} once, {@link #resume()} and {@link #pause()} bracket
+ * each call, and {@link #stop(long)} tears it all down.
+ *
+ * <p>Frames handed to {@link #addAudioData(byte[], long)} with a time are played so they're heard
+ * then, give or take what {@link AudioTrack#getTimestamp(AudioTimestamp)} can tell us about how
+ * long the track takes to get them to the speaker.
  */
 public class AudioPlayer {
     /**
-     * Buffer limit. If we have more than 15 packets waiting,
-     * we are lagging behind. Drop them to catch up.
+     * Buffer limit. Backlogs are normally played out faster by
+     * {@link PlayoutProcessor}, but if we have more than 50 packets
+     * waiting we're too far behind for that. Drop them to catch up.
      */
-    private static final int MAX_BUFFER_SIZE = 15;
+    private static final int MAX_BUFFER_SIZE = 50;
 
-    private final LinkedBlockingQueue<byte[]> mQueue = new LinkedBlockingQueue<>();
+    /** The longest we'll wait with silence for a frame's time to come. */
+    private static final int MAX_SYNC_WAIT_MS = 500;
+
+    /** How often we ask the track where it is, to keep the output latency up to date. */
+    private static final long OUTPUT_LATENCY_CHECK_NANOS = 1_000_000_000L;
+
+    /** A frame waiting to be played. */
+    private static final class Frame {
+        final byte[] data;
+        /** When it should be heard, by {@link System#nanoTime()}, or 0 whenever it gets there. */
+        final long playAtNanos;
+        /** When it was queued, by {@link System#nanoTime()}. */
+        final long queuedNanos;
+
+        Frame(byte[] data, long playAtNanos) {
+            this.data = data;
+            this.playAtNanos = playAtNanos;
+            this.queuedNanos = System.nanoTime();
+        }
+    }
+
+    private final LinkedBlockingQueue<Frame> mQueue = new LinkedBlockingQueue<>();
+    /** How many samples are sitting in {@link #mQueue}. */
+    private final AtomicInteger mQueuedSamples = new AtomicInteger();
+    private final CallFormat mFormat;
+    private final DspChain mDspChain;
     private volatile boolean mAlive;
+    /** True while frames should be played. The audio thread waits on {@link #mLock} otherwise. */
+    private volatile boolean mActive;
+    private final Object mLock = new Object();
     private Thread mThread;
+    /** The track the audio thread is writing to, so {@link #stop(long)} can unblock it. */
+    private volatile AudioTrack mAudioTrack;
+    private volatile PlayoutProcessor mProcessor;
+    private volatile EchoReference mEchoReference;
+    private volatile LatencyMonitor mLatencyMonitor;
+    private volatile CallRecorder mCallRecorder;
+    /** The playout delay to aim for. Picked up by the audio thread before each frame. */
+    private volatile int mTargetDelayMs = PlayoutProcessor.TARGET_DELAY_MS;
+
+    /** Written by the audio thread. See {@link #getOutputLatencyMs()}. */
+    private volatile long mOutputLatencyNanos;
+
+    // Audio thread only.
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+    private long mFramesWritten;
+    private long mOutputLatencyCheckedNanos;
+    private short[] mSilence = new short[0];
+
+    public AudioPlayer(CallFormat format) {
+        this(format, new DspChain());
+    }
+
+    /**
+     * @param dspChain Runs over every received frame before it's played.
+     */
+    public AudioPlayer(CallFormat format, DspChain dspChain) {
+        mFormat = format;
+        mDspChain = dspChain;
+    }
+
+    /**
+     * Everything played is also written here, so an {@link EchoCanceller} on the capture side
+     * knows what echo to expect.
+     */
+    public void setEchoReference(EchoReference echoReference) {
+        mEchoReference = echoReference;
+    }
+
+    /**
+     * Tells the monitor, for every frame played, how long it waited in the queue and how long it'll
+     * take the track to play it.
+     */
+    public void setLatencyMonitor(LatencyMonitor latencyMonitor) {
+        mLatencyMonitor = latencyMonitor;
+    }
 
-    public AudioPlayer() {
+    /** Everything played is also handed to this, to be recorded, until it's set back to null. */
+    public void setCallRecorder(CallRecorder callRecorder) {
+        mCallRecorder = callRecorder;
+    }
+
+    /**
+     * Aims for a different playout delay from the next frame on. Goes back to the default with
+     * each {@link #resume()}.
+     */
+    public void setTargetDelayMs(int targetDelayMs) {
+        mTargetDelayMs = targetDelayMs;
+    }
+
+    /** @return True if the platform can play mono 16-bit PCM at this sample rate. */
+    public static boolean supportsSampleRate(int sampleRate) {
+        int size = AudioTrack.getMinBufferSize(
+                sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        return size != AudioTrack.ERROR && size != AudioTrack.ERROR_BAD_VALUE;
     }
 
     /** Call this when BYTES payload is received */
     public void addAudioData(byte[] data) {
-        if (!mAlive) return;
+        addAudioData(data, 0);
+    }
+
+    /**
+     * Queues a frame to be heard at a given time. If it gets to the front of the queue too early,
+     * we wait; too late, we catch up.
+     *
+     * @param playAtNanos When, by {@link System#nanoTime()}, or 0 to play it whenever it gets
+     *     there.
+     */
+    public void addAudioData(byte[] data, long playAtNanos) {
+        if (!isPlaying()) return;
 
         // Anti-Lag Logic:
-        // If the queue is too full, clear it. This causes a tiny skip in audio
+        // If the queue is hopelessly full, clear it. This causes a skip in audio
         // but ensures we are playing "live" audio, not audio from 1 minute ago.
         if (mQueue.size() > MAX_BUFFER_SIZE) {
             mQueue.clear();
+            mQueuedSamples.set(0);
             Log.w(TAG, "Player buffer full - Dropping audio to catch up");
         }
-        mQueue.add(data);
+        mQueuedSamples.addAndGet(data.length / 2);
+        mQueue.add(new Frame(data, playAtNanos));
     }
 
     /**
-     * @return True if currently playing.
+     * @return True if currently playing. False while paused or stopped.
      */
     public boolean isPlaying() {
-        return mAlive;
+        return mAlive && mActive;
     }
 
     /**
-     * Starts playing the stream.
+     * Creates the {@link AudioTrack} on a new audio thread, but doesn't play anything until {@link
+     * #resume()}. Doing this ahead of a call takes device setup out of the time to the first frame.
      */
-    public void start() {
+    public void prepare() {
+        if (mAlive) {
+            Log.w(TAG, "Already running");
+            return;
+        }
         mAlive = true;
         mThread =
                 new Thread() {
@@ -64,7 +179,7 @@ public class AudioPlayer {
                     public void run() {
                         setThreadPriority(THREAD_PRIORITY_URGENT_AUDIO);
 
-                        Buffer buffer = new Buffer();
+                        Buffer buffer = new Buffer(mFormat);
                         AudioTrack audioTrack =
                                 new AudioTrack(
                                         AudioManager.STREAM_VOICE_CALL,
@@ -73,17 +188,73 @@ public class AudioPlayer {
                                         AudioFormat.ENCODING_PCM_16BIT,
                                         buffer.size,
                                         AudioTrack.MODE_STREAM);
-                        audioTrack.play();
+                        mAudioTrack = audioTrack;
+                        PlayoutProcessor processor = null;
+                        boolean firstFrame = false;
 
                 try {
-                    while (isPlaying()) {
+                    while (mAlive) {
+                        if (!mActive) {
+                            if (processor != null) {
+                                audioTrack.pause();
+                                audioTrack.flush();
+                                mFramesWritten = 0;
+                                mOutputLatencyCheckedNanos = 0;
+                                Log.d(TAG, "AudioPlayer paused: " + processor);
+                                processor = null;
+                            }
+                            awaitActive();
+                            continue;
+                        }
+                        if (processor == null) {
+                            // A new call. Frames are the negotiated size, so the processor's
+                            // buffers only grow when a legacy peer sends something bigger.
+                            mDspChain.reset();
+                            processor =
+                                    new PlayoutProcessor(
+                                            buffer.sampleRate, buffer.frameSize / 2, mDspChain);
+                            mProcessor = processor;
+                            audioTrack.play();
+                            firstFrame = true;
+                        }
+
                         // Take data from the queue, blocking until data arrives
-                        byte[] data = mQueue.take();
-                        audioTrack.write(data, 0, data.length);
+                        Frame frame = mQueue.take();
+                        byte[] data = frame.data;
+                        if (data.length < 2) {
+                            continue;
+                        }
+                        int queuedSamples = mQueuedSamples.addAndGet(-data.length / 2);
+                        int targetDelayMs = mTargetDelayMs;
+                        if (targetDelayMs != processor.getTargetDelayMs()) {
+                            processor.setTargetDelayMs(targetDelayMs);
+                        }
+                        int length;
+                        if (frame.playAtNanos != 0) {
+                            int lateSamples =
+                                    waitForTime(audioTrack, frame.playAtNanos, buffer.sampleRate);
+                            length = processor.processScheduled(data, data.length, lateSamples);
+                        } else {
+                            length = processor.process(data, data.length, queuedSamples);
+                        }
+                        if (length > 0) {
+                            LatencyMonitor latencyMonitor = mLatencyMonitor;
+                            if (latencyMonitor != null) {
+                                long now = System.nanoTime();
+                                long heard = heardAtNanos(audioTrack, buffer.sampleRate, now);
+                                latencyMonitor.onPlayed(now - frame.queuedNanos, heard - now);
+                            }
+                            write(audioTrack, processor.getOutput(), length);
+                            if (firstFrame) {
+                                firstFrame = false;
+                                onFirstFramePlayed();
+                            }
+                        }
                     }
                 } catch (InterruptedException e) {
                     Log.e(TAG, "AudioPlayer interrupted", e);
                 } finally {
+                    Log.d(TAG, "AudioPlayer finished: " + processor);
                     audioTrack.stop();
                     audioTrack.release();
                     onFinish();
@@ -93,16 +264,164 @@ public class AudioPlayer {
         mThread.start();
     }
 
-    public void stop() {
-        mAlive = false;
+    /**
+     * Writes to the track, and to the echo reference and call recorder. Audio thread only.
+     */
+    private void write(AudioTrack audioTrack, short[] samples, int length) {
+        audioTrack.write(samples, 0, length);
+        mFramesWritten += length;
+        EchoReference echoReference = mEchoReference;
+        if (echoReference != null) {
+            echoReference.write(samples, length);
+        }
+        CallRecorder callRecorder = mCallRecorder;
+        if (callRecorder != null) {
+            callRecorder.writeRemote(samples, length);
+        }
+    }
+
+    /**
+     * Works out when a frame written now would be heard, and if that's early by more than {@link
+     * PlayoutProcessor} can steer away, writes silence until it isn't. Audio thread only.
+     *
+     * @return How late the frame will be heard after that, in samples. Negative if early.
+     */
+    private int waitForTime(AudioTrack audioTrack, long playAtNanos, int sampleRate) {
+        long heard = heardAtNanos(audioTrack, sampleRate, System.nanoTime());
+        long lateSamples = (heard - playAtNanos) * sampleRate / 1_000_000_000L;
+        int steer = sampleRate * PlayoutProcessor.SYNC_STEER_MS / 1000;
+        if (lateSamples < -steer) {
+            int wait = (int) Math.min(-lateSamples, sampleRate * MAX_SYNC_WAIT_MS / 1000);
+            if (mSilence.length < wait) {
+                mSilence = new short[wait];
+            }
+            write(audioTrack, mSilence, wait);
+            lateSamples += wait;
+        }
+        return (int) lateSamples;
+    }
+
+    /**
+     * @param now {@link System#nanoTime()}, just now.
+     * @return When the next sample written to the track will be heard, by {@link
+     *     System#nanoTime()}: after everything still in the track's buffer, and however long the
+     *     track takes from there. Audio thread only.
+     */
+    private long heardAtNanos(AudioTrack audioTrack, int sampleRate, long now) {
+        long head = audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        if (now - mOutputLatencyCheckedNanos > OUTPUT_LATENCY_CHECK_NANOS
+                && audioTrack.getTimestamp(mTimestamp)) {
+            mOutputLatencyCheckedNanos = now;
+            // The frame at framePosition was heard at nanoTime. The head has moved on to where
+            // frames are being taken from the buffer now; the ones in between are still on their
+            // way to the speaker.
+            long latency = (head - mTimestamp.framePosition) * 1_000_000_000L / sampleRate
+                    - (now - mTimestamp.nanoTime);
+            if (latency >= 0 && latency < 1_000_000_000L) {
+                mOutputLatencyNanos = latency;
+            }
+        }
+        long buffered = Math.max(0, mFramesWritten - head);
+        return now + buffered * 1_000_000_000L / sampleRate + mOutputLatencyNanos;
+    }
+
+    /**
+     * @return How long the track takes to get a sample from its buffer to the speaker, as of the
+     *     last time we asked, in ms. 0 until we've managed to ask.
+     */
+    public double getOutputLatencyMs() {
+        return mOutputLatencyNanos / 1e6;
+    }
+
+    /**
+     * Starts playing. Doesn't block: the audio thread picks it up, or starts playing straight away
+     * if it hasn't got going yet.
+     */
+    public void resume() {
+        mTargetDelayMs = PlayoutProcessor.TARGET_DELAY_MS;
+        synchronized (mLock) {
+            mActive = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /** Stops playing and drops anything queued, but keeps the {@link AudioTrack} for next time. */
+    public void pause() {
+        synchronized (mLock) {
+            mActive = false;
+            // Dropped here rather than on the audio thread, so that if we're resumed before it
+            // notices, the last call's frames aren't played into the next one, and it can't drop
+            // the next one's.
+            mQueue.clear();
+            mQueuedSamples.set(0);
+        }
+        // Wake up the queue.take() if it's waiting
+        mQueue.offer(new Frame(new byte[0], 0));
+    }
+
+    /** Parks the audio thread until we're resumed or stopped. */
+    private void awaitActive() throws InterruptedException {
+        synchronized (mLock) {
+            while (mAlive && !mActive) {
+                mLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Stops playing and releases the {@link AudioTrack} for good. If the thread is still blocked in
+     * a write after {@code timeoutMs}, the {@link AudioTrack} is paused and flushed under it so the
+     * write returns, and we wait once more.
+     *
+     * @return True if the playback thread has finished.
+     */
+    public boolean stop(long timeoutMs) {
+        synchronized (mLock) {
+            mAlive = false;
+            mLock.notifyAll();
+        }
         // Inject a dummy byte to wake up the queue.take() if it's waiting
-        mQueue.offer(new byte[0]);
+        mQueue.offer(new Frame(new byte[0], 0));
+        Thread thread = mThread;
+        if (thread == null) {
+            return true;
+        }
         try {
-            if (mThread != null) mThread.join();
+            thread.join(timeoutMs);
+            if (thread.isAlive()) {
+                Log.w(TAG, "AudioPlayer didn't stop within " + timeoutMs + "ms; pausing AudioTrack");
+                AudioTrack audioTrack = mAudioTrack;
+                if (audioTrack != null) {
+                    try {
+                        audioTrack.pause();
+                        audioTrack.flush();
+                    } catch (IllegalStateException e) {
+                        Log.e(TAG, "Failed to pause AudioTrack", e);
+                    }
+                }
+                thread.interrupt();
+                thread.join(timeoutMs);
+            }
         } catch (InterruptedException e) {
             Log.e(TAG, "Interrupted while joining AudioPlayer thread", e);
             Thread.currentThread().interrupt();
         }
+        return !thread.isAlive();
+    }
+
+    /**
+     * @return How playout went so far: how often we sped up or slowed down, and the clock drift.
+     *     Null until playback has started.
+     */
+    public PlayoutProcessor getPlayoutStats() {
+        return mProcessor;
+    }
+
+    /**
+     * The first frame of a call has just been handed to the {@link AudioTrack}. Called on the audio
+     * thread, once per {@link #resume()}.
+     */
+    protected void onFirstFramePlayed() {
     }
 
     /**
@@ -112,6 +431,10 @@ public class AudioPlayer {
     }
 
     private static class Buffer extends AudioBuffer {
+        Buffer(CallFormat format) {
+            super(format.getSampleRate(), format.getFrameBytes());
+        }
+
         @Override
         protected boolean validSize(int size) {
             return size != AudioTrack.ERROR && size != AudioTrack.ERROR_BAD_VALUE;
@@ -7,39 +7,120 @@ import static uz.kosmostar.vokall.Constants.TAG;
 import android.annotation.SuppressLint;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
 import android.media.audiofx.AcousticEchoCanceler;
 import android.media.audiofx.NoiseSuppressor;
-import android.os.ParcelFileDescriptor;
 import android.util.Log;
-import java.io.IOException;
-import java.io.OutputStream;
+import androidx.annotation.StringRes;
 import java.util.Arrays;
 
 
 public class AudioRecorder {
     /** Interface to send data back to the Activity */
     public interface AudioDataCallback {
-        void onAudioData(byte[] data);
+        /**
+         * @param capturedNanos When the frame's first sample was picked up by the microphone, by
+         *     {@link System#nanoTime()}.
+         */
+        void onAudioData(byte[] data, long capturedNanos);
+    }
+
+    /** Which noise suppressor cleans up captured audio. */
+    public enum NoiseSuppression {
+        /** None at all. */
+        OFF(R.string.noise_suppression_off),
+        /** Only the platform's {@link NoiseSuppressor}. */
+        PLATFORM(R.string.noise_suppression_platform),
+        /** Only our own, in the DSP chain. */
+        SOFTWARE(R.string.noise_suppression_software),
+        /** The platform's if the device has one, otherwise our own. */
+        AUTO(R.string.noise_suppression_auto);
+
+        @StringRes private final int mLabel;
+
+        NoiseSuppression(@StringRes int label) {
+            mLabel = label;
+        }
+
+        /** @return What to call this mode in the UI. */
+        @StringRes
+        public int getLabel() {
+            return mLabel;
+        }
     }
 
     private final AudioDataCallback mCallback;
+    private final CallFormat mFormat;
+    private final DspChain mDspChain;
     private volatile boolean mAlive;
+    /** True while frames should be captured. The audio thread waits on {@link #mLock} otherwise. */
+    private volatile boolean mActive;
+    /** True if the DSP should start from scratch the next time capturing starts. */
+    private volatile boolean mResetDsp = true;
+    private final Object mLock = new Object();
     private Thread mThread;
+    /** The recorder the audio thread is reading from, so {@link #stop(long)} can unblock it. */
+    private volatile AudioRecord mRecord;
     private volatile boolean mMuted = false;
+    private DspStage mEchoCancellerFallback;
+    private DspStage mNoiseSuppressorFallback;
+    private volatile NoiseSuppression mNoiseSuppression = NoiseSuppression.AUTO;
 
-    public AudioRecorder(AudioDataCallback callback) {
+    public AudioRecorder(CallFormat format, AudioDataCallback callback) {
+        this(format, new DspChain(), callback);
+    }
+
+    /**
+     * @param dspChain Runs over every captured frame before it's handed to the callback.
+     */
+    public AudioRecorder(CallFormat format, DspChain dspChain, AudioDataCallback callback) {
+        mFormat = format;
+        mDspChain = dspChain;
         mCallback = callback;
     }
 
-  /** @return True if actively recording. False otherwise. */
+    /** @return True if the platform can record mono 16-bit PCM at this sample rate. */
+    public static boolean supportsSampleRate(int sampleRate) {
+        int size = AudioRecord.getMinBufferSize(
+                sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        return size != AudioRecord.ERROR && size != AudioRecord.ERROR_BAD_VALUE;
+    }
+
+    /**
+     * Sets a stage of the DSP chain that cancels echo in software. It's only switched on when the
+     * platform's {@link AcousticEchoCanceler} can't be used, so echo is never cancelled twice.
+     * Call before {@link #prepare()}.
+     */
+    public void setEchoCancellerFallback(DspStage echoCanceller) {
+        mEchoCancellerFallback = echoCanceller;
+    }
+
+    /**
+     * Sets a stage of the DSP chain that suppresses noise in software. Whether it runs depends on
+     * {@link #setNoiseSuppression(NoiseSuppression)}. Call before {@link #prepare()}.
+     */
+    public void setNoiseSuppressorFallback(DspStage noiseSuppressor) {
+        mNoiseSuppressorFallback = noiseSuppressor;
+    }
+
+    /** Picks the noise suppressor. Can be changed mid-call; it applies from the next frame. */
+    public void setNoiseSuppression(NoiseSuppression mode) {
+        mNoiseSuppression = mode;
+    }
+
+  /** @return True if actively recording. False while paused or stopped. */
   public boolean isRecording() {
-    return mAlive;
+    return mAlive && mActive;
   }
 
-  /** Starts recording audio. */
-  public void start() {
-    if (isRecording()) {
+  /**
+   * Opens the microphone and its effects on a new audio thread, but doesn't capture anything until
+   * {@link #resume()}. Doing this ahead of a call takes device and effect setup out of the time to
+   * the first frame.
+   */
+  public void prepare() {
+    if (mAlive) {
       Log.w(TAG, "Already running");
       return;
     }
@@ -51,7 +132,7 @@ public class AudioRecorder {
           public void run() {
             setThreadPriority(THREAD_PRIORITY_URGENT_AUDIO);
 
-            Buffer buffer = new Buffer();
+            Buffer buffer = new Buffer(mFormat);
             @SuppressLint("MissingPermission") AudioRecord record =
                 new AudioRecord(
                     MediaRecorder.AudioSource.VOICE_COMMUNICATION,
@@ -72,34 +153,69 @@ public class AudioRecorder {
 
               if (NoiseSuppressor.isAvailable()) {
                   ns = NoiseSuppressor.create(sessionId);
-                  if (ns != null) ns.setEnabled(true);
-                  Log.d(TAG, "NoiseSuppressor enabled");
               }
+              NoiseSuppression noiseSuppression = applyNoiseSuppression(ns, null);
 
               // Optional: Also enable Echo Canceler if you experience feedback
               if (AcousticEchoCanceler.isAvailable()) {
                   aec = AcousticEchoCanceler.create(sessionId);
                   if (aec != null) aec.setEnabled(true);
               }
+              if (mEchoCancellerFallback != null) {
+                  mDspChain.setEnabled(mEchoCancellerFallback, aec == null);
+                  Log.d(TAG, aec == null
+                          ? "AcousticEchoCanceler unavailable, using software echo canceller"
+                          : "AcousticEchoCanceler enabled");
+              }
 
 
-              record.startRecording();
+              mRecord = record;
+              short[] samples = new short[buffer.frameSize / 2];
+              boolean recording = false;
+              CaptureClock captureClock = new CaptureClock(buffer.sampleRate);
 
                 try {
-                    while (isRecording()) {
-                        int len = record.read(buffer.data, 0, buffer.size);
-                        if (len > 0) {
+                    while (mAlive) {
+                        if (!mActive) {
+                            if (recording) {
+                                record.stop();
+                                recording = false;
+                                Log.d(TAG, "AudioRecorder paused: " + mDspChain);
+                            }
+                            awaitActive();
+                            continue;
+                        }
+                        if (!recording) {
+                            if (mResetDsp) {
+                                // A new call. Start the DSP from scratch.
+                                mResetDsp = false;
+                                mDspChain.reset();
+                            }
+                            record.startRecording();
+                            recording = true;
+                            captureClock.reset();
+                        }
+                        if (mNoiseSuppression != noiseSuppression) {
+                            noiseSuppression = applyNoiseSuppression(ns, noiseSuppression);
+                        }
+                        int len = record.read(samples, 0, samples.length);
+                        long capturedNanos = len > 0 ? captureClock.onRead(record, len) : 0;
+                        if (len > 0 && mActive) {
                             if (mMuted) {
-                                Arrays.fill(buffer.data, 0, len, (byte) 0);
+                                Arrays.fill(samples, 0, len, (short) 0);
+                            } else {
+                                mDspChain.process(samples, len);
                             }
-                            // Copy the valid bytes to a new array to send via callback
-                            byte[] dataToSend = Arrays.copyOf(buffer.data, len);
-                            mCallback.onAudioData(dataToSend);
+                            // Copy the valid samples to a new array to send via callback
+                            byte[] dataToSend = new byte[len * 2];
+                            Pcm16.toBytes(samples, len, dataToSend, 0);
+                            mCallback.onAudioData(dataToSend, capturedNanos);
                         }
                     }
                 } catch (Exception e) {
                     Log.e(TAG, "Exception with recording stream", e);
                 } finally {
+                    Log.d(TAG, "AudioRecorder finished: " + mDspChain);
                     try {
                         record.stop();
                     } catch (IllegalStateException e) {
@@ -114,22 +230,172 @@ public class AudioRecorder {
         mThread.start();
     }
 
+    /**
+     * Starts capturing. Doesn't block: the audio thread picks it up, or starts capturing straight
+     * away if it hasn't got going yet.
+     */
+    public void resume() {
+        mResetDsp = true;
+        resumeTalkSpurt();
+    }
+
+    /**
+     * Starts capturing again within the same call, e.g. while push-to-talk is held. Unlike {@link
+     * #resume()}, the DSP keeps what it's learned, so the echo canceller doesn't have to converge
+     * again on every press.
+     */
+    public void resumeTalkSpurt() {
+        synchronized (mLock) {
+            mActive = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops capturing, but keeps the microphone and its effects ready for the next call. The
+     * {@link AudioRecord} is stopped and the audio thread parked, so a paused recorder costs
+     * nothing, and a frame that was being read when this was called is dropped.
+     */
+    public void pause() {
+        mActive = false;
+    }
+
+    /** Parks the audio thread until we're resumed or stopped. */
+    private void awaitActive() throws InterruptedException {
+        synchronized (mLock) {
+            while (mAlive && !mActive) {
+                mLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Switches the platform and software noise suppressors on or off to match {@link
+     * #mNoiseSuppression}.
+     *
+     * @param ns The platform effect, or null if the device doesn't have one.
+     * @param previous The mode that was applied before, or null the first time.
+     * @return The mode now applied.
+     */
+    private NoiseSuppression applyNoiseSuppression(
+            NoiseSuppressor ns, NoiseSuppression previous) {
+        NoiseSuppression mode = mNoiseSuppression;
+        boolean platform =
+                ns != null && (mode == NoiseSuppression.PLATFORM || mode == NoiseSuppression.AUTO);
+        boolean software =
+                mNoiseSuppressorFallback != null
+                        && (mode == NoiseSuppression.SOFTWARE
+                                || (mode == NoiseSuppression.AUTO && ns == null));
+        if (ns != null) {
+            ns.setEnabled(platform);
+        }
+        if (mNoiseSuppressorFallback != null) {
+            mDspChain.setEnabled(mNoiseSuppressorFallback, software);
+        }
+        Log.d(TAG, "Noise suppression " + previous + " -> " + mode
+                + " (platform=" + platform + ", software=" + software + ")");
+        return mode;
+    }
+
     public void setMuted(boolean muted) {
         this.mMuted = muted;
     }
 
-    /** Stops recording audio. */
-    public void stop() {
-        mAlive = false;
+    /**
+     * Stops recording audio and releases the microphone for good. If the thread is still blocked
+     * in a read after {@code timeoutMs}, the {@link AudioRecord} is stopped under it so the read
+     * returns, and we wait once more.
+     *
+     * @return True if the recording thread has finished.
+     */
+    public boolean stop(long timeoutMs) {
+        synchronized (mLock) {
+            mAlive = false;
+            mLock.notifyAll();
+        }
+        Thread thread = mThread;
+        if (thread == null) {
+            return true;
+        }
         try {
-            if (mThread != null) mThread.join();
+            thread.join(timeoutMs);
+            if (thread.isAlive()) {
+                Log.w(TAG, "AudioRecorder didn't stop within " + timeoutMs + "ms; stopping AudioRecord");
+                AudioRecord record = mRecord;
+                if (record != null) {
+                    try {
+                        record.stop();
+                    } catch (IllegalStateException e) {
+                        Log.e(TAG, "Failed to stop AudioRecord", e);
+                    }
+                }
+                thread.join(timeoutMs);
+            }
         } catch (InterruptedException e) {
             Log.e(TAG, "Interrupted while joining AudioRecorder thread", e);
             Thread.currentThread().interrupt();
         }
+        return !thread.isAlive();
+    }
+
+    /**
+     * Works out when each frame read was captured. {@link AudioRecord#getTimestamp(AudioTimestamp,
+     * int)} tells us when a given frame was, now and then, and we count frames from there. Until
+     * it does, or if what it says makes no sense, we take it that a frame was captured just before
+     * the read that returned it, which misses however long it sat in the recorder's buffer.
+     */
+    private static class CaptureClock {
+        /** How often we ask the recorder when what it's reading was captured. */
+        private static final long CHECK_INTERVAL_NANOS = 1_000_000_000L;
+
+        private final int mSampleRate;
+        private final AudioTimestamp mTimestamp = new AudioTimestamp();
+        private boolean mHaveTimestamp;
+        private long mCheckedNanos;
+        /** How many frames we've read since recording started. */
+        private long mFramesRead;
+
+        CaptureClock(int sampleRate) {
+            mSampleRate = sampleRate;
+        }
+
+        /** Recording has started again. The recorder counts frames from 0 again too. */
+        void reset() {
+            mHaveTimestamp = false;
+            mCheckedNanos = 0;
+            mFramesRead = 0;
+        }
+
+        /** @return When the first of the {@code frames} just read was captured. */
+        long onRead(AudioRecord record, int frames) {
+            long now = System.nanoTime();
+            long position = mFramesRead;
+            mFramesRead += frames;
+            // Until the first one comes through, ask every time.
+            if (now - mCheckedNanos > CHECK_INTERVAL_NANOS
+                    && record.getTimestamp(mTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+                            == AudioRecord.SUCCESS) {
+                mCheckedNanos = now;
+                mHaveTimestamp = true;
+            }
+            long justBefore = now - frames * 1_000_000_000L / mSampleRate;
+            if (!mHaveTimestamp) {
+                return justBefore;
+            }
+            long captured =
+                    mTimestamp.nanoTime
+                            + (position - mTimestamp.framePosition) * 1_000_000_000L / mSampleRate;
+            return captured <= justBefore && now - captured < 1_000_000_000L
+                    ? captured
+                    : justBefore;
+        }
     }
 
     private static class Buffer extends AudioBuffer {
+        Buffer(CallFormat format) {
+            super(format.getSampleRate(), format.getFrameBytes());
+        }
+
         @Override
         protected boolean validSize(int size) {
             return size != AudioRecord.ERROR && size != AudioRecord.ERROR_BAD_VALUE;
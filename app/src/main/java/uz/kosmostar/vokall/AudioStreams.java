@@ -0,0 +1,136 @@
+package uz.kosmostar.vokall;
+
+import static uz.kosmostar.vokall.Constants.TAG;
+
+import android.util.Log;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import com.google.android.gms.nearby.connection.Payload;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import uz.kosmostar.vokall.ConnectionsService.Endpoint;
+
+/**
+ * Carries a call's audio on {@link Transport#STREAM}: a {@link PayloadStreamWriter} for each peer
+ * we stream our audio to, and a {@link PayloadStreamReader} for each peer that streams us its own.
+ * Nearby keeps a stream's connection open, so each frame is a write to it rather than a payload of
+ * its own.
+ *
+ * <p>A peer we have no stream to, because it can't take one, it couldn't be opened or it broke,
+ * gets its audio as BYTES instead; {@link #write(String, byte[])} says when.
+ *
+ * <p>{@link #isWriting()} and {@link #write(String, byte[])} may be called from any thread,
+ * normally the audio thread; the rest from the main thread.
+ */
+public class AudioStreams {
+    /** Carries out what the streams need. */
+    public interface Callback {
+        /** Sends a peer the STREAM payload our audio to it goes in. */
+        void sendStream(String endpointId, Payload payload);
+
+        /** A frame came out of a peer's stream. */
+        void onFrame(Endpoint endpoint, byte[] frame, long receivedNanos);
+    }
+
+    private final Executor mCallbackExecutor;
+    private final Callback mCallback;
+
+    /** Our audio streams to peers we send it to as STREAM payloads. Read on the audio thread. */
+    private final Map<String, PayloadStreamWriter> mWriters = new ConcurrentHashMap<>();
+
+    /** Reading audio streams from each peer that sends us one. */
+    private final Map<String, PayloadStreamReader> mReaders = new HashMap<>();
+
+    /** @param callbackExecutor Where to hand frames over, e.g. the main thread. */
+    public AudioStreams(Executor callbackExecutor, Callback callback) {
+        mCallbackExecutor = callbackExecutor;
+        mCallback = callback;
+    }
+
+    /**
+     * Starts sending a peer our audio as one STREAM payload, instead of any streams we had with it
+     * before.
+     *
+     * @return False if the stream couldn't be opened, so the peer gets BYTES.
+     */
+    @MainThread
+    public boolean open(String endpointId) {
+        close(endpointId);
+        PayloadStreamWriter writer;
+        try {
+            writer = new PayloadStreamWriter(endpointId);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open a stream to " + endpointId, e);
+            return false;
+        }
+        mCallback.sendStream(endpointId, writer.getPayload());
+        writer.start();
+        mWriters.put(endpointId, writer);
+        return true;
+    }
+
+    /**
+     * Reads a peer's audio from the STREAM payload it sent us, frame by frame, instead of any it
+     * sent before.
+     *
+     * @param maxFrameLength The longest frame the peer should send.
+     */
+    @MainThread
+    public void read(Endpoint endpoint, Payload.Stream stream, int maxFrameLength) {
+        PayloadStreamReader previous = mReaders.remove(endpoint.getId());
+        if (previous != null) {
+            previous.close();
+        }
+        PayloadStreamReader reader =
+                new PayloadStreamReader(
+                        endpoint.getId(),
+                        stream.asInputStream(),
+                        maxFrameLength,
+                        (frame, receivedNanos) -> mCallbackExecutor.execute(() -> {
+                            // Not once the call's over and the stream closed.
+                            if (mReaders.containsKey(endpoint.getId())) {
+                                mCallback.onFrame(endpoint, frame, receivedNanos);
+                            }
+                        }));
+        mReaders.put(endpoint.getId(), reader);
+        reader.start();
+    }
+
+    /** @return True if we're streaming audio to anyone. */
+    public boolean isWriting() {
+        return !mWriters.isEmpty();
+    }
+
+    /**
+     * Writes a frame into our stream to a peer.
+     *
+     * @return False if we have no stream to it, or it's broken, so the frame has to go as BYTES.
+     */
+    public boolean write(String endpointId, byte[] frame) {
+        PayloadStreamWriter writer = mWriters.get(endpointId);
+        return writer != null && writer.write(frame);
+    }
+
+    /** Closes our streams to and from a peer, or every peer if {@code endpointId} is null. */
+    @MainThread
+    public void close(@Nullable String endpointId) {
+        for (PayloadStreamWriter writer : mWriters.values()) {
+            if (endpointId == null || endpointId.equals(writer.getEndpointId())) {
+                mWriters.remove(writer.getEndpointId());
+                writer.close();
+            }
+        }
+        Iterator<Map.Entry<String, PayloadStreamReader>> readers = mReaders.entrySet().iterator();
+        while (readers.hasNext()) {
+            Map.Entry<String, PayloadStreamReader> entry = readers.next();
+            if (endpointId == null || endpointId.equals(entry.getKey())) {
+                entry.getValue().close();
+                readers.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package uz.kosmostar.vokall;
+
+/**
+ * Brings speech to a steady level, whether the talker is on speakerphone across the room or has the
+ * earpiece against their cheek. Runs entirely in fixed point.
+ *
+ * <p>An envelope follower tracks the signal's peak level, rising quickly (attack) and falling
+ * slowly (release). Once a frame, the gain is set to bring that envelope to the target level, and
+ * is ramped across the frame so it never jumps. When the envelope drops below the noise gate, the
+ * gain stops growing, so background hiss isn't pumped up in pauses, and the gate fades the signal
+ * down instead.
+ */
+public class AutomaticGainControl implements DspStage {
+    /** Gains are Q12: 4096 is unity. */
+    private static final int GAIN_SHIFT = 12;
+    private static final int UNITY = 1 << GAIN_SHIFT;
+
+    /** The envelope is kept in Q8, so slow release steps don't round down to nothing. */
+    private static final int ENVELOPE_SHIFT = 8;
+
+    /** Envelope coefficients are Q16. */
+    private static final int COEFFICIENT_SHIFT = 16;
+
+    private final int mTarget;
+    private final int mGateThreshold;
+    private final int mMinGain;
+    private final int mMaxGain;
+    private final int mGateFloor;
+    private final long mAttack;
+    private final long mRelease;
+
+    /** Q8 peak envelope. */
+    private int mEnvelope;
+    /** Q12 gain applied at the end of the last frame. */
+    private int mGain = UNITY;
+    /** Q12 gain of the noise gate at the end of the last frame. */
+    private int mGateGain = UNITY;
+
+    /** A voice-tuned AGC: aims for -18dBFS peaks, gates below -50dBFS, between -12dB and +24dB. */
+    public AutomaticGainControl(int sampleRate) {
+        this(sampleRate, -18, -50, -12, 24, 5, 300);
+    }
+
+    /**
+     * @param targetDbfs The peak level we aim for.
+     * @param gateDbfs Below this level we treat the signal as noise.
+     * @param minGainDb The most we'll turn a loud talker down.
+     * @param maxGainDb The most we'll turn a quiet talker up.
+     * @param attackMs How quickly the envelope follows a rising level.
+     * @param releaseMs How quickly the envelope follows a falling level.
+     */
+    public AutomaticGainControl(
+            int sampleRate,
+            float targetDbfs,
+            float gateDbfs,
+            float minGainDb,
+            float maxGainDb,
+            float attackMs,
+            float releaseMs) {
+        mTarget = dbfsToLevel(targetDbfs);
+        mGateThreshold = dbfsToLevel(gateDbfs);
+        mMinGain = dbToGain(minGainDb);
+        mMaxGain = dbToGain(maxGainDb);
+        mGateFloor = dbToGain(minGainDb);
+        mAttack = coefficient(sampleRate, attackMs);
+        mRelease = coefficient(sampleRate, releaseMs);
+    }
+
+    @Override
+    public void process(short[] samples, int length) {
+        if (length <= 0) {
+            return;
+        }
+
+        // Follow the envelope across the frame.
+        int envelope = mEnvelope;
+        for (int i = 0; i < length; i++) {
+            int level = Math.abs(samples[i]) << ENVELOPE_SHIFT;
+            long coefficient = level > envelope ? mAttack : mRelease;
+            envelope += (int) (((long) (level - envelope) * coefficient) >> COEFFICIENT_SHIFT);
+        }
+        mEnvelope = envelope;
+
+        // Pick where the gain should be by the end of this frame.
+        int peak = envelope >> ENVELOPE_SHIFT;
+        int gain = mGain;
+        int gateGain;
+        if (peak < mGateThreshold) {
+            // Noise. Don't chase it, and fade it down.
+            gain = Math.min(gain, UNITY);
+            gateGain = mGateFloor;
+        } else {
+            gain = (int) (((long) mTarget << GAIN_SHIFT) / Math.max(1, peak));
+            gain = Math.max(mMinGain, Math.min(mMaxGain, gain));
+            gateGain = UNITY;
+        }
+
+        // Ramp from last frame's gain to this one, so the level never steps.
+        long from = ((long) mGain * mGateGain) >> GAIN_SHIFT;
+        long to = ((long) gain * gateGain) >> GAIN_SHIFT;
+        long current = from << 16;
+        long step = ((to - from) << 16) / length;
+        for (int i = 0; i < length; i++) {
+            current += step;
+            samples[i] = Pcm16.clip((int) ((samples[i] * (current >> 16)) >> GAIN_SHIFT));
+        }
+        mGain = gain;
+        mGateGain = gateGain;
+    }
+
+    @Override
+    public void reset() {
+        mEnvelope = 0;
+        mGain = UNITY;
+        mGateGain = UNITY;
+    }
+
+    /** @return The gain currently applied, in decibels. Includes the noise gate. */
+    public float getGainDb() {
+        return (float) (20 * Math.log10(((double) mGain * mGateGain) / UNITY / UNITY));
+    }
+
+    private static int dbfsToLevel(float dbfs) {
+        return (int) Math.round(Short.MAX_VALUE * Math.pow(10, dbfs / 20));
+    }
+
+    private static int dbToGain(float db) {
+        return (int) Math.round(UNITY * Math.pow(10, db / 20));
+    }
+
+    /** A one-pole smoothing coefficient for the given time constant, in Q16. */
+    private static long coefficient(int sampleRate, float timeMs) {
+        double coefficient = 1 - Math.exp(-1000.0 / (timeMs * sampleRate));
+        return Math.max(1, Math.round(coefficient * (1 << COEFFICIENT_SHIFT)));
+    }
+}
@@ -0,0 +1,217 @@
+package uz.kosmostar.vokall;
+
+import androidx.annotation.Nullable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Estimates how fast the link to one peer can carry data right now, from nothing more than how big
+ * our payloads are and when Nearby says each finished going out.
+ *
+ * <p>A payload that was sent while another was still going out had to wait for it, so the gap
+ * between the two finishing is how long the link took to carry the second one. Its size over that
+ * gap is a delivery rate sample. A payload sent onto an idle link only tells us the link is at
+ * least that fast, since its time includes latency; such samples only count if they raise the
+ * estimate. Audio alone rarely fills the link, so {@link Packet#TYPE_PROBE probe} trains, a few
+ * back-to-back payloads, are sent now and then to get samples of the first kind.
+ *
+ * <p>Samples are smoothed into the estimate. When several in a row are well above or below it, the
+ * link has changed, e.g. Nearby moved it from Bluetooth to Wi-Fi, and the estimate jumps to the new
+ * level instead of creeping there.
+ *
+ * <p>Safe to call from any thread: the audio thread sends, Nearby's callbacks report transfers.
+ */
+public class BandwidthEstimator {
+    /** How many payloads to send back-to-back in a probe train. */
+    static final int PROBE_COUNT = 6;
+
+    /** How big each probe payload is, in bytes. */
+    static final int PROBE_BYTES = 4096;
+
+    /** How much of each new sample goes into the estimate. */
+    private static final double SMOOTHING = 0.25;
+
+    /** How far from the estimate a sample must be to count towards a step, as a ratio. */
+    private static final double STEP_RATIO = 1.5;
+
+    /** How many samples in a row must be that far off before we call it a step. */
+    private static final int STEP_SAMPLES = 3;
+
+    /** How far the estimate must move before listeners hear about it, as a fraction. */
+    private static final double REPORT_CHANGE = 0.1;
+
+    /** How many payloads we keep track of. Older ones are forgotten if Nearby never reports them. */
+    private static final int MAX_OUTSTANDING = 256;
+
+    /** Told when the estimate changes. Called on whichever thread reported the transfer. */
+    public interface Listener {
+        /**
+         * @param bitsPerSecond The new estimate.
+         * @param step True if the link changed, rather than the estimate just drifting.
+         */
+        void onBandwidthEstimate(long bitsPerSecond, boolean step);
+    }
+
+    /** A payload that hasn't finished going out yet. */
+    private static class Outstanding {
+        final int bytes;
+        final long sentNanos;
+        /** True if another payload was still going out when this one was sent. */
+        final boolean queued;
+
+        Outstanding(int bytes, long sentNanos, boolean queued) {
+            this.bytes = bytes;
+            this.sentNanos = sentNanos;
+            this.queued = queued;
+        }
+    }
+
+    private final Map<Long, Outstanding> mOutstanding =
+            new LinkedHashMap<Long, Outstanding>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Outstanding> eldest) {
+                    return size() > MAX_OUTSTANDING;
+                }
+            };
+
+    @Nullable private final Listener mListener;
+
+    /** When the last payload finished going out, or 0. */
+    private long mLastCompletionNanos;
+
+    /** The current estimate, in bits per second. 0 until the first sample. */
+    private double mEstimateBps;
+
+    /** The estimate listeners last heard. */
+    private long mReportedBps;
+
+    /** How many samples in a row have been well above (positive) or below (negative) it. */
+    private int mStepRun;
+
+    /** The samples in the current run, so a step can jump straight to their level. */
+    private final double[] mStepSamples = new double[STEP_SAMPLES];
+
+    private int mSampleCount;
+    private int mStepCount;
+
+    public BandwidthEstimator(@Nullable Listener listener) {
+        mListener = listener;
+    }
+
+    /** We've handed Nearby a payload to send to this peer. */
+    public synchronized void onPayloadSent(long payloadId, int bytes, long nowNanos) {
+        mOutstanding.put(payloadId, new Outstanding(bytes, nowNanos, !mOutstanding.isEmpty()));
+    }
+
+    /** Nearby says a payload has finished going out to this peer. */
+    public void onPayloadTransferred(long payloadId, long nowNanos) {
+        double sample;
+        boolean appLimited;
+        synchronized (this) {
+            Outstanding payload = mOutstanding.remove(payloadId);
+            if (payload == null) {
+                return;
+            }
+            long lastCompletion = mLastCompletionNanos;
+            mLastCompletionNanos = nowNanos;
+            appLimited = !payload.queued || lastCompletion < payload.sentNanos;
+            long start = appLimited ? payload.sentNanos : lastCompletion;
+            if (nowNanos <= start) {
+                return;
+            }
+            sample = payload.bytes * 8 * 1e9 / (nowNanos - start);
+        }
+        addSample(sample, appLimited);
+    }
+
+    /** A payload to this peer failed or was cancelled. Forgets it. */
+    public synchronized void onPayloadFailed(long payloadId) {
+        mOutstanding.remove(payloadId);
+    }
+
+    /**
+     * Nearby says the link's medium changed. Whatever we knew is stale, so the next samples decide
+     * the estimate on their own. Send a probe train to get them.
+     */
+    public synchronized void onMediumChanged() {
+        mEstimateBps = 0;
+        mStepRun = 0;
+    }
+
+    /** @return The current estimate in bits per second, or 0 if we don't have one yet. */
+    public synchronized long getEstimateBps() {
+        return Math.round(mEstimateBps);
+    }
+
+    /**
+     * Adds a delivery rate sample.
+     *
+     * @param appLimited True if the link wasn't kept busy, so the sample is only a lower bound.
+     */
+    void addSample(double bitsPerSecond, boolean appLimited) {
+        long report = -1;
+        boolean step = false;
+        synchronized (this) {
+            if (appLimited && bitsPerSecond <= mEstimateBps) {
+                return;
+            }
+            mSampleCount++;
+            if (mEstimateBps == 0) {
+                mEstimateBps = bitsPerSecond;
+            } else {
+                int direction = 0;
+                if (bitsPerSecond > mEstimateBps * STEP_RATIO) {
+                    direction = 1;
+                } else if (bitsPerSecond < mEstimateBps / STEP_RATIO && !appLimited) {
+                    direction = -1;
+                }
+                if (direction == 0 || direction != Integer.signum(mStepRun)) {
+                    mStepRun = direction;
+                } else {
+                    mStepRun += direction;
+                }
+                if (direction != 0) {
+                    mStepSamples[(Math.abs(mStepRun) - 1) % STEP_SAMPLES] = bitsPerSecond;
+                }
+                if (Math.abs(mStepRun) >= STEP_SAMPLES) {
+                    // The link itself changed. Jump to where the run says it is now.
+                    mEstimateBps = median(mStepSamples);
+                    mStepRun = 0;
+                    mStepCount++;
+                    step = true;
+                } else if (direction == 0) {
+                    mEstimateBps += SMOOTHING * (bitsPerSecond - mEstimateBps);
+                }
+            }
+            long estimate = Math.round(mEstimateBps);
+            if (step
+                    || mReportedBps == 0
+                    || Math.abs(estimate - mReportedBps) > mReportedBps * REPORT_CHANGE) {
+                mReportedBps = estimate;
+                report = estimate;
+            }
+        }
+        if (report >= 0 && mListener != null) {
+            mListener.onBandwidthEstimate(report, step);
+        }
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                Locale.US,
+                "BandwidthEstimator{%.0fkbps, samples=%d, steps=%d, outstanding=%d}",
+                mEstimateBps / 1000,
+                mSampleCount,
+                mStepCount,
+                mOutstanding.size());
+    }
+}
@@ -0,0 +1,174 @@
+package uz.kosmostar.vokall;
+
+import androidx.annotation.NonNull;
+
+/**
+ * The audio format both sides of a call stream in. It is worked out independently on each device
+ * from the two {@link EndpointInfo}s, and since {@link #negotiate(EndpointInfo, EndpointInfo)} is
+ * deterministic, both devices land on the same answer without talking to each other.
+ */
+public final class CallFormat {
+    /** Sample rates in order of preference. Lower rates stream faster but sound worse. */
+    private static final int[] PREFERRED_SAMPLE_RATES = new int[] {16000, 11025, 8000};
+
+    /** Frame durations in order of preference. Shorter frames mean less latency but more payloads. */
+    private static final int[] PREFERRED_FRAME_DURATIONS_MS = new int[] {20, 10, 40, 60};
+
+    /**
+     * How much more bandwidth than a rate needs we want before moving up to it, and how little
+     * before moving down from it. Apart, so the rate doesn't flap on a link right at the edge.
+     */
+    private static final double UPGRADE_HEADROOM = 2.0;
+    private static final double DOWNGRADE_HEADROOM = 1.25;
+
+    /** What each payload costs on top of the PCM: our header, plus a guess at Nearby's framing. */
+    private static final int PAYLOAD_OVERHEAD_BYTES = 2 + 32;
+
+    /** What we fall back to when the peer is a legacy build. */
+    public static final CallFormat LEGACY =
+            new CallFormat(EndpointInfo.CODEC_PCM_16BIT, 16000, 0);
+
+    private final int codec;
+    private final int sampleRate;
+    private final int frameDurationMs;
+
+    CallFormat(int codec, int sampleRate, int frameDurationMs) {
+        this.codec = codec;
+        this.sampleRate = sampleRate;
+        this.frameDurationMs = frameDurationMs;
+    }
+
+    /**
+     * Picks the best format both endpoints support. Falls back to {@link #LEGACY} if either side is
+     * a legacy peer or they have nothing in common.
+     */
+    @NonNull
+    public static CallFormat negotiate(@NonNull EndpointInfo local, @NonNull EndpointInfo remote) {
+        if (local.isLegacy() || remote.isLegacy()) {
+            return LEGACY;
+        }
+        if (!local.supportsCodec(EndpointInfo.CODEC_PCM_16BIT)
+                || !remote.supportsCodec(EndpointInfo.CODEC_PCM_16BIT)) {
+            return LEGACY;
+        }
+
+        int sampleRate = 0;
+        for (int rate : PREFERRED_SAMPLE_RATES) {
+            if (local.supportsSampleRate(rate) && remote.supportsSampleRate(rate)) {
+                sampleRate = rate;
+                break;
+            }
+        }
+        int frameDurationMs = 0;
+        for (int duration : PREFERRED_FRAME_DURATIONS_MS) {
+            if (local.supportsFrameDuration(duration) && remote.supportsFrameDuration(duration)) {
+                frameDurationMs = duration;
+                break;
+            }
+        }
+        if (sampleRate == 0 || frameDurationMs == 0) {
+            return LEGACY;
+        }
+        return new CallFormat(EndpointInfo.CODEC_PCM_16BIT, sampleRate, frameDurationMs);
+    }
+
+    /**
+     * Picks the sample rate to send at over a link with the given bandwidth: the highest of ours
+     * that it can carry comfortably, but never above this format's. The peer converts it back.
+     *
+     * @param bandwidthBps The link's estimated bandwidth, or 0 if we don't know, which keeps this
+     *     format's rate.
+     * @param currentRate The rate we're sending at now.
+     */
+    public int sampleRateFor(long bandwidthBps, int currentRate) {
+        if (bandwidthBps <= 0 || frameDurationMs == 0) {
+            return sampleRate;
+        }
+        int lowest = sampleRate;
+        for (int rate : PREFERRED_SAMPLE_RATES) {
+            if (rate > sampleRate) {
+                continue;
+            }
+            double headroom = rate > currentRate ? UPGRADE_HEADROOM : DOWNGRADE_HEADROOM;
+            if (getBitrate(rate) * headroom <= bandwidthBps) {
+                return rate;
+            }
+            lowest = Math.min(lowest, rate);
+        }
+        return lowest;
+    }
+
+    /** @return What sending at the given rate in this format's frames costs, in bits per second. */
+    public long getBitrate(int rate) {
+        if (frameDurationMs == 0) {
+            return rate * 16L;
+        }
+        long frameBytes = rate * frameDurationMs / 1000 * 2 + PAYLOAD_OVERHEAD_BYTES;
+        return frameBytes * 8 * 1000 / frameDurationMs;
+    }
+
+    /** @return The sample rate mask to advertise, given the rates this device can record and play. */
+    public static int supportedSampleRateMask() {
+        int mask = 0;
+        for (int rate : PREFERRED_SAMPLE_RATES) {
+            if (AudioRecorder.supportsSampleRate(rate) && AudioPlayer.supportsSampleRate(rate)) {
+                mask |= EndpointInfo.sampleRateBit(rate);
+            }
+        }
+        return mask;
+    }
+
+    /** @return The frame duration mask to advertise. */
+    public static int supportedFrameDurationMask() {
+        int mask = 0;
+        for (int duration : PREFERRED_FRAME_DURATIONS_MS) {
+            mask |= EndpointInfo.frameDurationBit(duration);
+        }
+        return mask;
+    }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /** @return The frame duration, or 0 if frames are whatever size the platform buffer is. */
+    public int getFrameDurationMs() {
+        return frameDurationMs;
+    }
+
+    /** @return The number of samples in a frame, or 0 if frames aren't a fixed size. */
+    public int getFrameSamples() {
+        return sampleRate * frameDurationMs / 1000;
+    }
+
+    /** @return The size of a 16-bit mono frame in bytes, or 0 if frames aren't a fixed size. */
+    public int getFrameBytes() {
+        return getFrameSamples() * 2;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof CallFormat) {
+            CallFormat other = (CallFormat) obj;
+            return codec == other.codec
+                    && sampleRate == other.sampleRate
+                    && frameDurationMs == other.frameDurationMs;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return (codec * 31 + sampleRate) * 31 + frameDurationMs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "CallFormat{codec=%d, rate=%d, frame=%dms}", codec, sampleRate, frameDurationMs);
+    }
+}
@@ -0,0 +1,214 @@
+package uz.kosmostar.vokall;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static android.os.Process.setThreadPriority;
+import static uz.kosmostar.vokall.Constants.TAG;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records a call to WAV files, for looking back at what went wrong in it. What we captured goes in
+ * the left channel, and what we played in the right.
+ *
+ * <p>{@link AudioRecorder}'s and {@link AudioPlayer}'s threads hand their audio over through a
+ * {@link SampleRing} each, so they never block, and never wait on storage. If the disk can't keep
+ * up for {@link #RING_MS}, what doesn't fit is dropped, rather than holding them up. A background
+ * thread empties the rings every {@link #POLL_MS}, lines the two sides up, and writes them out
+ * with a {@link WavWriter}.
+ *
+ * <p>The two sides are lined up by sample count, which keeps them in step while both are running.
+ * When one stops, e.g. the microphone in push-to-talk or the speaker when nobody's talking, the
+ * other runs ahead, and once it's more than {@link #MAX_SKEW_MS} ahead, the quiet side is filled
+ * with silence to catch up.
+ *
+ * <p>A new file is started every {@link #ROTATE_MINUTES} minutes, and the oldest recordings are
+ * deleted once they add up to more than {@link #MAX_TOTAL_BYTES}. The header is kept up to date
+ * every few seconds, so a file still plays if the app dies mid-call.
+ */
+public class CallRecorder {
+    /** How much audio each ring holds before it starts dropping. */
+    static final int RING_MS = 2_000;
+
+    /** How often the writer empties the rings. */
+    static final int POLL_MS = 50;
+
+    /** How far one side may run ahead of the other before the other is filled with silence. */
+    static final int MAX_SKEW_MS = 200;
+
+    /** How long each file runs before we start another. */
+    static final int ROTATE_MINUTES = 15;
+
+    /** The most all the recordings together may take. */
+    static final long MAX_TOTAL_BYTES = 512L * 1024 * 1024;
+
+    private static final int CHANNELS = 2;
+    private static final long HEADER_UPDATE_NANOS = 5_000_000_000L;
+
+    private final File mDir;
+    private final int mSampleRate;
+    private final boolean mCompressed;
+    private final SampleRing mLocal;
+    private final SampleRing mRemote;
+    private final Thread mThread;
+    private volatile boolean mStopping;
+
+    // Writer thread only.
+    private final short[] mInterleaved;
+    private final String mName;
+    private int mFileCount;
+    private long mSkippedFrames;
+
+    /**
+     * @param dir Where the recordings go.
+     * @param sampleRate What rate both sides are at.
+     * @param compressed True for IMA ADPCM, a quarter of the size, or false for 16-bit PCM.
+     */
+    public CallRecorder(File dir, int sampleRate, boolean compressed) {
+        mDir = dir;
+        mSampleRate = sampleRate;
+        mCompressed = compressed;
+        mLocal = new SampleRing(sampleRate * RING_MS / 1000);
+        mRemote = new SampleRing(sampleRate * RING_MS / 1000);
+        mInterleaved = new short[sampleRate * POLL_MS / 1000 * CHANNELS];
+        mName = "call-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        mThread = new Thread(this::run, "CallRecorder");
+    }
+
+    /** Starts writing. */
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stops writing once what's been handed over so far is written out. Doesn't wait for that, so
+     * it's safe on the main thread.
+     */
+    public void stop() {
+        mStopping = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /** Hands over what we just captured. {@link AudioRecorder}'s thread only. */
+    public void writeLocal(byte[] pcm, int length) {
+        mLocal.write(pcm, length);
+    }
+
+    /** Hands over what we just played. {@link AudioPlayer}'s thread only. */
+    public void writeRemote(short[] samples, int length) {
+        mRemote.write(samples, length);
+    }
+
+    private void run() {
+        setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Failed to make " + mDir);
+            return;
+        }
+        trimRecordings();
+        WavWriter file = null;
+        long rotateFrames = (long) mSampleRate * ROTATE_MINUTES * 60;
+        try {
+            file = nextFile();
+            long headerUpdatedNanos = System.nanoTime();
+            while (true) {
+                // Checked before emptying the rings, so nothing handed over before stop() is lost.
+                boolean stopping = mStopping;
+                long frames = framesToWrite(stopping);
+                while (frames > 0) {
+                    int chunk = (int) Math.min(frames, mInterleaved.length / CHANNELS);
+                    mLocal.read(mInterleaved, 0, CHANNELS, chunk);
+                    mRemote.read(mInterleaved, 1, CHANNELS, chunk);
+                    file.write(mInterleaved, chunk);
+                    frames -= chunk;
+                    if (file.getFrames() >= rotateFrames) {
+                        file.close();
+                        trimRecordings();
+                        file = nextFile();
+                    }
+                }
+                if (stopping) {
+                    break;
+                }
+                long now = System.nanoTime();
+                if (now - headerUpdatedNanos >= HEADER_UPDATE_NANOS) {
+                    file.updateHeader();
+                    headerUpdatedNanos = now;
+                }
+                LockSupport.parkNanos(POLL_MS * 1_000_000L);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to record the call", e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to finish " + file.getFile(), e);
+                }
+            }
+            Log.d(TAG, toString());
+        }
+    }
+
+    /**
+     * @return How many frames to write now: as many as both sides have, or, if one is too far
+     *     ahead or we're stopping, as many as that side has, with silence for the other.
+     */
+    private long framesToWrite(boolean stopping) {
+        long local = mLocal.available();
+        long remote = mRemote.available();
+        long both = Math.min(local, remote);
+        long ahead = Math.max(local, remote);
+        if (stopping || ahead - both > mSampleRate * MAX_SKEW_MS / 1000) {
+            mSkippedFrames += ahead - both;
+            return ahead;
+        }
+        return both;
+    }
+
+    private WavWriter nextFile() throws IOException {
+        mFileCount++;
+        String name = mFileCount == 1 ? mName : mName + "-" + mFileCount;
+        File file = new File(mDir, name + ".wav");
+        Log.d(TAG, "Recording the call to " + file);
+        return new WavWriter(file, mSampleRate, CHANNELS, mCompressed);
+    }
+
+    /** Deletes the oldest recordings until what's left fits in {@link #MAX_TOTAL_BYTES}. */
+    private void trimRecordings() {
+        File[] files = mDir.listFiles((dir, name) -> name.startsWith("call-"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+            if (total > MAX_TOTAL_BYTES && !file.delete()) {
+                Log.w(TAG, "Failed to delete " + file);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.US,
+                "CallRecorder{%s, files=%d, %dHz, %s, dropped local=%d remote=%d, filled=%d}",
+                mName,
+                mFileCount,
+                mSampleRate,
+                mCompressed ? "ADPCM" : "PCM",
+                mLocal.getDroppedCount(),
+                mRemote.getDroppedCount(),
+                mSkippedFrames);
+    }
+}
@@ -0,0 +1,2620 @@
+package uz.kosmostar.vokall;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ServiceInfo;
+import android.media.AudioManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.Toast;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.ServiceCompat;
+import com.google.android.gms.nearby.connection.BandwidthInfo;
+import com.google.android.gms.nearby.connection.ConnectionInfo;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import com.google.android.gms.nearby.connection.Strategy;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs the Nearby session and the audio for calls, in the foreground, so a call carries on when the
+ * user switches apps or turns the screen off, and coming back to the app costs nothing.
+ *
+ * <p>The service goes through 4 {@link State}s.
+ *
+ * <p>{@link State#UNKNOWN}: We cannot do anything while we're in this state. The service is
+ * starting or stopping.
+ *
+ * <p>{@link State#SEARCHING}: Our default state (after we've connected). We constantly listen for a
+ * device to advertise near us, while simultaneously advertising ourselves.
+ *
+ * <p>{@link State#CONNECTED}: We've connected to another device and can now talk to them.
+ * Advertising and discovery have both stopped. Normally both sides talk whenever they like. In
+ * {@link #setPushToTalk(boolean) push-to-talk} mode, we only capture and send while the user holds
+ * down the volume keys or the on-screen button, and {@link FloorControl} makes sure only one
+ * device talks at a time.
+ *
+ * <p>In a {@link CallType#MESH} call with {@link #setMeshRelay(boolean) relaying} on, we keep
+ * advertising and discovering while connected, connect to the other relaying devices we find, and
+ * pass on what we hear, so the call reaches devices more than one hop away. See {@link MeshRelay}.
+ *
+ * <p>{@link State#RECONNECTING}: The link to the other device dropped without either of us hanging
+ * up. We keep the audio ready and keep asking that device to connect again, until it does or the
+ * grace period runs out.
+ *
+ * <p>The UI starts the service, binds to it, and registers a {@link Listener}; from then on it only
+ * shows what the service tells it and passes on what the user asks for. When the UI unbinds, the
+ * service keeps going while there's a call, and stops once there isn't. Everything here happens on
+ * the main thread.
+ */
+public class CallService extends ConnectionsService {
+    /** Ends the current call. Sent by the notification's hang up button. */
+    public static final String ACTION_HANG_UP = "uz.kosmostar.vokall.action.HANG_UP";
+
+    /** Where we keep things about this install, like {@link #PREF_DEVICE_ID}. */
+    private static final String PREFS_DEVICE = "device";
+
+    /** Our {@link EndpointInfo#getDeviceId() device id}, as a string. */
+    private static final String PREF_DEVICE_ID = "device_id";
+
+    /** How long to keep trying to get a dropped call back, in ms. 0 turns reconnecting off. */
+    private static final String PREF_RECONNECT_GRACE_MS = "reconnect_grace_ms";
+
+    /** The {@link CallType#name()} the user picked. See {@link #setCallType(CallType)}. */
+    private static final String PREF_CALL_TYPE = "call_type";
+
+    /**
+     * The call type until the user picks one. {@link CallType#GROUP}, since it's the only one
+     * older builds can find.
+     */
+    private static final CallType DEFAULT_CALL_TYPE = CallType.GROUP;
+
+    /** How often we time the round trip to the peer during a call, for {@link LinkStats}. */
+    private static final long PING_INTERVAL_MS = 2_000;
+
+    /** How often we ping while a call's new, so {@link ClockSync} has something to go on soon. */
+    private static final long SYNC_PING_INTERVAL_MS = 250;
+
+    /** How many pings we send that often. */
+    private static final int SYNC_PINGS = 2 * ClockSync.MIN_SAMPLES;
+
+    /**
+     * How much later than the slowest link gets a frame there we ask a group's listeners to play
+     * it. Leaves room for jitter, and for each listener's own output latency.
+     */
+    private static final long SYNC_PLAYOUT_MARGIN_MS = 100;
+
+    /** The most delay we'll add to keep a group's listeners in step. */
+    private static final long MAX_SYNC_PLAYOUT_DELAY_MS = 300;
+
+    /** True to send probe trains now and then, to measure the link. Costs about 6kbps. */
+    private static final String PREF_BANDWIDTH_PROBES = "bandwidth_probes";
+
+    /** How long after a call connects we first probe the link. */
+    private static final long PROBE_FIRST_DELAY_MS = 1_000;
+
+    /** How often we probe the link during a call. */
+    private static final long PROBE_INTERVAL_MS = 30_000;
+
+    /** How long after Nearby moves the link to another medium we probe it. */
+    private static final long PROBE_MEDIUM_CHANGE_DELAY_MS = 500;
+
+    /** True to only talk while a button is held. See {@link #setPushToTalk(boolean)}. */
+    private static final String PREF_PUSH_TO_TALK = "push_to_talk";
+
+    /** True to pass audio on for others in mesh calls. See {@link #setMeshRelay(boolean)}. */
+    private static final String PREF_MESH_RELAY = "mesh_relay";
+
+    /** True to trace what we receive during calls. See {@link #setPacketTrace(boolean)}. */
+    private static final String PREF_PACKET_TRACE = "packet_trace";
+
+    /** True to record calls. See {@link #setCallRecording(boolean)}. */
+    private static final String PREF_CALL_RECORDING = "call_recording";
+
+    /** True to record calls as IMA ADPCM, a quarter the size, rather than 16-bit PCM. */
+    private static final String PREF_CALL_RECORDING_COMPRESSED = "call_recording_compressed";
+
+    /** The {@link Transport#name()} we carry audio with. See {@link #setTransport(Transport)}. */
+    private static final String PREF_TRANSPORT = "transport";
+
+    /** How much of what the speaker played {@link #mEchoReference} holds. */
+    private static final int ECHO_REFERENCE_MS = 1_000;
+
+    /**
+     * How long the playout delay stays set for the farthest talker after we last heard them, so
+     * it doesn't swing back and forth while two talkers take turns.
+     */
+    private static final long PLAYOUT_HOPS_HOLD_MS = 2_000;
+
+    /** The default for {@link #PREF_RECONNECT_GRACE_MS}. */
+    private static final long DEFAULT_RECONNECT_GRACE_MS = 15_000;
+
+    /** The first wait between reconnect attempts. It doubles from here. */
+    private static final long RECONNECT_INITIAL_DELAY_MS = 250;
+
+    /** The longest wait between reconnect attempts. */
+    private static final long RECONNECT_MAX_DELAY_MS = 4_000;
+
+    /** The notification channel for the ongoing call notification. */
+    private static final String CHANNEL_ID = "calls";
+
+    /** The id of the ongoing call notification. */
+    private static final int NOTIFICATION_ID = 1;
+
+    /** Told what the service is doing. Called on the main thread. */
+    public interface Listener {
+        /** The state has changed. */
+        void onStateChanged(State oldState, State newState);
+
+        /** A device we could call turned up. */
+        void onEndpointDiscovered(Endpoint endpoint);
+
+        /** A device we could call went away. */
+        void onEndpointLost(String endpointId);
+
+        /** We asked this device to connect, and it's ringing. */
+        void onCalling(Endpoint endpoint);
+
+        /** Calling this device, or it calling us, didn't work out. */
+        void onCallFailed(Endpoint endpoint);
+
+        /**
+         * This device is calling us. Call {@link #answer(Endpoint)}, {@link #alwaysAnswer(Endpoint)}
+         * or {@link #decline(Endpoint)}.
+         */
+        void onIncomingCall(Endpoint endpoint);
+
+        /** The incoming call from this device was answered, declined, or went away by itself. */
+        void onIncomingCallEnded(Endpoint endpoint);
+
+        /** Who may talk changed. Only happens in push-to-talk mode. */
+        void onFloorStateChanged(FloorControl.State state);
+
+        /**
+         * A voice message is on its way to or from this device.
+         *
+         * @param incoming True if it's coming to us.
+         */
+        void onVoiceMessageProgress(
+                Endpoint endpoint, boolean incoming, long bytesTransferred, long totalBytes);
+
+        /** A voice message we recorded got to this device. */
+        void onVoiceMessageSent(Endpoint endpoint);
+
+        /**
+         * A voice message came in from this device.
+         *
+         * @param waiting True if it waits its turn, e.g. until the call we're on is over, rather
+         *     than being played now.
+         */
+        void onVoiceMessageReceived(Endpoint endpoint, long durationMs, boolean waiting);
+
+        /** We started or stopped recording the call. See {@link #isRecordingCall()}. */
+        void onCallRecordingChanged(boolean recording);
+
+        /** Something was logged. Only for showing on a debug screen. */
+        void onLog(int priority, String msg);
+    }
+
+    /** What clients get back when binding. */
+    public class LocalBinder extends Binder {
+        public CallService getService() {
+            return CallService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    /** True while a client is bound. */
+    private boolean mBound;
+
+    /**
+     * The state of the service. As it changes, advertising/discovery will start/stop and the UI
+     * will update.
+     */
+    private State mState = State.UNKNOWN;
+
+    /** A random UID used as this device's endpoint name. */
+    private String mName;
+
+    /** Who we are across launches, unlike {@link #mName}. Lets peers remember us. */
+    private UUID mDeviceId;
+
+    /** Who has to prove who they are before they're part of the call, and how. */
+    private PeerPairing mPairing;
+
+    /** The kind of call the user wants. Takes effect the next time we're searching. */
+    private CallType mCallType = DEFAULT_CALL_TYPE;
+
+    /**
+     * The kind of call we're advertising and discovering for, or on. Only catches up with {@link
+     * #mCallType} between calls, so a dropped call is looked for where it was.
+     */
+    private CallType mSessionCallType = DEFAULT_CALL_TYPE;
+
+    /** How each {@link CallType}'s calls have done, across launches. */
+    private LinkStatsStore mLinkStatsStore;
+
+    /** How the current connection is doing, or null if there isn't one. */
+    @Nullable private volatile LinkStats mLinkStats;
+
+    /** See {@link #PREF_TRANSPORT}. */
+    private Transport mTransport = Transport.BYTES;
+
+    /**
+     * How this part of the call is doing on the transport and link quality it's on, for comparing
+     * them, or null if there's no call. A new part starts whenever the quality changes.
+     */
+    @Nullable private volatile LinkStats mTransportStats;
+
+    /** The transport {@link #mTransportStats} is for: what we picked when the call started. */
+    private Transport mCallTransport = Transport.BYTES;
+
+    /** The link quality {@link #mTransportStats} is for. */
+    private Transport.Quality mTransportQuality = Transport.Quality.UNKNOWN;
+
+    /** What Nearby last said each connected peer's bandwidth quality was. */
+    private final Map<String, Integer> mLinkQualities = new HashMap<>();
+
+    /** See {@link #PREF_BANDWIDTH_PROBES}. */
+    private boolean mBandwidthProbes = true;
+
+    /** How fast the link to each connected peer is. Read on the audio thread. */
+    private final Map<String, BandwidthEstimator> mBandwidthEstimators = new ConcurrentHashMap<>();
+
+    /** The slowest link's estimated bandwidth, in bits per second, or 0 if we don't know yet. */
+    private volatile long mBandwidthEstimateBps;
+
+    /**
+     * The sample rate we send each peer audio at, picked from its link's bandwidth estimate. Peers
+     * that aren't in here get the call's own rate.
+     */
+    private final Map<String, Integer> mSendSampleRates = new HashMap<>();
+
+    /** Maps each connected peer's clock onto ours, from how they answer our pings. */
+    private final Map<String, ClockSync> mClockSyncs = new HashMap<>();
+
+    /**
+     * How long after it's captured we ask a group's listeners to play each frame, so they all hear
+     * it at once. Read on the audio thread.
+     */
+    private volatile long mSyncPlayoutDelayNanos = SYNC_PLAYOUT_MARGIN_MS * 1_000_000L;
+
+    /** How many pings we've sent this call. */
+    private int mPingCount;
+
+    /** Sends each captured frame to every peer in the form it needs, encoding each form once. */
+    private final FrameFanout mFanout = new FrameFanout(this::encodeAudio, this::sendAudio);
+
+    /**
+     * Converts each talker's audio to the rate we play at, when they send at another. By endpoint
+     * id, or for relayed audio, by who first sent it.
+     */
+    private final Map<String, SampleRateConverter> mReceiveConverters = new HashMap<>();
+
+    private final Runnable mProbe =
+            new Runnable() {
+                @Override
+                public void run() {
+                    sendProbeTrain();
+                    mHandler.postDelayed(this, PROBE_INTERVAL_MS);
+                }
+            };
+
+    private final Runnable mPing =
+            new Runnable() {
+                @Override
+                public void run() {
+                    sendControl(Packet.ping(System.nanoTime()), null);
+                    mPingCount++;
+                    mHandler.postDelayed(
+                            this,
+                            mPingCount < SYNC_PINGS ? SYNC_PING_INTERVAL_MS : PING_INTERVAL_MS);
+                }
+            };
+
+    /**
+     * Schedules reconnect attempts and passes things to the main thread, and cuts off peers that
+     * take too long to prove who they are.
+     */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Our audio to, and peers' from, those on {@link Transport#STREAM}. */
+    private final AudioStreams mAudioStreams =
+            new AudioStreams(
+                    mHandler::post,
+                    new AudioStreams.Callback() {
+                        @Override
+                        public void sendStream(String endpointId, Payload payload) {
+                            send(payload, Collections.singleton(endpointId));
+                        }
+
+                        @Override
+                        public void onFrame(Endpoint endpoint, byte[] frame, long receivedNanos) {
+                            onReceiveBytes(endpoint, frame, receivedNanos, Transport.STREAM);
+                        }
+                    });
+
+    /** Voice messages to and from whoever we're connected to, and playing the ones we get. */
+    private final VoiceMessageExchange mVoiceMessages =
+            new VoiceMessageExchange(
+                    this,
+                    mHandler::post,
+                    new VoiceMessageExchange.Callback() {
+                        @Override
+                        public List<String> getRecipients() {
+                            List<String> endpoints = new ArrayList<>();
+                            for (Endpoint endpoint : getConnectedEndpoints()) {
+                                if (endpoint.getInfo().supportsVoiceMessages()) {
+                                    endpoints.add(endpoint.getId());
+                                }
+                            }
+                            return endpoints;
+                        }
+
+                        @Override
+                        public void sendPacket(byte[] packet, List<String> endpointIds) {
+                            sendTracked(packet, endpointIds);
+                        }
+
+                        @Override
+                        public void sendFile(Payload payload, List<String> endpointIds) {
+                            send(payload, endpointIds);
+                        }
+
+                        @Override
+                        public boolean isInCall() {
+                            return CallService.this.isInCall();
+                        }
+
+                        @Override
+                        public void onProgress(
+                                Endpoint endpoint,
+                                boolean incoming,
+                                long bytesTransferred,
+                                long totalBytes) {
+                            for (Listener listener : listeners()) {
+                                listener.onVoiceMessageProgress(
+                                        endpoint, incoming, bytesTransferred, totalBytes);
+                            }
+                        }
+
+                        @Override
+                        public void onSent(Endpoint endpoint) {
+                            for (Listener listener : listeners()) {
+                                listener.onVoiceMessageSent(endpoint);
+                            }
+                        }
+
+                        @Override
+                        public void onReceived(
+                                Endpoint endpoint, long durationMs, boolean waiting) {
+                            for (Listener listener : listeners()) {
+                                listener.onVoiceMessageReceived(endpoint, durationMs, waiting);
+                            }
+                        }
+                    });
+
+    /** Spaces out reconnect attempts. */
+    private final ReconnectBackoff mReconnectBackoff =
+            new ReconnectBackoff(RECONNECT_INITIAL_DELAY_MS, RECONNECT_MAX_DELAY_MS);
+
+    /** See {@link #PREF_RECONNECT_GRACE_MS}. */
+    private long mReconnectGraceMs = DEFAULT_RECONNECT_GRACE_MS;
+
+    /** Who we're on a call with, or were last. Who we try to get back in {@link State#RECONNECTING}. */
+    @Nullable private Endpoint mLastPeer;
+
+    /** Someone calling us who the user hasn't answered yet. */
+    @Nullable private Endpoint mIncomingCall;
+
+    /**
+     * The peer we last hung up on, and until when we turn its reconnect attempts down. Nearby
+     * doesn't tell the other end why the link went, so this is how it learns we hung up on purpose.
+     */
+    @Nullable private UUID mHungUpDeviceId;
+
+    private long mHungUpUntilMs;
+
+    private final Runnable mReconnectAttempt = this::attemptReconnect;
+
+    private final Runnable mReconnectTimeout =
+            () -> {
+                if (getState() == State.RECONNECTING) {
+                    logW("Gave up reconnecting after " + mReconnectGraceMs + "ms");
+                    giveUpReconnecting();
+                }
+            };
+
+    /** The sample rates this device can both record and play, as an {@link EndpointInfo} mask. */
+    private int mSampleRateMask;
+
+    /**
+     * The format we stream in during the current call. Negotiated from both devices' {@link
+     * EndpointInfo}s, so it's already known before the first frame goes out.
+     */
+    private CallFormat mCallFormat = CallFormat.LEGACY;
+
+    /**
+     * What the speaker played, passed from {@link AudioPlayer} to the software {@link
+     * EchoCanceller}. Made in {@link #prepareAudio(CallFormat)} to hold {@link
+     * #ECHO_REFERENCE_MS} at the call's rate, with the reader a frame behind.
+     */
+    private EchoReference mEchoReference;
+
+    /** How long the talkers' voices take to reach our speaker, and where the time goes. */
+    private final LatencyMonitor mLatencyMonitor = new LatencyMonitor();
+
+    /**
+     * Traces what we receive and records what's said, on calls the user's asked for either. See
+     * {@link #PREF_PACKET_TRACE} and {@link #PREF_CALL_RECORDING}.
+     */
+    private final CallTaps mCallTaps = new CallTaps(this);
+
+    /** Which noise suppressor we use for calls. */
+    private AudioRecorder.NoiseSuppression mNoiseSuppression = AudioRecorder.NoiseSuppression.AUTO;
+
+    /** True if the microphone is muted. */
+    private boolean mIsMuted = false;
+
+    /** See {@link #setPushToTalk(boolean)}. */
+    private boolean mPushToTalk;
+
+    /** Who may talk during the current call, or null between calls. */
+    @Nullable private FloorControl mFloorControl;
+
+    /** See {@link #setMeshRelay(boolean)}. */
+    private boolean mMeshRelayEnabled;
+
+    /**
+     * True if the current call relays: {@link #mMeshRelayEnabled} on a {@link CallType#MESH} call.
+     * Like {@link #mSessionCallType}, only catches up between calls. Read on the audio thread.
+     */
+    private volatile boolean mSessionRelay;
+
+    /** Passes audio on across the mesh, and drops the copies of it we've already had. */
+    private MeshRelay mMeshRelay;
+
+    /** How many hops away the farthest talker we've heard lately is. Sets the playout delay. */
+    private int mPlayoutHops = 1;
+
+    /** Until when {@link #mPlayoutHops} holds, unless someone even farther away talks. */
+    private long mPlayoutHopsUntilMs;
+
+    /** True if we accepted the current call rather than placed it, which makes us the hub. */
+    private boolean mIsHub;
+
+    /**
+     * True until the current call starts capturing, so the first talk spurt starts the DSP from
+     * scratch and the rest carry on from where the last left off.
+     */
+    private boolean mAwaitingFirstTalkSpurt;
+
+    /** For recording audio as the user speaks. */
+    @Nullable private AudioRecorder mRecorder;
+
+    /** For playing audio from other users nearby. */
+    @Nullable private AudioPlayer mAudioPlayer;
+
+    /** Keeps {@link #mRecorder} and {@link #mAudioPlayer} ready between calls. */
+    private final AudioEngine mAudioEngine = new AudioEngine(mHandler::post);
+
+    /** The format {@link #mRecorder} and {@link #mAudioPlayer} were built for, or null. */
+    @Nullable private CallFormat mPreparedFormat;
+
+    /** When the current call connected, from {@link System#nanoTime()}. 0 between calls. */
+    private volatile long mConnectedNanos;
+
+    /** True until the current call's first captured frame goes out. */
+    private volatile boolean mAwaitingFirstFrameSent;
+
+    /** The phone's original call volume and audio mode, put back when we stop. */
+    private int mOriginalVolume;
+    private int mOriginalMode = AudioManager.MODE_NORMAL;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mName = generateRandomName();
+        mDeviceId = loadDeviceId();
+        mPairing =
+                new PeerPairing(
+                        new TrustedPeerStore(this),
+                        mHandler,
+                        new PeerPairing.Callback() {
+                            @Override
+                            public void sendTo(Endpoint endpoint, byte[] packet) {
+                                CallService.this.sendTo(endpoint, packet);
+                            }
+
+                            @Override
+                            public void onVerified(Endpoint endpoint) {
+                                logD(endpoint + " proved who it is");
+                                getCallTrace().end("verify", "verified");
+                                onEndpointConnected(endpoint);
+                            }
+
+                            @Override
+                            public void onVerificationFailed(Endpoint endpoint, String why) {
+                                failVerification(endpoint, why);
+                            }
+                        });
+        mLinkStatsStore = new LinkStatsStore(this);
+        SharedPreferences prefs = getSharedPreferences(PREFS_DEVICE, Context.MODE_PRIVATE);
+        mReconnectGraceMs = prefs.getLong(PREF_RECONNECT_GRACE_MS, DEFAULT_RECONNECT_GRACE_MS);
+        mPushToTalk = prefs.getBoolean(PREF_PUSH_TO_TALK, false);
+        mBandwidthProbes = prefs.getBoolean(PREF_BANDWIDTH_PROBES, true);
+        mMeshRelayEnabled = prefs.getBoolean(PREF_MESH_RELAY, false);
+        mCallTaps.setPacketTraceEnabled(prefs.getBoolean(PREF_PACKET_TRACE, false));
+        mCallTaps.setCallRecordingEnabled(prefs.getBoolean(PREF_CALL_RECORDING, false));
+        mCallTaps.setCallRecordingCompressed(
+                prefs.getBoolean(PREF_CALL_RECORDING_COMPRESSED, true));
+        mCallType = CallType.fromName(prefs.getString(PREF_CALL_TYPE, null), DEFAULT_CALL_TYPE);
+        mTransport = Transport.fromName(prefs.getString(PREF_TRANSPORT, null), Transport.BYTES);
+        mSessionCallType = mCallType;
+        updateSessionRelay();
+        // Random each launch, so peers that still remember our last sequence numbers don't take
+        // our new ones for old ones.
+        mMeshRelay = new MeshRelay(new Random().nextInt(), this::forwardRelayed);
+        mSampleRateMask = CallFormat.supportedSampleRateMask();
+
+        // Set the call volume to max.
+        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        mOriginalVolume = audioManager.getStreamVolume(AudioManager.STREAM_VOICE_CALL);
+        mOriginalMode = audioManager.getMode();
+        audioManager.setStreamVolume(
+                AudioManager.STREAM_VOICE_CALL,
+                audioManager.getStreamMaxVolume(AudioManager.STREAM_VOICE_CALL),
+                0);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager notificationManager =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.createNotificationChannel(
+                    new NotificationChannel(
+                            CHANNEL_ID,
+                            getString(R.string.notification_channel_calls),
+                            NotificationManager.IMPORTANCE_LOW));
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_HANG_UP.equals(intent.getAction())) {
+            hangUp();
+            return START_NOT_STICKY;
+        }
+
+        // We're started by the UI while it's in front, which is when we're allowed to go into
+        // the foreground with the microphone.
+        ServiceCompat.startForeground(
+                this,
+                NOTIFICATION_ID,
+                buildNotification(),
+                ServiceInfo.FOREGROUND_SERVICE_TYPE_MICROPHONE
+                        | ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+
+        if (mState == State.UNKNOWN) {
+            // Get the microphone and speaker ready now, so a call doesn't have to wait for them.
+            prepareAudio(getPreferredFormat());
+            setState(State.SEARCHING);
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        mBound = true;
+        return mBinder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        mBound = true;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        mBound = false;
+        stopIfIdle();
+        // So we hear about it in onRebind() when the UI comes back.
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mState != State.UNKNOWN) {
+            setState(State.UNKNOWN);
+        }
+        mCallTaps.finishPacketTrace();
+        finishCallRecording();
+        finishVoiceMessage();
+        stopVoiceMessage();
+        stopAudio();
+        mAudioEngine.release();
+        mHandler.removeCallbacksAndMessages(null);
+
+        // Restore the original volume.
+        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        audioManager.setStreamVolume(AudioManager.STREAM_VOICE_CALL, mOriginalVolume, 0);
+        audioManager.setMode(mOriginalMode);
+        super.onDestroy();
+    }
+
+    /** Stops the service if nobody's watching and there's no call to keep going. */
+    private void stopIfIdle() {
+        if (!mBound && !isInCall()) {
+            logD("No call and no UI; stopping");
+            ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE);
+            stopSelf();
+        }
+    }
+
+    /** Starts telling the listener what's happening. */
+    @MainThread
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /** Stops telling the listener what's happening. */
+    @MainThread
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /** @return The current state. */
+    public State getState() {
+        return mState;
+    }
+
+    /** @return True while we're on a call, including while getting a dropped one back. */
+    public boolean isInCall() {
+        return mState == State.CONNECTED || mState == State.RECONNECTING;
+    }
+
+    /** @return Who we're on a call with, or were last, or null. */
+    @Nullable
+    public Endpoint getPeer() {
+        return mLastPeer;
+    }
+
+    /** @return Someone calling us who hasn't been answered yet, or null. */
+    @Nullable
+    public Endpoint getIncomingCall() {
+        return mIncomingCall;
+    }
+
+    /** @return The devices we could call right now. */
+    public Set<Endpoint> getNearbyEndpoints() {
+        return getDiscoveredEndpoints();
+    }
+
+    /** Calls the given device. */
+    public void call(Endpoint endpoint) {
+        connectToEndpoint(endpoint);
+    }
+
+    /** Answers the incoming call from this device. */
+    public void answer(Endpoint endpoint) {
+        endIncomingCall(endpoint, "answered");
+        acceptConnection(endpoint);
+    }
+
+    /** Answers the incoming call from this device, and answers it without asking from now on. */
+    public void alwaysAnswer(Endpoint endpoint) {
+        // Trusted once it's connected, and we've given it the secret it'll prove itself with.
+        mPairing.pairWhenConnected(endpoint);
+        endIncomingCall(endpoint, "trusted");
+        acceptConnection(endpoint);
+    }
+
+    /** @return True if calls from this device are answered without asking. */
+    public boolean isTrusted(Endpoint endpoint) {
+        return mPairing.isTrusted(endpoint);
+    }
+
+    /** Asks before answering this device again. */
+    public void forget(Endpoint endpoint) {
+        mPairing.forget(endpoint);
+    }
+
+    /** Turns down the incoming call from this device. */
+    public void decline(Endpoint endpoint) {
+        endIncomingCall(endpoint, "declined");
+        rejectConnection(endpoint);
+    }
+
+    /** Ends the call on purpose, so neither end tries to get it back. */
+    public void hangUp() {
+        if (!isInCall()) {
+            return;
+        }
+        if (mLastPeer != null && mLastPeer.getInfo().getDeviceId() != null) {
+            mHungUpDeviceId = mLastPeer.getInfo().getDeviceId();
+            mHungUpUntilMs = SystemClock.elapsedRealtime() + mReconnectGraceMs;
+        }
+        mLastPeer = null;
+        disconnectFromAllEndpoints();
+        pauseAudio();
+        setState(State.SEARCHING);
+    }
+
+    /** @return True if the microphone is muted. */
+    public boolean isMuted() {
+        return mIsMuted;
+    }
+
+    /** Mutes or unmutes the microphone, for this call and the ones after. */
+    public void setMuted(boolean muted) {
+        mIsMuted = muted;
+        if (mRecorder != null) mRecorder.setMuted(muted);
+    }
+
+    /** @return Which noise suppressor we use for calls. */
+    public AudioRecorder.NoiseSuppression getNoiseSuppression() {
+        return mNoiseSuppression;
+    }
+
+    /** Picks the noise suppressor. Takes effect straight away if we're in a call. */
+    public void setNoiseSuppression(AudioRecorder.NoiseSuppression noiseSuppression) {
+        mNoiseSuppression = noiseSuppression;
+        if (mRecorder != null) mRecorder.setNoiseSuppression(noiseSuppression);
+    }
+
+    /** @return The kind of call the user wants. */
+    public CallType getCallType() {
+        return mCallType;
+    }
+
+    /**
+     * Picks the kind of call, and so the Nearby strategy, we use from now on. Only devices that
+     * picked the same one can find each other. If we're searching, we start again with the new
+     * strategy straight away; if we're in a call, it carries on as it is.
+     */
+    public void setCallType(CallType callType) {
+        if (mCallType == callType) {
+            return;
+        }
+        mCallType = callType;
+        getSharedPreferences(PREFS_DEVICE, Context.MODE_PRIVATE)
+                .edit()
+                .putString(PREF_CALL_TYPE, callType.name())
+                .apply();
+        if (getState() != State.SEARCHING) {
+            return;
+        }
+        logD("Searching as " + callType + " instead of " + mSessionCallType);
+        stopDiscovering();
+        stopAdvertising();
+        // Nobody we found can be called with the new strategy.
+        for (Endpoint endpoint : getDiscoveredEndpoints()) {
+            for (Listener listener : listeners()) {
+                listener.onEndpointLost(endpoint.getId());
+            }
+        }
+        mSessionCallType = callType;
+        updateSessionRelay();
+        startDiscovering();
+        startAdvertising();
+    }
+
+    /** @return True if we pass audio on for others in mesh calls. */
+    public boolean isMeshRelay() {
+        return mMeshRelayEnabled;
+    }
+
+    /**
+     * Turns relaying on or off for {@link CallType#MESH} calls, from the next call on. While
+     * relaying, a call keeps looking for more devices, connects to the ones that relay too without
+     * asking either user, and passes what it hears on to the rest, so everyone in the mesh hears
+     * everyone else even when they're out of each other's range.
+     */
+    public void setMeshRelay(boolean meshRelay) {
+        if (mMeshRelayEnabled == meshRelay) {
+            return;
+        }
+        mMeshRelayEnabled = meshRelay;
+        getSharedPreferences(PREFS_DEVICE, Context.MODE_PRIVATE)
+                .edit()
+                .putBoolean(PREF_MESH_RELAY, meshRelay)
+                .apply();
+        if (getState() != State.SEARCHING || mSessionRelay == isRelayingCallType()) {
+            return;
+        }
+        // Other relaying devices tell us apart by what we advertise.
+        updateSessionRelay();
+        stopAdvertising();
+        startAdvertising();
+    }
+
+    /** @return True if we trace what we receive during calls. */
+    public boolean isPacketTrace() {
+        return mCallTaps.isPacketTraceEnabled();
+    }
+
+    /**
+     * Turns tracing of received payloads on or off, from the next call on. Each call's trace goes
+     * to {@code packet-trace.bin} in the app's external files directory, and the one before it to
+     * {@code packet-trace-previous.bin}, for the tests' {@code TraceReplay}.
+     */
+    public void setPacketTrace(boolean packetTrace) {
+        if (mCallTaps.isPacketTraceEnabled() == packetTrace) {
+            return;
+        }
+        mCallTaps.setPacketTraceEnabled(packetTrace);
+        getSharedPreferences(PREFS_DEVICE, Context.MODE_PRIVATE)
+                .edit()
+                .putBoolean(PREF_PACKET_TRACE, packetTrace)
+                .apply();
+    }
+
+    /** @return True if we record calls. */
+    public boolean isCallRecording() {
+        return mCallTaps.isCallRecordingEnabled();
+    }
+
+    /** @return True if the call we're on is being recorded right now. */
+    public boolean isRecordingCall() {
+        return mCallTaps.isRecording();
+    }
+
+    /**
+     * Turns call recording on or off, from the next call on. Calls are recorded to {@code
+     * recordings} in the app's external files directory, with us on the left and them on the right.
+     */
+    public void setCallRecording(boolean callRecording) {
+        if (mCallTaps.isCallRecordingEnabled() == callRecording) {
+            return;
+        }
+        mCallTaps.setCallRecordingEnabled(callRecording);
+        getSharedPreferences(PREFS_DEVICE, Context.MODE_PRIVATE)
+                .edit()
+                .putBoolean(PREF_CALL_RECORDING, callRecording)
+                .apply();
+    }
+
+    /** @return True if a call we started searching for now would relay. */
+    private boolean isRelayingCallType() {
+        return mMeshRelayEnabled && mSessionCallType == CallType.MESH;
+    }
+
+    /** Catches {@link #mSessionRelay} up. Only between calls. */
+    private void updateSessionRelay() {
+        mSessionRelay = isRelayingCallType();
+    }
+
+    /** @return How every call of this type has done so far. */
+    public LinkStats getLinkStats(CallType callType) {
+        return mLinkStatsStore.get(callType);
+    }
+
+    /** @return How every call that carried audio this way, at this quality, has done so far. */
+    public LinkStats getLinkStats(Transport transport, Transport.Quality quality) {
+        return mLinkStatsStore.get(transport, quality);
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Picks how we carry our audio, from the next connection on: a BYTES payload per frame, or one
+     * STREAM payload per peer for the whole call. Either way, how it goes is added up in {@link
+     * #getLinkStats(Transport, Transport.Quality)}, so they can be compared.
+     */
+    public void setTransport(Transport transport) {
+        if (mTransport == transport) {
+            return;
+        }
+        mTransport = transport;
+        getSharedPreferences(PREFS_DEVICE, Context.MODE_PRIVATE)
+                .edit()
+                .putString(PREF_TRANSPORT, transport.name())
+                .apply();
+    }
+
+    /** @return True if we only talk while a button is held. */
+    public boolean isPushToTalk() {
+        return mPushToTalk;
+    }
+
+    /**
+     * Switches between talking freely and push-to-talk, for this call and the ones after. In
+     * push-to-talk mode, the microphone is off and nothing is sent until {@link #startTalking()},
+     * which cuts both the airtime and the CPU a call takes to almost nothing while listening.
+     */
+    public void setPushToTalk(boolean pushToTalk) {
+        if (mPushToTalk == pushToTalk) {
+            return;
+        }
+        mPushToTalk = pushToTalk;
+        getSharedPreferences(PREFS_DEVICE, Context.MODE_PRIVATE)
+                .edit()
+                .putBoolean(PREF_PUSH_TO_TALK, pushToTalk)
+                .apply();
+        if (getState() != State.CONNECTED) {
+            return;
+        }
+        if (pushToTalk) {
+            mAudioEngine.pauseRecording();
+        } else {
+            stopTalking();
+            resumeCapture();
+        }
+    }
+
+    /**
+     * The user pressed push-to-talk. We start capturing once we have the floor, which may be
+     * straight away, later when whoever's talking lets go, or not at all if the user lets go first.
+     */
+    public void startTalking() {
+        if (mPushToTalk && getState() == State.CONNECTED && mFloorControl != null) {
+            mFloorControl.press();
+        }
+    }
+
+    /** The user let go of push-to-talk. */
+    public void stopTalking() {
+        if (mFloorControl != null) {
+            mFloorControl.release();
+        }
+    }
+
+    /** @return Who may talk, as far as we know. {@link FloorControl.State#IDLE} between calls. */
+    public FloorControl.State getFloorState() {
+        return mFloorControl == null ? FloorControl.State.IDLE : mFloorControl.getState();
+    }
+
+    @Override
+    protected void onEndpointDiscovered(Endpoint endpoint) {
+        for (Listener listener : listeners()) {
+            listener.onEndpointDiscovered(endpoint);
+        }
+        if (getState() == State.RECONNECTING && isLastPeer(endpoint)) {
+            // It's back, maybe under a new endpoint id. Ask it now rather than at the next attempt.
+            logD("Found " + endpoint + " again");
+            mLastPeer = endpoint;
+            if (!isConnecting()) {
+                mHandler.removeCallbacks(mReconnectAttempt);
+                attemptReconnect();
+            }
+        }
+        connectToMeshNeighbours();
+    }
+
+    @Override
+    protected void onEndpointLost(String endpointId) {
+        for (Listener listener : listeners()) {
+            listener.onEndpointLost(endpointId);
+        }
+    }
+
+    @Override
+    protected void onConnectionInitiated(Endpoint endpoint, ConnectionInfo connectionInfo) {
+        mPairing.onConnectionInitiated(
+                endpoint,
+                connectionInfo.getRawAuthenticationToken(),
+                connectionInfo.isIncomingConnection());
+        if (getState() != State.CONNECTED) {
+            // Whoever accepts is in the middle of the star, and so hands out the floor.
+            mIsHub = connectionInfo.isIncomingConnection();
+        }
+        if (connectionInfo.isIncomingConnection()) {
+            UUID deviceId = endpoint.getInfo().getDeviceId();
+            if (deviceId != null
+                    && deviceId.equals(mHungUpDeviceId)
+                    && SystemClock.elapsedRealtime() < mHungUpUntilMs) {
+                // We just hung up on them; this is them trying to get the call back.
+                logD("Turning down reconnect from " + endpoint);
+                rejectConnection(endpoint);
+                return;
+            }
+            if (getState() == State.RECONNECTING
+                    && isLastPeer(endpoint)
+                    && mPairing.hasCallSecret(endpoint)) {
+                // It still has to prove it's them before the call carries on, since anyone can
+                // claim its device id. Without a secret to prove it with, the user decides.
+                getCallTrace().mark("reconnectAccept", endpoint.getId());
+                mPairing.expectCallProof(endpoint);
+                acceptConnection(endpoint);
+                return;
+            }
+            if (mPairing.isAlwaysAnswered(endpoint)) {
+                // We've been told to always answer this one; don't wait on the user. It still has
+                // to prove it's them before it's heard, since anyone can claim its device id. The
+                // same goes for a relaying device asking to join our mesh: saying it relays proves
+                // nothing, so one we don't trust gets asked about like any other call.
+                getCallTrace().mark(isMeshJoin(endpoint) ? "meshAccept" : "autoAccept",
+                        endpoint.getId());
+                mPairing.expectTrustedProof(endpoint);
+                acceptConnection(endpoint);
+                return;
+            }
+            // Ask the user to answer or decline.
+            getCallTrace().begin("acceptDialog");
+            mIncomingCall = endpoint;
+            for (Listener listener : listeners()) {
+                listener.onIncomingCall(endpoint);
+            }
+        } else {
+            if (getState() == State.RECONNECTING
+                    && isLastPeer(endpoint)
+                    && mPairing.hasCallSecret(endpoint)) {
+                // Whoever's advertising its device id may not be it either.
+                mPairing.expectCallProof(endpoint);
+            } else if (isMeshJoin(endpoint) && mPairing.isAlwaysAnswered(endpoint)) {
+                // We only ask trusted relays to join the mesh, and they have to prove it's them.
+                mPairing.expectTrustedProof(endpoint);
+            }
+            // We initiated the call. We must accept the handshake to finalize connection.
+            acceptConnection(endpoint);
+            for (Listener listener : listeners()) {
+                listener.onCalling(endpoint);
+            }
+        }
+    }
+
+    @Override
+    protected void onEndpointConnected(Endpoint endpoint) {
+        endIncomingCall(endpoint, null);
+        if (mPairing.isUnverified(endpoint.getId())) {
+            // Back here once it's proven who it is.
+            logD("Asking " + endpoint + " to prove who it is");
+            getCallTrace().begin("verify");
+            mPairing.challenge(endpoint);
+            return;
+        }
+
+        if (getState() == State.RECONNECTING) {
+            getCallTrace().mark("reconnected", mReconnectBackoff.getAttempts() + " attempts");
+        }
+        mLastPeer = endpoint;
+        mHungUpDeviceId = null;
+
+        mCallFormat = negotiateFormat(endpoint);
+        logD("Streaming " + mCallFormat + " with " + endpoint.getInfo());
+        floorControl(endpoint);
+        if (mLinkStats == null) {
+            mLinkStats = LinkStats.start();
+            mCallTransport = mTransport;
+        }
+        updateTransportQuality();
+        if (mCallTransport == Transport.STREAM && endpoint.getInfo().supportsAudioStreams()) {
+            // If it can't be opened, the peer gets BYTES; see sendAudio().
+            if (mAudioStreams.open(endpoint.getId())) {
+                logD("Streaming audio to " + endpoint);
+            } else {
+                logW("Failed to open a stream to " + endpoint + "; sending BYTES");
+            }
+        }
+        mBandwidthEstimators.put(
+                endpoint.getId(),
+                new BandwidthEstimator(
+                        (bitsPerSecond, step) -> mHandler.post(() -> onBandwidthEstimate(step))));
+        mClockSyncs.put(endpoint.getId(), new ClockSync());
+        updateFanout();
+
+        Toast.makeText(this, getString(R.string.toast_connected, endpoint.getName()), Toast.LENGTH_SHORT).show();
+        if (getState() != State.CONNECTED) {
+            setState(State.CONNECTED);
+        }
+        connectToMeshNeighbours();
+        mPairing.onConnected(endpoint);
+        mVoiceMessages.send();
+    }
+
+    @Override
+    protected void onEndpointDisconnected(Endpoint endpoint) {
+        endIncomingCall(endpoint, null);
+        if (mPairing.onDisconnected(endpoint)) {
+            // Gone before it proved who it was. It was never part of the call.
+            getCallTrace().end("verify", "gone");
+            if (getState() == State.RECONNECTING) {
+                scheduleReconnect();
+            }
+            return;
+        }
+        mAudioStreams.close(endpoint.getId());
+        mLinkQualities.remove(endpoint.getId());
+        updateTransportQuality();
+        mBandwidthEstimators.remove(endpoint.getId());
+        mReceiveConverters.remove(endpoint.getId());
+        mSendSampleRates.remove(endpoint.getId());
+        ClockSync clockSync = mClockSyncs.remove(endpoint.getId());
+        if (clockSync != null) {
+            logD(endpoint + " " + clockSync);
+            updateSyncPlayoutDelay();
+        }
+        updateFanout();
+        if (mFloorControl != null) {
+            mFloorControl.onEndpointDisconnected(endpoint.getId());
+        }
+        Set<Endpoint> remaining = getConnectedEndpoints();
+        if (getState() == State.CONNECTED && mSessionRelay && !remaining.isEmpty()) {
+            // The rest of the mesh carries on without them, and may still reach them.
+            logD(endpoint + " left the mesh; " + remaining.size() + " neighbours left");
+            Toast.makeText(this, getString(R.string.toast_disconnected, endpoint.getName()), Toast.LENGTH_SHORT).show();
+            if (endpoint.equals(mLastPeer)) {
+                mLastPeer = remaining.iterator().next();
+            }
+            connectToMeshNeighbours();
+            return;
+        }
+        finishLinkStats();
+        if (getState() == State.CONNECTED && canReconnect(endpoint)) {
+            Toast.makeText(this, getString(R.string.toast_reconnecting, endpoint.getName()), Toast.LENGTH_SHORT).show();
+            mLastPeer = endpoint;
+            setState(State.RECONNECTING);
+            return;
+        }
+        Toast.makeText(this, getString(R.string.toast_disconnected, endpoint.getName()), Toast.LENGTH_SHORT).show();
+        pauseAudio();
+        setState(State.SEARCHING);
+    }
+
+    @Override
+    protected void onConnectionFailed(Endpoint endpoint) {
+        if (getState() == State.RECONNECTING) {
+            scheduleReconnect();
+            return;
+        }
+        if (getState() == State.CONNECTED && mSessionRelay) {
+            // Only a device we tried to add to the mesh. The call carries on.
+            logD("Couldn't add " + endpoint + " to the mesh");
+            endIncomingCall(endpoint, null);
+            connectToMeshNeighbours();
+            return;
+        }
+        endIncomingCall(endpoint, null);
+        Toast.makeText(this, "Connection failed", Toast.LENGTH_SHORT).show();
+        for (Listener listener : listeners()) {
+            listener.onCallFailed(endpoint);
+        }
+        setState(State.SEARCHING);
+    }
+
+    @Override
+    protected void onConnectionRejected(Endpoint endpoint) {
+        if (getState() == State.RECONNECTING && isLastPeer(endpoint)) {
+            // They hung up; the link didn't just drop.
+            logD(endpoint + " hung up");
+            giveUpReconnecting();
+            return;
+        }
+        super.onConnectionRejected(endpoint);
+    }
+
+    /** The incoming call from this endpoint, if there was one, isn't waiting on the user anymore. */
+    private void endIncomingCall(@Nullable Endpoint endpoint, @Nullable String how) {
+        if (mIncomingCall == null || endpoint == null || !mIncomingCall.equals(endpoint)) {
+            return;
+        }
+        mIncomingCall = null;
+        getCallTrace().end("acceptDialog", how == null ? "gone" : how);
+        for (Listener listener : listeners()) {
+            listener.onIncomingCallEnded(endpoint);
+        }
+    }
+
+    /**
+     * A peer we accepted without asking didn't prove who it is. Cuts it off before it was ever
+     * heard, and leaves it to the user next time.
+     */
+    @MainThread
+    private void failVerification(Endpoint endpoint, String why) {
+        logW(endpoint + " didn't prove who it is: " + why);
+        getCallTrace().end("verify", why);
+        // Doesn't call onEndpointDisconnected(), which is what we want: the call never started.
+        disconnect(endpoint);
+        if (getState() == State.RECONNECTING) {
+            // The one we were after may still come back.
+            scheduleReconnect();
+        }
+    }
+
+    /** Sends one of our {@link Packet}s to a single peer, whether or not it's proven itself. */
+    private void sendTo(Endpoint endpoint, byte[] packet) {
+        sendTracked(packet, Collections.singleton(endpoint.getId()));
+    }
+
+    /** Leaves out peers that have yet to prove who they are, so they're not part of the call. */
+    @Override
+    protected Set<Endpoint> getConnectedEndpoints() {
+        Set<Endpoint> endpoints = super.getConnectedEndpoints();
+        if (mPairing.hasUnverified()) {
+            endpoints.removeIf(endpoint -> mPairing.isUnverified(endpoint.getId()));
+        }
+        return endpoints;
+    }
+
+    /**
+     * Drops what we knew about each connection, once they've all been cut without telling us, and
+     * the call's secrets, since the call's over.
+     */
+    private void forgetConnections() {
+        mPairing.forgetConnections();
+    }
+
+    /**
+     * In a relaying call, asks the next relaying device we've found but aren't connected to yet to
+     * join the mesh. Only ones the user trusts, since they get into the call without the user being
+     * asked, once they've proven who they are; any other has to call in like anyone else. Of any
+     * two, only the one with the lower name asks, so they don't both ask at once. One at a time,
+     * since Nearby only lets us ask one at a time.
+     */
+    @MainThread
+    private void connectToMeshNeighbours() {
+        if (getState() != State.CONNECTED || !mSessionRelay || isConnecting()) {
+            return;
+        }
+        Set<String> connected = new HashSet<>();
+        for (Endpoint endpoint : getConnectedEndpoints()) {
+            connected.add(endpoint.getId());
+        }
+        for (Endpoint endpoint : getDiscoveredEndpoints()) {
+            if (endpoint.getInfo().getRole() == EndpointInfo.ROLE_RELAY
+                    && !connected.contains(endpoint.getId())
+                    && mPairing.isAlwaysAnswered(endpoint)
+                    && mName.compareTo(endpoint.getName()) < 0) {
+                logD("Asking " + endpoint + " to join the mesh");
+                connectToEndpoint(endpoint);
+                return;
+            }
+        }
+    }
+
+    /** @return True if this is a relaying device joining, or being asked into, our mesh. */
+    private boolean isMeshJoin(Endpoint endpoint) {
+        return getState() == State.CONNECTED
+                && mSessionRelay
+                && endpoint.getInfo().getRole() == EndpointInfo.ROLE_RELAY;
+    }
+
+    /** @return True if we should try to get a call with this endpoint back when the link drops. */
+    private boolean canReconnect(Endpoint endpoint) {
+        // Without a device id we couldn't tell it's them if they show up under a new endpoint id,
+        // and they couldn't tell us they'd hung up. Without a secret for the call, they couldn't
+        // prove it's them.
+        return mReconnectGraceMs > 0 && mPairing.hasCallSecret(endpoint);
+    }
+
+    /** @return True if this is the device we were on a call with, by device id. */
+    private boolean isLastPeer(Endpoint endpoint) {
+        UUID deviceId = endpoint.getInfo().getDeviceId();
+        return mLastPeer != null
+                && deviceId != null
+                && deviceId.equals(mLastPeer.getInfo().getDeviceId());
+    }
+
+    /** Asks the peer we lost to connect again, unless we're already asking. */
+    @MainThread
+    private void attemptReconnect() {
+        if (getState() != State.RECONNECTING || mLastPeer == null) {
+            return;
+        }
+        if (isConnecting()) {
+            scheduleReconnect();
+            return;
+        }
+        logD("Reconnect attempt " + mReconnectBackoff.getAttempts() + " to " + mLastPeer);
+        connectToEndpoint(mLastPeer);
+    }
+
+    /** Tries again after the next backoff step. */
+    @MainThread
+    private void scheduleReconnect() {
+        mHandler.removeCallbacks(mReconnectAttempt);
+        mHandler.postDelayed(mReconnectAttempt, mReconnectBackoff.nextDelayMs());
+    }
+
+    /** The call's not coming back. Ends it as if the link had dropped for good. */
+    @MainThread
+    private void giveUpReconnecting() {
+        Endpoint peer = mLastPeer;
+        mLastPeer = null;
+        if (peer != null) {
+            Toast.makeText(this, getString(R.string.toast_disconnected, peer.getName()), Toast.LENGTH_SHORT).show();
+        }
+        pauseAudio();
+        setState(State.SEARCHING);
+    }
+
+    /**
+     * The state has changed. I wonder what we'll be doing now.
+     *
+     * @param state The new state.
+     */
+    private void setState(State state) {
+        if (mState == state) {
+            logW("State set to " + state + " but already in that state");
+            return;
+        }
+
+        logD("State set to " + state);
+        State oldState = mState;
+        mState = state;
+        onStateChanged(oldState, state);
+    }
+
+    /**
+     * State has changed.
+     *
+     * @param oldState The previous state we were in. Clean up anything related to this state.
+     * @param newState The new state we're now in. Prepare for this state.
+     */
+    private void onStateChanged(State oldState, State newState) {
+        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        if (oldState == State.CONNECTED) {
+            mHandler.removeCallbacks(mPing);
+            mHandler.removeCallbacks(mProbe);
+            // A relaying call was still looking for more of the mesh.
+            if (isDiscovering()) {
+                stopDiscovering();
+            }
+            if (isAdvertising()) {
+                stopAdvertising();
+            }
+        }
+        if (oldState == State.RECONNECTING) {
+            mHandler.removeCallbacks(mReconnectAttempt);
+            mHandler.removeCallbacks(mReconnectTimeout);
+            stopDiscovering();
+            stopAdvertising();
+        }
+
+        // Update Nearby Connections to the new state.
+        switch (newState) {
+            case SEARCHING:
+                audioManager.setMode(AudioManager.MODE_NORMAL);
+                disconnectFromAllEndpoints();
+                forgetConnections();
+                mSessionCallType = mCallType;
+                updateSessionRelay();
+                startDiscovering();
+                startAdvertising();
+                break;
+            case CONNECTED:
+                audioManager.setMode(AudioManager.MODE_IN_COMMUNICATION);
+                if (mSessionRelay) {
+                    // Keep looking, so the mesh can grow and heal while we talk.
+                    if (!isDiscovering()) {
+                        startDiscovering();
+                    }
+                    if (!isAdvertising()) {
+                        startAdvertising();
+                    }
+                } else {
+                    stopDiscovering();
+                    stopAdvertising();
+                }
+                mMeshRelay.setForwarding(mSessionRelay);
+                // The call needs the microphone; whatever was said so far still goes.
+                finishVoiceMessage();
+                startAudio();
+                mCallTaps.startPacketTrace();
+                startCallRecording();
+                mPingCount = 0;
+                mHandler.postDelayed(mPing, SYNC_PING_INTERVAL_MS);
+                if (mBandwidthProbes) {
+                    mHandler.postDelayed(mProbe, PROBE_FIRST_DELAY_MS);
+                }
+                break;
+            case RECONNECTING:
+                // Keep the call's audio mode and warm audio; just stop streaming. Look for the peer
+                // both ways, since either end may have moved out of range. Who's the hub may
+                // change when we're back, so the floor starts over.
+                mAudioEngine.pause();
+                resetFloorControl();
+                startDiscovering();
+                startAdvertising();
+                getCallTrace().mark("reconnecting", mLastPeer == null ? null : mLastPeer.getId());
+                mReconnectBackoff.reset();
+                scheduleReconnect();
+                mHandler.postDelayed(mReconnectTimeout, mReconnectGraceMs);
+                break;
+            case UNKNOWN:
+                audioManager.setMode(mOriginalMode);
+                stopAllEndpoints();
+                forgetConnections();
+                pauseAudio();
+                break;
+            default:
+                // no-op
+                break;
+        }
+
+        if (newState != State.UNKNOWN) {
+            NotificationManager notificationManager =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            notificationManager.notify(NOTIFICATION_ID, buildNotification());
+        }
+        for (Listener listener : listeners()) {
+            listener.onStateChanged(oldState, newState);
+        }
+        if (newState == State.SEARCHING
+                && (oldState == State.CONNECTED || oldState == State.RECONNECTING)) {
+            // The call's over; if it was only going on in the background, so are we. Otherwise,
+            // play what was said to us during it.
+            stopIfIdle();
+            mVoiceMessages.playWaiting();
+        }
+    }
+
+    /** @return The ongoing notification for the current state. */
+    private Notification buildNotification() {
+        Intent openIntent =
+                new Intent(this, MainActivity.class).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        NotificationCompat.Builder builder =
+                new NotificationCompat.Builder(this, CHANNEL_ID)
+                        .setSmallIcon(R.drawable.wifi_calling_bar_3_24px)
+                        .setContentTitle(getString(R.string.app_name))
+                        .setOngoing(true)
+                        .setOnlyAlertOnce(true)
+                        .setCategory(NotificationCompat.CATEGORY_CALL)
+                        .setContentIntent(
+                                PendingIntent.getActivity(
+                                        this, 0, openIntent, PendingIntent.FLAG_IMMUTABLE));
+        String peer = mLastPeer == null ? "" : mLastPeer.getName();
+        switch (mState) {
+            case CONNECTED:
+                builder.setContentText(getString(R.string.notification_in_call, peer));
+                break;
+            case RECONNECTING:
+                builder.setContentText(getString(R.string.notification_reconnecting, peer));
+                break;
+            default:
+                builder.setContentText(getString(R.string.notification_searching, mName));
+                break;
+        }
+        if (isRecordingCall()) {
+            // Nobody on the call should be recorded without it showing.
+            builder.setSubText(getString(R.string.notification_recording));
+        }
+        if (isInCall()) {
+            Intent hangUpIntent = new Intent(this, CallService.class).setAction(ACTION_HANG_UP);
+            builder.addAction(
+                    R.drawable.phone_callback_24px,
+                    getString(R.string.notification_hang_up),
+                    PendingIntent.getService(this, 0, hangUpIntent, PendingIntent.FLAG_IMMUTABLE));
+        }
+        return builder.build();
+    }
+
+    /** {@see ConnectionsService#onReceive(Endpoint, Payload)} */
+    @Override
+    protected void onReceive(Endpoint endpoint, Payload payload) {
+        if (mPairing.isUnverified(endpoint.getId())) {
+            // Not part of the call until it's proven who it is.
+            if (payload.getType() == Payload.Type.BYTES) {
+                byte[] data = payload.asBytes();
+                int type = Packet.getType(data);
+                boolean packet =
+                        endpoint.getInfo().supportsPackets() || Packet.isPairingPacket(data);
+                if (packet
+                        && (type == Packet.TYPE_CHALLENGE
+                                || type == Packet.TYPE_CHALLENGE_RESPONSE)) {
+                    onControlPacket(endpoint, type, data);
+                }
+            }
+            return;
+        }
+        if (getState() != State.CONNECTED) {
+            final Endpoint finalEndpoint = endpoint;
+            mHandler.post(() -> {
+                if (getState() != State.CONNECTED) {
+                    onEndpointConnected(finalEndpoint);
+                }
+            });
+        }
+        // Audio comes as BYTES, or from peers on Transport.STREAM, in a STREAM.
+        if (payload.getType() == Payload.Type.BYTES) {
+            onReceiveBytes(endpoint, payload.asBytes(), System.nanoTime(), Transport.BYTES);
+        } else if (payload.getType() == Payload.Type.STREAM
+                && endpoint.getInfo().supportsAudioStreams()) {
+            readAudioStream(endpoint, payload.asStream());
+        } else if (payload.getType() == Payload.Type.FILE
+                && endpoint.getInfo().supportsVoiceMessages()) {
+            // Only whole once onPayloadTransferUpdate() says so.
+            mVoiceMessages.onFile(payload);
+        }
+    }
+
+    /**
+     * Handles a packet, or for old peers bare audio, however it came.
+     *
+     * @param receivedNanos When it got here, by {@link System#nanoTime()}.
+     * @param via How it came.
+     */
+    @MainThread
+    private void onReceiveBytes(Endpoint endpoint, byte[] data, long receivedNanos, Transport via) {
+        mCallTaps.onReceived(
+                receivedNanos, endpoint.getId(), data, endpoint.getInfo().supportsPackets());
+        LinkStats linkStats = mLinkStats;
+        if (linkStats != null) {
+            linkStats.onReceived(data.length);
+        }
+        LinkStats transportStats = mTransportStats;
+        if (transportStats != null) {
+            transportStats.onReceived(data.length);
+        }
+        int hops = 1;
+        long playAtNanos = 0;
+        if (endpoint.getInfo().supportsPackets()) {
+            int type = Packet.getType(data);
+            String source = endpoint.getId();
+            if (type == Packet.TYPE_RELAY) {
+                // Passed on to the rest of the mesh in here, if it's new and should go on.
+                if (!mMeshRelay.onReceive(endpoint.getId(), data)) {
+                    return;
+                }
+                source = "relay:" + Integer.toHexString(Packet.getRelayOrigin(data));
+                hops = Packet.getRelayHops(data);
+                data = Packet.getRelayed(data);
+                if (!Packet.isAudioType(Packet.getType(data))) {
+                    // Only audio is relayed; control packets are between neighbours.
+                    return;
+                }
+            } else if (!Packet.isAudioType(type)) {
+                onControlPacket(endpoint, type, data);
+                return;
+            }
+            if (hops == 1) {
+                // Relayed from further away, it's on a clock we can't map onto ours.
+                playAtNanos = toLocalTime(endpoint.getId(), Packet.getPlayAt(data));
+                long sentNanos = toLocalTime(endpoint.getId(), Packet.getSentAt(data));
+                if (sentNanos != 0) {
+                    mLatencyMonitor.onReceived(
+                            Packet.getCaptureDelayNanos(data), receivedNanos - sentNanos);
+                    if (transportStats != null && via == mCallTransport) {
+                        transportStats.onTransit(receivedNanos - sentNanos);
+                    }
+                }
+            }
+            int sampleRate = Packet.getSampleRate(data);
+            data = Packet.getAudio(data);
+            if (data == null) {
+                return;
+            }
+            data = convertReceivedAudio(source, data, sampleRate);
+        } else if (endpoint.getInfo().supportsPairing() && Packet.isPairingPacket(data)) {
+            // Peers that can pair but don't frame their audio only frame these.
+            onControlPacket(endpoint, Packet.getType(data), data);
+            return;
+        }
+        if (mAudioPlayer == null || !mAudioPlayer.isPlaying()) {
+            // Audio arrived before onEndpointConnected got to run. Start playing now; the
+            // format doesn't depend on onEndpointConnected having run yet.
+            CallFormat format = negotiateFormat(endpoint);
+            if (!format.equals(mPreparedFormat)) {
+                prepareAudio(format);
+            }
+            markConnected();
+            mAudioEngine.resumePlayback();
+        }
+        setPlayoutHops(hops);
+        mAudioPlayer.addAudioData(data, playAtNanos);
+    }
+
+    /**
+     * @param peerNanos A time on the peer's clock, or 0 for none.
+     * @return The same time on ours, or 0 if there was none or we can't tell yet.
+     */
+    private long toLocalTime(String endpointId, long peerNanos) {
+        ClockSync clockSync = mClockSyncs.get(endpointId);
+        if (peerNanos == 0 || clockSync == null || !clockSync.isSynced()) {
+            return 0;
+        }
+        return clockSync.toLocal(peerNanos);
+    }
+
+    /** A packet that isn't audio arrived from this endpoint. */
+    private void onControlPacket(Endpoint endpoint, int type, byte[] data) {
+        switch (type) {
+            case Packet.TYPE_FLOOR_REQUEST:
+            case Packet.TYPE_FLOOR_GRANT:
+            case Packet.TYPE_FLOOR_RELEASE:
+            case Packet.TYPE_FLOOR_TAKEN:
+                // May come before onEndpointConnected() got to run.
+                floorControl(endpoint).onMessage(endpoint.getId(), type);
+                break;
+            case Packet.TYPE_PING:
+                sendControl(Packet.pong(data, System.nanoTime()), endpoint.getId());
+                break;
+            case Packet.TYPE_PROBE:
+                // Only there to fill the link. Already counted.
+                break;
+            case Packet.TYPE_VOICE_MESSAGE:
+                mVoiceMessages.onNotice(endpoint, data);
+                break;
+            case Packet.TYPE_PAIR:
+                mPairing.onPair(endpoint, data);
+                break;
+            case Packet.TYPE_CHALLENGE:
+                mPairing.answerChallenge(endpoint, data);
+                break;
+            case Packet.TYPE_CHALLENGE_RESPONSE:
+                mPairing.onChallengeResponse(endpoint, data);
+                break;
+            case Packet.TYPE_PONG:
+                long receivedNanos = System.nanoTime();
+                long sentNanos = Packet.getTimestamp(data);
+                LinkStats linkStats = mLinkStats;
+                if (sentNanos > 0 && linkStats != null) {
+                    linkStats.onRtt(receivedNanos - sentNanos);
+                }
+                LinkStats transportStats = mTransportStats;
+                if (sentNanos > 0 && transportStats != null) {
+                    transportStats.onRtt(receivedNanos - sentNanos);
+                }
+                long peerNanos = Packet.getPongTime(data);
+                ClockSync clockSync = mClockSyncs.get(endpoint.getId());
+                if (sentNanos > 0 && peerNanos != -1 && clockSync != null) {
+                    clockSync.onExchange(sentNanos, peerNanos, receivedNanos);
+                    updateSyncPlayoutDelay();
+                }
+                break;
+            default:
+                logW("Ignoring " + Packet.typeToString(type) + " from " + endpoint);
+                break;
+        }
+    }
+
+    /**
+     * Works out the form each connected peer needs our audio in, for {@link #mFanout}: wrapped to
+     * be relayed to peers in our mesh, framed as a {@link Packet} to other peers that understand
+     * them, and as bare PCM to older ones. Packets go at the rate each peer's link can carry,
+     * except that the whole mesh gets the slowest of its links' rates, since a relayed frame has to
+     * be the same packet all the way through it.
+     *
+     * <p>With two or more listeners that can, such as a hub's spokes, every packet says when to
+     * play it, so they're all heard at once. That costs latency, so not with just one. Peers that
+     * can also get told when each frame was captured and sent, for their {@link LatencyMonitor}.
+     */
+    @MainThread
+    private void updateFanout() {
+        Set<Endpoint> endpoints = getConnectedEndpoints();
+        int timedListeners = 0;
+        for (Endpoint endpoint : endpoints) {
+            EndpointInfo info = endpoint.getInfo();
+            if (info.supportsTimedAudio() && !(mSessionRelay && info.supportsRelay())) {
+                timedListeners++;
+            }
+        }
+        int relayRate = 0;
+        if (mSessionRelay) {
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint.getInfo().supportsRelay()) {
+                    int rate = getSendSampleRate(endpoint.getId());
+                    relayRate = relayRate == 0 ? rate : Math.min(relayRate, rate);
+                }
+            }
+        }
+        Map<String, FrameFanout.Format> formats = new HashMap<>();
+        for (Endpoint endpoint : endpoints) {
+            EndpointInfo info = endpoint.getInfo();
+            FrameFanout.Format format;
+            if (mSessionRelay && info.supportsRelay()) {
+                format = new FrameFanout.Format(FrameFanout.KIND_RELAY, relayRate);
+            } else if (info.supportsStampedAudio()) {
+                int kind =
+                        timedListeners >= 2
+                                ? FrameFanout.KIND_STAMPED_TIMED
+                                : FrameFanout.KIND_STAMPED;
+                format = new FrameFanout.Format(kind, getSendSampleRate(endpoint.getId()));
+            } else if (info.supportsTimedAudio() && timedListeners >= 2) {
+                format =
+                        new FrameFanout.Format(
+                                FrameFanout.KIND_TIMED, getSendSampleRate(endpoint.getId()));
+            } else if (info.supportsPackets()) {
+                format =
+                        new FrameFanout.Format(
+                                FrameFanout.KIND_PACKET, getSendSampleRate(endpoint.getId()));
+            } else {
+                format = new FrameFanout.Format(FrameFanout.KIND_BARE, 0);
+            }
+            formats.put(endpoint.getId(), format);
+        }
+        mFanout.setFormats(formats);
+    }
+
+    /** @return The rate we send this peer audio at. */
+    private int getSendSampleRate(String endpointId) {
+        Integer rate = mSendSampleRates.get(endpointId);
+        return rate == null ? mCallFormat.getSampleRate() : rate;
+    }
+
+    /**
+     * Sets how long after capture we ask a group's listeners to play each frame: long enough for
+     * it to get to the one with the slowest link, with some to spare.
+     */
+    @MainThread
+    private void updateSyncPlayoutDelay() {
+        long oneWayNanos = 0;
+        for (ClockSync clockSync : mClockSyncs.values()) {
+            oneWayNanos = Math.max(oneWayNanos, clockSync.getMedianRttNanos() / 2);
+        }
+        mSyncPlayoutDelayNanos =
+                Math.min(
+                        oneWayNanos + SYNC_PLAYOUT_MARGIN_MS * 1_000_000L,
+                        MAX_SYNC_PLAYOUT_DELAY_MS * 1_000_000L);
+    }
+
+    /**
+     * @return How far from the time they were meant to be heard we've been playing frames lately,
+     *     in ms. 0 if none have said. See {@link ClockSync}.
+     */
+    public double getSyncErrorMs() {
+        AudioPlayer audioPlayer = mAudioPlayer;
+        PlayoutProcessor stats = audioPlayer == null ? null : audioPlayer.getPlayoutStats();
+        return stats == null ? 0 : stats.getSyncErrorMs();
+    }
+
+    /**
+     * @return How long the talkers' voices take to reach our speaker lately, and where the time
+     *     goes. See {@link LatencyMonitor}.
+     */
+    public LatencyMonitor getLatencyMonitor() {
+        return mLatencyMonitor;
+    }
+
+    /** Builds what {@link #mFanout} sends peers that need audio in the given form. */
+    private byte[] encodeAudio(
+            FrameFanout.Format format, byte[] pcm, int length, int sampleRate, long captureNanos) {
+        switch (format.getKind()) {
+            case FrameFanout.KIND_BARE:
+                return length == pcm.length ? pcm : Arrays.copyOf(pcm, length);
+            case FrameFanout.KIND_RELAY:
+                return mMeshRelay.originate(Packet.audio(pcm, length, sampleRate));
+            case FrameFanout.KIND_TIMED:
+                long playAtNanos = captureNanos + mSyncPlayoutDelayNanos;
+                return Packet.audioTimed(pcm, length, sampleRate, playAtNanos);
+            case FrameFanout.KIND_STAMPED:
+                return Packet.audioStamped(
+                        pcm, length, sampleRate, System.nanoTime(), captureNanos, 0);
+            case FrameFanout.KIND_STAMPED_TIMED:
+                return Packet.audioStamped(
+                        pcm,
+                        length,
+                        sampleRate,
+                        System.nanoTime(),
+                        captureNanos,
+                        captureNanos + mSyncPlayoutDelayNanos);
+            default:
+                return Packet.audio(pcm, length, sampleRate);
+        }
+    }
+
+    /**
+     * Passes a relay packet on to every neighbour but the one it came from. Neighbours that can't
+     * relay get what it carries, so they still hear it.
+     */
+    @MainThread
+    private void forwardRelayed(byte[] packet, String exceptId) {
+        Set<String> relayed = new HashSet<>();
+        Set<String> framed = new HashSet<>();
+        for (Endpoint endpoint : getConnectedEndpoints()) {
+            EndpointInfo info = endpoint.getInfo();
+            if (endpoint.getId().equals(exceptId)) {
+                continue;
+            }
+            if (info.supportsRelay()) {
+                relayed.add(endpoint.getId());
+            } else if (info.supportsPackets()) {
+                framed.add(endpoint.getId());
+            }
+        }
+        sendTracked(packet, relayed);
+        if (!framed.isEmpty()) {
+            sendTracked(Packet.getRelayed(packet), framed);
+        }
+    }
+
+    /**
+     * Aims the playout delay at the farthest talker we've heard lately, since their audio crossed
+     * the most links to get here and so arrives with the most jitter.
+     *
+     * @param hops How many links the frame we're about to play crossed.
+     */
+    @MainThread
+    private void setPlayoutHops(int hops) {
+        long now = SystemClock.elapsedRealtime();
+        if (hops < mPlayoutHops && now < mPlayoutHopsUntilMs) {
+            return;
+        }
+        mPlayoutHopsUntilMs = now + PLAYOUT_HOPS_HOLD_MS;
+        if (hops == mPlayoutHops || mAudioPlayer == null) {
+            return;
+        }
+        mPlayoutHops = hops;
+        int delayMs = MeshRelay.playoutDelayMs(hops);
+        logD("Talker " + hops + " hops away; aiming for " + delayMs + "ms playout delay");
+        mAudioPlayer.setTargetDelayMs(delayMs);
+    }
+
+    /**
+     * Converts audio a peer sent at a lower rate than ours, e.g. because its link to us is slow,
+     * to the rate we play at. Returns it as it is if there's nothing to do.
+     *
+     * @param source Who sent it; see {@link #mReceiveConverters}.
+     */
+    private byte[] convertReceivedAudio(String source, byte[] pcm, int sampleRate) {
+        CallFormat format = mPreparedFormat;
+        if (sampleRate == 0 || format == null || sampleRate == format.getSampleRate()) {
+            return pcm;
+        }
+        SampleRateConverter converter = mReceiveConverters.get(source);
+        if (converter == null || converter.getInputRate() != sampleRate) {
+            converter =
+                    new SampleRateConverter(sampleRate, format.getSampleRate(), pcm.length / 2);
+            mReceiveConverters.put(source, converter);
+        }
+        short[] samples = new short[pcm.length / 2];
+        Pcm16.toShorts(pcm, 0, pcm.length, samples);
+        int length = converter.process(samples, samples.length);
+        byte[] converted = new byte[length * 2];
+        Pcm16.toBytes(converter.getOutput(), length, converted, 0);
+        return converted;
+    }
+
+    /**
+     * Sends bytes to the given endpoints, and tells their {@link BandwidthEstimator}s and the
+     * {@link LinkStats} about it. Safe from any thread.
+     */
+    private void sendTracked(byte[] bytes, Collection<String> endpoints) {
+        if (endpoints.isEmpty()) {
+            return;
+        }
+        Payload payload = Payload.fromBytes(bytes);
+        long now = System.nanoTime();
+        for (String endpointId : endpoints) {
+            BandwidthEstimator estimator = mBandwidthEstimators.get(endpointId);
+            if (estimator != null) {
+                estimator.onPayloadSent(payload.getId(), bytes.length, now);
+            }
+        }
+        send(payload, endpoints);
+        onSent(bytes.length * endpoints.size());
+    }
+
+    /** Counts bytes we sent, however they went. */
+    private void onSent(int bytes) {
+        LinkStats linkStats = mLinkStats;
+        if (linkStats != null) {
+            linkStats.onSent(bytes);
+        }
+        LinkStats transportStats = mTransportStats;
+        if (transportStats != null) {
+            transportStats.onSent(bytes);
+        }
+    }
+
+    /**
+     * Sends a frame of audio from {@link #mFanout}: into the stream to each peer we have one to,
+     * and as a BYTES payload to the rest. Audio thread.
+     */
+    private void sendAudio(byte[] bytes, List<String> endpoints) {
+        if (!mAudioStreams.isWriting()) {
+            sendTracked(bytes, endpoints);
+            return;
+        }
+        List<String> unstreamed = null;
+        int streamed = 0;
+        for (String endpointId : endpoints) {
+            if (mAudioStreams.write(endpointId, bytes)) {
+                streamed++;
+            } else {
+                if (unstreamed == null) {
+                    unstreamed = new ArrayList<>(endpoints.size());
+                }
+                unstreamed.add(endpointId);
+            }
+        }
+        if (streamed > 0) {
+            onSent((PayloadStreamWriter.HEADER_SIZE + bytes.length) * streamed);
+        }
+        if (unstreamed != null) {
+            sendTracked(bytes, unstreamed);
+        }
+    }
+
+    /** Reads a peer's audio from the STREAM payload it sent us, frame by frame. */
+    private void readAudioStream(Endpoint endpoint, @Nullable Payload.Stream stream) {
+        if (stream == null) {
+            return;
+        }
+        mAudioStreams.read(endpoint, stream, getMaxStreamFrameLength(endpoint));
+        logD("Reading audio from " + endpoint + " as a stream");
+    }
+
+    /**
+     * @return The longest frame a peer should put in its audio stream: a packet with a frame of
+     *     our call format's length in it. At the highest rate the peer has, since someone else on
+     *     the call may have it too, and then that's what the peer records at.
+     */
+    private int getMaxStreamFrameLength(Endpoint endpoint) {
+        CallFormat format = negotiateFormat(endpoint);
+        if (format.getFrameDurationMs() == 0) {
+            return PayloadStreamWriter.MAX_FRAME_BYTES;
+        }
+        int sampleRate = format.getSampleRate();
+        for (int rate : EndpointInfo.SAMPLE_RATES) {
+            if (endpoint.getInfo().supportsSampleRate(rate)) {
+                sampleRate = Math.max(sampleRate, rate);
+            }
+        }
+        int pcmBytes = sampleRate * format.getFrameDurationMs() / 1000 * 2;
+        return Math.min(Packet.maxAudioSize(pcmBytes), PayloadStreamWriter.MAX_FRAME_BYTES);
+    }
+
+    /**
+     * Works out the call's link quality, from what Nearby last said about each link: the worst,
+     * if they differ. When it changes, what the part of the call at the old one did goes into
+     * {@link #mLinkStatsStore}, and a new part starts.
+     */
+    private void updateTransportQuality() {
+        if (mLinkStats == null) {
+            return;
+        }
+        int quality = -1;
+        for (Endpoint endpoint : getConnectedEndpoints()) {
+            Integer endpointQuality = mLinkQualities.get(endpoint.getId());
+            int q = endpointQuality == null ? BandwidthInfo.Quality.UNKNOWN : endpointQuality;
+            quality = quality == -1 ? q : Math.min(quality, q);
+        }
+        Transport.Quality transportQuality = Transport.Quality.fromBandwidthInfo(quality);
+        if (mTransportStats != null && transportQuality == mTransportQuality) {
+            return;
+        }
+        finishTransportStats();
+        mTransportQuality = transportQuality;
+        mTransportStats = LinkStats.start();
+    }
+
+    /** This part of the call is over. Adds how it did to its transport and quality's totals. */
+    private void finishTransportStats() {
+        LinkStats transportStats = mTransportStats;
+        mTransportStats = null;
+        if (transportStats == null) {
+            return;
+        }
+        transportStats.stop();
+        if (mTransportQuality == Transport.Quality.UNKNOWN) {
+            // Not worth comparing anything on.
+            return;
+        }
+        mLinkStatsStore.record(mCallTransport, mTransportQuality, transportStats);
+        String label = mCallTransport + " at " + mTransportQuality + " quality";
+        logD(label + ": " + transportStats);
+        logD(label + " so far: " + mLinkStatsStore.get(mCallTransport, mTransportQuality));
+    }
+
+    /**
+     * Sends a few probes back-to-back to every peer that understands them, so their {@link
+     * BandwidthEstimator}s see the link busy for a moment and can tell how fast it is.
+     */
+    private void sendProbeTrain() {
+        for (int i = 0; i < BandwidthEstimator.PROBE_COUNT; i++) {
+            sendControl(Packet.probe(BandwidthEstimator.PROBE_BYTES), null);
+        }
+    }
+
+    @Override
+    protected void onPayloadTransferUpdate(Endpoint endpoint, PayloadTransferUpdate update) {
+        if (mVoiceMessages.onTransferUpdate(endpoint, update)) {
+            return;
+        }
+        BandwidthEstimator estimator = mBandwidthEstimators.get(endpoint.getId());
+        if (estimator == null) {
+            return;
+        }
+        switch (update.getStatus()) {
+            case PayloadTransferUpdate.Status.SUCCESS:
+                estimator.onPayloadTransferred(update.getPayloadId(), System.nanoTime());
+                break;
+            case PayloadTransferUpdate.Status.FAILURE:
+            case PayloadTransferUpdate.Status.CANCELED:
+                estimator.onPayloadFailed(update.getPayloadId());
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    protected void onBandwidthChanged(Endpoint endpoint, int quality) {
+        BandwidthEstimator estimator = mBandwidthEstimators.get(endpoint.getId());
+        if (estimator == null) {
+            return;
+        }
+        // The medium changed under us; measure it again rather than wait for the samples to say.
+        estimator.onMediumChanged();
+        mLinkQualities.put(endpoint.getId(), quality);
+        updateTransportQuality();
+        if (getState() == State.CONNECTED && mBandwidthProbes) {
+            mHandler.removeCallbacks(mProbe);
+            mHandler.postDelayed(mProbe, PROBE_MEDIUM_CHANGE_DELAY_MS);
+        }
+    }
+
+    /**
+     * A link's bandwidth estimate moved. Picks the rate we send each peer at to fit its link.
+     * {@link #mFanout} converts to each rate once, however many peers get it.
+     */
+    @MainThread
+    private void onBandwidthEstimate(boolean step) {
+        long slowest = 0;
+        boolean changed = false;
+        for (Map.Entry<String, BandwidthEstimator> entry : mBandwidthEstimators.entrySet()) {
+            long estimate = entry.getValue().getEstimateBps();
+            if (estimate > 0 && (slowest == 0 || estimate < slowest)) {
+                slowest = estimate;
+            }
+            int current = getSendSampleRate(entry.getKey());
+            int rate = mCallFormat.sampleRateFor(estimate, current);
+            if (rate != current) {
+                logD("Link to " + entry.getKey() + " at " + estimate / 1000 + "kbps; sending at "
+                        + rate + "Hz instead of " + current + "Hz");
+                mSendSampleRates.put(entry.getKey(), rate);
+                changed = true;
+            }
+        }
+        mBandwidthEstimateBps = slowest;
+        if (step) {
+            getCallTrace().mark("bandwidthStep", slowest / 1000 + "kbps");
+        }
+        if (changed) {
+            updateFanout();
+        }
+    }
+
+    /** @return The slowest link's estimated bandwidth in bits per second, or 0 if unknown. */
+    public long getBandwidthEstimateBps() {
+        return mBandwidthEstimateBps;
+    }
+
+    /** The call's over. Forgets what we measured of its links. */
+    private void resetBandwidth() {
+        mBandwidthEstimators.clear();
+        mReceiveConverters.clear();
+        mBandwidthEstimateBps = 0;
+        mSendSampleRates.clear();
+        if (mFanout.getFormatCount() > 0) {
+            logD(mFanout.toString());
+        }
+        mFanout.clear();
+        for (ClockSync clockSync : mClockSyncs.values()) {
+            logD(clockSync.toString());
+        }
+        mClockSyncs.clear();
+        mSyncPlayoutDelayNanos = SYNC_PLAYOUT_MARGIN_MS * 1_000_000L;
+    }
+
+    /** The call's over. Logs how long the talkers took to be heard, and forgets it. */
+    private void resetLatencyMonitor() {
+        if (mLatencyMonitor.getTotalMs() >= 0) {
+            logD(mLatencyMonitor.toString());
+        }
+        mLatencyMonitor.reset();
+    }
+
+    /** The call's over. Forgets who was in the mesh and how far away they were. */
+    private void resetMeshRelay() {
+        if (mMeshRelay.getDeliveredCount() > 0 || mMeshRelay.isForwarding()) {
+            logD(mMeshRelay.toString());
+        }
+        mMeshRelay.setForwarding(false);
+        mMeshRelay.reset();
+        mPlayoutHops = 1;
+        mPlayoutHopsUntilMs = 0;
+    }
+
+    /**
+     * Sends a control packet to the connected peers that understand them.
+     *
+     * @param endpointId Who to send it to, or null for all of them.
+     */
+    private void sendControl(byte[] packet, @Nullable String endpointId) {
+        Set<String> endpoints = new HashSet<>();
+        for (Endpoint endpoint : getConnectedEndpoints()) {
+            if (endpoint.getInfo().supportsPackets()
+                    && (endpointId == null || endpointId.equals(endpoint.getId()))) {
+                endpoints.add(endpoint.getId());
+            }
+        }
+        sendTracked(packet, endpoints);
+    }
+
+    /** The connection's over. Adds how it did to the totals for its call type. */
+    private void finishLinkStats() {
+        finishTransportStats();
+        LinkStats linkStats = mLinkStats;
+        mLinkStats = null;
+        if (linkStats == null) {
+            return;
+        }
+        linkStats.stop();
+        mLinkStatsStore.record(mSessionCallType, linkStats);
+        logD(mSessionCallType + " call: " + linkStats);
+        logD(mSessionCallType + " so far: " + mLinkStatsStore.get(mSessionCallType));
+    }
+
+    /**
+     * @return The current call's floor control, made if there isn't one yet. If the peer can't
+     *     take part, we decide on our own, so push-to-talk still keeps our microphone off while
+     *     the button's up.
+     */
+    private FloorControl floorControl(Endpoint peer) {
+        if (mFloorControl != null) {
+            return mFloorControl;
+        }
+        FloorControl.Callback callback =
+                new FloorControl.Callback() {
+                    @Override
+                    public void sendFloorMessage(
+                            @Nullable String endpointId, @Nullable String exceptId, int type) {
+                        Set<String> endpoints = new HashSet<>();
+                        for (Endpoint endpoint : getConnectedEndpoints()) {
+                            String id = endpoint.getId();
+                            if (endpoint.getInfo().supportsPackets()
+                                    && (endpointId == null || endpointId.equals(id))
+                                    && !id.equals(exceptId)) {
+                                endpoints.add(id);
+                            }
+                        }
+                        logV("Sending " + Packet.typeToString(type) + " to " + endpoints);
+                        sendTracked(Packet.floor(type), endpoints);
+                    }
+
+                    @Override
+                    public void onFloorStateChanged(
+                            FloorControl.State oldState, FloorControl.State newState) {
+                        CallService.this.onFloorStateChanged(oldState, newState);
+                    }
+                };
+        boolean isHub = mIsHub || !peer.getInfo().supportsPackets();
+        mFloorControl =
+                isHub ? FloorControl.hub(callback) : FloorControl.spoke(peer.getId(), callback);
+        logD("Floor control: " + (isHub ? "hub" : "spoke of " + peer));
+        return mFloorControl;
+    }
+
+    /** Starts or stops capturing as the floor changes hands. */
+    private void onFloorStateChanged(FloorControl.State oldState, FloorControl.State newState) {
+        logD("Floor " + oldState + " -> " + newState);
+        if (newState == FloorControl.State.TALKING) {
+            if (mPushToTalk && getState() == State.CONNECTED) {
+                resumeCapture();
+            }
+        } else if (oldState == FloorControl.State.TALKING && mPushToTalk) {
+            mAudioEngine.pauseRecording();
+        }
+        for (Listener listener : listeners()) {
+            listener.onFloorStateChanged(newState);
+        }
+    }
+
+    /** Drops the floor control for the call that's over, letting go of the floor if we had it. */
+    private void resetFloorControl() {
+        FloorControl floorControl = mFloorControl;
+        mFloorControl = null;
+        if (floorControl != null && floorControl.getState() != FloorControl.State.IDLE) {
+            onFloorStateChanged(floorControl.getState(), FloorControl.State.IDLE);
+        }
+    }
+
+    /** Starts capturing. The first time in a call, the DSP starts from scratch. */
+    private void resumeCapture() {
+        if (mAwaitingFirstTalkSpurt) {
+            mAwaitingFirstTalkSpurt = false;
+            mAudioEngine.resumeRecording();
+        } else {
+            mAudioEngine.resumeTalkSpurt();
+        }
+    }
+
+    /**
+     * Builds the recorder and player for the given format and has {@link #mAudioEngine} open their
+     * devices, paused. Replaces any that were built for another format.
+     */
+    private void prepareAudio(CallFormat format) {
+        logV("prepareAudio(" + format + ")");
+        mPreparedFormat = format;
+
+        // Sized in time, not samples, so it holds as much at 48kHz as at 16kHz. The reader trails
+        // the writer by a frame, so one that arrives a little late doesn't starve it.
+        mEchoReference =
+                new EchoReference(
+                        format.getSampleRate() * ECHO_REFERENCE_MS / 1000,
+                        format.getFrameSamples());
+
+        // We pass a callback that gets called whenever mic data is ready. Where it goes from
+        // there, a BYTES payload or a stream, is up to sendAudio().
+        EchoCanceller echoCanceller =
+                new EchoCanceller(format.getSampleRate(), mEchoReference, format.getFrameSamples());
+        SpectralNoiseSuppressor noiseSuppressor =
+                new SpectralNoiseSuppressor(format.getSampleRate());
+        DspChain dspChain = createDspChain(format, echoCanceller, noiseSuppressor);
+        mRecorder = new AudioRecorder(format, dspChain, new AudioRecorder.AudioDataCallback() {
+            @Override
+            public void onAudioData(byte[] data, long capturedNanos) {
+                // Send the byte array immediately as a payload
+                if (getState() == State.CONNECTED) {
+                    mCallTaps.writeLocal(data, data.length);
+                    mFanout.send(data, format.getSampleRate(), capturedNanos);
+                    if (mAwaitingFirstFrameSent) {
+                        mAwaitingFirstFrameSent = false;
+                        logSinceConnected("First frame sent");
+                    }
+                }
+                mVoiceMessages.write(data, data.length);
+            }
+        });
+        mRecorder.setEchoCancellerFallback(echoCanceller);
+        mRecorder.setNoiseSuppressorFallback(noiseSuppressor);
+        mRecorder.setNoiseSuppression(mNoiseSuppression);
+        mRecorder.setMuted(mIsMuted);
+
+        mAudioPlayer = new AudioPlayer(format, createDspChain(format)) {
+            @Override
+            protected void onFirstFramePlayed() {
+                getCallTrace().markOnce("firstAudioTrackWrite");
+                logSinceConnected("First frame played");
+            }
+        };
+        mAudioPlayer.setEchoReference(mEchoReference);
+        mAudioPlayer.setLatencyMonitor(mLatencyMonitor);
+
+        mAudioEngine.prepare(mRecorder, mAudioPlayer);
+    }
+
+    /**
+     * Starts capturing and playing for the call that just connected. The devices are normally
+     * ready already; they're only rebuilt if this call negotiated a different format. In
+     * push-to-talk mode, only playing starts.
+     */
+    private void startAudio() {
+        logV("startAudio()");
+        if (!mCallFormat.equals(mPreparedFormat)) {
+            prepareAudio(mCallFormat);
+        }
+        markConnected();
+        mAwaitingFirstFrameSent = true;
+        mAwaitingFirstTalkSpurt = true;
+        getCallTrace().mark("resumeAudio");
+        mAudioEngine.resumePlayback();
+        // In push-to-talk mode, the microphone waits for the floor.
+        if (!mPushToTalk || getFloorState() == FloorControl.State.TALKING) {
+            resumeCapture();
+        }
+    }
+
+    /** The call is over. Stops capturing and playing, but keeps the devices ready. */
+    private void pauseAudio() {
+        logV("pauseAudio()");
+        mAudioEngine.pause();
+        resetFloorControl();
+        finishLinkStats();
+        mAudioStreams.close(null);
+        mLinkQualities.clear();
+        resetBandwidth();
+        resetMeshRelay();
+        resetLatencyMonitor();
+        mCallTaps.finishPacketTrace();
+        finishCallRecording();
+        mVoiceMessages.cancelTransfers();
+        mConnectedNanos = 0;
+        mAwaitingFirstFrameSent = false;
+        exportCallTrace();
+    }
+
+    /**
+     * Ends the current call's trace, logs it, and writes every trace we have to {@code
+     * call-traces.json} in the app's external files directory, for chrome://tracing or Perfetto.
+     */
+    private void exportCallTrace() {
+        CallTraceRecorder recorder = getCallTrace();
+        CallTrace trace = recorder.finish();
+        if (trace == null) {
+            return;
+        }
+        logD(trace.toString());
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            return;
+        }
+        File file = new File(dir, "call-traces.json");
+        new Thread(() -> {
+            try {
+                recorder.writeChromeTrace(file);
+            } catch (IOException e) {
+                logW("Failed to write " + file, e);
+            }
+        }, "CallTraceExport").start();
+    }
+
+    /** Starts recording the call, if we've been asked to and aren't already. */
+    private void startCallRecording() {
+        if (mAudioPlayer == null || mPreparedFormat == null) {
+            return;
+        }
+        CallRecorder callRecorder = mCallTaps.startRecording(mPreparedFormat.getSampleRate());
+        if (callRecorder == null) {
+            return;
+        }
+        mAudioPlayer.setCallRecorder(callRecorder);
+        for (Listener listener : listeners()) {
+            listener.onCallRecordingChanged(true);
+        }
+    }
+
+    /** The call's over. Stops recording it, once what's been captured and played is written. */
+    private void finishCallRecording() {
+        if (!mCallTaps.isRecording()) {
+            return;
+        }
+        if (mAudioPlayer != null) {
+            mAudioPlayer.setCallRecorder(null);
+        }
+        mCallTaps.finishRecording();
+        for (Listener listener : listeners()) {
+            listener.onCallRecordingChanged(false);
+        }
+    }
+
+    /**
+     * Starts recording a voice message, to go to whoever we're next connected to. Not while we're
+     * on a call; then we can just talk.
+     *
+     * @return False if we can't now.
+     */
+    @MainThread
+    public boolean startVoiceMessage() {
+        if (isInCall() || mVoiceMessages.isRecording()) {
+            return false;
+        }
+        if (mPreparedFormat == null) {
+            prepareAudio(mCallFormat);
+        }
+        if (!mVoiceMessages.startRecording(mPreparedFormat.getSampleRate())) {
+            return false;
+        }
+        mAudioEngine.resumeRecording();
+        logD("Recording a voice message");
+        return true;
+    }
+
+    /** Stops recording a voice message, and sends it once it's written, if anyone can take it. */
+    @MainThread
+    public void finishVoiceMessage() {
+        if (mVoiceMessages.finishRecording() && !isInCall()) {
+            mAudioEngine.pauseRecording();
+        }
+    }
+
+    /** @return True while we're recording a voice message. */
+    public boolean isRecordingVoiceMessage() {
+        return mVoiceMessages.isRecording();
+    }
+
+    /** Plays a voice message, instead of any that's playing, then any that are waiting. */
+    @MainThread
+    public void playVoiceMessage(File file) {
+        mVoiceMessages.play(file);
+    }
+
+    /** Stops playing a voice message, if one is playing. */
+    @MainThread
+    public void stopVoiceMessage() {
+        mVoiceMessages.stopPlaying();
+    }
+
+    /** Stops capturing and playing, and releases the devices. */
+    private void stopAudio() {
+        logV("stopAudio()");
+        mAudioEngine.stop(clean -> logD("Audio stopped" + (clean ? "" : " (thread stuck)")));
+        mRecorder = null;
+        mAudioPlayer = null;
+        mPreparedFormat = null;
+        mConnectedNanos = 0;
+    }
+
+    /** Notes when the call connected, if we haven't already. */
+    private void markConnected() {
+        if (mConnectedNanos == 0) {
+            mConnectedNanos = System.nanoTime();
+        }
+    }
+
+    /** Logs how long after the call connected something happened. Safe from any thread. */
+    private void logSinceConnected(String event) {
+        long connected = mConnectedNanos;
+        if (connected == 0) {
+            return;
+        }
+        long ms = (System.nanoTime() - connected) / 1_000_000;
+        mHandler.post(() -> logD(event + " " + ms + "ms after connecting"));
+    }
+
+    /**
+     * Builds the processing we apply to audio on its way out (after capture) and on its way in
+     * (before playback): take out rumble, even out the level, then keep peaks from clipping. The
+     * AGC is what makes a speakerphone talker and an earpiece talker sound alike.
+     */
+    private static DspChain createDspChain(CallFormat format) {
+        int sampleRate = format.getSampleRate();
+        return new DspChain(
+                new HighPassFilter(sampleRate, 100),
+                new AutomaticGainControl(sampleRate),
+                new GainStage(0),
+                new Limiter(sampleRate, -1, 50));
+    }
+
+    /**
+     * The capture side of {@link #createDspChain(CallFormat)}, with echo cancellation in front and
+     * noise suppression after the high-pass. Both have to run before the AGC changes the level:
+     * echo is measured against what was played, and noise would be pumped up in pauses.
+     */
+    private static DspChain createDspChain(
+            CallFormat format, EchoCanceller echoCanceller, SpectralNoiseSuppressor noiseSuppressor) {
+        int sampleRate = format.getSampleRate();
+        return new DspChain(
+                echoCanceller,
+                new HighPassFilter(sampleRate, 100),
+                noiseSuppressor,
+                new AutomaticGainControl(sampleRate),
+                new GainStage(0),
+                new Limiter(sampleRate, -1, 50));
+    }
+
+    /** @return The id this install has always advertised, made up the first time we're run. */
+    private UUID loadDeviceId() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_DEVICE, Context.MODE_PRIVATE);
+        String id = prefs.getString(PREF_DEVICE_ID, null);
+        if (id != null) {
+            try {
+                return UUID.fromString(id);
+            } catch (IllegalArgumentException e) {
+                logW("Replacing malformed device id " + id);
+            }
+        }
+        UUID deviceId = UUID.randomUUID();
+        prefs.edit().putString(PREF_DEVICE_ID, deviceId.toString()).apply();
+        return deviceId;
+    }
+
+    /** Returns this device's name, as others see it. Random each time the service starts. */
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    /** {@see ConnectionsService#getLocalEndpointInfo(int)} */
+    @Override
+    protected EndpointInfo getLocalEndpointInfo(int role) {
+        if (mSessionRelay && role != EndpointInfo.ROLE_PEER) {
+            // So other relaying devices know to join us into their mesh.
+            role = EndpointInfo.ROLE_RELAY;
+        }
+        return EndpointInfo.local(
+                mName,
+                mDeviceId,
+                role,
+                EndpointInfo.CODEC_PCM_16BIT,
+                mSampleRateMask,
+                CallFormat.supportedFrameDurationMask());
+    }
+
+    /** @return The format we'd stream in with another device just like this one. */
+    private CallFormat getPreferredFormat() {
+        EndpointInfo local = getLocalEndpointInfo(EndpointInfo.ROLE_PEER);
+        return CallFormat.negotiate(local, local);
+    }
+
+    /** Works out the format we and the given endpoint will stream in. */
+    private CallFormat negotiateFormat(Endpoint endpoint) {
+        return CallFormat.negotiate(
+                getLocalEndpointInfo(EndpointInfo.ROLE_PEER), endpoint.getInfo());
+    }
+
+    /** {@see ConnectionsService#getServiceId()} */
+    @Override
+    public String getServiceId() {
+        return mSessionCallType.getServiceId();
+    }
+
+    /** {@see ConnectionsService#getStrategy()} */
+    @Override
+    public Strategy getStrategy() {
+        return mSessionCallType.getStrategy();
+    }
+
+    @Override
+    protected void logV(String msg) {
+        super.logV(msg);
+        dispatchLog(Log.VERBOSE, msg);
+    }
+
+    @Override
+    protected void logD(String msg) {
+        super.logD(msg);
+        dispatchLog(Log.DEBUG, msg);
+    }
+
+    @Override
+    protected void logW(String msg) {
+        super.logW(msg);
+        dispatchLog(Log.WARN, msg);
+    }
+
+    @Override
+    protected void logW(String msg, Throwable e) {
+        super.logW(msg, e);
+        dispatchLog(Log.WARN, msg);
+    }
+
+    @Override
+    protected void logE(String msg, Throwable e) {
+        super.logE(msg, e);
+        dispatchLog(Log.ERROR, msg);
+    }
+
+    /** Passes a log line to the listeners, on the main thread. */
+    private void dispatchLog(int priority, String msg) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mHandler.post(() -> dispatchLog(priority, msg));
+            return;
+        }
+        for (Listener listener : listeners()) {
+            listener.onLog(priority, msg);
+        }
+    }
+
+    /** @return The listeners, copied so they can remove themselves while being called. */
+    private List<Listener> listeners() {
+        return new ArrayList<>(mListeners);
+    }
+
+    private static String generateRandomName() {
+        String name = "";
+        Random random = new Random();
+        for (int i = 0; i < 5; i++) {
+            name += random.nextInt(10);
+        }
+        return name;
+    }
+
+    /** States that a call goes through. */
+    public enum State {
+        UNKNOWN,
+        SEARCHING,
+        RECONNECTING,
+        CONNECTED
+    }
+}
@@ -0,0 +1,158 @@
+package uz.kosmostar.vokall;
+
+import static uz.kosmostar.vokall.Constants.TAG;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Keeps a record of a call, for looking back at what went wrong in it: a {@link PacketTraceWriter
+ * trace} of every payload we receive, for the tests' {@code TraceReplay}, and a {@link
+ * CallRecorder recording} of what was said, each only if the user's asked for it. Both go in the
+ * app's external files directory, and both start over with each call.
+ *
+ * <p>{@link #onReceived(long, String, byte[], boolean)} and {@link #writeLocal(byte[], int)} may be
+ * called from any thread; the rest from the main thread.
+ */
+public class CallTaps {
+    /** The most a call's packet trace may take; past this, the oldest is overwritten. */
+    static final int MAX_PACKET_TRACE_BYTES = 8 * 1024 * 1024;
+
+    private final Context mContext;
+
+    private boolean mPacketTraceEnabled;
+    private boolean mCallRecordingEnabled;
+    private boolean mCallRecordingCompressed = true;
+
+    /** Where this call's received payloads are being traced to, if they are. */
+    @Nullable private volatile PacketTraceWriter mPacketTrace;
+
+    /** Recording this call, if we are. */
+    @Nullable private volatile CallRecorder mCallRecorder;
+
+    public CallTaps(Context context) {
+        mContext = context;
+    }
+
+    public boolean isPacketTraceEnabled() {
+        return mPacketTraceEnabled;
+    }
+
+    /** Traces the calls after this one, or stops. */
+    public void setPacketTraceEnabled(boolean packetTraceEnabled) {
+        mPacketTraceEnabled = packetTraceEnabled;
+    }
+
+    public boolean isCallRecordingEnabled() {
+        return mCallRecordingEnabled;
+    }
+
+    /** Records the calls after this one, or stops. */
+    public void setCallRecordingEnabled(boolean callRecordingEnabled) {
+        mCallRecordingEnabled = callRecordingEnabled;
+    }
+
+    /** @param compressed True to record as {@link ImaAdpcm}, rather than plain PCM. */
+    public void setCallRecordingCompressed(boolean compressed) {
+        mCallRecordingCompressed = compressed;
+    }
+
+    /**
+     * Starts tracing what we receive, if we've been asked to and aren't already, keeping the last
+     * call's trace beside it, as {@code packet-trace-previous.bin}.
+     */
+    @MainThread
+    public void startPacketTrace() {
+        if (!mPacketTraceEnabled || mPacketTrace != null) {
+            return;
+        }
+        File dir = mContext.getExternalFilesDir(null);
+        if (dir == null) {
+            return;
+        }
+        File file = new File(dir, "packet-trace.bin");
+        if (file.exists() && !file.renameTo(new File(dir, "packet-trace-previous.bin"))) {
+            Log.w(TAG, "Failed to keep the last packet trace");
+        }
+        try {
+            mPacketTrace = PacketTraceWriter.open(file, MAX_PACKET_TRACE_BYTES);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to start a packet trace in " + file, e);
+        }
+    }
+
+    /** The call's over. Stops tracing what we receive. */
+    @MainThread
+    public void finishPacketTrace() {
+        PacketTraceWriter packetTrace = mPacketTrace;
+        if (packetTrace == null) {
+            return;
+        }
+        mPacketTrace = null;
+        packetTrace.close();
+        Log.d(TAG, "Traced " + packetTrace.getWrittenCount() + " received payloads");
+    }
+
+    /**
+     * Traces a payload we received, if we're tracing.
+     *
+     * @param framed True if it's one of our {@link Packet}s, rather than an old peer's bare audio.
+     */
+    public void onReceived(long receivedNanos, String endpointId, byte[] data, boolean framed) {
+        PacketTraceWriter packetTrace = mPacketTrace;
+        if (packetTrace != null) {
+            packetTrace.record(receivedNanos, endpointId, data, framed);
+        }
+    }
+
+    /**
+     * Starts recording the call, to {@code recordings}, if we've been asked to and aren't already.
+     *
+     * @return The new recording, for {@link AudioPlayer} to hand what it plays to, or null if
+     *     there's none.
+     */
+    @MainThread
+    @Nullable
+    public CallRecorder startRecording(int sampleRate) {
+        if (!mCallRecordingEnabled || mCallRecorder != null) {
+            return null;
+        }
+        File dir = mContext.getExternalFilesDir(null);
+        if (dir == null) {
+            return null;
+        }
+        CallRecorder callRecorder =
+                new CallRecorder(new File(dir, "recordings"), sampleRate, mCallRecordingCompressed);
+        callRecorder.start();
+        mCallRecorder = callRecorder;
+        return callRecorder;
+    }
+
+    /** The call's over. Stops recording it, once what's been captured and played is written. */
+    @MainThread
+    public void finishRecording() {
+        CallRecorder callRecorder = mCallRecorder;
+        if (callRecorder == null) {
+            return;
+        }
+        mCallRecorder = null;
+        callRecorder.stop();
+    }
+
+    /** @return True if the call we're on is being recorded right now. */
+    public boolean isRecording() {
+        return mCallRecorder != null;
+    }
+
+    /** Records what we captured, if we're recording. {@link AudioRecorder}'s thread only. */
+    public void writeLocal(byte[] pcm, int length) {
+        CallRecorder callRecorder = mCallRecorder;
+        if (callRecorder != null) {
+            callRecorder.writeLocal(pcm, length);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package uz.kosmostar.vokall;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The timeline of setting up one call: each phase, from starting discovery to the first audio
+ * played, stamped with {@link System#nanoTime()} so wall-clock changes can't skew it.
+ *
+ * <p>Phases are either instants ({@link #mark(String, String)}) or spans ({@link #begin(String)}
+ * to {@link #end(String)}). Not thread-safe on its own; {@link CallTraceRecorder} guards it.
+ */
+public class CallTrace {
+    /** One phase. Instants have a duration of -1. */
+    static class Event {
+        final String name;
+        final long startNanos;
+        final long durationNanos;
+        final long threadId;
+        final String threadName;
+        final String detail;
+
+        Event(String name, long startNanos, long durationNanos, String detail) {
+            Thread thread = Thread.currentThread();
+            this.name = name;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.threadId = thread.getId();
+            this.threadName = thread.getName();
+            this.detail = detail;
+        }
+    }
+
+    private final int mId;
+    private final long mStartNanos;
+    private final List<Event> mEvents = new ArrayList<>();
+    private final Map<String, Long> mOpenSpans = new HashMap<>();
+    private final Set<String> mOnce = new HashSet<>();
+
+    CallTrace(int id, long startNanos) {
+        mId = id;
+        mStartNanos = startNanos;
+    }
+
+    /** Records that a phase happened just now. {@code detail} may be null. */
+    void mark(String name, String detail) {
+        mEvents.add(new Event(name, System.nanoTime(), -1, detail));
+    }
+
+    /** Like {@link #mark(String, String)}, but only the first time this phase happens. */
+    void markOnce(String name, String detail) {
+        if (mOnce.add(name)) {
+            mark(name, detail);
+        }
+    }
+
+    /** Starts a span. Starting one that's already open restarts it. */
+    void begin(String name) {
+        mOpenSpans.put(name, System.nanoTime());
+    }
+
+    /** Ends a span. Does nothing if it wasn't started. */
+    void end(String name, String detail) {
+        Long start = mOpenSpans.remove(name);
+        if (start != null) {
+            mEvents.add(new Event(name, start, System.nanoTime() - start, detail));
+        }
+    }
+
+    /** @return The trace's number, counting from 1 since the app started. */
+    public int getId() {
+        return mId;
+    }
+
+    /** @return True if nothing's been recorded yet. */
+    public boolean isEmpty() {
+        return mEvents.isEmpty();
+    }
+
+    /** @return When the given phase first happened, in ms after the trace started, or -1. */
+    public long getOffsetMs(String name) {
+        for (Event event : mEvents) {
+            if (event.name.equals(name)) {
+                return (event.startNanos - mStartNanos) / 1_000_000;
+            }
+        }
+        return -1;
+    }
+
+    long getStartNanos() {
+        return mStartNanos;
+    }
+
+    List<Event> getEvents() {
+        return mEvents;
+    }
+
+    /** @return Every phase with its offset from the start, in the order they were recorded. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CallTrace #").append(mId).append(" {");
+        for (int i = 0; i < mEvents.size(); i++) {
+            Event event = mEvents.get(i);
+            sb.append(i == 0 ? " " : ", ").append(event.name).append(String.format(
+                    Locale.US, " +%dms", (event.startNanos - mStartNanos) / 1_000_000));
+            if (event.durationNanos >= 0) {
+                sb.append(String.format(
+                        Locale.US, " (%dms)", event.durationNanos / 1_000_000));
+            }
+        }
+        return sb.append(" }").toString();
+    }
+}
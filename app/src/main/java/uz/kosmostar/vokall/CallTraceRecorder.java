@@ -0,0 +1,187 @@
+package uz.kosmostar.vokall;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Records a {@link CallTrace} per call and keeps the last few. Safe to call from any thread: the
+ * Nearby callbacks, the UI and the audio threads all add phases.
+ *
+ * <p>The history can be exported as Chrome trace-event JSON. Load it in chrome://tracing or
+ * ui.perfetto.dev: each call shows up as its own process, with a row per thread.
+ */
+public class CallTraceRecorder {
+    /** How many finished traces we keep. */
+    private static final int MAX_HISTORY = 16;
+
+    private final ArrayDeque<CallTrace> mHistory = new ArrayDeque<>();
+    private CallTrace mCurrent;
+    private int mNextId = 1;
+
+    /**
+     * Starts a new trace. The current one, if anything was recorded in it, goes into the history.
+     */
+    public synchronized void start() {
+        finish();
+        mCurrent = new CallTrace(mNextId++, System.nanoTime());
+    }
+
+    /**
+     * Ends the current trace and puts it in the history.
+     *
+     * @return The trace that ended, or null if there was nothing to end.
+     */
+    public synchronized CallTrace finish() {
+        CallTrace trace = mCurrent;
+        mCurrent = null;
+        if (trace == null || trace.isEmpty()) {
+            return null;
+        }
+        mHistory.addLast(trace);
+        while (mHistory.size() > MAX_HISTORY) {
+            mHistory.removeFirst();
+        }
+        return trace;
+    }
+
+    /** Records that a phase happened just now. */
+    public void mark(String name) {
+        mark(name, null);
+    }
+
+    /** Records that a phase happened just now, with some detail, e.g. an endpoint id. */
+    public synchronized void mark(String name, String detail) {
+        current().mark(name, detail);
+    }
+
+    /**
+     * Records a phase only the first time it happens in this trace. Cheap enough per frame. Unlike
+     * the others, this won't start a trace, so stragglers after a call has ended are ignored.
+     */
+    public synchronized void markOnce(String name) {
+        if (mCurrent != null) {
+            mCurrent.markOnce(name, null);
+        }
+    }
+
+    /** Starts a span, e.g. while a dialog is up. */
+    public synchronized void begin(String name) {
+        current().begin(name);
+    }
+
+    /** Ends a span started with {@link #begin(String)}. */
+    public void end(String name) {
+        end(name, null);
+    }
+
+    /** Ends a span started with {@link #begin(String)}, with some detail about how it ended. */
+    public synchronized void end(String name, String detail) {
+        current().end(name, detail);
+    }
+
+    /** @return The finished traces, oldest first, followed by the current one. */
+    public synchronized List<CallTrace> getTraces() {
+        List<CallTrace> traces = new ArrayList<>(mHistory);
+        if (mCurrent != null && !mCurrent.isEmpty()) {
+            traces.add(mCurrent);
+        }
+        return traces;
+    }
+
+    /** @return Every trace we have, as Chrome trace-event JSON. */
+    public synchronized String toChromeTraceJson() {
+        StringBuilder json = new StringBuilder("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (CallTrace trace : getTraces()) {
+            int pid = trace.getId();
+            first = appendEvent(json, first, "M", "process_name", pid, 0, 0, -1,
+                    "\"name\":" + quote("Call #" + pid));
+            Set<Long> threads = new HashSet<>();
+            for (CallTrace.Event event : trace.getEvents()) {
+                if (threads.add(event.threadId)) {
+                    first = appendEvent(json, first, "M", "thread_name", pid, event.threadId, 0,
+                            -1, "\"name\":" + quote(event.threadName));
+                }
+                String args = event.detail == null ? null : "\"detail\":" + quote(event.detail);
+                if (event.durationNanos < 0) {
+                    first = appendEvent(json, first, "i", event.name, pid, event.threadId,
+                            event.startNanos, -1, args);
+                } else {
+                    first = appendEvent(json, first, "X", event.name, pid, event.threadId,
+                            event.startNanos, event.durationNanos, args);
+                }
+            }
+        }
+        return json.append("]}").toString();
+    }
+
+    /** Writes {@link #toChromeTraceJson()} to the given file, replacing it. */
+    public void writeChromeTrace(File file) throws IOException {
+        byte[] json = toChromeTraceJson().getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(json);
+        }
+    }
+
+    private CallTrace current() {
+        if (mCurrent == null) {
+            // Something happened before anyone started a trace, e.g. an incoming call while we
+            // were only advertising. Start one now.
+            mCurrent = new CallTrace(mNextId++, System.nanoTime());
+        }
+        return mCurrent;
+    }
+
+    private static boolean appendEvent(
+            StringBuilder json,
+            boolean first,
+            String phase,
+            String name,
+            int pid,
+            long tid,
+            long startNanos,
+            long durationNanos,
+            String args) {
+        if (!first) {
+            json.append(',');
+        }
+        json.append("{\"ph\":\"").append(phase).append("\",\"name\":").append(quote(name))
+                .append(",\"pid\":").append(pid)
+                .append(",\"tid\":").append(tid)
+                .append(",\"ts\":").append(startNanos / 1000);
+        if (durationNanos >= 0) {
+            json.append(",\"dur\":").append(durationNanos / 1000);
+        }
+        if ("i".equals(phase)) {
+            json.append(",\"s\":\"t\"");
+        }
+        if (args != null) {
+            json.append(",\"args\":{").append(args).append('}');
+        }
+        json.append('}');
+        return false;
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
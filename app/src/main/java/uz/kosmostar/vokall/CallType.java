@@ -0,0 +1,75 @@
+package uz.kosmostar.vokall;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.StringRes;
+import com.google.android.gms.nearby.connection.Strategy;
+
+/**
+ * The kind of call the user wants, and so the Nearby {@link Strategy} we advertise and discover
+ * with. Devices only find each other if they use the same one, so each gets its own service id;
+ * otherwise a device on one strategy would find another on a different one and fail to connect.
+ */
+public enum CallType {
+    /**
+     * One-to-one. {@link Strategy#P2P_POINT_TO_POINT} lets Nearby move the link onto its fastest
+     * medium, since it never has to take another connection.
+     */
+    DIRECT(Strategy.P2P_POINT_TO_POINT, ".p2p", R.string.call_type_direct),
+
+    /**
+     * A group around one device, which everyone else connects to. {@link Strategy#P2P_STAR}. What
+     * every build before this one used, so it keeps the old service id and they can still call us.
+     */
+    GROUP(Strategy.P2P_STAR, "", R.string.call_type_group),
+
+    /**
+     * A group where anyone may connect to anyone. {@link Strategy#P2P_CLUSTER}. The most flexible,
+     * and the one with the least bandwidth.
+     */
+    MESH(Strategy.P2P_CLUSTER, ".cluster", R.string.call_type_mesh);
+
+    /** The service id every build before call types were added used. {@link #GROUP} keeps it. */
+    private static final String BASE_SERVICE_ID = "uz.kosmostar.vokall.manual.SERVICE_ID";
+
+    private final Strategy mStrategy;
+    private final String mServiceId;
+    @StringRes private final int mLabel;
+
+    CallType(Strategy strategy, String serviceIdSuffix, @StringRes int label) {
+        mStrategy = strategy;
+        mServiceId = BASE_SERVICE_ID + serviceIdSuffix;
+        mLabel = label;
+    }
+
+    public Strategy getStrategy() {
+        return mStrategy;
+    }
+
+    public String getServiceId() {
+        return mServiceId;
+    }
+
+    /** @return What to call this type in the UI. */
+    @StringRes
+    public int getLabel() {
+        return mLabel;
+    }
+
+    /** @return The type after this one, going round, for a button that cycles through them. */
+    public CallType next() {
+        CallType[] types = values();
+        return types[(ordinal() + 1) % types.length];
+    }
+
+    /** @return The type with the given {@link #name()}, or {@code fallback} if there isn't one. */
+    public static CallType fromName(@Nullable String name, CallType fallback) {
+        if (name != null) {
+            for (CallType type : values()) {
+                if (type.name().equals(name)) {
+                    return type;
+                }
+            }
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,213 @@
+package uz.kosmostar.vokall;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Works out how a peer's {@link System#nanoTime()} clock maps onto ours, the way NTP does, from
+ * the {@link Packet#TYPE_PING pings} we already send for {@link LinkStats}. Each ping's {@link
+ * Packet#TYPE_PONG pong} says what the peer's clock read when it answered. Assuming the answer
+ * took as long to come back as the ping took to get there, that reading was taken halfway through
+ * the round trip, which gives the offset between the clocks.
+ *
+ * <p>A round trip that took longer than usual was held up on one leg more than the other, which
+ * throws the offset off by up to half the extra time. So of the last {@link #WINDOW} exchanges,
+ * only those close to the shortest round trip count, or the shorter half if that's more. A least
+ * squares line through their offsets gives the skew, i.e. how fast the two clocks drift apart,
+ * once they span long enough to tell and it stands out from the jitter.
+ *
+ * <p>Safe to call from any thread.
+ */
+public class ClockSync {
+    /** How many exchanges we keep. At one every 2s, about a minute's worth. */
+    static final int WINDOW = 32;
+
+    /** How many exchanges we need before we trust the offset. */
+    static final int MIN_SAMPLES = 4;
+
+    /** Exchanges with a round trip this many times the shortest were held up, and don't count. */
+    private static final double RTT_FILTER_RATIO = 1.5;
+
+    /** ...plus this much, so a very short shortest round trip doesn't leave nothing to count. */
+    private static final long RTT_FILTER_SLACK_NANOS = 2_000_000;
+
+    /** How far apart the exchanges that count must be before we estimate the skew. */
+    private static final long MIN_SKEW_SPAN_NANOS = 10_000_000_000L;
+
+    /** How many exchanges have to count before we estimate the skew from them. */
+    private static final int MIN_SKEW_SAMPLES = 6;
+
+    /** The most skew we believe. Real clocks are within a few tens of ppm. */
+    private static final double MAX_SKEW = 500e-6;
+
+    /** Halfway through each exchange, on our clock. */
+    private final long[] mLocalNanos = new long[WINDOW];
+
+    /** The peer's clock minus ours, at each exchange. */
+    private final long[] mOffsetNanos = new long[WINDOW];
+
+    private final long[] mRttNanos = new long[WINDOW];
+    private int mCount;
+    private int mNext;
+    private long mExchanges;
+
+    /** The fit: the offset at {@link #mRefLocalNanos}, and how it changes per ns after. */
+    private long mRefLocalNanos;
+
+    private double mRefOffsetNanos;
+    private double mSkew;
+    private long mResidualNanos;
+
+    /**
+     * A pong came back.
+     *
+     * @param sentNanos When we sent the ping, on our clock.
+     * @param peerNanos When the peer answered, on its clock.
+     * @param receivedNanos When the pong arrived, on our clock.
+     */
+    public synchronized void onExchange(long sentNanos, long peerNanos, long receivedNanos) {
+        long rtt = receivedNanos - sentNanos;
+        if (rtt < 0) {
+            return;
+        }
+        long local = sentNanos + rtt / 2;
+        mLocalNanos[mNext] = local;
+        mOffsetNanos[mNext] = peerNanos - local;
+        mRttNanos[mNext] = rtt;
+        mNext = (mNext + 1) % WINDOW;
+        mCount = Math.min(mCount + 1, WINDOW);
+        mExchanges++;
+        fit();
+    }
+
+    private void fit() {
+        long minRtt = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            minRtt = Math.min(minRtt, mRttNanos[i]);
+        }
+        // On a jittery link hardly any come close to the shortest, so count the better half.
+        long limit =
+                Math.max(
+                        (long) (minRtt * RTT_FILTER_RATIO) + RTT_FILTER_SLACK_NANOS,
+                        getMedianRttNanos());
+
+        // Everything relative to the newest exchange, so the sums stay small.
+        int newest = (mNext + WINDOW - 1) % WINDOW;
+        long baseLocal = mLocalNanos[newest];
+        long baseOffset = mOffsetNanos[newest];
+        int n = 0;
+        double sumX = 0;
+        double sumY = 0;
+        long minX = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mRttNanos[i] > limit) {
+                continue;
+            }
+            long x = mLocalNanos[i] - baseLocal;
+            n++;
+            sumX += x;
+            sumY += mOffsetNanos[i] - baseOffset;
+            minX = Math.min(minX, x);
+        }
+        double meanX = sumX / n;
+        double meanY = sumY / n;
+        double skew = 0;
+        if (-minX >= MIN_SKEW_SPAN_NANOS && n >= MIN_SKEW_SAMPLES) {
+            double sxx = 0;
+            double sxy = 0;
+            double syy = 0;
+            for (int i = 0; i < mCount; i++) {
+                if (mRttNanos[i] > limit) {
+                    continue;
+                }
+                double dx = mLocalNanos[i] - baseLocal - meanX;
+                double dy = mOffsetNanos[i] - baseOffset - meanY;
+                sxx += dx * dx;
+                sxy += dx * dy;
+                syy += dy * dy;
+            }
+            double slope = sxy / sxx;
+            // On a jittery link the slope can be mostly noise, and then it does more harm than
+            // good. Only go with it if it's well clear of its standard error.
+            double standardError = Math.sqrt(Math.max(0, syy - slope * sxy) / (n - 2) / sxx);
+            if (Math.abs(slope) > 2 * standardError) {
+                skew = Math.max(-MAX_SKEW, Math.min(MAX_SKEW, slope));
+            }
+        }
+        double squares = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mRttNanos[i] > limit) {
+                continue;
+            }
+            double predicted = meanY + skew * (mLocalNanos[i] - baseLocal - meanX);
+            double error = mOffsetNanos[i] - baseOffset - predicted;
+            squares += error * error;
+        }
+        mRefLocalNanos = baseLocal + Math.round(meanX);
+        mRefOffsetNanos = baseOffset + meanY;
+        mSkew = skew;
+        mResidualNanos = Math.round(Math.sqrt(squares / n));
+    }
+
+    /** @return True once we've heard enough to map the peer's clock onto ours. */
+    public synchronized boolean isSynced() {
+        return mCount >= MIN_SAMPLES;
+    }
+
+    /** @return The time on our clock when the peer's clock reads {@code peerNanos}. */
+    public synchronized long toLocal(long peerNanos) {
+        // peer = local + offset + skew * (local - ref), solved for local.
+        double sinceRef = peerNanos - mRefLocalNanos - mRefOffsetNanos;
+        return mRefLocalNanos + Math.round(sinceRef / (1 + mSkew));
+    }
+
+    /** @return The peer's clock minus ours, right now. */
+    public synchronized long getOffsetNanos() {
+        return Math.round(mRefOffsetNanos + mSkew * (System.nanoTime() - mRefLocalNanos));
+    }
+
+    /** @return How much faster the peer's clock runs than ours, in parts per million. */
+    public synchronized double getSkewPpm() {
+        return mSkew * 1e6;
+    }
+
+    /**
+     * @return How far off {@link #toLocal(long)} may be: half the shortest round trip, which is
+     *     how lopsided it could have been, plus how far the exchanges scatter around the fit.
+     */
+    public synchronized long getUncertaintyNanos() {
+        return getMinRttNanos() / 2 + mResidualNanos;
+    }
+
+    /** @return The shortest round trip in the window, or 0 if there's none yet. */
+    public synchronized long getMinRttNanos() {
+        long minRtt = Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            minRtt = Math.min(minRtt, mRttNanos[i]);
+        }
+        return mCount == 0 ? 0 : minRtt;
+    }
+
+    /** @return The median round trip in the window, or 0 if there's none yet. */
+    public synchronized long getMedianRttNanos() {
+        if (mCount == 0) {
+            return 0;
+        }
+        long[] rtts = Arrays.copyOf(mRttNanos, mCount);
+        Arrays.sort(rtts);
+        return rtts[mCount / 2];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                Locale.US,
+                "ClockSync{exchanges=%d, offset=%.3fms, skew=%.1fppm, uncertainty=%.1fms, "
+                        + "rtt=%.1fms}",
+                mExchanges,
+                mRefOffsetNanos / 1e6,
+                mSkew * 1e6,
+                getUncertaintyNanos() / 1e6,
+                getMedianRttNanos() / 1e6);
+    }
+}
@@ -0,0 +1,650 @@
+package uz.kosmostar.vokall;
+
+import android.app.Service;
+import androidx.annotation.CallSuper;
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.nearby.Nearby;
+import com.google.android.gms.nearby.connection.AdvertisingOptions;
+import com.google.android.gms.nearby.connection.BandwidthInfo;
+import com.google.android.gms.nearby.connection.ConnectionInfo;
+import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
+import com.google.android.gms.nearby.connection.ConnectionResolution;
+import com.google.android.gms.nearby.connection.ConnectionsClient;
+import com.google.android.gms.nearby.connection.ConnectionsStatusCodes;
+import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
+import com.google.android.gms.nearby.connection.DiscoveryOptions;
+import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadCallback;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import com.google.android.gms.nearby.connection.Strategy;
+import com.google.android.gms.tasks.OnFailureListener;
+import com.google.android.gms.tasks.OnSuccessListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static uz.kosmostar.vokall.Constants.TAG;
+
+/**
+ * A service that connects to Nearby Connections and provides convenience methods and callbacks. It
+ * lives in a service rather than an Activity so connections survive the UI going away.
+ *
+ * <p>Permissions have to be granted before it's started; {@link ConnectionsActivity} asks for them.
+ */
+public abstract class ConnectionsService extends Service {
+
+  /** Our handler to Nearby Connections. */
+  private ConnectionsClient mConnectionsClient;
+
+  /** The devices we've discovered near us. */
+  private final Map<String, Endpoint> mDiscoveredEndpoints = new HashMap<>();
+
+  /**
+   * The devices we have pending connections to. They will stay pending until we call {@link
+   * #acceptConnection(Endpoint)} or {@link #rejectConnection(Endpoint)}.
+   */
+  private final Map<String, Endpoint> mPendingConnections = new HashMap<>();
+
+  /**
+   * The devices we are currently connected to. For advertisers, this may be large. For discoverers,
+   * there will only be one entry in this map.
+   */
+  private final Map<String, Endpoint> mEstablishedConnections = new HashMap<>();
+
+  /**
+   * True if we are asking a discovered device to connect to us. While we ask, we cannot ask another
+   * device.
+   */
+  private boolean mIsConnecting = false;
+
+  /** True if we are discovering. */
+  private boolean mIsDiscovering = false;
+
+  /** True if we are advertising. */
+  private boolean mIsAdvertising = false;
+
+  /** Timestamps each phase of setting up a call. */
+  private final CallTraceRecorder mCallTrace = new CallTraceRecorder();
+
+  /** Callbacks for connections to other devices. */
+  private final ConnectionLifecycleCallback mConnectionLifecycleCallback =
+      new ConnectionLifecycleCallback() {
+        @Override
+        public void onConnectionInitiated(String endpointId, ConnectionInfo connectionInfo) {
+          EndpointInfo info =
+              EndpointInfo.parse(connectionInfo.getEndpointInfo(), connectionInfo.getEndpointName());
+          logD(
+              String.format(
+                  "onConnectionInitiated(endpointId=%s, endpointInfo=%s)", endpointId, info));
+          mCallTrace.end("requestConnection");
+          mCallTrace.mark(
+              "onConnectionInitiated",
+              (connectionInfo.isIncomingConnection() ? "incoming " : "outgoing ") + endpointId);
+
+          // Older peers only tell us their name here. If we discovered them, we may know more.
+          Endpoint discovered = mDiscoveredEndpoints.get(endpointId);
+          if (info.isLegacy() && discovered != null) {
+            info = discovered.getInfo();
+          }
+          Endpoint endpoint = new Endpoint(endpointId, info);
+          mPendingConnections.put(endpointId, endpoint);
+          ConnectionsService.this.onConnectionInitiated(endpoint, connectionInfo);
+        }
+
+        @Override
+        public void onConnectionResult(String endpointId, ConnectionResolution result) {
+          logD(String.format("onConnectionResponse(endpointId=%s, result=%s)", endpointId, result));
+
+          // We're no longer connecting
+          mIsConnecting = false;
+          String status = ConnectionsService.toString(result.getStatus());
+          mCallTrace.end("awaitConnectionResult", status);
+          mCallTrace.mark("onConnectionResult", status);
+
+          if (!result.getStatus().isSuccess()) {
+            logW(
+                String.format(
+                    "Connection failed. Received status %s.",
+                    ConnectionsService.toString(result.getStatus())));
+            Endpoint endpoint = mPendingConnections.remove(endpointId);
+            if (result.getStatus().getStatusCode()
+                == ConnectionsStatusCodes.STATUS_CONNECTION_REJECTED) {
+              onConnectionRejected(endpoint);
+            } else {
+              onConnectionFailed(endpoint);
+            }
+            return;
+          }
+          connectedToEndpoint(mPendingConnections.remove(endpointId));
+        }
+
+        @Override
+        public void onDisconnected(String endpointId) {
+          if (!mEstablishedConnections.containsKey(endpointId)) {
+            logW("Unexpected disconnection from endpoint " + endpointId);
+            return;
+          }
+          disconnectedFromEndpoint(mEstablishedConnections.get(endpointId));
+        }
+
+        @Override
+        public void onBandwidthChanged(String endpointId, BandwidthInfo info) {
+          logD(
+              String.format(
+                  "onBandwidthChanged(endpointId=%s, quality=%d)", endpointId, info.getQuality()));
+          Endpoint endpoint = mEstablishedConnections.get(endpointId);
+          if (endpoint != null) {
+            mCallTrace.mark("onBandwidthChanged", String.valueOf(info.getQuality()));
+            ConnectionsService.this.onBandwidthChanged(endpoint, info.getQuality());
+          }
+        }
+      };
+
+  /** Callbacks for payloads (bytes of data) sent from another device to us. */
+  private final PayloadCallback mPayloadCallback =
+      new PayloadCallback() {
+        @Override
+        public void onPayloadReceived(String endpointId, Payload payload) {
+          logD(String.format("onPayloadReceived(endpointId=%s, payload=%s)", endpointId, payload));
+
+            mCallTrace.markOnce("firstPayloadReceived");
+            Endpoint endpoint = mEstablishedConnections.get(endpointId);
+            if (endpoint == null) {
+                logW("Received payload from unknown or disconnected endpoint: " + endpointId);
+                return;
+            }
+            onReceive(endpoint, payload);
+        }
+
+        @Override
+        public void onPayloadTransferUpdate(String endpointId, PayloadTransferUpdate update) {
+          logD(
+              String.format(
+                  "onPayloadTransferUpdate(endpointId=%s, update=%s)", endpointId, update));
+          Endpoint endpoint = mEstablishedConnections.get(endpointId);
+          if (endpoint != null) {
+            ConnectionsService.this.onPayloadTransferUpdate(endpoint, update);
+          }
+        }
+      };
+
+  /** Called when the service is first created. */
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    mConnectionsClient = Nearby.getConnectionsClient(this);
+  }
+
+  /**
+   * Sets the device to advertising mode. It will broadcast to other devices in discovery mode.
+   * Either {@link #onAdvertisingStarted()} or {@link #onAdvertisingFailed()} will be called once
+   * we've found out if we successfully entered this mode.
+   */
+  protected void startAdvertising() {
+    mIsAdvertising = true;
+    mCallTrace.mark("startAdvertising");
+    final EndpointInfo localEndpointInfo = getLocalEndpointInfo(EndpointInfo.ROLE_HUB);
+
+    AdvertisingOptions.Builder advertisingOptions = new AdvertisingOptions.Builder();
+    advertisingOptions.setStrategy(getStrategy());
+    advertisingOptions.setLowPower(false);
+
+    mConnectionsClient
+        .startAdvertising(
+            localEndpointInfo.toBytes(),
+            getServiceId(),
+            mConnectionLifecycleCallback,
+            advertisingOptions.build())
+        .addOnSuccessListener(
+            new OnSuccessListener<Void>() {
+              @Override
+              public void onSuccess(Void unusedResult) {
+                logV("Now advertising endpoint " + localEndpointInfo);
+                mCallTrace.mark("advertisingStarted");
+                onAdvertisingStarted();
+              }
+            })
+        .addOnFailureListener(
+            new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                mIsAdvertising = false;
+                logW("startAdvertising() failed.", e);
+                onAdvertisingFailed();
+              }
+            });
+  }
+
+  /** Stops advertising. */
+  protected void stopAdvertising() {
+    mIsAdvertising = false;
+    mConnectionsClient.stopAdvertising();
+  }
+
+  /** Returns {@code true} if currently advertising. */
+  protected boolean isAdvertising() {
+    return mIsAdvertising;
+  }
+
+  /** Called when advertising successfully starts. Override this method to act on the event. */
+  protected void onAdvertisingStarted() {}
+
+  /** Called when advertising fails to start. Override this method to act on the event. */
+  protected void onAdvertisingFailed() {}
+
+  /**
+   * Called when a pending connection with a remote endpoint is created. Use {@link ConnectionInfo}
+   * for metadata about the connection (like incoming vs outgoing, or the authentication token). If
+   * we want to continue with the connection, call {@link #acceptConnection(Endpoint)}. Otherwise,
+   * call {@link #rejectConnection(Endpoint)}.
+   */
+  protected void onConnectionInitiated(Endpoint endpoint, ConnectionInfo connectionInfo) {}
+
+  /** Accepts a connection request. */
+  protected void acceptConnection(final Endpoint endpoint) {
+    mCallTrace.mark("acceptConnection", endpoint.getId());
+    mCallTrace.begin("awaitConnectionResult");
+    mConnectionsClient
+        .acceptConnection(endpoint.getId(), mPayloadCallback)
+        .addOnFailureListener(
+            new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                logW("acceptConnection() failed.", e);
+              }
+            });
+  }
+
+  /** Rejects a connection request. */
+  protected void rejectConnection(Endpoint endpoint) {
+    mConnectionsClient
+        .rejectConnection(endpoint.getId())
+        .addOnFailureListener(
+            new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                logW("rejectConnection() failed.", e);
+              }
+            });
+  }
+
+  /**
+   * Sets the device to discovery mode. It will now listen for devices in advertising mode. Either
+   * {@link #onDiscoveryStarted()} or {@link #onDiscoveryFailed()} will be called once we've found
+   * out if we successfully entered this mode.
+   */
+  protected void startDiscovering() {
+    mIsDiscovering = true;
+    mDiscoveredEndpoints.clear();
+    // Looking for someone to call is where a call's setup starts.
+    mCallTrace.start();
+    mCallTrace.mark("startDiscovering");
+    DiscoveryOptions.Builder discoveryOptions = new DiscoveryOptions.Builder();
+    discoveryOptions.setStrategy(getStrategy());
+    discoveryOptions.setLowPower(false);
+    mConnectionsClient
+        .startDiscovery(
+            getServiceId(),
+            new EndpointDiscoveryCallback() {
+              @Override
+              public void onEndpointFound(String endpointId, DiscoveredEndpointInfo info) {
+                EndpointInfo endpointInfo =
+                    EndpointInfo.parse(info.getEndpointInfo(), info.getEndpointName());
+                logD(
+                    String.format(
+                        "onEndpointFound(endpointId=%s, serviceId=%s, endpointInfo=%s)",
+                        endpointId, info.getServiceId(), endpointInfo));
+                mCallTrace.mark("onEndpointFound", endpointId);
+
+                if (getServiceId().equals(info.getServiceId())) {
+                  Endpoint endpoint = new Endpoint(endpointId, endpointInfo);
+                  mDiscoveredEndpoints.put(endpointId, endpoint);
+                  onEndpointDiscovered(endpoint);
+                }
+              }
+
+              @Override
+              public void onEndpointLost(String endpointId) {
+                logD(String.format("onEndpointLost(endpointId=%s)", endpointId));
+                ConnectionsService.this.onEndpointLost(endpointId);
+              }
+            },
+            discoveryOptions.build())
+        .addOnSuccessListener(
+            new OnSuccessListener<Void>() {
+              @Override
+              public void onSuccess(Void unusedResult) {
+                mCallTrace.mark("discoveryStarted");
+                onDiscoveryStarted();
+              }
+            })
+        .addOnFailureListener(
+            new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                mIsDiscovering = false;
+                logW("startDiscovering() failed.", e);
+                onDiscoveryFailed();
+              }
+            });
+  }
+
+  /** Stops discovery. */
+  protected void stopDiscovering() {
+    mIsDiscovering = false;
+    mConnectionsClient.stopDiscovery();
+  }
+
+  /** Returns {@code true} if currently discovering. */
+  protected boolean isDiscovering() {
+    return mIsDiscovering;
+  }
+
+  /** Called when discovery successfully starts. Override this method to act on the event. */
+  protected void onDiscoveryStarted() {}
+
+  /** Called when discovery fails to start. Override this method to act on the event. */
+  protected void onDiscoveryFailed() {}
+
+  /**
+   * Called when a remote endpoint is discovered. To connect to the device, call {@link
+   * #connectToEndpoint(Endpoint)}.
+   */
+  protected void onEndpointDiscovered(Endpoint endpoint) {}
+
+    /**
+     * Called when a remote endpoint is lost (no longer discovered).
+     */
+    protected void onEndpointLost(String endpointId) {}
+
+  /** Disconnects from the given endpoint. */
+  protected void disconnect(Endpoint endpoint) {
+    mConnectionsClient.disconnectFromEndpoint(endpoint.getId());
+    mEstablishedConnections.remove(endpoint.getId());
+  }
+
+  /** Disconnects from all currently connected endpoints. */
+  protected void disconnectFromAllEndpoints() {
+    for (Endpoint endpoint : mEstablishedConnections.values()) {
+      mConnectionsClient.disconnectFromEndpoint(endpoint.getId());
+    }
+    mEstablishedConnections.clear();
+  }
+
+  /** Resets and clears all state in Nearby Connections. */
+  protected void stopAllEndpoints() {
+    mConnectionsClient.stopAllEndpoints();
+    mIsAdvertising = false;
+    mIsDiscovering = false;
+    mIsConnecting = false;
+    mDiscoveredEndpoints.clear();
+    mPendingConnections.clear();
+    mEstablishedConnections.clear();
+  }
+
+  /**
+   * Sends a connection request to the endpoint. Either {@link #onConnectionInitiated(Endpoint,
+   * ConnectionInfo)} or {@link #onConnectionFailed(Endpoint)} will be called once we've found out
+   * if we successfully reached the device.
+   */
+  protected void connectToEndpoint(final Endpoint endpoint) {
+    logV("Sending a connection request to endpoint " + endpoint);
+    // Mark ourselves as connecting so we don't connect multiple times
+    mIsConnecting = true;
+    mCallTrace.mark("requestConnection", endpoint.getId());
+    mCallTrace.begin("requestConnection");
+
+    // Ask to connect
+    mConnectionsClient
+        .requestConnection(
+            getLocalEndpointInfo(EndpointInfo.ROLE_SPOKE).toBytes(),
+            endpoint.getId(),
+            mConnectionLifecycleCallback)
+        .addOnFailureListener(
+            new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                logW("requestConnection() failed.", e);
+                mCallTrace.end("requestConnection", "failed");
+                mIsConnecting = false;
+                onConnectionFailed(endpoint);
+              }
+            });
+  }
+
+  /** Returns {@code true} if we're currently attempting to connect to another device. */
+  protected final boolean isConnecting() {
+    return mIsConnecting;
+  }
+
+  private void connectedToEndpoint(Endpoint endpoint) {
+    logD(String.format("connectedToEndpoint(endpoint=%s)", endpoint));
+    mEstablishedConnections.put(endpoint.getId(), endpoint);
+    onEndpointConnected(endpoint);
+  }
+
+  private void disconnectedFromEndpoint(Endpoint endpoint) {
+    logD(String.format("disconnectedFromEndpoint(endpoint=%s)", endpoint));
+    mEstablishedConnections.remove(endpoint.getId());
+    onEndpointDisconnected(endpoint);
+  }
+
+  /**
+   * Called when a connection with this endpoint has failed. Override this method to act on the
+   * event.
+   */
+  protected void onConnectionFailed(Endpoint endpoint) {}
+
+  /**
+   * Called when the other device turned our connection down, rather than it failing. Calls {@link
+   * #onConnectionFailed(Endpoint)} unless overridden.
+   */
+  protected void onConnectionRejected(Endpoint endpoint) {
+    onConnectionFailed(endpoint);
+  }
+
+  /** Called when someone has connected to us. Override this method to act on the event. */
+  protected void onEndpointConnected(Endpoint endpoint) {}
+
+  /** Called when someone has disconnected. Override this method to act on the event. */
+  protected void onEndpointDisconnected(Endpoint endpoint) {}
+
+  /**
+   * Called when Nearby has moved a connection onto another medium, e.g. from Bluetooth to Wi-Fi.
+   * Override this method to act on the event.
+   *
+   * @param quality One of {@link BandwidthInfo.Quality}.
+   */
+  protected void onBandwidthChanged(Endpoint endpoint, int quality) {}
+
+  /**
+   * Called as a payload to or from a connected endpoint makes progress, and when it's done. Called
+   * for the payloads we send too, so it tells us when they've gone out. Override this method to act
+   * on the event.
+   */
+  protected void onPayloadTransferUpdate(Endpoint endpoint, PayloadTransferUpdate update) {}
+
+  /** Returns the recorder that timestamps each phase of setting up a call. */
+  protected CallTraceRecorder getCallTrace() {
+    return mCallTrace;
+  }
+
+  /** Returns a list of currently connected endpoints. */
+  protected Set<Endpoint> getDiscoveredEndpoints() {
+    return new HashSet<>(mDiscoveredEndpoints.values());
+  }
+
+  /** Returns a list of currently connected endpoints. */
+  protected Set<Endpoint> getConnectedEndpoints() {
+    return new HashSet<>(mEstablishedConnections.values());
+  }
+
+  /**
+   * Sends a {@link Payload} to all currently connected endpoints.
+   *
+   * @param payload The data you want to send.
+   */
+  protected void send(Payload payload) {
+    send(payload, mEstablishedConnections.keySet());
+  }
+
+  /**
+   * Sends a {@link Payload} to some of the connected endpoints.
+   *
+   * @param payload The data you want to send.
+   * @param endpoints The ids of the endpoints to send it to. Does nothing if there are none. A
+   *     {@link List} is passed on as it is, so it mustn't change afterwards.
+   */
+  protected void send(Payload payload, Collection<String> endpoints) {
+    if (endpoints.isEmpty()) {
+      return;
+    }
+    mCallTrace.markOnce("firstSendPayload");
+    List<String> endpointIds =
+        endpoints instanceof List ? (List<String>) endpoints : new ArrayList<>(endpoints);
+    mConnectionsClient
+        .sendPayload(endpointIds, payload)
+        .addOnFailureListener(
+            new OnFailureListener() {
+              @Override
+              public void onFailure(@NonNull Exception e) {
+                logW("sendPayload() failed.", e);
+              }
+            });
+  }
+
+  /**
+   * Someone connected to us has sent us data. Override this method to act on the event.
+   *
+   * @param endpoint The sender.
+   * @param payload The data.
+   */
+  protected void onReceive(Endpoint endpoint, Payload payload) {}
+
+  /** Returns the client's name. Visible to others when connecting. */
+  protected abstract String getName();
+
+  /**
+   * Returns what we tell other devices about ourselves, both when advertising and when asking to
+   * connect. By default this only carries {@link #getName()}; override it to advertise audio
+   * capabilities.
+   *
+   * @param role {@link EndpointInfo#ROLE_HUB} when advertising, {@link EndpointInfo#ROLE_SPOKE}
+   *     when requesting a connection.
+   */
+  protected EndpointInfo getLocalEndpointInfo(int role) {
+    return EndpointInfo.local(getName(), null, role, EndpointInfo.CODEC_PCM_16BIT, 0, 0);
+  }
+
+  /**
+   * Returns the service id. This represents the action this connection is for. When discovering,
+   * we'll verify that the advertiser has the same service id before we consider connecting to them.
+   */
+  protected abstract String getServiceId();
+
+  /**
+   * Returns the strategy we use to connect to other devices. Only devices using the same strategy
+   * and service id will appear when discovering. Stragies determine how many incoming and outgoing
+   * connections are possible at the same time, as well as how much bandwidth is available for use.
+   */
+  protected abstract Strategy getStrategy();
+
+  /**
+   * Transforms a {@link Status} into a English-readable message for logging.
+   *
+   * @param status The current status
+   * @return A readable String. eg. [404]File not found.
+   */
+  private static String toString(Status status) {
+    return String.format(
+        Locale.US,
+        "[%d]%s",
+        status.getStatusCode(),
+        status.getStatusMessage() != null
+            ? status.getStatusMessage()
+            : ConnectionsStatusCodes.getStatusCodeString(status.getStatusCode()));
+  }
+
+  @CallSuper
+  protected void logV(String msg) {
+    Log.v(TAG, msg);
+  }
+
+  @CallSuper
+  protected void logD(String msg) {
+    Log.d(TAG, msg);
+  }
+
+  @CallSuper
+  protected void logW(String msg) {
+    Log.w(TAG, msg);
+  }
+
+  @CallSuper
+  protected void logW(String msg, Throwable e) {
+    Log.w(TAG, msg, e);
+  }
+
+  @CallSuper
+  protected void logE(String msg, Throwable e) {
+    Log.e(TAG, msg, e);
+  }
+
+  /** Represents a device we can talk to. */
+  protected static class Endpoint {
+    @NonNull private final String id;
+    @NonNull private final String name;
+    @NonNull private final EndpointInfo info;
+
+    private Endpoint(@NonNull String id, @NonNull EndpointInfo info) {
+      this.id = id;
+      this.name = info.getName();
+      this.info = info;
+    }
+
+    @NonNull
+    public String getId() {
+      return id;
+    }
+
+    @NonNull
+    public String getName() {
+      return name;
+    }
+
+    /** Returns what the endpoint told us about itself when advertising or connecting. */
+    @NonNull
+    public EndpointInfo getInfo() {
+      return info;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj instanceof Endpoint) {
+        Endpoint other = (Endpoint) obj;
+        return id.equals(other.id);
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return id.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Endpoint{id=%s, name=%s}", id, name);
+    }
+  }
+}
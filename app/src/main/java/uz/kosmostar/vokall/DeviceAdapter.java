@@ -1,49 +1,210 @@
 package uz.kosmostar.vokall;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.card.MaterialCardView;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import uz.kosmostar.vokall.ConnectionsActivity.Endpoint;
+import java.util.Map;
+import java.util.UUID;
+import uz.kosmostar.vokall.ConnectionsService.Endpoint;
 
-public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.ViewHolder> {
+/**
+ * The devices we can call, in the order we found them.
+ *
+ * <p>Discovery can report hundreds of endpoints in a busy place, so {@link #addDevice(Endpoint)}
+ * and {@link #removeDevice(String)} don't touch the list straight away. They can be called from any
+ * thread; their events are collected for {@link #BATCH_MS} and then applied together. The model is
+ * keyed by endpoint id, so each event is a hash lookup, and each batch is handed to {@link
+ * ListAdapter}, which works out what changed on a background thread. The UI thread only sees the
+ * resulting inserts, moves and removes.
+ *
+ * <p>Nearby doesn't tell us signal strength, so each entry instead keeps when we first and last saw
+ * it and how often it's turned up. A device seen again under a new endpoint id (it restarted
+ * advertising) replaces its old entry, going by its {@link EndpointInfo#getDeviceId() device id}.
+ */
+public class DeviceAdapter extends ListAdapter<DeviceAdapter.Device, DeviceAdapter.ViewHolder> {
+    /** How long discovery events are collected before the list is updated. */
+    static final long BATCH_MS = 250;
 
-    private final List<Endpoint> devices = new ArrayList<>();
-    private final OnDeviceClickListener listener;
+    /** A device in the list. Immutable, so the differ can compare old and new lists safely. */
+    public static final class Device {
+        @NonNull private final Endpoint endpoint;
+        private final long firstSeenMs;
+        private final long lastSeenMs;
+        private final int sightings;
+
+        Device(@NonNull Endpoint endpoint, long firstSeenMs, long lastSeenMs, int sightings) {
+            this.endpoint = endpoint;
+            this.firstSeenMs = firstSeenMs;
+            this.lastSeenMs = lastSeenMs;
+            this.sightings = sightings;
+        }
+
+        @NonNull
+        public Endpoint getEndpoint() {
+            return endpoint;
+        }
+
+        /** @return When we first saw it, on the {@link SystemClock#elapsedRealtime()} clock. */
+        public long getFirstSeenMs() {
+            return firstSeenMs;
+        }
+
+        /** @return When we last saw it, on the {@link SystemClock#elapsedRealtime()} clock. */
+        public long getLastSeenMs() {
+            return lastSeenMs;
+        }
+
+        /** @return How many times discovery has reported this device. */
+        public int getSightings() {
+            return sightings;
+        }
+
+        Device seenAgain(@NonNull Endpoint endpoint, long nowMs) {
+            return new Device(endpoint, firstSeenMs, nowMs, sightings + 1);
+        }
+    }
+
+    private static final DiffUtil.ItemCallback<Device> DIFF =
+            new DiffUtil.ItemCallback<Device>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull Device a, @NonNull Device b) {
+                    return a.endpoint.getId().equals(b.endpoint.getId());
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull Device a, @NonNull Device b) {
+                    // Only what's on screen; lastSeenMs alone changing needn't rebind.
+                    return a.endpoint.getName().equals(b.endpoint.getName())
+                            && a.sightings == b.sightings;
+                }
+            };
 
     public interface OnDeviceClickListener {
         void onDeviceClick(Endpoint endpoint);
     }
 
-    public DeviceAdapter(OnDeviceClickListener listener) {
+    public interface OnDeviceLongClickListener {
+        /** @return True if the long click was handled. */
+        boolean onDeviceLongClick(Endpoint endpoint);
+    }
+
+    private final OnDeviceClickListener listener;
+    private final OnDeviceLongClickListener longClickListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlush = this::flush;
+
+    /** Events since the last batch: the endpoint found, or null if lost. Guarded by itself. */
+    private final Map<String, Endpoint> mPending = new LinkedHashMap<>();
+    private boolean mFlushScheduled;
+
+    /** The list as of the last batch, by endpoint id. UI thread only. */
+    private final LinkedHashMap<String, Device> mDevices = new LinkedHashMap<>();
+
+    /** Endpoint ids by device id, for devices that send one. UI thread only. */
+    private final Map<UUID, String> mByDeviceId = new HashMap<>();
+
+    public DeviceAdapter(
+            OnDeviceClickListener listener, OnDeviceLongClickListener longClickListener) {
+        super(DIFF);
         this.listener = listener;
+        this.longClickListener = longClickListener;
     }
 
+    /** Adds the endpoint to the list, or notes that we saw it again. Safe from any thread. */
     public void addDevice(Endpoint endpoint) {
-        if (!devices.contains(endpoint)) {
-            devices.add(endpoint);
-            notifyItemInserted(devices.size() - 1);
-        }
+        post(endpoint.getId(), endpoint);
     }
 
+    /** Takes the endpoint off the list. Safe from any thread. */
     public void removeDevice(String endpointId) {
-        for (int i = 0; i < devices.size(); i++) {
-            if (devices.get(i).getId().equals(endpointId)) {
-                devices.remove(i);
-                notifyItemRemoved(i);
+        post(endpointId, null);
+    }
+
+    /** Empties the list now, dropping any events not yet applied. Call on the UI thread. */
+    public void clear() {
+        synchronized (mPending) {
+            mPending.clear();
+        }
+        mDevices.clear();
+        mByDeviceId.clear();
+        submitList(null);
+    }
+
+    private void post(String endpointId, @Nullable Endpoint endpoint) {
+        synchronized (mPending) {
+            // Only the last event for each endpoint matters, e.g. found then lost is just lost.
+            mPending.put(endpointId, endpoint);
+            if (mFlushScheduled) {
                 return;
             }
+            mFlushScheduled = true;
         }
+        mHandler.postDelayed(mFlush, BATCH_MS);
     }
 
-    public void clear() {
-        devices.clear();
-        notifyDataSetChanged();
+    /** Applies the collected events and hands the new list to the differ. */
+    private void flush() {
+        List<Map.Entry<String, Endpoint>> events;
+        synchronized (mPending) {
+            mFlushScheduled = false;
+            events = new ArrayList<>(mPending.entrySet());
+            mPending.clear();
+        }
+        long now = SystemClock.elapsedRealtime();
+        boolean changed = false;
+        for (Map.Entry<String, Endpoint> event : events) {
+            Endpoint endpoint = event.getValue();
+            changed |= endpoint == null ? lost(event.getKey()) : found(endpoint, now);
+        }
+        if (changed) {
+            submitList(new ArrayList<>(mDevices.values()));
+        }
+    }
+
+    private boolean found(Endpoint endpoint, long now) {
+        Device device = mDevices.get(endpoint.getId());
+        UUID deviceId = endpoint.getInfo().getDeviceId();
+        if (device == null && deviceId != null) {
+            String previousId = mByDeviceId.get(deviceId);
+            if (previousId != null) {
+                device = mDevices.remove(previousId);
+            }
+        }
+        mDevices.put(
+                endpoint.getId(),
+                device == null
+                        ? new Device(endpoint, now, now, 1)
+                        : device.seenAgain(endpoint, now));
+        if (deviceId != null) {
+            mByDeviceId.put(deviceId, endpoint.getId());
+        }
+        return true;
+    }
+
+    private boolean lost(String endpointId) {
+        Device device = mDevices.remove(endpointId);
+        if (device == null) {
+            return false;
+        }
+        UUID deviceId = device.endpoint.getInfo().getDeviceId();
+        if (deviceId != null && endpointId.equals(mByDeviceId.get(deviceId))) {
+            mByDeviceId.remove(deviceId);
+        }
+        return true;
     }
 
     @NonNull
@@ -56,24 +217,28 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.ViewHolder
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        Endpoint device = devices.get(position);
-        holder.name.setText(device.getName());
-        holder.card.setOnClickListener(v -> listener.onDeviceClick(device));
-    }
-
-    @Override
-    public int getItemCount() {
-        return devices.size();
+        Device device = getItem(position);
+        Endpoint endpoint = device.getEndpoint();
+        holder.name.setText(endpoint.getName());
+        holder.detail.setText(
+                device.getSightings() > 1
+                        ? holder.detail.getContext().getString(
+                                R.string.device_seen_again, device.getSightings())
+                        : holder.detail.getContext().getString(R.string.device_tap_to_call));
+        holder.card.setOnClickListener(v -> listener.onDeviceClick(endpoint));
+        holder.card.setOnLongClickListener(v -> longClickListener.onDeviceLongClick(endpoint));
     }
 
     static class ViewHolder extends RecyclerView.ViewHolder {
         final TextView name;
+        final TextView detail;
         final MaterialCardView card;
 
         ViewHolder(View view) {
             super(view);
             name = view.findViewById(R.id.device_name);
+            detail = view.findViewById(R.id.device_detail);
             card = (MaterialCardView) view;
         }
     }
-}
\ No newline at end of file
+}
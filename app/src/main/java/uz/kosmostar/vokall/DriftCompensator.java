@@ -0,0 +1,96 @@
+package uz.kosmostar.vokall;
+
+/**
+ * Estimates how far apart the sender's capture clock and our playback clock are running, from the
+ * trend in how much audio sits in the playout queue, and turns it into a playback rate for {@link
+ * PlayoutResampler}.
+ *
+ * <p>It's a small PI controller. The queue level is smoothed over a couple of seconds so network
+ * jitter doesn't register as drift. Once the call has settled, the smoothed level becomes the
+ * target. The integral term converges on the actual clock drift, while the proportional term pulls
+ * the level back to the target. Corrections are capped well below what anyone can hear as a pitch
+ * change.
+ */
+public class DriftCompensator {
+    /** The largest rate change we'll ever apply, as a fraction (0.2%, or about 3.5 cents). */
+    static final double MAX_CORRECTION = 0.002;
+
+    /** How long the queue level is averaged over, in seconds. */
+    private static final double SMOOTHING_SECONDS = 2.0;
+
+    /** How long we watch the queue before we decide what level to hold it at, in seconds. */
+    private static final double SETTLE_SECONDS = 3.0;
+
+    /** Rate change per second of excess delay. 20ms too much delay speeds us up by 0.1%. */
+    private static final double PROPORTIONAL_GAIN = 0.05;
+
+    /** How quickly the drift estimate follows the error. About 30 seconds to settle. */
+    private static final double INTEGRAL_GAIN = PROPORTIONAL_GAIN / 30;
+
+    private final int mSampleRate;
+
+    private double mElapsedSeconds;
+    private double mSmoothedLevel = -1;
+    private double mTargetLevel = -1;
+    private double mDrift;
+    private double mRatio = 1;
+
+    public DriftCompensator(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Feeds in the current queue level. Call once per played frame.
+     *
+     * @param queuedSamples How many samples are waiting to be played.
+     * @param frameSamples How many samples the frame about to be played holds.
+     */
+    public void update(int queuedSamples, int frameSamples) {
+        double dt = (double) frameSamples / mSampleRate;
+        mElapsedSeconds += dt;
+
+        if (mSmoothedLevel < 0) {
+            mSmoothedLevel = queuedSamples;
+        } else {
+            double alpha = Math.min(1, dt / SMOOTHING_SECONDS);
+            mSmoothedLevel += alpha * (queuedSamples - mSmoothedLevel);
+        }
+
+        if (mTargetLevel < 0) {
+            if (mElapsedSeconds >= SETTLE_SECONDS) {
+                mTargetLevel = mSmoothedLevel;
+            }
+            return;
+        }
+
+        double error = (mSmoothedLevel - mTargetLevel) / mSampleRate;
+        mDrift = clamp(mDrift + INTEGRAL_GAIN * error * dt);
+        mRatio = 1 + clamp(mDrift + PROPORTIONAL_GAIN * error);
+    }
+
+    /**
+     * Moves the level we try to hold the queue at, e.g. after something else has deliberately
+     * shrunk or grown the queue. The drift estimate is kept.
+     */
+    public void setTargetLevel(int queuedSamples) {
+        mTargetLevel = queuedSamples;
+        mSmoothedLevel = queuedSamples;
+    }
+
+    /**
+     * @return How many input samples to consume per output sample. Above 1 means we're behind the
+     *     sender and play slightly faster.
+     */
+    public double getRatio() {
+        return mRatio;
+    }
+
+    /** @return The estimated clock drift, in parts per million. Positive if the sender is fast. */
+    public double getDriftPpm() {
+        return mDrift * 1e6;
+    }
+
+    private static double clamp(double correction) {
+        return Math.max(-MAX_CORRECTION, Math.min(MAX_CORRECTION, correction));
+    }
+}
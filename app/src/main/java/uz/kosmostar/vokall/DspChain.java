@@ -0,0 +1,106 @@
+package uz.kosmostar.vokall;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import java.util.Locale;
+
+/**
+ * Runs a fixed list of {@link DspStage}s over each frame, in order, and keeps track of how much
+ * CPU time each one takes. Stages can be switched on and off without rebuilding the chain.
+ *
+ * <p>The chain itself never allocates after construction, so it's safe to use from {@link
+ * AudioRecorder} (before frames are sent) and {@link AudioPlayer} (after they're received).
+ *
+ * <p>Not thread-safe: everything but the getters and {@link #toString()}, which are only for
+ * logging, must be called on the audio thread that runs the chain. That includes switching stages
+ * on and off, which resets them in place; to change a stage from another thread, hand the change
+ * to the audio thread, the way {@link AudioRecorder} picks up a new noise suppression mode.
+ */
+public class DspChain {
+    private final DspStage[] mStages;
+    private final String[] mNames;
+    private final boolean[] mEnabled;
+    private final long[] mNanos;
+    private long mFrames;
+
+    public DspChain(DspStage... stages) {
+        mStages = stages.clone();
+        mNames = new String[stages.length];
+        mEnabled = new boolean[stages.length];
+        mNanos = new long[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            mNames[i] = stages[i].getClass().getSimpleName();
+            mEnabled[i] = true;
+        }
+    }
+
+    /** Runs every enabled stage over the first {@code length} samples, in place. */
+    @WorkerThread
+    public void process(short[] samples, int length) {
+        for (int i = 0; i < mStages.length; i++) {
+            if (!mEnabled[i]) {
+                continue;
+            }
+            long start = System.nanoTime();
+            mStages[i].process(samples, length);
+            mNanos[i] += System.nanoTime() - start;
+        }
+        mFrames++;
+    }
+
+    /**
+     * Switches a stage on or off. Disabled stages keep their place in the chain. Only on the audio
+     * thread, between frames.
+     */
+    @WorkerThread
+    public void setEnabled(DspStage stage, boolean enabled) {
+        for (int i = 0; i < mStages.length; i++) {
+            if (mStages[i] == stage) {
+                if (enabled && !mEnabled[i]) {
+                    stage.reset();
+                }
+                mEnabled[i] = enabled;
+            }
+        }
+    }
+
+    /** Resets every stage and the timing counters. Only on the audio thread, between frames. */
+    @WorkerThread
+    public void reset() {
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i].reset();
+            mNanos[i] = 0;
+        }
+        mFrames = 0;
+    }
+
+    /** @return How many stages the chain holds. */
+    public int getStageCount() {
+        return mStages.length;
+    }
+
+    /** @return The average time the given stage has spent per frame, in microseconds. */
+    public double getAverageMicros(int stage) {
+        return mFrames == 0 ? 0 : mNanos[stage] / 1000.0 / mFrames;
+    }
+
+    /** @return How many frames have gone through the chain. */
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /** Lists each stage with its average cost per frame. */
+    @NonNull
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("DspChain{frames=").append(mFrames);
+        for (int i = 0; i < mStages.length; i++) {
+            builder.append(", ")
+                    .append(mNames[i])
+                    .append(mEnabled[i] ? "=" : "(off)=")
+                    .append(String.format(Locale.US, "%.1fus", getAverageMicros(i)));
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,13 @@
+package uz.kosmostar.vokall;
+
+/**
+ * One step of a {@link DspChain}. Stages work on 16-bit mono samples in place and are called once
+ * per frame from an audio thread, so they must not allocate or block.
+ */
+public interface DspStage {
+    /** Processes the first {@code length} samples of {@code samples}, in place. */
+    void process(short[] samples, int length);
+
+    /** Forgets anything carried over from earlier frames, e.g. when a new call starts. */
+    void reset();
+}
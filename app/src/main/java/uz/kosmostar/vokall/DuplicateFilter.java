@@ -0,0 +1,150 @@
+package uz.kosmostar.vokall;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Remembers which sequence numbers we've already seen from each origin, so a packet that reaches
+ * us over two paths through a mesh is only played and passed on once.
+ *
+ * <p>Per origin, we keep the highest sequence number seen and a bitmask of the {@link #WINDOW}
+ * before it, as IPsec does against replays. That's 16 bytes an origin however long the call, and
+ * at most {@link #MAX_ORIGINS} origins are kept; the one heard from longest ago is forgotten
+ * first. A packet older than the window is dropped, since by the time it'd be played it's too
+ * late anyway. A packet far older than that means the origin started counting again, and starts
+ * its window over.
+ *
+ * <p>Sequence numbers wrap, and are compared as in RFC 1982. Not thread-safe.
+ */
+public class DuplicateFilter {
+    /** How many sequence numbers behind the highest we can still tell apart. */
+    static final int WINDOW = 64;
+
+    /** How many origins we keep track of at most. */
+    static final int MAX_ORIGINS = 64;
+
+    /**
+     * How far behind the highest a sequence number has to be before we take it as the origin
+     * having started again. A minute of 20ms frames.
+     */
+    private static final int RESTART_GAP = 3_000;
+
+    /** What {@link #accept(int, int)} decided. */
+    public enum Result {
+        /** Not seen before. */
+        NEW,
+        /** Seen before. */
+        DUPLICATE,
+        /** Too far behind to tell, and so too late to be worth playing. */
+        STALE
+    }
+
+    private static class Window {
+        int highest;
+        /** Bit i is set if we've seen {@code highest - 1 - i}. */
+        long seen;
+
+        Window(int seq) {
+            highest = seq;
+        }
+    }
+
+    private final Map<Integer, Window> mWindows =
+            new LinkedHashMap<Integer, Window>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Window> eldest) {
+                    return size() > MAX_ORIGINS;
+                }
+            };
+
+    private long mNew;
+    private long mDuplicates;
+    private long mStale;
+    private long mRestarts;
+
+    /**
+     * Notes a packet and says whether we've seen it before.
+     *
+     * @param origin Who first sent it.
+     * @param seq The origin's sequence number for it.
+     */
+    public Result accept(int origin, int seq) {
+        Window window = mWindows.get(origin);
+        if (window == null) {
+            mWindows.put(origin, new Window(seq));
+            mNew++;
+            return Result.NEW;
+        }
+        int ahead = seq - window.highest;
+        if (ahead > 0) {
+            if (ahead < WINDOW) {
+                window.seen = (window.seen << ahead) | (1L << (ahead - 1));
+            } else {
+                // Shifting a long by 64 or more doesn't clear it in Java.
+                window.seen = ahead == WINDOW ? 1L << (WINDOW - 1) : 0;
+            }
+            window.highest = seq;
+            mNew++;
+            return Result.NEW;
+        }
+        if (ahead == 0) {
+            mDuplicates++;
+            return Result.DUPLICATE;
+        }
+        int behind = -ahead;
+        if (behind > RESTART_GAP) {
+            window.highest = seq;
+            window.seen = 0;
+            mRestarts++;
+            mNew++;
+            return Result.NEW;
+        }
+        if (behind > WINDOW) {
+            mStale++;
+            return Result.STALE;
+        }
+        long bit = 1L << (behind - 1);
+        if ((window.seen & bit) != 0) {
+            mDuplicates++;
+            return Result.DUPLICATE;
+        }
+        window.seen |= bit;
+        mNew++;
+        return Result.NEW;
+    }
+
+    /** Forgets every origin. */
+    public void clear() {
+        mWindows.clear();
+    }
+
+    /** @return How many origins we're keeping track of. */
+    public int getOriginCount() {
+        return mWindows.size();
+    }
+
+    public long getNewCount() {
+        return mNew;
+    }
+
+    public long getDuplicateCount() {
+        return mDuplicates;
+    }
+
+    public long getStaleCount() {
+        return mStale;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.US,
+                "DuplicateFilter{origins=%d, new=%d, duplicates=%d, stale=%d, restarts=%d}",
+                mWindows.size(),
+                mNew,
+                mDuplicates,
+                mStale,
+                mRestarts);
+    }
+}
@@ -0,0 +1,344 @@
+package uz.kosmostar.vokall;
+
+import java.util.Arrays;
+
+/**
+ * A software acoustic echo canceller, for devices where the platform {@link
+ * android.media.audiofx.AcousticEchoCanceler} is missing. It learns how the speaker's output shows
+ * up in the microphone and subtracts it, so the remote side doesn't hear themselves.
+ *
+ * <p>Three parts:
+ *
+ * <ul>
+ *   <li><b>Delay estimation.</b> The bulk delay between playing a sample and hearing it again
+ *       (buffering on both sides plus the air) can be a few hundred milliseconds, far more than
+ *       we can afford to model with filter taps. We find it by cross-correlating decimated
+ *       envelopes of the far-end and microphone signals. The search is spread over many frames
+ *       so no single frame pays for it.
+ *   <li><b>NLMS filter.</b> A normalized least-mean-squares adaptive filter models the short
+ *       tail after the bulk delay (room reflections) and subtracts its echo estimate.
+ *   <li><b>Double-talk detection.</b> A Geigel detector, scaled by a running estimate of the echo
+ *       path's gain, freezes adaptation while the near end is speaking, so the filter doesn't
+ *       learn to cancel the local talker.
+ * </ul>
+ *
+ * When nothing has been played recently there is no echo to cancel, and frames pass through
+ * untouched. Everything is allocated up front.
+ */
+public class EchoCanceller implements DspStage {
+    /** How much echo tail, after the bulk delay, the adaptive filter models. */
+    private static final int TAIL_MS = 16;
+    /** The longest bulk delay we look for. */
+    private static final int MAX_DELAY_MS = 300;
+    /** How much audio each delay estimate looks at. */
+    private static final int ESTIMATE_WINDOW_MS = 500;
+    /** How often we re-estimate the delay. The search is spread across this interval. */
+    private static final int ESTIMATE_INTERVAL_MS = 1000;
+    /** Envelopes for delay estimation are averaged over this many samples. */
+    private static final int DECIMATION = 4;
+    /** The estimate is aimed this far short of the peak, so the filter also sees the onset. */
+    private static final int DELAY_MARGIN_MS = 2;
+    /** Correlation below this doesn't count as having found the echo. */
+    private static final float MIN_CORRELATION = 0.3f;
+
+    /** NLMS step size. */
+    private static final float STEP_SIZE = 0.3f;
+    /** Keeps the NLMS update sane when the far end is very quiet. */
+    private static final float REGULARIZATION = 1e4f;
+    /** Below this mean square, the far end is silent and there's nothing to adapt to. */
+    private static final float FAR_END_SILENCE = 100f;
+    /** Near end louder than this multiple of the expected echo counts as double talk. */
+    private static final float GEIGEL_MARGIN = 2f;
+    /** How long adaptation stays frozen after double talk is detected. */
+    private static final int DOUBLE_TALK_HANGOVER_MS = 60;
+
+    private final EchoReference mReference;
+    private final int mSampleRate;
+    private final int mTaps;
+    private final int mMaxDelay;
+    private final int mHangover;
+
+    /** Far-end history, oldest first. The last frame-length samples line up with the mic frame. */
+    private float[] mFar;
+    private short[] mFarFrame;
+    private final float[] mWeights;
+
+    private int mDelay;
+    private int mDoubleTalkSamples;
+    /** Rough gain from far-end level to echo level, learned while only the far end talks. */
+    private float mEchoGain = 1f;
+    private float mErle;
+
+    // Delay estimation: live envelope histories, snapshots being searched, and search progress.
+    // The histories are rings, both written at mEnvelopes % length, so nothing moves as they fill.
+    private final float[] mFarEnvelope;
+    private final float[] mMicEnvelope;
+    private long mEnvelopes;
+    private final float[] mFarSnapshot;
+    private final float[] mMicSnapshot;
+    private final int mMaxLag;
+    private float mFarAccumulator;
+    private float mMicAccumulator;
+    private int mAccumulated;
+    private int mSamplesUntilEstimate;
+    private int mNextLag = -1;
+    private int mLagsPerFrame;
+    private int mBestLag;
+    private float mBestCorrelation;
+    private float mMicNorm;
+
+    /**
+     * @param reference Where the player leaves what it played.
+     * @param maxFrameSamples The largest frame we expect. Bigger frames still work, but allocate.
+     */
+    public EchoCanceller(int sampleRate, EchoReference reference, int maxFrameSamples) {
+        mReference = reference;
+        mSampleRate = sampleRate;
+        mTaps = sampleRate * TAIL_MS / 1000;
+        mMaxDelay = sampleRate * MAX_DELAY_MS / 1000;
+        mHangover = sampleRate * DOUBLE_TALK_HANGOVER_MS / 1000;
+        mWeights = new float[mTaps];
+        allocate(maxFrameSamples);
+
+        int window = sampleRate * ESTIMATE_WINDOW_MS / 1000 / DECIMATION;
+        mMaxLag = mMaxDelay / DECIMATION;
+        mFarEnvelope = new float[window + mMaxLag];
+        mMicEnvelope = new float[window];
+        mFarSnapshot = new float[mFarEnvelope.length];
+        mMicSnapshot = new float[window];
+        reset();
+    }
+
+    @Override
+    public void process(short[] samples, int length) {
+        if (mFarFrame.length < length) {
+            allocate(length);
+        }
+
+        // Slide the far-end history along and append what was played during this frame.
+        System.arraycopy(mFar, length, mFar, 0, mFar.length - length);
+        mReference.read(mFarFrame, length);
+        int now = mFar.length - length;
+        for (int i = 0; i < length; i++) {
+            mFar[now + i] = mFarFrame[i];
+        }
+        trackEnvelopes(samples, length, now);
+
+        // Everything the filter can see for this frame.
+        int first = now - mDelay - mTaps + 1;
+        int last = now + length - 1 - mDelay;
+        float farMax = 0;
+        float farEnergy = 0;
+        for (int j = first; j <= last; j++) {
+            float x = mFar[j];
+            farMax = Math.max(farMax, Math.abs(x));
+            farEnergy += x * x;
+        }
+        if (farEnergy / (last - first + 1) < FAR_END_SILENCE) {
+            // Nothing played recently, so there's no echo to take out.
+            return;
+        }
+
+        float nearMax = 0;
+        for (int i = 0; i < length; i++) {
+            nearMax = Math.max(nearMax, Math.abs(samples[i]));
+        }
+        if (nearMax > GEIGEL_MARGIN * mEchoGain * farMax) {
+            mDoubleTalkSamples = mHangover;
+        }
+        boolean adapt = mDoubleTalkSamples <= 0;
+        mDoubleTalkSamples -= length;
+
+        // Energy of the filter's input window, slid along one sample at a time.
+        float energy = 0;
+        int p = now - mDelay;
+        for (int k = 0; k < mTaps; k++) {
+            float x = mFar[p - k];
+            energy += x * x;
+        }
+
+        float nearEnergy = 0;
+        float errorEnergy = 0;
+        float[] w = mWeights;
+        float[] far = mFar;
+        for (int i = 0; i < length; i++, p++) {
+            if (i > 0) {
+                float entering = far[p];
+                float leaving = far[p - mTaps];
+                energy += entering * entering - leaving * leaving;
+            }
+
+            float echo = 0;
+            for (int k = 0; k < mTaps; k++) {
+                echo += w[k] * far[p - k];
+            }
+            float near = samples[i];
+            float error = near - echo;
+
+            if (adapt) {
+                float gain = STEP_SIZE * error / (energy + REGULARIZATION);
+                for (int k = 0; k < mTaps; k++) {
+                    w[k] += gain * far[p - k];
+                }
+            }
+            nearEnergy += near * near;
+            errorEnergy += error * error;
+            samples[i] = Pcm16.clip(Math.round(error));
+        }
+
+        if (adapt) {
+            // Only the far end is talking, so what the mic hears is echo.
+            mEchoGain += 0.05f * (nearMax / Math.max(1, farMax) - mEchoGain);
+            float erle = (float) (10 * Math.log10((nearEnergy + 1) / (errorEnergy + 1)));
+            mErle += 0.05f * (erle - mErle);
+        }
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(mWeights, 0);
+        Arrays.fill(mFar, 0);
+        Arrays.fill(mFarEnvelope, 0);
+        Arrays.fill(mMicEnvelope, 0);
+        mEnvelopes = 0;
+        mDelay = 0;
+        mDoubleTalkSamples = 0;
+        mEchoGain = 1f;
+        mErle = 0;
+        mFarAccumulator = 0;
+        mMicAccumulator = 0;
+        mAccumulated = 0;
+        mSamplesUntilEstimate = mSampleRate * ESTIMATE_INTERVAL_MS / 1000;
+        mNextLag = -1;
+    }
+
+    /** @return The bulk delay currently assumed between the speaker and the microphone. */
+    public float getDelayMs() {
+        return mDelay * 1000f / mSampleRate;
+    }
+
+    /** @return How much quieter the echo is after cancellation, smoothed, in decibels. */
+    public float getErleDb() {
+        return mErle;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EchoCanceller{delay=%.0fms, erle=%.1fdB}", getDelayMs(), mErle);
+    }
+
+    /**
+     * Keeps decimated envelopes of both signals, and every so often runs a cross-correlation over
+     * them to find the bulk delay. The correlation is computed a slice of lags per frame.
+     */
+    private void trackEnvelopes(short[] mic, int length, int now) {
+        for (int i = 0; i < length; i++) {
+            mFarAccumulator += Math.abs(mFar[now + i]);
+            mMicAccumulator += Math.abs(mic[i]);
+            if (++mAccumulated == DECIMATION) {
+                mFarEnvelope[(int) (mEnvelopes % mFarEnvelope.length)] =
+                        mFarAccumulator / DECIMATION;
+                mMicEnvelope[(int) (mEnvelopes % mMicEnvelope.length)] =
+                        mMicAccumulator / DECIMATION;
+                mEnvelopes++;
+                mFarAccumulator = 0;
+                mMicAccumulator = 0;
+                mAccumulated = 0;
+            }
+        }
+
+        if (mNextLag >= 0) {
+            searchLags();
+            return;
+        }
+        mSamplesUntilEstimate -= length;
+        if (mSamplesUntilEstimate <= 0) {
+            mSamplesUntilEstimate = mSampleRate * ESTIMATE_INTERVAL_MS / 1000;
+            startSearch(length);
+        }
+    }
+
+    private void startSearch(int frameLength) {
+        // Search mean-removed copies, oldest first, so a loud room doesn't look like correlation.
+        removeMean(mFarEnvelope, mEnvelopes, mFarSnapshot);
+        removeMean(mMicEnvelope, mEnvelopes, mMicSnapshot);
+        float micNorm = 0;
+        for (float v : mMicSnapshot) {
+            micNorm += v * v;
+        }
+        if (micNorm <= 0) {
+            return;
+        }
+        mMicNorm = (float) Math.sqrt(micNorm);
+        int frames = Math.max(1, mSamplesUntilEstimate / Math.max(1, frameLength) / 2);
+        mLagsPerFrame = (mMaxLag + frames) / frames;
+        mNextLag = 0;
+        mBestLag = -1;
+        mBestCorrelation = MIN_CORRELATION;
+    }
+
+    private void searchLags() {
+        int window = mMicSnapshot.length;
+        int end = Math.min(mMaxLag, mNextLag + mLagsPerFrame);
+        for (int lag = mNextLag; lag < end; lag++) {
+            int offset = mMaxLag - lag;
+            float correlation = 0;
+            float farNorm = 0;
+            for (int j = 0; j < window; j++) {
+                float far = mFarSnapshot[j + offset];
+                correlation += mMicSnapshot[j] * far;
+                farNorm += far * far;
+            }
+            if (farNorm <= 0) {
+                continue;
+            }
+            float normalized = correlation / ((float) Math.sqrt(farNorm) * mMicNorm);
+            if (normalized > mBestCorrelation) {
+                mBestCorrelation = normalized;
+                mBestLag = lag;
+            }
+        }
+        mNextLag = end;
+        if (mNextLag < mMaxLag) {
+            return;
+        }
+
+        mNextLag = -1;
+        if (mBestLag < 0) {
+            return;
+        }
+        int delay =
+                Math.max(0, mBestLag * DECIMATION - mSampleRate * DELAY_MARGIN_MS / 1000);
+        if (Math.abs(delay - mDelay) > 2 * DECIMATION) {
+            // The echo moved. What the filter learned no longer lines up.
+            mDelay = Math.min(delay, mMaxDelay);
+            Arrays.fill(mWeights, 0);
+        }
+    }
+
+    private void allocate(int frameSamples) {
+        mFar = new float[mMaxDelay + mTaps + frameSamples];
+        mFarFrame = new short[frameSamples];
+    }
+
+    /**
+     * Unrolls a ring into {@code dst}, oldest first, less its mean.
+     *
+     * @param written How many values have ever been written to the ring.
+     */
+    private static void removeMean(float[] ring, long written, float[] dst) {
+        float mean = 0;
+        for (float v : ring) {
+            mean += v;
+        }
+        mean /= ring.length;
+        int oldest = (int) (written % ring.length);
+        int tail = ring.length - oldest;
+        for (int i = 0; i < tail; i++) {
+            dst[i] = ring[oldest + i] - mean;
+        }
+        for (int i = 0; i < oldest; i++) {
+            dst[tail + i] = ring[i] - mean;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package uz.kosmostar.vokall;
+
+/**
+ * Hands what the speaker is playing over to the microphone side, so {@link EchoCanceller} knows
+ * what echo to expect. {@link AudioPlayer} writes every sample it plays; {@link AudioRecorder}
+ * reads as many samples as it captures, so both sides move through the ring in step.
+ *
+ * <p>There's one writer and one reader, each on its own audio thread. Only the write position is
+ * shared, so neither side ever blocks. The reader trails the writer by a little slack so bursty
+ * writes don't starve it. If it gets lapped it rejoins behind the live edge; if the player stalls,
+ * it reads silence and waits rather than running ahead.
+ */
+public class EchoReference {
+    private final short[] mRing;
+    private final int mSlack;
+
+    /** Total samples ever written. Only the player thread writes it. */
+    private volatile long mWritten;
+
+    /** Total samples ever read, or -1 before the first sync. Only the recorder thread uses it. */
+    private long mRead = -1;
+
+    /**
+     * @param capacity How many samples the ring holds. A second or so is plenty.
+     * @param slack How many samples the reader stays behind the writer.
+     */
+    public EchoReference(int capacity, int slack) {
+        mRing = new short[capacity];
+        mSlack = slack;
+    }
+
+    /** Records samples that were just handed to the speaker. Player thread only. */
+    public void write(short[] samples, int length) {
+        long written = mWritten;
+        for (int i = 0; i < length; i++) {
+            mRing[(int) ((written + i) % mRing.length)] = samples[i];
+        }
+        mWritten = written + length;
+    }
+
+    /**
+     * Reads the next {@code length} samples of what was played into {@code dst}. Anything that
+     * hasn't been played yet comes back as silence. Recorder thread only.
+     */
+    public void read(short[] dst, int length) {
+        long written = mWritten;
+        if (mRead < 0 || written - mRead > mRing.length - length) {
+            mRead = Math.max(0, written - length - mSlack);
+        }
+        for (int i = 0; i < length; i++) {
+            long position = mRead + i;
+            dst[i] = position < written ? mRing[(int) (position % mRing.length)] : 0;
+        }
+        mRead = Math.min(mRead + length, written);
+    }
+}
@@ -0,0 +1,322 @@
+package uz.kosmostar.vokall;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The compact blob we hand to Nearby Connections as our endpoint info, instead of a bare name. It
+ * tells a peer which audio formats we can handle before a connection even exists, so both sides
+ * can agree on a {@link CallFormat} without an extra round trip.
+ *
+ * <p>Layout (all single bytes unless noted):
+ *
+ * <pre>
+ *   [0] MAGIC            'V'
+ *   [1] protocol version
+ *   [2] role             ROLE_PEER, ROLE_HUB, ROLE_SPOKE or ROLE_RELAY
+ *   [3] codecs           bitmask of CODEC_*
+ *   [4] sample rates     bitmask, bit i = SAMPLE_RATES[i]
+ *   [5] frame durations  bitmask, bit i = FRAME_DURATIONS_MS[i]
+ *   [6] name length      n
+ *   [7..7+n) name        UTF-8
+ *   [7+n] device id length  0 or 16                    (version 2 and up)
+ *   [8+n..24+n) device id   UUID, most significant first (version 2 and up)
+ * </pre>
+ *
+ * The device id is a UUID the device picks once and keeps, unlike the name, which is random per
+ * launch. Version 1 parsers stop after the name, so they don't trip over it.
+ *
+ * Anything that doesn't start with {@link #MAGIC} is treated as a legacy peer that advertised its
+ * plain name.
+ */
+public final class EndpointInfo {
+    /** First byte of every blob we produce. */
+    static final byte MAGIC = 'V';
+
+    /** Bumped whenever the payloads we exchange change shape. */
+    public static final int PROTOCOL_VERSION = 8;
+
+    /** The first version that carries a device id. */
+    static final int PROTOCOL_VERSION_DEVICE_ID = 2;
+
+    /**
+     * The first version that proves who it is before being answered without asking. See {@link
+     * PeerVerifier}.
+     */
+    static final int PROTOCOL_VERSION_PAIRING = 2;
+
+    /** The first version that frames call payloads as {@link Packet}s instead of bare PCM. */
+    static final int PROTOCOL_VERSION_PACKETS = 3;
+
+    /** The first version that understands {@link Packet#TYPE_RELAY}. */
+    static final int PROTOCOL_VERSION_RELAY = 4;
+
+    /**
+     * The first version that answers pings with its own clock, and plays {@link
+     * Packet#TYPE_AUDIO_TIMED}.
+     */
+    static final int PROTOCOL_VERSION_TIMED_AUDIO = 5;
+
+    /** The first version that plays {@link Packet#TYPE_AUDIO_STAMPED}. */
+    static final int PROTOCOL_VERSION_STAMPED_AUDIO = 6;
+
+    /** The first version that takes voice messages. See {@link Packet#TYPE_VOICE_MESSAGE}. */
+    static final int PROTOCOL_VERSION_VOICE_MESSAGES = 7;
+
+    /** The first version that reads audio from a {@link PayloadStreamWriter STREAM payload}. */
+    static final int PROTOCOL_VERSION_AUDIO_STREAMS = 8;
+
+    /** The version we assume for peers that only advertised a name. */
+    public static final int PROTOCOL_VERSION_LEGACY = 0;
+
+    /** We don't know (or care) which side of the star this device is on. */
+    public static final int ROLE_PEER = 0;
+    /** The device is advertising and accepting incoming calls. */
+    public static final int ROLE_HUB = 1;
+    /** The device is the one asking to connect. */
+    public static final int ROLE_SPOKE = 2;
+    /** The device is in a mesh call that relays, and wants other relaying devices to join it. */
+    public static final int ROLE_RELAY = 3;
+
+    /** Raw, little-endian, 16-bit mono PCM. */
+    public static final int CODEC_PCM_16BIT = 1;
+
+    /** Sample rates a peer may advertise. The index is the bit in the sample rate mask. */
+    static final int[] SAMPLE_RATES = new int[] {8000, 11025, 16000, 22050, 44100, 48000};
+
+    /** Frame durations a peer may advertise. The index is the bit in the frame duration mask. */
+    static final int[] FRAME_DURATIONS_MS = new int[] {10, 20, 40, 60};
+
+    private static final int HEADER_SIZE = 7;
+
+    /** Names longer than this are cut so the blob stays well below Nearby's endpoint info limit. */
+    private static final int MAX_NAME_BYTES = 64;
+
+    private static final int DEVICE_ID_SIZE = 16;
+
+    private final int protocolVersion;
+    private final int role;
+    private final int codecs;
+    private final int sampleRates;
+    private final int frameDurations;
+    @NonNull private final String name;
+    @Nullable private final UUID deviceId;
+
+    EndpointInfo(
+            int protocolVersion,
+            int role,
+            int codecs,
+            int sampleRates,
+            int frameDurations,
+            @NonNull String name,
+            @Nullable UUID deviceId) {
+        this.protocolVersion = protocolVersion;
+        this.role = role;
+        this.codecs = codecs;
+        this.sampleRates = sampleRates;
+        this.frameDurations = frameDurations;
+        this.name = name;
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * Describes this device with the given capability masks.
+     *
+     * @param deviceId This device's stable id, or null to leave it out.
+     */
+    public static EndpointInfo local(
+            @NonNull String name,
+            @Nullable UUID deviceId,
+            int role,
+            int codecs,
+            int sampleRates,
+            int frameDurations) {
+        return new EndpointInfo(
+                PROTOCOL_VERSION, role, codecs, sampleRates, frameDurations, name, deviceId);
+    }
+
+    /**
+     * Describes a peer that only advertised a name. Older builds always streamed 16kHz PCM in
+     * whatever chunk size {@link AudioBuffer} came up with, so that's all we assume.
+     */
+    public static EndpointInfo legacy(@NonNull String name) {
+        return new EndpointInfo(
+                PROTOCOL_VERSION_LEGACY,
+                ROLE_PEER,
+                CODEC_PCM_16BIT,
+                sampleRateBit(16000),
+                0,
+                name,
+                null);
+    }
+
+    /**
+     * Decodes a blob received from {@link
+     * com.google.android.gms.nearby.connection.DiscoveredEndpointInfo#getEndpointInfo()} or {@link
+     * com.google.android.gms.nearby.connection.ConnectionInfo#getEndpointInfo()}.
+     *
+     * @param bytes The raw endpoint info. May be null on older Play Services.
+     * @param fallbackName The endpoint name Nearby reported, used if the bytes aren't ours.
+     */
+    @NonNull
+    public static EndpointInfo parse(@Nullable byte[] bytes, @Nullable String fallbackName) {
+        if (bytes == null || bytes.length < HEADER_SIZE || bytes[0] != MAGIC) {
+            if (bytes != null && bytes.length > 0) {
+                return legacy(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return legacy(fallbackName != null ? fallbackName : "");
+        }
+        int version = bytes[1] & 0xFF;
+        int nameLength = Math.min(bytes[6] & 0xFF, bytes.length - HEADER_SIZE);
+        UUID deviceId = null;
+        int idOffset = HEADER_SIZE + nameLength;
+        if (version >= PROTOCOL_VERSION_DEVICE_ID
+                && bytes.length >= idOffset + 1 + DEVICE_ID_SIZE
+                && (bytes[idOffset] & 0xFF) == DEVICE_ID_SIZE) {
+            ByteBuffer id = ByteBuffer.wrap(bytes, idOffset + 1, DEVICE_ID_SIZE);
+            deviceId = new UUID(id.getLong(), id.getLong());
+        }
+        return new EndpointInfo(
+                version,
+                bytes[2] & 0xFF,
+                bytes[3] & 0xFF,
+                bytes[4] & 0xFF,
+                bytes[5] & 0xFF,
+                new String(bytes, HEADER_SIZE, nameLength, StandardCharsets.UTF_8),
+                deviceId);
+    }
+
+    /** Encodes this info for {@code startAdvertising} or {@code requestConnection}. */
+    @NonNull
+    public byte[] toBytes() {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > MAX_NAME_BYTES) {
+            // Cut before the character that doesn't fit, not through the middle of it.
+            int end = MAX_NAME_BYTES;
+            while (end > 0 && (nameBytes[end] & 0xC0) == 0x80) {
+                end--;
+            }
+            nameBytes = Arrays.copyOf(nameBytes, end);
+        }
+        int idSize = deviceId == null ? 0 : DEVICE_ID_SIZE;
+        byte[] bytes = new byte[HEADER_SIZE + nameBytes.length + 1 + idSize];
+        bytes[0] = MAGIC;
+        bytes[1] = (byte) protocolVersion;
+        bytes[2] = (byte) role;
+        bytes[3] = (byte) codecs;
+        bytes[4] = (byte) sampleRates;
+        bytes[5] = (byte) frameDurations;
+        bytes[6] = (byte) nameBytes.length;
+        System.arraycopy(nameBytes, 0, bytes, HEADER_SIZE, nameBytes.length);
+        int idOffset = HEADER_SIZE + nameBytes.length;
+        bytes[idOffset] = (byte) idSize;
+        if (deviceId != null) {
+            ByteBuffer.wrap(bytes, idOffset + 1, DEVICE_ID_SIZE)
+                    .putLong(deviceId.getMostSignificantBits())
+                    .putLong(deviceId.getLeastSignificantBits());
+        }
+        return bytes;
+    }
+
+    /** @return The bit for the given sample rate, or 0 if it can't be advertised. */
+    public static int sampleRateBit(int sampleRate) {
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) {
+                return 1 << i;
+            }
+        }
+        return 0;
+    }
+
+    /** @return The bit for the given frame duration, or 0 if it can't be advertised. */
+    public static int frameDurationBit(int frameDurationMs) {
+        for (int i = 0; i < FRAME_DURATIONS_MS.length; i++) {
+            if (FRAME_DURATIONS_MS[i] == frameDurationMs) {
+                return 1 << i;
+            }
+        }
+        return 0;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public boolean isLegacy() {
+        return protocolVersion == PROTOCOL_VERSION_LEGACY;
+    }
+
+    /** @return True if the peer can keep a secret from us, and prove it has it. */
+    public boolean supportsPairing() {
+        return protocolVersion >= PROTOCOL_VERSION_PAIRING;
+    }
+
+    /** @return True if the peer frames its payloads as {@link Packet}s, and expects us to. */
+    public boolean supportsPackets() {
+        return protocolVersion >= PROTOCOL_VERSION_PACKETS;
+    }
+
+    /** @return True if the peer can take part in a {@link MeshRelay mesh}. */
+    public boolean supportsRelay() {
+        return protocolVersion >= PROTOCOL_VERSION_RELAY;
+    }
+
+    /** @return True if the peer can play audio at the time we {@link ClockSync tell it to}. */
+    public boolean supportsTimedAudio() {
+        return protocolVersion >= PROTOCOL_VERSION_TIMED_AUDIO;
+    }
+
+    /** @return True if the peer can play audio that says when it was captured and sent. */
+    public boolean supportsStampedAudio() {
+        return protocolVersion >= PROTOCOL_VERSION_STAMPED_AUDIO;
+    }
+
+    /** @return True if the peer takes voice messages. */
+    public boolean supportsVoiceMessages() {
+        return protocolVersion >= PROTOCOL_VERSION_VOICE_MESSAGES;
+    }
+
+    /** @return True if the peer takes our audio as a STREAM payload, if we send it one. */
+    public boolean supportsAudioStreams() {
+        return protocolVersion >= PROTOCOL_VERSION_AUDIO_STREAMS;
+    }
+
+    public int getRole() {
+        return role;
+    }
+
+    public boolean supportsCodec(int codec) {
+        return (codecs & codec) != 0;
+    }
+
+    public boolean supportsSampleRate(int sampleRate) {
+        return (sampleRates & sampleRateBit(sampleRate)) != 0;
+    }
+
+    public boolean supportsFrameDuration(int frameDurationMs) {
+        return (frameDurations & frameDurationBit(frameDurationMs)) != 0;
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    /** @return The peer's stable device id, or null if it's too old to send one. */
+    @Nullable
+    public UUID getDeviceId() {
+        return deviceId;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "EndpointInfo{v=%d, role=%d, codecs=0x%x, rates=0x%x, frames=0x%x, name=%s, id=%s}",
+                protocolVersion, role, codecs, sampleRates, frameDurations, name, deviceId);
+    }
+}
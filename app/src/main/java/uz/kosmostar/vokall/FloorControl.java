@@ -0,0 +1,210 @@
+package uz.kosmostar.vokall;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Decides who may talk in a push-to-talk call, so two people never talk over each other.
+ *
+ * <p>One device, the hub, holds the floor and hands it out. It's the one that accepted the call,
+ * which on {@link com.google.android.gms.nearby.connection.Strategy#P2P_STAR P2P_STAR} is the one
+ * every other device is connected to. Everyone else is a spoke, and asks the hub with {@link
+ * Packet#TYPE_FLOOR_REQUEST}. The hub grants it if nobody's talking, and tells everyone else it's
+ * taken; otherwise it tells the spoke it's taken. Letting go is {@link Packet#TYPE_FLOOR_RELEASE},
+ * which the hub passes on. The hub's own presses are decided on the spot, with no round trip.
+ *
+ * <p>If whoever has the floor goes away, the hub frees it, so it can't get stuck.
+ *
+ * <p>Not thread-safe. Call it from one thread, normally the main thread.
+ */
+public class FloorControl {
+    /** Who has the floor, as far as this device knows. */
+    public enum State {
+        /** Nobody's talking. Pressing will get the floor. */
+        IDLE,
+        /** We've asked the hub and are waiting to hear back. */
+        REQUESTING,
+        /** We have the floor. The microphone should be on. */
+        TALKING,
+        /** Someone else has the floor. */
+        LISTENING
+    }
+
+    /** Carries out what floor control decides. */
+    public interface Callback {
+        /**
+         * Sends a floor control message.
+         *
+         * @param endpointId Who to send it to, or null for every connected peer.
+         * @param exceptId With a null {@code endpointId}, a peer to leave out, or null.
+         * @param type One of the {@code Packet.TYPE_FLOOR_*} types.
+         */
+        void sendFloorMessage(@Nullable String endpointId, @Nullable String exceptId, int type);
+
+        /** Our {@link State} changed. */
+        void onFloorStateChanged(State oldState, State newState);
+    }
+
+    /** Stands in for this device in {@link #mHolder}. Never a Nearby endpoint id. */
+    private static final String LOCAL = "";
+
+    private final boolean mIsHub;
+    private final Callback mCallback;
+
+    /** The spoke we'd send to, if we're one. */
+    @Nullable private final String mHubId;
+
+    private State mState = State.IDLE;
+
+    /** On the hub, who has the floor: an endpoint id, {@link #LOCAL}, or null if nobody. */
+    @Nullable private String mHolder;
+
+    /** True while the user is holding the button down. */
+    private boolean mPressed;
+
+    /** Makes the hub's floor control. */
+    public static FloorControl hub(Callback callback) {
+        return new FloorControl(true, null, callback);
+    }
+
+    /** Makes a spoke's floor control, which asks the given hub. */
+    public static FloorControl spoke(String hubId, Callback callback) {
+        return new FloorControl(false, hubId, callback);
+    }
+
+    private FloorControl(boolean isHub, @Nullable String hubId, Callback callback) {
+        mIsHub = isHub;
+        mHubId = hubId;
+        mCallback = callback;
+    }
+
+    /** @return True if we hand out the floor. */
+    public boolean isHub() {
+        return mIsHub;
+    }
+
+    /** @return Who has the floor, as far as we know. */
+    public State getState() {
+        return mState;
+    }
+
+    /** The user pressed push-to-talk. */
+    public void press() {
+        mPressed = true;
+        if (mIsHub) {
+            if (mHolder == null) {
+                mHolder = LOCAL;
+                mCallback.sendFloorMessage(null, null, Packet.TYPE_FLOOR_TAKEN);
+                setState(State.TALKING);
+            }
+            return;
+        }
+        if (mState == State.IDLE) {
+            mCallback.sendFloorMessage(mHubId, null, Packet.TYPE_FLOOR_REQUEST);
+            setState(State.REQUESTING);
+        }
+    }
+
+    /** The user let go of push-to-talk. */
+    public void release() {
+        mPressed = false;
+        if (mIsHub) {
+            if (LOCAL.equals(mHolder)) {
+                freeFloor(null);
+            }
+            return;
+        }
+        if (mState == State.TALKING || mState == State.REQUESTING) {
+            // While requesting, the grant may already be on its way; let it go either way.
+            mCallback.sendFloorMessage(mHubId, null, Packet.TYPE_FLOOR_RELEASE);
+            setState(State.IDLE);
+        }
+    }
+
+    /** A floor control message arrived from this endpoint. */
+    public void onMessage(String endpointId, int type) {
+        if (mIsHub) {
+            onHubMessage(endpointId, type);
+        } else if (endpointId.equals(mHubId)) {
+            onSpokeMessage(type);
+        }
+    }
+
+    /** This endpoint has gone. If it had the floor, nobody does now. */
+    public void onEndpointDisconnected(String endpointId) {
+        if (mIsHub && endpointId.equals(mHolder)) {
+            freeFloor(endpointId);
+        } else if (!mIsHub && endpointId.equals(mHubId) && mState != State.IDLE) {
+            setState(State.IDLE);
+        }
+    }
+
+    private void onHubMessage(String endpointId, int type) {
+        switch (type) {
+            case Packet.TYPE_FLOOR_REQUEST:
+                if (mHolder == null || mHolder.equals(endpointId)) {
+                    mHolder = endpointId;
+                    mCallback.sendFloorMessage(endpointId, null, Packet.TYPE_FLOOR_GRANT);
+                    mCallback.sendFloorMessage(null, endpointId, Packet.TYPE_FLOOR_TAKEN);
+                    setState(State.LISTENING);
+                } else {
+                    mCallback.sendFloorMessage(endpointId, null, Packet.TYPE_FLOOR_TAKEN);
+                }
+                break;
+            case Packet.TYPE_FLOOR_RELEASE:
+                if (endpointId.equals(mHolder)) {
+                    freeFloor(endpointId);
+                }
+                break;
+            default:
+                // Only spokes get the rest.
+                break;
+        }
+    }
+
+    private void onSpokeMessage(int type) {
+        switch (type) {
+            case Packet.TYPE_FLOOR_GRANT:
+                if (mState == State.REQUESTING && mPressed) {
+                    setState(State.TALKING);
+                }
+                // Otherwise we let go before it came, and already sent a release.
+                break;
+            case Packet.TYPE_FLOOR_TAKEN:
+                if (mState != State.TALKING) {
+                    setState(State.LISTENING);
+                }
+                break;
+            case Packet.TYPE_FLOOR_RELEASE:
+                if (mState == State.LISTENING) {
+                    setState(State.IDLE);
+                    if (mPressed) {
+                        // Still holding the button from before; ask again now it's free.
+                        press();
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Nobody has the floor now. Tells every peer but the one that let go. */
+    private void freeFloor(@Nullable String previousHolder) {
+        mHolder = null;
+        mCallback.sendFloorMessage(null, previousHolder, Packet.TYPE_FLOOR_RELEASE);
+        setState(State.IDLE);
+        if (mPressed) {
+            // The user was holding the button while someone else talked. Their turn.
+            press();
+        }
+    }
+
+    private void setState(State state) {
+        if (mState == state) {
+            return;
+        }
+        State oldState = mState;
+        mState = state;
+        mCallback.onFloorStateChanged(oldState, state);
+    }
+}
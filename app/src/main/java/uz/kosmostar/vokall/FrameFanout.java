@@ -0,0 +1,244 @@
+package uz.kosmostar.vokall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Sends each captured frame to every peer in the form that peer needs, converting and encoding it
+ * once per distinct {@link Format} rather than once per peer. A hub talking to 20 listeners does
+ * the same work as for 2 if they all want the same thing, and each payload goes to everyone who
+ * wants it in one send.
+ *
+ * <p>Which peer wants what only changes when someone connects or leaves, or a link's bandwidth
+ * moves, so the peers are grouped by format then, on the main thread, into an array the audio
+ * thread just walks. Frames at a lower rate than captured are converted once per rate, into buffers
+ * that are kept from frame to frame. What's left to allocate per frame is the payload for each
+ * format, however many peers get it.
+ *
+ * <p>{@link #setFormats(Map)} and {@link #clear()} may be called from any thread, normally the main
+ * thread; {@link #send(byte[], int, long)} from one thread, normally the audio thread.
+ */
+public class FrameFanout {
+    /** Bare PCM, as captured, for peers too old for {@link Packet}s. */
+    public static final int KIND_BARE = 0;
+
+    /** An audio {@link Packet}. */
+    public static final int KIND_PACKET = 1;
+
+    /** An audio packet wrapped to be {@link MeshRelay relayed}. */
+    public static final int KIND_RELAY = 2;
+
+    /** An audio {@link Packet} that says when to play it. */
+    public static final int KIND_TIMED = 3;
+
+    /** An audio {@link Packet} that says when it was captured and sent. */
+    public static final int KIND_STAMPED = 4;
+
+    /** An audio {@link Packet} that says when it was captured and sent, and when to play it. */
+    public static final int KIND_STAMPED_TIMED = 5;
+
+    /** How a peer needs its audio. */
+    public static final class Format {
+        private final int mKind;
+        private final int mSampleRate;
+
+        /**
+         * @param kind One of the {@code KIND_*} constants.
+         * @param sampleRate The rate to send at, or 0 for the rate it was captured at.
+         */
+        public Format(int kind, int sampleRate) {
+            mKind = kind;
+            mSampleRate = sampleRate;
+        }
+
+        public int getKind() {
+            return mKind;
+        }
+
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Format)) {
+                return false;
+            }
+            Format other = (Format) o;
+            return mKind == other.mKind && mSampleRate == other.mSampleRate;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mKind + mSampleRate;
+        }
+
+        @Override
+        public String toString() {
+            return "Format{kind=" + mKind + ", " + mSampleRate + "Hz}";
+        }
+    }
+
+    /** Builds the payload for a format. */
+    public interface Encoder {
+        /**
+         * Called at most once per format per frame, on the thread calling {@link #send(byte[],
+         * int, long)}.
+         *
+         * @param pcm The frame at the format's rate. Only valid during the call, except when it's
+         *     at the rate it was captured at, in which case it's what was passed to {@link
+         *     #send(byte[], int, long)}.
+         * @param length How many bytes of {@code pcm} are valid.
+         * @param sampleRate The frame's rate, with 0 resolved.
+         * @param captureNanos When the frame was captured, by {@link System#nanoTime()}. The same
+         *     for every format.
+         * @return What to send.
+         */
+        byte[] encode(Format format, byte[] pcm, int length, int sampleRate, long captureNanos);
+    }
+
+    /** Sends a payload. */
+    public interface Sender {
+        void send(byte[] bytes, List<String> endpointIds);
+    }
+
+    /** Everyone who needs a format. */
+    private static final class Group {
+        final Format format;
+        final List<String> endpointIds;
+
+        Group(Format format, List<String> endpointIds) {
+            this.format = format;
+            this.endpointIds = Collections.unmodifiableList(endpointIds);
+        }
+    }
+
+    private final Encoder mEncoder;
+    private final Sender mSender;
+
+    /** Each peer's format. Guarded by {@code this}. */
+    private Map<String, Format> mFormats = new HashMap<>();
+
+    /** The peers, grouped by format, with formats at the same rate next to each other. */
+    private volatile Group[] mGroups = new Group[0];
+
+    /** Converts frames to each rate we send at other than the captured one, by output rate. */
+    private final Map<Integer, SampleRateConverter> mConverters = new HashMap<>();
+
+    private short[] mSamples = new short[0];
+    private byte[] mConverted = new byte[0];
+
+    private long mFrames;
+    private long mEncodes;
+    private long mConversions;
+
+    public FrameFanout(Encoder encoder, Sender sender) {
+        mEncoder = encoder;
+        mSender = sender;
+    }
+
+    /** Sets every peer's format. Peers that aren't in {@code formats} get nothing. */
+    public synchronized void setFormats(Map<String, Format> formats) {
+        if (formats.equals(mFormats)) {
+            return;
+        }
+        mFormats = new HashMap<>(formats);
+        Map<Format, List<String>> byFormat = new LinkedHashMap<>();
+        for (Map.Entry<String, Format> entry : mFormats.entrySet()) {
+            List<String> endpointIds = byFormat.get(entry.getValue());
+            if (endpointIds == null) {
+                endpointIds = new ArrayList<>();
+                byFormat.put(entry.getValue(), endpointIds);
+            }
+            endpointIds.add(entry.getKey());
+        }
+        List<Group> groups = new ArrayList<>();
+        for (Map.Entry<Format, List<String>> entry : byFormat.entrySet()) {
+            groups.add(new Group(entry.getKey(), entry.getValue()));
+        }
+        // So each rate is converted to once per frame.
+        Collections.sort(
+                groups, (a, b) -> Integer.compare(a.format.mSampleRate, b.format.mSampleRate));
+        mGroups = groups.toArray(new Group[0]);
+    }
+
+    /** Forgets every peer. */
+    public synchronized void clear() {
+        setFormats(Collections.emptyMap());
+    }
+
+    /**
+     * Sends a captured frame to every peer, in its format.
+     *
+     * @param pcm The frame, as captured.
+     * @param sampleRate The rate it was captured at.
+     * @param captureNanos When it was captured, by {@link System#nanoTime()}.
+     */
+    public void send(byte[] pcm, int sampleRate, long captureNanos) {
+        Group[] groups = mGroups;
+        if (groups.length == 0) {
+            return;
+        }
+        mFrames++;
+        int convertedRate = 0;
+        int convertedLength = 0;
+        for (Group group : groups) {
+            int rate = group.format.mSampleRate == 0 ? sampleRate : group.format.mSampleRate;
+            byte[] frame = pcm;
+            int length = pcm.length;
+            if (rate != sampleRate) {
+                if (rate != convertedRate) {
+                    convertedLength = convert(pcm, sampleRate, rate);
+                    convertedRate = rate;
+                }
+                frame = mConverted;
+                length = convertedLength;
+            }
+            mEncodes++;
+            byte[] payload = mEncoder.encode(group.format, frame, length, rate, captureNanos);
+            mSender.send(payload, group.endpointIds);
+        }
+    }
+
+    /** Converts a frame into {@link #mConverted}. @return How many bytes it takes. */
+    private int convert(byte[] pcm, int inputRate, int outputRate) {
+        SampleRateConverter converter = mConverters.get(outputRate);
+        if (converter == null || converter.getInputRate() != inputRate) {
+            converter = new SampleRateConverter(inputRate, outputRate, pcm.length / 2);
+            mConverters.put(outputRate, converter);
+        }
+        int samples = pcm.length / 2;
+        if (mSamples.length < samples) {
+            mSamples = new short[samples];
+        }
+        Pcm16.toShorts(pcm, 0, pcm.length, mSamples);
+        int length = converter.process(mSamples, samples);
+        if (mConverted.length < length * 2) {
+            mConverted = new byte[length * 2];
+        }
+        Pcm16.toBytes(converter.getOutput(), length, mConverted, 0);
+        mConversions++;
+        return length * 2;
+    }
+
+    /** @return How many distinct formats each frame goes out in right now. */
+    public int getFormatCount() {
+        return mGroups.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.US,
+                "FrameFanout{formats=%d, frames=%d, encodes=%d, conversions=%d}",
+                mGroups.length,
+                mFrames,
+                mEncodes,
+                mConversions);
+    }
+}
@@ -0,0 +1,34 @@
+package uz.kosmostar.vokall;
+
+/**
+ * A fixed gain, in Q12 fixed point. The gain can be changed from any thread and takes effect on
+ * the next frame.
+ */
+public class GainStage implements DspStage {
+    private static final int UNITY = 1 << 12;
+
+    private volatile int mGain = UNITY;
+
+    public GainStage(float gainDb) {
+        setGainDb(gainDb);
+    }
+
+    /** Sets the gain, in decibels. */
+    public void setGainDb(float gainDb) {
+        mGain = Math.round((float) Math.pow(10, gainDb / 20) * UNITY);
+    }
+
+    @Override
+    public void process(short[] samples, int length) {
+        int gain = mGain;
+        if (gain == UNITY) {
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            samples[i] = Pcm16.clip((samples[i] * gain) >> 12);
+        }
+    }
+
+    @Override
+    public void reset() {}
+}
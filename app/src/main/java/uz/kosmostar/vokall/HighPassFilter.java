@@ -0,0 +1,49 @@
+package uz.kosmostar.vokall;
+
+/**
+ * A second-order Butterworth high-pass filter. Takes out DC offset, handling noise and low rumble,
+ * which eat into the level budget without adding anything to speech.
+ */
+public class HighPassFilter implements DspStage {
+    private final float mB0;
+    private final float mB1;
+    private final float mB2;
+    private final float mA1;
+    private final float mA2;
+
+    private float mZ1;
+    private float mZ2;
+
+    public HighPassFilter(int sampleRate, float cutoffHz) {
+        double w0 = 2 * Math.PI * cutoffHz / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * Math.sqrt(0.5));
+        double a0 = 1 + alpha;
+        mB0 = (float) ((1 + cos) / 2 / a0);
+        mB1 = (float) (-(1 + cos) / a0);
+        mB2 = mB0;
+        mA1 = (float) (-2 * cos / a0);
+        mA2 = (float) ((1 - alpha) / a0);
+    }
+
+    @Override
+    public void process(short[] samples, int length) {
+        float z1 = mZ1;
+        float z2 = mZ2;
+        for (int i = 0; i < length; i++) {
+            float x = samples[i];
+            float y = mB0 * x + z1;
+            z1 = mB1 * x - mA1 * y + z2;
+            z2 = mB2 * x - mA2 * y;
+            samples[i] = Pcm16.clip(Math.round(y));
+        }
+        mZ1 = z1;
+        mZ2 = z2;
+    }
+
+    @Override
+    public void reset() {
+        mZ1 = 0;
+        mZ2 = 0;
+    }
+}
@@ -0,0 +1,160 @@
+package uz.kosmostar.vokall;
+
+/**
+ * IMA ADPCM, as it goes in a WAV file (format tag {@link #WAVE_FORMAT}): 4 bits a sample, so a
+ * quarter the size of 16-bit PCM, and anything that plays WAV plays it.
+ *
+ * <p>Audio goes in blocks. Each starts with a header per channel, holding that channel's first
+ * sample as it is and where its step size is at, so a block decodes on its own. The rest of the
+ * samples follow as nibbles, 8 at a time per channel, channels taking turns, earliest sample in
+ * the low nibble.
+ *
+ * <p>Nothing here allocates, so it's safe to call once per frame on an audio thread.
+ */
+public final class ImaAdpcm {
+    /** The WAV format tag for IMA ADPCM. */
+    static final int WAVE_FORMAT = 0x11;
+
+    private static final int[] STEP_SIZES = {
+        7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60,
+        66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371,
+        408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707,
+        1878, 2066, 2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132,
+        7845, 8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623,
+        27086, 29794, 32767
+    };
+
+    private static final int[] INDEX_STEPS = {-1, -1, -1, -1, 2, 4, 6, 8};
+
+    /** How big a block's header is, per channel. */
+    private static final int HEADER_SIZE = 4;
+
+    /** One channel's state, carried from sample to sample. */
+    static final class Channel {
+        private int mPredictor;
+        private int mIndex;
+
+        /** @return The nibble for the next sample. */
+        int encode(int sample) {
+            int step = STEP_SIZES[mIndex];
+            int diff = sample - mPredictor;
+            int nibble = 0;
+            if (diff < 0) {
+                nibble = 8;
+                diff = -diff;
+            }
+            if (diff >= step) {
+                nibble |= 4;
+                diff -= step;
+            }
+            if (diff >= step >> 1) {
+                nibble |= 2;
+                diff -= step >> 1;
+            }
+            if (diff >= step >> 2) {
+                nibble |= 1;
+            }
+            // Move on exactly as the decoder will, or we'd drift apart.
+            decode(nibble);
+            return nibble;
+        }
+
+        /** @return The next sample, from its nibble. */
+        int decode(int nibble) {
+            int step = STEP_SIZES[mIndex];
+            int delta = step >> 3;
+            if ((nibble & 4) != 0) {
+                delta += step;
+            }
+            if ((nibble & 2) != 0) {
+                delta += step >> 1;
+            }
+            if ((nibble & 1) != 0) {
+                delta += step >> 2;
+            }
+            mPredictor = Pcm16.clip((nibble & 8) != 0 ? mPredictor - delta : mPredictor + delta);
+            mIndex = Math.max(0, Math.min(STEP_SIZES.length - 1, mIndex + INDEX_STEPS[nibble & 7]));
+            return mPredictor;
+        }
+    }
+
+    private ImaAdpcm() {}
+
+    /** @return How many bytes a block takes. */
+    static int getBlockSize(int channels, int samplesPerBlock) {
+        return channels * (HEADER_SIZE + (samplesPerBlock - 1) / 2);
+    }
+
+    /**
+     * @return How many samples, per channel, a block of {@code blockSize} bytes holds. The first
+     *     goes in the header, and the rest in groups of 8.
+     */
+    static int getSamplesPerBlock(int channels, int blockSize) {
+        return (blockSize / channels - HEADER_SIZE) / 4 * 8 + 1;
+    }
+
+    /**
+     * Encodes one block.
+     *
+     * @param samples {@code samplesPerBlock} samples per channel, interleaved.
+     * @param channels One state per channel.
+     * @param samplesPerBlock As from {@link #getSamplesPerBlock(int, int)}.
+     * @return The number of bytes written to {@code dst}.
+     */
+    static int encodeBlock(
+            short[] samples, Channel[] channels, int samplesPerBlock, byte[] dst, int offset) {
+        int count = channels.length;
+        int j = offset;
+        for (int c = 0; c < count; c++) {
+            Channel channel = channels[c];
+            short first = samples[c];
+            channel.mPredictor = first;
+            dst[j++] = (byte) first;
+            dst[j++] = (byte) (first >> 8);
+            dst[j++] = (byte) channel.mIndex;
+            dst[j++] = 0;
+        }
+        for (int i = 1; i < samplesPerBlock; i += 8) {
+            for (int c = 0; c < count; c++) {
+                Channel channel = channels[c];
+                for (int k = 0; k < 8; k += 2) {
+                    int low = channel.encode(samples[(i + k) * count + c]);
+                    int high = channel.encode(samples[(i + k + 1) * count + c]);
+                    dst[j++] = (byte) (low | high << 4);
+                }
+            }
+        }
+        return j - offset;
+    }
+
+    /**
+     * Decodes one block.
+     *
+     * @param channels One state per channel.
+     * @param dst Gets {@code samplesPerBlock} samples per channel, interleaved.
+     * @return The number of samples written to {@code dst}, per channel.
+     */
+    static int decodeBlock(
+            byte[] src, int offset, Channel[] channels, int samplesPerBlock, short[] dst) {
+        int count = channels.length;
+        int j = offset;
+        for (int c = 0; c < count; c++) {
+            Channel channel = channels[c];
+            channel.mPredictor = (short) ((src[j] & 0xFF) | (src[j + 1] << 8));
+            channel.mIndex = Math.max(0, Math.min(STEP_SIZES.length - 1, src[j + 2] & 0xFF));
+            dst[c] = (short) channel.mPredictor;
+            j += HEADER_SIZE;
+        }
+        for (int i = 1; i < samplesPerBlock; i += 8) {
+            for (int c = 0; c < count; c++) {
+                Channel channel = channels[c];
+                for (int k = 0; k < 8; k += 2) {
+                    int b = src[j++];
+                    dst[(i + k) * count + c] = (short) channel.decode(b & 0x0F);
+                    dst[(i + k + 1) * count + c] = (short) channel.decode((b >> 4) & 0x0F);
+                }
+            }
+        }
+        return samplesPerBlock;
+    }
+}
@@ -0,0 +1,118 @@
+package uz.kosmostar.vokall;
+
+import java.util.Locale;
+
+/**
+ * Keeps track of how long it takes a talker's voice to get from their microphone to our speaker,
+ * and where that time goes:
+ *
+ * <ul>
+ *   <li>capture: from the talker's microphone until the frame was sent, as the talker measured it
+ *       and {@link Packet#TYPE_AUDIO_STAMPED} told us.
+ *   <li>network: from when it was sent until it got here, with the talker's clock mapped onto ours
+ *       by {@link ClockSync}.
+ *   <li>jitter buffer: from when it got here until {@link AudioPlayer} wrote it to the track.
+ *   <li>output: from then until it came out of the speaker, from what the track says.
+ * </ul>
+ *
+ * Each is a moving average over the last few dozen frames. The first two are only known for frames
+ * from peers that stamp them, once our clocks are matched up; the last two for every frame. So
+ * {@link #getTotalMs()} is only there once all four are.
+ *
+ * <p>It's one figure for the whole call, not one per talker. On a group or mesh call, frames from
+ * everyone go into the same averages, so a talker further away pulls them up for the rest. The
+ * jitter buffer and output are shared by everyone we hear anyway, since {@link AudioPlayer} plays
+ * them all through one queue without knowing who each frame came from.
+ *
+ * <p>Safe to call from any thread.
+ */
+public class LatencyMonitor {
+    /** How much each frame counts towards the averages. */
+    private static final double WEIGHT = 0.05;
+
+    private long mReceivedFrames;
+    private long mPlayedFrames;
+    private double mCaptureMs;
+    private double mNetworkMs;
+    private double mJitterBufferMs;
+    private double mOutputMs;
+
+    /**
+     * A stamped frame arrived.
+     *
+     * @param captureNanos How long before it was sent it was captured.
+     * @param networkNanos How long it took to get here.
+     */
+    public synchronized void onReceived(long captureNanos, long networkNanos) {
+        mCaptureMs = average(mCaptureMs, captureNanos, mReceivedFrames);
+        mNetworkMs = average(mNetworkMs, networkNanos, mReceivedFrames);
+        mReceivedFrames++;
+    }
+
+    /**
+     * A frame was written to the track.
+     *
+     * @param jitterBufferNanos How long it waited to be, since it arrived.
+     * @param outputNanos How long it'll take from here to be heard.
+     */
+    public synchronized void onPlayed(long jitterBufferNanos, long outputNanos) {
+        mJitterBufferMs = average(mJitterBufferMs, jitterBufferNanos, mPlayedFrames);
+        mOutputMs = average(mOutputMs, outputNanos, mPlayedFrames);
+        mPlayedFrames++;
+    }
+
+    /** The first frame counts in full, so the averages don't start from 0. */
+    private static double average(double averageMs, long nanos, long frames) {
+        double ms = nanos / 1e6;
+        return frames == 0 ? ms : averageMs + (ms - averageMs) * WEIGHT;
+    }
+
+    /** Forgets everything, for a new call. */
+    public synchronized void reset() {
+        mReceivedFrames = 0;
+        mPlayedFrames = 0;
+        mCaptureMs = 0;
+        mNetworkMs = 0;
+        mJitterBufferMs = 0;
+        mOutputMs = 0;
+    }
+
+    public synchronized double getCaptureMs() {
+        return mCaptureMs;
+    }
+
+    public synchronized double getNetworkMs() {
+        return mNetworkMs;
+    }
+
+    public synchronized double getJitterBufferMs() {
+        return mJitterBufferMs;
+    }
+
+    public synchronized double getOutputMs() {
+        return mOutputMs;
+    }
+
+    /** @return Mouth to ear, in ms, or -1 if we don't know all of it yet. */
+    public synchronized double getTotalMs() {
+        if (mReceivedFrames == 0 || mPlayedFrames == 0) {
+            return -1;
+        }
+        return mCaptureMs + mNetworkMs + mJitterBufferMs + mOutputMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                Locale.US,
+                "LatencyMonitor{total=%.1fms, capture=%.1fms, network=%.1fms, jitterBuffer=%.1fms,"
+                        + " output=%.1fms, received=%d, played=%d}",
+                getTotalMs(),
+                mCaptureMs,
+                mNetworkMs,
+                mJitterBufferMs,
+                mOutputMs,
+                mReceivedFrames,
+                mPlayedFrames);
+    }
+}
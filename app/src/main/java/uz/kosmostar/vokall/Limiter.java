@@ -0,0 +1,40 @@
+package uz.kosmostar.vokall;
+
+/**
+ * A peak limiter. Anything that would go over the threshold is turned down instantly, and the gain
+ * recovers smoothly afterwards, so loud bursts come out compressed instead of hard-clipped.
+ */
+public class Limiter implements DspStage {
+    private final float mThreshold;
+    private final float mRelease;
+
+    private float mPeak;
+
+    /**
+     * @param thresholdDbfs The highest level we let through, relative to full scale.
+     * @param releaseMs How long the gain takes to recover after a peak.
+     */
+    public Limiter(int sampleRate, float thresholdDbfs, float releaseMs) {
+        mThreshold = (float) (Short.MAX_VALUE * Math.pow(10, thresholdDbfs / 20));
+        mRelease = (float) Math.exp(-1000.0 / (releaseMs * sampleRate));
+    }
+
+    @Override
+    public void process(short[] samples, int length) {
+        float peak = mPeak;
+        for (int i = 0; i < length; i++) {
+            float x = samples[i];
+            float level = Math.abs(x);
+            peak = level > peak ? level : peak * mRelease;
+            if (peak > mThreshold) {
+                samples[i] = (short) (x * mThreshold / peak);
+            }
+        }
+        mPeak = peak;
+    }
+
+    @Override
+    public void reset() {
+        mPeak = 0;
+    }
+}
@@ -0,0 +1,241 @@
+package uz.kosmostar.vokall;
+
+import android.os.Process;
+import java.util.Locale;
+
+/**
+ * How a link performed: how long it was up, how much went over it each way, the round trip times
+ * {@link Packet#TYPE_PING pings} measured on it, how long audio took to get to us over it, and how
+ * much CPU the app used meanwhile. Either one call's worth, as it happens, or the totals of many,
+ * from {@link LinkStatsStore}.
+ *
+ * <p>Safe to call from any thread: the audio thread counts what it sends, the main thread the rest.
+ */
+public class LinkStats {
+    private long mDurationMs;
+    private long mBytesSent;
+    private long mBytesReceived;
+    private long mRttCount;
+    private long mRttSumUs;
+    private long mRttMinUs = Long.MAX_VALUE;
+    private long mTransitCount;
+    private long mTransitSumUs;
+    private long mCpuMs;
+    private int mCalls;
+
+    /** When the link came up, from {@link System#nanoTime()}, while it's being measured. Else 0. */
+    private long mStartNanos;
+
+    /** The app's CPU time when the link came up, while it's being measured. */
+    private long mStartCpuMs;
+
+    /** Starts measuring a link that just came up. */
+    public static LinkStats start() {
+        LinkStats stats = new LinkStats();
+        stats.mStartNanos = System.nanoTime();
+        stats.mStartCpuMs = Process.getElapsedCpuTime();
+        stats.mCalls = 1;
+        return stats;
+    }
+
+    LinkStats() {}
+
+    LinkStats(
+            int calls,
+            long durationMs,
+            long bytesSent,
+            long bytesReceived,
+            long rttCount,
+            long rttSumUs,
+            long rttMinUs,
+            long transitCount,
+            long transitSumUs,
+            long cpuMs) {
+        mCalls = calls;
+        mDurationMs = durationMs;
+        mBytesSent = bytesSent;
+        mBytesReceived = bytesReceived;
+        mRttCount = rttCount;
+        mRttSumUs = rttSumUs;
+        mRttMinUs = rttMinUs;
+        mTransitCount = transitCount;
+        mTransitSumUs = transitSumUs;
+        mCpuMs = cpuMs;
+    }
+
+    /** We sent this many bytes. */
+    public synchronized void onSent(int bytes) {
+        mBytesSent += bytes;
+    }
+
+    /** We received this many bytes. */
+    public synchronized void onReceived(int bytes) {
+        mBytesReceived += bytes;
+    }
+
+    /** A ping came back after this long. */
+    public synchronized void onRtt(long rttNanos) {
+        long rttUs = rttNanos / 1000;
+        mRttCount++;
+        mRttSumUs += rttUs;
+        mRttMinUs = Math.min(mRttMinUs, rttUs);
+    }
+
+    /**
+     * A frame of audio got here this long after the peer sent it, by our clock and the peer's as
+     * {@link ClockSync} maps one onto the other.
+     */
+    public synchronized void onTransit(long transitNanos) {
+        mTransitCount++;
+        mTransitSumUs += transitNanos / 1000;
+    }
+
+    /** The link went down. Stops the clocks. */
+    public synchronized void stop() {
+        if (mStartNanos != 0) {
+            mDurationMs += (System.nanoTime() - mStartNanos) / 1_000_000;
+            mCpuMs += Process.getElapsedCpuTime() - mStartCpuMs;
+            mStartNanos = 0;
+        }
+    }
+
+    /** Adds another link's numbers to these, e.g. to keep a running total. */
+    public synchronized void add(LinkStats other) {
+        synchronized (other) {
+            mCalls += other.mCalls;
+            mDurationMs += other.getDurationMsLocked();
+            mBytesSent += other.mBytesSent;
+            mBytesReceived += other.mBytesReceived;
+            mRttCount += other.mRttCount;
+            mRttSumUs += other.mRttSumUs;
+            mRttMinUs = Math.min(mRttMinUs, other.mRttMinUs);
+            mTransitCount += other.mTransitCount;
+            mTransitSumUs += other.mTransitSumUs;
+            mCpuMs += other.getCpuMsLocked();
+        }
+    }
+
+    /**
+     * @return How many connections went into these numbers. A call that dropped and came back
+     *     counts twice.
+     */
+    public synchronized int getCalls() {
+        return mCalls;
+    }
+
+    /** @return How long the link was up, in ms, including so far if it still is. */
+    public synchronized long getDurationMs() {
+        return getDurationMsLocked();
+    }
+
+    private long getDurationMsLocked() {
+        long duration = mDurationMs;
+        if (mStartNanos != 0) {
+            duration += (System.nanoTime() - mStartNanos) / 1_000_000;
+        }
+        return duration;
+    }
+
+    /** @return How much CPU time the whole app used while the link was up, in ms. */
+    public synchronized long getCpuMs() {
+        return getCpuMsLocked();
+    }
+
+    private long getCpuMsLocked() {
+        long cpu = mCpuMs;
+        if (mStartNanos != 0) {
+            cpu += Process.getElapsedCpuTime() - mStartCpuMs;
+        }
+        return cpu;
+    }
+
+    /**
+     * @return The app's CPU time as a percentage of the time the link was up, or 0 if it never
+     *     was. Over 100 if it kept more than one core busy.
+     */
+    public synchronized double getCpuPercent() {
+        long durationMs = getDurationMsLocked();
+        return durationMs == 0 ? 0 : getCpuMsLocked() * 100.0 / durationMs;
+    }
+
+    /** @return How many frames of audio were timed getting here. */
+    public synchronized long getTransitCount() {
+        return mTransitCount;
+    }
+
+    /** @return How long audio took to get here on average, in ms, or -1 if none was timed. */
+    public synchronized double getMeanTransitMs() {
+        return mTransitCount == 0 ? -1 : mTransitSumUs / 1000.0 / mTransitCount;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /** @return How many pings came back. */
+    public synchronized long getRttCount() {
+        return mRttCount;
+    }
+
+    /** @return The mean round trip time in ms, or -1 if no ping came back. */
+    public synchronized double getMeanRttMs() {
+        return mRttCount == 0 ? -1 : mRttSumUs / 1000.0 / mRttCount;
+    }
+
+    /** @return The shortest round trip time in ms, or -1 if no ping came back. */
+    public synchronized double getMinRttMs() {
+        return mRttCount == 0 ? -1 : mRttMinUs / 1000.0;
+    }
+
+    /**
+     * @return What arrived per second, in kbit/s, or 0 if the link was never up. That's what the
+     *     peer sent, not what the link could have carried.
+     */
+    public synchronized double getReceiveKbps() {
+        return kbps(mBytesReceived);
+    }
+
+    /** @return What we sent per second, in kbit/s, or 0 if the link was never up. */
+    public synchronized double getSendKbps() {
+        return kbps(mBytesSent);
+    }
+
+    synchronized long getRttSumUs() {
+        return mRttSumUs;
+    }
+
+    synchronized long getRttMinUs() {
+        return mRttMinUs;
+    }
+
+    synchronized long getTransitSumUs() {
+        return mTransitSumUs;
+    }
+
+    private double kbps(long bytes) {
+        long durationMs = getDurationMsLocked();
+        return durationMs == 0 ? 0 : bytes * 8.0 / durationMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                Locale.US,
+                "LinkStats{calls=%d, %ds, tx=%.1fkbps, rx=%.1fkbps, rtt=%.1fms (min %.1fms, n=%d),"
+                        + " transit=%.1fms (n=%d), cpu=%.1f%%}",
+                mCalls,
+                getDurationMsLocked() / 1000,
+                getSendKbps(),
+                getReceiveKbps(),
+                getMeanRttMs(),
+                getMinRttMs(),
+                mRttCount,
+                getMeanTransitMs(),
+                mTransitCount,
+                getCpuPercent());
+    }
+}
@@ -0,0 +1,103 @@
+package uz.kosmostar.vokall;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Running totals of {@link LinkStats}, kept across launches: per {@link CallType}, so which
+ * strategy to call with can be decided from how each has actually done on this device, and per
+ * {@link Transport} and the {@link Transport.Quality bandwidth quality} Nearby gave the link, so
+ * the two ways of carrying audio can be compared on links that were about as good.
+ *
+ * <p>Like {@link TrustedPeerStore}, everything is read once into memory, here the first time it's
+ * asked for, and changes are written back in the background.
+ */
+public class LinkStatsStore {
+    private static final String PREFS_NAME = "link_stats";
+
+    private final SharedPreferences mPrefs;
+
+    /** By the prefix their keys start with. */
+    private final Map<String, LinkStats> mTotals = new HashMap<>();
+
+    public LinkStatsStore(Context context) {
+        this(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+    }
+
+    LinkStatsStore(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    /** Adds a finished call's numbers to the totals for its type. */
+    public void record(CallType type, LinkStats call) {
+        record(prefix(type), call);
+    }
+
+    /** Adds the numbers for part of a call, while it used this transport at this quality. */
+    public void record(Transport transport, Transport.Quality quality, LinkStats call) {
+        record(prefix(transport, quality), call);
+    }
+
+    /** @return The totals for every call of this type so far. */
+    public LinkStats get(CallType type) {
+        return get(prefix(type));
+    }
+
+    /** @return The totals for every call that used this transport at this quality so far. */
+    public LinkStats get(Transport transport, Transport.Quality quality) {
+        return get(prefix(transport, quality));
+    }
+
+    private static String prefix(CallType type) {
+        return type.name() + ".";
+    }
+
+    private static String prefix(Transport transport, Transport.Quality quality) {
+        return "transport." + transport.name() + "." + quality.name() + ".";
+    }
+
+    private synchronized void record(String prefix, LinkStats call) {
+        LinkStats total = totals(prefix);
+        total.add(call);
+        mPrefs.edit()
+                .putInt(prefix + "calls", total.getCalls())
+                .putLong(prefix + "duration_ms", total.getDurationMs())
+                .putLong(prefix + "bytes_sent", total.getBytesSent())
+                .putLong(prefix + "bytes_received", total.getBytesReceived())
+                .putLong(prefix + "rtt_count", total.getRttCount())
+                .putLong(prefix + "rtt_sum_us", total.getRttSumUs())
+                .putLong(prefix + "rtt_min_us", total.getRttMinUs())
+                .putLong(prefix + "transit_count", total.getTransitCount())
+                .putLong(prefix + "transit_sum_us", total.getTransitSumUs())
+                .putLong(prefix + "cpu_ms", total.getCpuMs())
+                .apply();
+    }
+
+    private synchronized LinkStats get(String prefix) {
+        LinkStats copy = new LinkStats();
+        copy.add(totals(prefix));
+        return copy;
+    }
+
+    private LinkStats totals(String prefix) {
+        LinkStats total = mTotals.get(prefix);
+        if (total == null) {
+            total =
+                    new LinkStats(
+                            mPrefs.getInt(prefix + "calls", 0),
+                            mPrefs.getLong(prefix + "duration_ms", 0),
+                            mPrefs.getLong(prefix + "bytes_sent", 0),
+                            mPrefs.getLong(prefix + "bytes_received", 0),
+                            mPrefs.getLong(prefix + "rtt_count", 0),
+                            mPrefs.getLong(prefix + "rtt_sum_us", 0),
+                            mPrefs.getLong(prefix + "rtt_min_us", Long.MAX_VALUE),
+                            mPrefs.getLong(prefix + "transit_count", 0),
+                            mPrefs.getLong(prefix + "transit_sum_us", 0),
+                            mPrefs.getLong(prefix + "cpu_ms", 0));
+            mTotals.put(prefix, total);
+        }
+        return total;
+    }
+}
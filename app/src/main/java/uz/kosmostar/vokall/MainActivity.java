@@ -3,16 +3,19 @@ package uz.kosmostar.vokall;
 import android.Manifest;
 import android.animation.Animator;
 import android.animation.ObjectAnimator;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.media.AudioManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
+import android.os.IBinder;
+import android.util.Log;
 import androidx.annotation.ColorInt;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
-import androidx.annotation.WorkerThread;
 import androidx.core.content.ContextCompat;
 import androidx.core.view.ViewCompat;
 import androidx.recyclerview.widget.RecyclerView;
@@ -22,53 +25,38 @@ import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.text.method.ScrollingMovementMethod;
 import android.text.style.ForegroundColorSpan;
-import android.transition.AutoTransition;
 import android.transition.ChangeBounds;
 import android.transition.Fade;
-import android.transition.Transition;
 import android.transition.TransitionManager;
 import android.transition.TransitionSet;
 import android.view.KeyEvent;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewAnimationUtils;
 import android.view.ViewGroup;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
-import com.google.android.gms.nearby.connection.ConnectionInfo;
-import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.Strategy;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.card.MaterialCardView;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import uz.kosmostar.vokall.BuildConfig;
-
-import java.io.IOException;
-import java.util.Random;
+import uz.kosmostar.vokall.CallService.State;
+import uz.kosmostar.vokall.ConnectionsService.Endpoint;
 
 /**
- * Our WalkieTalkie Activity. This Activity has 3 {@link State}s.
- *
- * <p>{@link State#UNKNOWN}: We cannot do anything while we're in this state. The app is likely in
- * the background.
- *
- * <p>{@link State#SEARCHING}: Our default state (after we've connected). We constantly listen for a
- * device to advertise near us, while simultaneously advertising ourselves.
+ * Our WalkieTalkie Activity. The call itself runs in {@link CallService}, so it keeps going when
+ * this Activity stops; this only shows the service's {@link State} and passes on what the user
+ * taps.
  *
- * <p>{@link State#CONNECTED}: We've connected to another device and can now talk to them by holding
- * down the volume keys and speaking into the phone. Advertising and discovery have both stopped.
+ * <p>On start we start the service and bind to it. When we stop we unbind. If there's no call, the
+ * service stops too; if there is, it carries on in the foreground until the call ends.
  */
-public class MainActivity extends ConnectionsActivity {
+public class MainActivity extends ConnectionsActivity implements CallService.Listener {
     /** If true, debug logs are shown on the device. */
     private boolean DEBUG = BuildConfig.DEBUG;
 
-    /**
-     * The connection strategy we'll use for Nearby Connections. In this case, we've decided on
-     * P2P_STAR, which is a combination of Bluetooth Classic and WiFi Hotspots.
-     */
-    private static final Strategy STRATEGY = Strategy.P2P_STAR;
-
     /** Length of state change animations. */
     private static final long ANIMATION_DURATION = 600;
 
@@ -90,21 +78,11 @@ public class MainActivity extends ConnectionsActivity {
                     R.color.color7,
             };
 
-    /**
-     * This service id lets us find other nearby devices that are interested in the same thing. Our
-     * sample does exactly one thing, so we hardcode the ID.
-     */
-    private static final String SERVICE_ID =
-            "uz.kosmostar.vokall.manual.SERVICE_ID";
-
-    /**
-     * The state of the app. As the app changes states, the UI will update and advertising/discovery
-     * will start/stop.
-     */
+    /** The state we're showing. Follows the service's, one step behind while animating. */
     private State mState = State.UNKNOWN;
 
-    /** A random UID used as this device's endpoint name. */
-    private String mName;
+    /** The service running the call, while we're bound to it. */
+    @Nullable private CallService mService;
 
     /**
      * The background color of the 'CONNECTED' state. This is randomly chosen from the {@link #COLORS}
@@ -126,6 +104,7 @@ public class MainActivity extends ConnectionsActivity {
     private TextView mDebugLogView;
 
 
+    private TextView mCallTypeView;
     private com.google.android.material.card.MaterialCardView mStatusCard;
     private android.widget.ImageView mStatusIcon;
     private View mControlBar;
@@ -133,33 +112,36 @@ public class MainActivity extends ConnectionsActivity {
     private RecyclerView mDevicesRecyclerView;
     private DeviceAdapter mDeviceAdapter;
     private androidx.appcompat.app.AlertDialog mIncomingCallDialog;
+    @Nullable private Endpoint mIncomingCall;
     private MaterialButton muteBtnOn;
     private MaterialButton muteBtnOff;
     private MaterialButton speakerButtonOn;
     private MaterialButton speakerButtonOff;
+    private MaterialButton pushToTalkBtnOn;
+    private MaterialButton pushToTalkBtnOff;
 
-    // Inside MainActivity.java
-    private boolean mIsMuted = false;
-    private boolean mIsSpeakerPhoneOn = true; // Default to speaker
+    /** Held down to record a voice message. Only there when we're not on a call. */
+    private MaterialButton mVoiceMessageButton;
 
+    /** How a voice message on its way in or out is getting on. */
+    private TextView mVoiceMessageStatusView;
 
-    /** For recording audio as the user speaks. */
-    @Nullable private AudioRecorder mRecorder;
+    /** Shown for as long as the call is being recorded. */
+    private TextView mCallRecordingView;
 
-    /** For playing audio from other users nearby. */
-    @Nullable private AudioPlayer mAudioPlayer;
+    /** Held down to talk in push-to-talk mode. Shows who has the floor. */
+    private android.widget.ImageView mPushToTalkView;
+
+    private boolean mIsSpeakerPhoneOn = true; // Default to speaker
 
-    /** The phone's original media volume. */
-    private int mOriginalVolume;
-    private int mOriginalMode = AudioManager.MODE_NORMAL;
     private int mStatusClickCount = 0;
     private long mLastStatusClickTime = 0;
 
     private final androidx.activity.OnBackPressedCallback mBackCallback = new androidx.activity.OnBackPressedCallback(true) {
         @Override
         public void handleOnBackPressed() {
-            if (getState() == State.CONNECTED) {
-                setState(State.SEARCHING);
+            if (mService != null && mService.isInCall()) {
+                mService.hangUp();
             } else {
                 setEnabled(false);
                 getOnBackPressedDispatcher().onBackPressed();
@@ -167,6 +149,22 @@ public class MainActivity extends ConnectionsActivity {
         }
     };
 
+    /** Hooks us up to {@link CallService} once it's bound. */
+    private final ServiceConnection mServiceConnection =
+            new ServiceConnection() {
+                @Override
+                public void onServiceConnected(ComponentName name, IBinder binder) {
+                    mService = ((CallService.LocalBinder) binder).getService();
+                    mService.addListener(MainActivity.this);
+                    syncWithService(mService);
+                }
+
+                @Override
+                public void onServiceDisconnected(ComponentName name) {
+                    mService = null;
+                }
+            };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -180,10 +178,6 @@ public class MainActivity extends ConnectionsActivity {
         setupAudioButtons();
         setupDeviceList();
 
-
-        mName = generateRandomName();
-        ((TextView) findViewById(R.id.name)).setText(mName);
-
         getOnBackPressedDispatcher().addCallback(this, mBackCallback);
     }
 
@@ -192,6 +186,10 @@ public class MainActivity extends ConnectionsActivity {
         mPreviousStateView = findViewById(R.id.previous_state);
         mCurrentStateView = findViewById(R.id.current_state);
         mStatusCard = findViewById(R.id.status_card);
+        mStatusCard.setOnLongClickListener(v -> onStatusLongClicked());
+        mCallTypeView = findViewById(R.id.call_type);
+        mCallTypeView.setOnClickListener(v -> onCallTypeClicked());
+        mCallTypeView.setOnLongClickListener(v -> onCallTypeLongClicked());
         mStatusIcon = findViewById(R.id.status_icon);
         mControlBar = findViewById(R.id.control_bar);
         mDebugLogView = findViewById(R.id.debug_log);
@@ -209,30 +207,119 @@ public class MainActivity extends ConnectionsActivity {
         muteBtnOff = findViewById(R.id.btn_mute_off);
         muteBtnOn.setOnClickListener(v -> onMuteClicked());
         muteBtnOff.setOnClickListener(v -> onMuteClicked());
+        muteBtnOn.setOnLongClickListener(v -> onNoiseSuppressionLongClicked());
+        muteBtnOff.setOnLongClickListener(v -> onNoiseSuppressionLongClicked());
 
         speakerButtonOn = findViewById(R.id.btn_speaker);
         speakerButtonOff = findViewById(R.id.btn_earpiece);
         speakerButtonOn.setOnClickListener(v -> onToggleSpeakerClicked());
         speakerButtonOff.setOnClickListener(v -> onToggleSpeakerClicked());
+        speakerButtonOn.setOnLongClickListener(v -> onCallRecordingLongClicked());
+        speakerButtonOff.setOnLongClickListener(v -> onCallRecordingLongClicked());
+
+        pushToTalkBtnOn = findViewById(R.id.btn_push_to_talk_on);
+        pushToTalkBtnOff = findViewById(R.id.btn_push_to_talk_off);
+        pushToTalkBtnOn.setOnClickListener(v -> onPushToTalkClicked());
+        pushToTalkBtnOff.setOnClickListener(v -> onPushToTalkClicked());
+        pushToTalkBtnOn.setOnLongClickListener(v -> onTransportLongClicked());
+        pushToTalkBtnOff.setOnLongClickListener(v -> onTransportLongClicked());
+
+        mPushToTalkView = findViewById(R.id.push_to_talk);
+        mPushToTalkView.setOnTouchListener((v, event) -> {
+            if (mService == null || !mService.isPushToTalk()) return false;
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    v.setPressed(true);
+                    mService.startTalking();
+                    return true;
+                case MotionEvent.ACTION_UP:
+                    v.performClick();
+                    // Fall through
+                case MotionEvent.ACTION_CANCEL:
+                    v.setPressed(false);
+                    mService.stopTalking();
+                    return true;
+                default:
+                    return true;
+            }
+        });
+
+        mVoiceMessageStatusView = findViewById(R.id.voice_message_status);
+        mCallRecordingView = findViewById(R.id.call_recording_status);
+        mVoiceMessageButton = findViewById(R.id.btn_voice_message);
+        mVoiceMessageButton.setOnTouchListener((v, event) -> {
+            if (mService == null) return false;
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    if (!mService.startVoiceMessage()) {
+                        Toast.makeText(
+                                        this,
+                                        R.string.toast_voice_message_unavailable,
+                                        Toast.LENGTH_SHORT)
+                                .show();
+                        return false;
+                    }
+                    v.setPressed(true);
+                    return true;
+                case MotionEvent.ACTION_UP:
+                    v.performClick();
+                    // Fall through
+                case MotionEvent.ACTION_CANCEL:
+                    v.setPressed(false);
+                    if (mService.isRecordingVoiceMessage()) {
+                        mService.finishVoiceMessage();
+                        Toast.makeText(
+                                        this,
+                                        R.string.toast_voice_message_recorded,
+                                        Toast.LENGTH_SHORT)
+                                .show();
+                    }
+                    return true;
+                default:
+                    return true;
+            }
+        });
 
         MaterialButton endCallBtn = findViewById(R.id.btn_disconnect);
         endCallBtn.setOnClickListener(v -> {
-            disconnectFromAllEndpoints();
-            setState(State.SEARCHING);
+            if (mService != null) mService.hangUp();
         });
     }
 
     private void setupDeviceList() {
         mDeviceAdapter = new DeviceAdapter(endpoint -> {
+            if (mService == null) return;
             // User clicked a device to call
             updateTextView(mCurrentStateView, State.CONNECTED); // Temporarily until established
             mCurrentStateView.setText("Sending request to " + endpoint.getName() + "...");
             mStatusIcon.setImageResource(R.drawable.settings_phone_24px);
-            connectToEndpoint(endpoint);
-        });
+            mService.call(endpoint);
+        }, this::onDeviceLongClicked);
         mDevicesRecyclerView.setAdapter(mDeviceAdapter);
     }
 
+    /** Offers to stop answering a device without asking, if we do. */
+    private boolean onDeviceLongClicked(Endpoint endpoint) {
+        if (mService == null) return false;
+        if (!mService.isTrusted(endpoint)) {
+            Toast.makeText(
+                            this,
+                            getString(R.string.toast_device_not_trusted, endpoint.getName()),
+                            Toast.LENGTH_SHORT)
+                    .show();
+            return true;
+        }
+        new MaterialAlertDialogBuilder(this)
+                .setTitle(getString(R.string.forget_device_title, endpoint.getName()))
+                .setMessage(R.string.forget_device_message)
+                .setPositiveButton(R.string.forget_device, (dialog, which) -> {
+                    if (mService != null) mService.forget(endpoint);
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+        return true;
+    }
+
     public void onStatusClick(View view) {
         long currentTime = System.currentTimeMillis();
 
@@ -256,40 +343,27 @@ public class MainActivity extends ConnectionsActivity {
         super.onStart();
         if(!hasPermissions(this, getRequiredPermissions()))return;
 
-        // Set the media volume to max.
         setVolumeControlStream(AudioManager.STREAM_VOICE_CALL);
         AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        if (mState == State.UNKNOWN) {
-            mOriginalVolume = audioManager.getStreamVolume(AudioManager.STREAM_VOICE_CALL);
-            mOriginalMode = audioManager.getMode();
-        }
-        audioManager.setStreamVolume(
-                AudioManager.STREAM_VOICE_CALL, audioManager.getStreamMaxVolume(AudioManager.STREAM_VOICE_CALL), 0);
-
-        setVolumeControlStream(AudioManager.STREAM_VOICE_CALL);
         audioManager.setSpeakerphoneOn(mIsSpeakerPhoneOn);
 
-        setState(State.SEARCHING);
+        // Started as well as bound, so the call can outlive us.
+        Intent intent = new Intent(this, CallService.class);
+        ContextCompat.startForegroundService(this, intent);
+        bindService(intent, mServiceConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onStop() {
-        // Restore the original volume.
-        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        audioManager.setStreamVolume(AudioManager.STREAM_VOICE_CALL, mOriginalVolume, 0);
-        setVolumeControlStream(AudioManager.USE_DEFAULT_STREAM_TYPE);
-        audioManager.setMode(mOriginalMode);
-
-        // Stop all audio-related threads
-        if (isRecording()) {
-            stopRecording();
-        }
-        if (isPlaying()) {
-            stopPlaying();
+        if (mService != null) {
+            // We won't see the key or finger come up now.
+            mService.stopTalking();
+            mService.removeListener(this);
+            mService = null;
+            unbindService(mServiceConnection);
         }
-
-        // After our Activity stops, we disconnect from Nearby Connections.
-        setState(State.UNKNOWN);
+        setVolumeControlStream(AudioManager.USE_DEFAULT_STREAM_TYPE);
+        dismissIncomingCallDialog();
 
         if (mCurrentAnimator != null && mCurrentAnimator.isRunning()) {
             mCurrentAnimator.cancel();
@@ -298,147 +372,139 @@ public class MainActivity extends ConnectionsActivity {
         super.onStop();
     }
 
-    @Override
-    protected void onEndpointDiscovered(Endpoint endpoint) {
-        runOnUiThread(() -> mDeviceAdapter.addDevice(endpoint));
+    /** Catches up with whatever the service did while we weren't watching. */
+    private void syncWithService(CallService service) {
+        ((TextView) findViewById(R.id.name)).setText(service.getName());
+        updateMuteButtons(service.isMuted());
+        updatePushToTalkButtons(service.isPushToTalk());
+        mCallTypeView.setText(service.getCallType().getLabel());
+        onFloorStateChanged(service.getFloorState());
+        onCallRecordingChanged(service.isRecordingCall());
+
+        mDeviceAdapter.clear();
+        for (Endpoint endpoint : service.getNearbyEndpoints()) {
+            mDeviceAdapter.addDevice(endpoint);
+        }
+        if (service.getState() != mState) {
+            onStateChanged(mState, service.getState());
+        }
+        Endpoint incomingCall = service.getIncomingCall();
+        if (incomingCall != null) {
+            showIncomingCallDialog(incomingCall);
+        }
     }
 
     @Override
-    protected void onConnectionInitiated(Endpoint endpoint, ConnectionInfo connectionInfo) {
-        // NEW: Check if incoming or outgoing
-        if (connectionInfo.isIncomingConnection()) {
-            // Show Dialog to Answer/Reject
-            runOnUiThread(() -> showIncomingCallDialog(endpoint));
-        } else {
-            // We initiated the call. We must accept the handshake to finalize connection.
-            acceptConnection(endpoint);
-            // Optionally update UI to show "Calling..."
-            updateTextView(mCurrentStateView, State.CONNECTED); // Temporarily until established
-            mCurrentStateView.setText("Calling " + endpoint.getName() + "...");
-        }
+    public void onEndpointDiscovered(Endpoint endpoint) {
+        mDeviceAdapter.addDevice(endpoint);
     }
 
-    private void showIncomingCallDialog(Endpoint endpoint) {
-        mIncomingCallDialog = new MaterialAlertDialogBuilder(this)
-                .setTitle("Incoming Call")
-                .setMessage("From: "+endpoint.getName())
-                .setIcon(R.drawable.phone_callback_24px)
-                .setCancelable(false)
-                .setPositiveButton("Answer", (dialog, which) -> {
-                    acceptConnection(endpoint);
-                })
-                .setNegativeButton("Decline", (dialog, which) -> {
-                    rejectConnection(endpoint);
-                })
-                .show();
+    @Override
+    public void onEndpointLost(String endpointId) {
+        mDeviceAdapter.removeDevice(endpointId);
     }
 
-
     @Override
-    protected void onEndpointConnected(Endpoint endpoint) {
-        if (mIncomingCallDialog != null && mIncomingCallDialog.isShowing()) {
-            mIncomingCallDialog.dismiss();
-        }
-
-        // Pick color based on auth token
-        mConnectedColor = COLORS[endpoint.getId().hashCode() % COLORS.length];
-
-        Toast.makeText(this, "Connected to " + endpoint.getName(), Toast.LENGTH_SHORT).show();
-        setState(State.CONNECTED);
+    public void onCalling(Endpoint endpoint) {
+        // Optionally update UI to show "Calling..."
+        updateTextView(mCurrentStateView, State.CONNECTED); // Temporarily until established
+        mCurrentStateView.setText("Calling " + endpoint.getName() + "...");
     }
 
     @Override
-    protected void onEndpointLost(String endpointId) {
-        runOnUiThread(() -> mDeviceAdapter.removeDevice(endpointId));
+    public void onCallFailed(Endpoint endpoint) {
+        updateTextView(mCurrentStateView, mState);
     }
 
     @Override
-    protected void onEndpointDisconnected(Endpoint endpoint) {
-        if (mIncomingCallDialog != null && mIncomingCallDialog.isShowing()) {
-            mIncomingCallDialog.dismiss();
-        }
-        Toast.makeText(this, getString(R.string.toast_disconnected, endpoint.getName()), Toast.LENGTH_SHORT).show();
-        stopRecording();
-        stopPlaying();
-        setState(State.SEARCHING);
-        updateTextView(mCurrentStateView, State.SEARCHING);
+    public void onIncomingCall(Endpoint endpoint) {
+        showIncomingCallDialog(endpoint);
     }
 
     @Override
-    protected void onConnectionFailed(Endpoint endpoint) {
-        if (mIncomingCallDialog != null && mIncomingCallDialog.isShowing()) {
-            mIncomingCallDialog.dismiss();
+    public void onIncomingCallEnded(Endpoint endpoint) {
+        if (endpoint.equals(mIncomingCall)) {
+            dismissIncomingCallDialog();
         }
-        Toast.makeText(this, "Connection failed", Toast.LENGTH_SHORT).show();
-        setState(State.SEARCHING);
-        updateTextView(mCurrentStateView, State.SEARCHING);
     }
 
-    /**
-     * The state has changed. I wonder what we'll be doing now.
-     *
-     * @param state The new state.
-     */
-    private void setState(State state) {
-        if (mState == state) {
-            logW("State set to " + state + " but already in that state");
-            return;
+    private void showIncomingCallDialog(Endpoint endpoint) {
+        dismissIncomingCallDialog();
+        mIncomingCall = endpoint;
+        MaterialAlertDialogBuilder builder = new MaterialAlertDialogBuilder(this)
+                .setTitle("Incoming Call")
+                .setMessage("From: "+endpoint.getName())
+                .setIcon(R.drawable.phone_callback_24px)
+                .setCancelable(false)
+                .setPositiveButton("Answer", (dialog, which) -> {
+                    if (mService != null) mService.answer(endpoint);
+                })
+                .setNegativeButton("Decline", (dialog, which) -> {
+                    if (mService != null) mService.decline(endpoint);
+                });
+        if (endpoint.getInfo().supportsPairing()) {
+            builder.setNeutralButton("Always answer", (dialog, which) -> {
+                if (mService != null) mService.alwaysAnswer(endpoint);
+            });
         }
-
-        logD("State set to " + state);
-        State oldState = mState;
-        mState = state;
-        onStateChanged(oldState, state);
+        mIncomingCallDialog = builder.show();
     }
 
-    /** @return The current state. */
-    private State getState() {
-        return mState;
+    private void dismissIncomingCallDialog() {
+        mIncomingCall = null;
+        if (mIncomingCallDialog != null && mIncomingCallDialog.isShowing()) {
+            mIncomingCallDialog.dismiss();
+        }
     }
 
     /**
-     * State has changed.
+     * The service's state has changed. Shows the new one.
      *
-     * @param oldState The previous state we were in. Clean up anything related to this state.
+     * @param oldState The previous state we were in.
      * @param newState The new state we're now in. Prepare the UI for this state.
      */
-    private void onStateChanged(State oldState, State newState) {
-        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+    @Override
+    public void onStateChanged(State oldState, State newState) {
+        // We may have missed some changes while stopped; animate from what we last showed.
+        oldState = mState;
+        mState = newState;
         if (mCurrentAnimator != null && mCurrentAnimator.isRunning()) {
             mCurrentAnimator.cancel();
         }
-        mBackCallback.setEnabled(newState == State.CONNECTED);
+        mBackCallback.setEnabled(newState == State.CONNECTED || newState == State.RECONNECTING);
 
         LinearLayout controlBar = findViewById(R.id.control_bar);
+        mVoiceMessageButton.setVisibility(
+                newState == State.SEARCHING || newState == State.UNKNOWN
+                        ? View.VISIBLE
+                        : View.GONE);
 
-        // Update Nearby Connections to the new state.
         switch (newState) {
             case SEARCHING:
-                audioManager.setMode(AudioManager.MODE_NORMAL);
-
                 // Show List, Hide Controls
                 mDevicesRecyclerView.setVisibility(View.VISIBLE);
 
-                mDeviceAdapter.clear(); // Clear old list, discovery restarts
+                if (oldState != State.UNKNOWN) {
+                    mDeviceAdapter.clear(); // Clear old list, discovery restarts
+                }
 
                 setControlBarVisible(controlBar, false);
-                disconnectFromAllEndpoints();
-                startDiscovering();
-                startAdvertising();
                 break;
             case CONNECTED:
-                audioManager.setMode(AudioManager.MODE_IN_COMMUNICATION);
+                if (mService != null && mService.getPeer() != null) {
+                    // Pick color based on auth token
+                    mConnectedColor =
+                            COLORS[Math.abs(mService.getPeer().getId().hashCode() % COLORS.length)];
+                }
                 setControlBarVisible(controlBar, true);
                 mDevicesRecyclerView.setVisibility(View.GONE); // TODO: ANIMATE THIS
-                stopDiscovering();
-                stopAdvertising();
-                startRecording();
+                break;
+            case RECONNECTING:
+                setControlBarVisible(controlBar, true);
+                mDevicesRecyclerView.setVisibility(View.GONE);
                 break;
             case UNKNOWN:
-                audioManager.setMode(mOriginalMode);
                 setControlBarVisible(controlBar, false);
-                stopAllEndpoints();
-                stopRecording();
                 break;
             default:
                 // no-op
@@ -470,6 +536,13 @@ public class MainActivity extends ConnectionsActivity {
                 // we're transitioning backwards.
                 transitionBackward(oldState, newState);
                 break;
+            case RECONNECTING:
+                if (newState == State.CONNECTED) {
+                    transitionForward(oldState, newState);
+                } else {
+                    transitionBackward(oldState, newState);
+                }
+                break;
         }
     }
 
@@ -596,6 +669,11 @@ public class MainActivity extends ConnectionsActivity {
                 iconRes = R.drawable.wifi_calling_bar_3_24px;
                 statusText = getString(R.string.status_connected);
                 break;
+            case RECONNECTING:
+                color = ContextCompat.getColor(this, R.color.md_theme_tertiaryContainer);
+                iconRes = R.drawable.settings_phone_24px;
+                statusText = getString(R.string.status_reconnecting);
+                break;
             default:
                 color = ContextCompat.getColor(this, R.color.md_theme_tertiaryContainer);
                 iconRes = R.drawable.android_wifi_3_bar_question_24px;
@@ -613,132 +691,260 @@ public class MainActivity extends ConnectionsActivity {
         }
     }
 
-    /** {@see ConnectionsActivity#onReceive(Endpoint, Payload)} */
-    @Override
-    protected void onReceive(Endpoint endpoint, Payload payload) {
-        if (getState() != State.CONNECTED) {
-            final Endpoint finalEndpoint = endpoint;
-            runOnUiThread(() -> {
-                if (getState() != State.CONNECTED) {
-                    onEndpointConnected(finalEndpoint);
-                }
-            });
-        }
-        // We now handle BYTES instead of STREAM
-        if (payload.getType() == Payload.Type.BYTES) {
-            if (mAudioPlayer != null && mAudioPlayer.isPlaying()) {
-                mAudioPlayer.addAudioData(payload.asBytes());
-            } else if (mAudioPlayer == null) {
-                // Initialize player if not running (or handle auto-start logic)
-                mAudioPlayer = new AudioPlayer();
-                mAudioPlayer.start();
-                mAudioPlayer.addAudioData(payload.asBytes());
-            }
-        }
+    /** Toggles the Mute state */
+    public void onMuteClicked() {
+        if (mService == null) return;
+        mService.setMuted(!mService.isMuted());
+        updateMuteButtons(mService.isMuted());
     }
 
-    /** Stops all currently streaming audio tracks. */
-    private void stopPlaying() {
-        logV("stopPlaying()");
-        if (mAudioPlayer != null) {
-            mAudioPlayer.stop();
-            mAudioPlayer = null;
-        }
+    private void updateMuteButtons(boolean muted) {
+        muteBtnOn.setVisibility(muted ? View.VISIBLE : View.GONE);
+        muteBtnOff.setVisibility(!muted ? View.VISIBLE : View.GONE);
     }
 
-    /** @return True if currently playing. */
-    private boolean isPlaying() {
-        return mAudioPlayer != null;
+    /** Cycles through the noise suppression modes. Takes effect straight away if we're in a call. */
+    private boolean onNoiseSuppressionLongClicked() {
+        if (mService == null) return true;
+        AudioRecorder.NoiseSuppression[] modes = AudioRecorder.NoiseSuppression.values();
+        AudioRecorder.NoiseSuppression mode =
+                modes[(mService.getNoiseSuppression().ordinal() + 1) % modes.length];
+        mService.setNoiseSuppression(mode);
+        Toast.makeText(
+                        this,
+                        getString(R.string.toast_noise_suppression, getString(mode.getLabel())),
+                        Toast.LENGTH_SHORT)
+                .show();
+        return true;
     }
 
-    /** Toggles the Mute state */
-    public void onMuteClicked() {
-        mIsMuted = !mIsMuted;
-        muteBtnOn.setVisibility(mIsMuted ? View.VISIBLE : View.GONE);
-        muteBtnOff.setVisibility(!mIsMuted ? View.VISIBLE : View.GONE);
-        if (mRecorder != null) mRecorder.setMuted(mIsMuted);
+    /**
+     * Moves on to the next kind of call, and says how calls of that kind have gone on this device,
+     * so the user can pick the one that works best here.
+     */
+    public void onCallTypeClicked() {
+        if (mService == null) return;
+        CallType callType = mService.getCallType().next();
+        mService.setCallType(callType);
+        mCallTypeView.setText(callType.getLabel());
+
+        LinkStats stats = mService.getLinkStats(callType);
+        String label = getString(callType.getLabel());
+        String message = stats.getRttCount() == 0
+                ? getString(R.string.toast_call_type_no_stats, label)
+                : getString(R.string.toast_call_type_stats,
+                        label, stats.getCalls(), stats.getMeanRttMs());
+        Toast.makeText(this, message, Toast.LENGTH_LONG).show();
     }
 
-    /** Toggles between Speaker and Earpiece */
-    public void onToggleSpeakerClicked() {
-        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        mIsSpeakerPhoneOn = !mIsSpeakerPhoneOn;
+    /** Turns relaying for mesh calls on or off. */
+    public boolean onCallTypeLongClicked() {
+        if (mService == null) return false;
+        boolean meshRelay = !mService.isMeshRelay();
+        mService.setMeshRelay(meshRelay);
+        Toast.makeText(
+                        this,
+                        meshRelay ? R.string.toast_mesh_relay_on : R.string.toast_mesh_relay_off,
+                        Toast.LENGTH_LONG)
+                .show();
+        return true;
+    }
 
-        audioManager.setSpeakerphoneOn(mIsSpeakerPhoneOn);
+    /** Turns tracing what we receive during calls on or off, for looking into bad calls. */
+    public boolean onStatusLongClicked() {
+        if (mService == null) return false;
+        boolean packetTrace = !mService.isPacketTrace();
+        mService.setPacketTrace(packetTrace);
+        Toast.makeText(
+                        this,
+                        packetTrace
+                                ? R.string.toast_packet_trace_on
+                                : R.string.toast_packet_trace_off,
+                        Toast.LENGTH_LONG)
+                .show();
+        return true;
+    }
 
-        speakerButtonOn.setVisibility(mIsSpeakerPhoneOn ? View.VISIBLE : View.GONE);
-        speakerButtonOff.setVisibility(!mIsSpeakerPhoneOn ? View.VISIBLE : View.GONE);
+    /** Turns recording calls on or off. */
+    public boolean onCallRecordingLongClicked() {
+        if (mService == null) return false;
+        boolean callRecording = !mService.isCallRecording();
+        mService.setCallRecording(callRecording);
+        Toast.makeText(
+                        this,
+                        callRecording
+                                ? R.string.toast_call_recording_on
+                                : R.string.toast_call_recording_off,
+                        Toast.LENGTH_LONG)
+                .show();
+        return true;
     }
 
-    /** Starts recording sound from the microphone and streaming it to all connected devices. */
-    private void startRecording() {
-        logV("startRecording()");
+    /**
+     * Moves on to the next way of carrying audio, and says how calls that used it have gone on
+     * each link quality Nearby reports, so the two can be compared on this device.
+     */
+    public boolean onTransportLongClicked() {
+        if (mService == null) return false;
+        Transport transport = mService.getTransport().next();
+        mService.setTransport(transport);
+        String message = getString(
+                R.string.toast_transport,
+                getString(transport.getLabel()),
+                describeTransportStats(transport, Transport.Quality.LOW),
+                describeTransportStats(transport, Transport.Quality.MEDIUM),
+                describeTransportStats(transport, Transport.Quality.HIGH));
+        Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+        return true;
+    }
 
-        // No more ParcelFileDescriptor pipe.
-        // We pass a callback that gets called whenever mic data is ready.
-        mRecorder = new AudioRecorder(new AudioRecorder.AudioDataCallback() {
-            @Override
-            public void onAudioData(byte[] data) {
-                // Send the byte array immediately as a payload
-                if (getState() == State.CONNECTED) {
-                    send(Payload.fromBytes(data));
-                }
-            }
-        });
+    private String describeTransportStats(Transport transport, Transport.Quality quality) {
+        LinkStats stats = mService.getLinkStats(transport, quality);
+        if (stats.getTransitCount() == 0) {
+            return getString(R.string.transport_no_stats);
+        }
+        return getString(R.string.transport_stats,
+                stats.getCalls(),
+                stats.getMeanTransitMs(),
+                stats.getMeanRttMs(),
+                stats.getReceiveKbps(),
+                stats.getCpuPercent());
+    }
 
-        mRecorder.setMuted(mIsMuted);
-        mRecorder.start();
+    /** Switches between talking freely and push-to-talk. */
+    public void onPushToTalkClicked() {
+        if (mService == null) return;
+        boolean pushToTalk = !mService.isPushToTalk();
+        mService.setPushToTalk(pushToTalk);
+        updatePushToTalkButtons(pushToTalk);
+        Toast.makeText(
+                        this,
+                        pushToTalk ? R.string.toast_push_to_talk_on : R.string.toast_push_to_talk_off,
+                        Toast.LENGTH_SHORT)
+                .show();
     }
 
-    /** Stops streaming sound from the microphone. */
-    private void stopRecording() {
-        logV("stopRecording()");
-        if (mRecorder != null) {
-            mRecorder.stop();
-            mRecorder = null;
-        }
+    private void updatePushToTalkButtons(boolean pushToTalk) {
+        pushToTalkBtnOn.setVisibility(pushToTalk ? View.VISIBLE : View.GONE);
+        pushToTalkBtnOff.setVisibility(!pushToTalk ? View.VISIBLE : View.GONE);
     }
 
-    /** @return True if currently streaming from the microphone. */
-    private boolean isRecording() {
-        return mRecorder != null && mRecorder.isRecording();
+    /** Shows how far a voice message has got, next to the state. */
+    @Override
+    public void onVoiceMessageProgress(
+            Endpoint endpoint, boolean incoming, long bytesTransferred, long totalBytes) {
+        int percent = totalBytes > 0 ? (int) (bytesTransferred * 100 / totalBytes) : 0;
+        int text = incoming ? R.string.voice_message_receiving : R.string.voice_message_sending;
+        mVoiceMessageStatusView.setText(getString(text, percent));
+        mVoiceMessageStatusView.setVisibility(View.VISIBLE);
     }
 
-    /** {@see ConnectionsActivity#getRequiredPermissions()} */
     @Override
-    protected String[] getRequiredPermissions() {
-        return join(
-                super.getRequiredPermissions(),
-                Manifest.permission.RECORD_AUDIO);
+    public void onVoiceMessageSent(Endpoint endpoint) {
+        mVoiceMessageStatusView.setVisibility(View.GONE);
+        Toast.makeText(
+                        this,
+                        getString(R.string.toast_voice_message_sent, endpoint.getName()),
+                        Toast.LENGTH_SHORT)
+                .show();
+    }
+
+    @Override
+    public void onVoiceMessageReceived(Endpoint endpoint, long durationMs, boolean waiting) {
+        mVoiceMessageStatusView.setVisibility(View.GONE);
+        Toast.makeText(
+                        this,
+                        getString(
+                                waiting
+                                        ? R.string.toast_voice_message_waiting
+                                        : R.string.toast_voice_message_received,
+                                endpoint.getName(),
+                                (int) Math.round(durationMs / 1000.0)),
+                        Toast.LENGTH_LONG)
+                .show();
     }
 
-    /** Joins 2 arrays together. */
-    private static String[] join(String[] a, String... b) {
-        String[] join = new String[a.length + b.length];
-        System.arraycopy(a, 0, join, 0, a.length);
-        System.arraycopy(b, 0, join, a.length, b.length);
-        return join;
+    @Override
+    public void onCallRecordingChanged(boolean recording) {
+        mCallRecordingView.setVisibility(recording ? View.VISIBLE : View.GONE);
     }
 
-    /**
-     * Queries the phone's contacts for their own profile, and returns their name. Used when
-     * connecting to another device.
-     */
+    /** Shows who has the floor on the push-to-talk button. */
     @Override
-    protected String getName() {
-        return mName;
+    public void onFloorStateChanged(FloorControl.State state) {
+        int color;
+        switch (state) {
+            case TALKING:
+                color = R.color.md_theme_primary;
+                break;
+            case REQUESTING:
+                color = R.color.md_theme_tertiary;
+                break;
+            case LISTENING:
+                color = R.color.md_theme_error;
+                break;
+            default:
+                color = R.color.md_theme_outline;
+                break;
+        }
+        mPushToTalkView.setColorFilter(ContextCompat.getColor(this, color));
     }
 
-    /** {@see ConnectionsActivity#getServiceId()} */
+    /** In push-to-talk mode, holding either volume key talks instead of changing the volume. */
     @Override
-    public String getServiceId() {
-        return SERVICE_ID;
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        if (isPushToTalkKey(keyCode)) {
+            if (event.getRepeatCount() == 0) {
+                mService.startTalking();
+            }
+            return true;
+        }
+        return super.onKeyDown(keyCode, event);
     }
 
-    /** {@see ConnectionsActivity#getStrategy()} */
     @Override
-    public Strategy getStrategy() {
-        return STRATEGY;
+    public boolean onKeyUp(int keyCode, KeyEvent event) {
+        if (isPushToTalkKey(keyCode)) {
+            mService.stopTalking();
+            return true;
+        }
+        return super.onKeyUp(keyCode, event);
+    }
+
+    /** @return True if this key should talk rather than do what it normally does. */
+    private boolean isPushToTalkKey(int keyCode) {
+        return (keyCode == KeyEvent.KEYCODE_VOLUME_UP || keyCode == KeyEvent.KEYCODE_VOLUME_DOWN)
+                && mService != null
+                && mService.isPushToTalk()
+                && mService.getState() == State.CONNECTED;
+    }
+
+    /** Toggles between Speaker and Earpiece */
+    public void onToggleSpeakerClicked() {
+        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        mIsSpeakerPhoneOn = !mIsSpeakerPhoneOn;
+
+        audioManager.setSpeakerphoneOn(mIsSpeakerPhoneOn);
+
+        speakerButtonOn.setVisibility(mIsSpeakerPhoneOn ? View.VISIBLE : View.GONE);
+        speakerButtonOff.setVisibility(!mIsSpeakerPhoneOn ? View.VISIBLE : View.GONE);
+    }
+
+    /** {@see ConnectionsActivity#getRequiredPermissions()} */
+    @Override
+    protected String[] getRequiredPermissions() {
+        return join(super.getRequiredPermissions(), Manifest.permission.RECORD_AUDIO);
+    }
+
+    /** {@see ConnectionsActivity#getOptionalPermissions()} */
+    @Override
+    protected String[] getOptionalPermissions() {
+        String[] permissions = super.getOptionalPermissions();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            // So the ongoing call notification shows. Calls still work without it.
+            permissions = join(permissions, Manifest.permission.POST_NOTIFICATIONS);
+        }
+        return permissions;
     }
 
     @Override
@@ -799,13 +1005,25 @@ public class MainActivity extends ConnectionsActivity {
         return spannable;
     }
 
-    private static String generateRandomName() {
-        String name = "";
-        Random random = new Random();
-        for (int i = 0; i < 5; i++) {
-            name += random.nextInt(10);
+    /** Shows the service's log lines in the debug view. */
+    @Override
+    public void onLog(int priority, String msg) {
+        int color;
+        switch (priority) {
+            case Log.VERBOSE:
+                color = R.color.log_verbose;
+                break;
+            case Log.DEBUG:
+                color = R.color.log_debug;
+                break;
+            case Log.WARN:
+                color = R.color.log_warning;
+                break;
+            default:
+                color = R.color.log_error;
+                break;
         }
-        return name;
+        appendToLogs(toColor(msg, getResources().getColor(color)));
     }
 
     /**
@@ -825,11 +1043,4 @@ public class MainActivity extends ConnectionsActivity {
         @Override
         public void onAnimationRepeat(Animator animator) {}
     }
-
-    /** States that the UI goes through. */
-    public enum State {
-        UNKNOWN,
-        SEARCHING,
-        CONNECTED
-    }
 }
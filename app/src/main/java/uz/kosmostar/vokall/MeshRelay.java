@@ -0,0 +1,171 @@
+package uz.kosmostar.vokall;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passes audio on across a {@link CallType#MESH mesh}, so devices that can't reach each other
+ * directly can still hear each other through the ones in between.
+ *
+ * <p>What we send goes out wrapped in a {@link Packet#TYPE_RELAY relay packet} that says who first
+ * sent it, their sequence number for it, how many more links it may cross, and how many it has.
+ * Each device that gets one it hasn't seen before plays it and, if it's relaying, sends it on to
+ * every neighbour but the one it came from, with one hop fewer left. Meshes have loops, so most
+ * devices get each packet more than once; a {@link DuplicateFilter} makes sure only the first copy
+ * counts. A packet that comes back to its origin is dropped.
+ *
+ * <p>This is plain flooding: every device passes every packet on once. It finds the shortest path
+ * without knowing the mesh's shape, and a device dropping out costs nothing more than the paths
+ * through it. The price is airtime, which grows with the number of links. Fine for the handful of
+ * devices a walkie-talkie call has, which rarely has more than one talker at a time.
+ *
+ * <p>Every hop adds its own delay and jitter, so {@link #playoutDelayMs(int)} says how much
+ * playout delay to aim for, given how far away the talker is.
+ *
+ * <p>{@link #originate(byte[])} may be called from any thread; the rest from one thread, normally
+ * the main thread.
+ */
+public class MeshRelay {
+    /** How many links a packet may cross. Enough for a chain of 11 devices. */
+    static final int DEFAULT_TTL = 10;
+
+    /** How much more playout delay we aim for per hop after the first. */
+    static final int HOP_PLAYOUT_DELAY_MS = 20;
+
+    /** The most playout delay we'll aim for, however far away the talker is. */
+    static final int MAX_PLAYOUT_DELAY_MS = 240;
+
+    /** Carries out what the relay decides. */
+    public interface Callback {
+        /**
+         * Sends a relay packet on.
+         *
+         * @param exceptId The neighbour it came from, which mustn't get it back.
+         */
+        void forward(byte[] packet, String exceptId);
+    }
+
+    private final int mNodeId;
+    private final Callback mCallback;
+    private final AtomicInteger mNextSeq = new AtomicInteger();
+    private final DuplicateFilter mFilter = new DuplicateFilter();
+
+    /** True to pass packets on, rather than only play them. */
+    private boolean mForwarding;
+
+    private final AtomicInteger mOriginated = new AtomicInteger();
+    private long mDelivered;
+    private long mForwarded;
+    private long mExpired;
+    private long mLooped;
+
+    /**
+     * @param nodeId Who we are in relay packets. Should be random, so it's different from every
+     *     other device's and from our own last time; see {@link DuplicateFilter}.
+     */
+    public MeshRelay(int nodeId, Callback callback) {
+        mNodeId = nodeId;
+        mCallback = callback;
+    }
+
+    public int getNodeId() {
+        return mNodeId;
+    }
+
+    /** Starts or stops passing packets on. Packets addressed to us are played either way. */
+    public void setForwarding(boolean forwarding) {
+        mForwarding = forwarding;
+    }
+
+    public boolean isForwarding() {
+        return mForwarding;
+    }
+
+    /** @return A packet of ours wrapped to go out to every neighbour. Safe from any thread. */
+    public byte[] originate(byte[] inner) {
+        mOriginated.incrementAndGet();
+        return Packet.relay(mNodeId, mNextSeq.getAndIncrement(), DEFAULT_TTL, 1, inner);
+    }
+
+    /**
+     * A relay packet arrived. Passes it on first if it should go further, so the next device isn't
+     * kept waiting on us playing it.
+     *
+     * @param fromId The neighbour it came from.
+     * @return True if it's new, and {@link Packet#getRelayed(byte[]) what it carries} should be
+     *     played. False if it's one we've seen, our own, or not a relay packet at all.
+     */
+    public boolean onReceive(String fromId, byte[] packet) {
+        if (!Packet.isRelay(packet)) {
+            return false;
+        }
+        int origin = Packet.getRelayOrigin(packet);
+        if (origin == mNodeId) {
+            mLooped++;
+            return false;
+        }
+        if (mFilter.accept(origin, Packet.getRelaySeq(packet)) != DuplicateFilter.Result.NEW) {
+            return false;
+        }
+        mDelivered++;
+        if (mForwarding) {
+            if (Packet.getRelayTtl(packet) > 1) {
+                mForwarded++;
+                mCallback.forward(Packet.relayed(packet), fromId);
+            } else {
+                mExpired++;
+            }
+        }
+        return true;
+    }
+
+    /** The call's over. Forgets who we've heard from. Keeps counting, so ours stay unique. */
+    public void reset() {
+        mFilter.clear();
+    }
+
+    /** @return How many packets we've played. */
+    public long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    /** @return How many packets we've passed on. */
+    public long getForwardedCount() {
+        return mForwarded;
+    }
+
+    /** @return How many packets we didn't pass on, having crossed as many links as they may. */
+    public long getExpiredCount() {
+        return mExpired;
+    }
+
+    /** @return How many copies we dropped because we'd already had the packet. */
+    public long getDuplicateCount() {
+        return mFilter.getDuplicateCount();
+    }
+
+    /**
+     * @param hops How many links the talker's audio crossed to get here.
+     * @return How much playout delay to aim for.
+     */
+    public static int playoutDelayMs(int hops) {
+        int delay =
+                PlayoutProcessor.TARGET_DELAY_MS + HOP_PLAYOUT_DELAY_MS * Math.max(0, hops - 1);
+        return Math.min(delay, MAX_PLAYOUT_DELAY_MS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.US,
+                "MeshRelay{node=%08x, originated=%d, delivered=%d, forwarded=%d, expired=%d, "
+                        + "looped=%d, %s}",
+                mNodeId,
+                mOriginated.get(),
+                mDelivered,
+                mForwarded,
+                mExpired,
+                mLooped,
+                mFilter);
+    }
+}
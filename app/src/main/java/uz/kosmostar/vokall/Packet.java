@@ -0,0 +1,579 @@
+package uz.kosmostar.vokall;
+
+import androidx.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The BYTES payloads we send each other during a call, once both sides are at {@link
+ * EndpointInfo#PROTOCOL_VERSION_PACKETS} or later. Older peers send and expect bare PCM, so we only
+ * frame what goes to peers that {@link EndpointInfo#supportsPackets() can read it}.
+ *
+ * <p>Layout:
+ *
+ * <pre>
+ *   [0] type   TYPE_*
+ *   [1..) body audio: [1] sample rate, as an index into {@link EndpointInfo#SAMPLE_RATES},
+ *                     then PCM at that rate.
+ *              Timed audio: [1] sample rate, as for audio, [2..10) when to play it, on the
+ *                     sender's {@link System#nanoTime()} clock, big-endian, then PCM.
+ *              Stamped audio: [1] sample rate, as for audio, [2..10) when it was sent, on the
+ *                     sender's {@link System#nanoTime()} clock, [10..14) how long before that it
+ *                     was captured, in microseconds, [14..18) how long after it was sent to play
+ *                     it, in microseconds, or 0 for whenever it gets there, all big-endian, then
+ *                     PCM.
+ *              Floor control: nothing.
+ *              Ping: the pinger's {@link System#nanoTime()}, 8 bytes, big-endian.
+ *              Pong: the ping's body, then the answerer's {@link System#nanoTime()}, 8 bytes,
+ *                     big-endian. Peers before {@link EndpointInfo#PROTOCOL_VERSION_TIMED_AUDIO}
+ *                     only send the ping's body back.
+ *              Probe: padding, thrown away.
+ *              Relay: [1..5) origin, [5..9) sequence number, both big-endian,
+ *                     [9] hops left, [10] hops taken, then the packet being relayed.
+ *              Voice message: [1..9) the id of the FILE payload it's in, [9..13) how long it
+ *                     is, in ms, both big-endian.
+ *              Pair: [1] which secret it is, SECRET_*, [2..34) the secret.
+ *              Challenge: [1] which secret to answer with, SECRET_*, [2..18) the nonce.
+ *              Challenge response: [1..33) the answer.
+ * </pre>
+ *
+ * The sender may drop to a lower sample rate than the call's when the link can't carry it, so each
+ * audio packet says which rate it's at.
+ *
+ * <p>Relay packets only go between peers at {@link EndpointInfo#PROTOCOL_VERSION_RELAY} or later.
+ * See {@link MeshRelay}.
+ *
+ * Peers at {@link EndpointInfo#PROTOCOL_VERSION_PAIRING} send bare PCM but can pair, so they get
+ * the pairing packets alone, told apart from their audio by size. See {@link
+ * #isPairingPacket(byte[])}.
+ */
+final class Packet {
+    /** A frame of audio. */
+    static final int TYPE_AUDIO = 0x01;
+
+    /**
+     * A frame of audio, and when to play it. Only goes to peers at {@link
+     * EndpointInfo#PROTOCOL_VERSION_TIMED_AUDIO} or later. See {@link ClockSync}.
+     */
+    static final int TYPE_AUDIO_TIMED = 0x02;
+
+    /**
+     * A frame of audio, when it was captured and sent, and maybe when to play it. Only goes to
+     * peers at {@link EndpointInfo#PROTOCOL_VERSION_STAMPED_AUDIO} or later. See {@link
+     * LatencyMonitor}.
+     */
+    static final int TYPE_AUDIO_STAMPED = 0x03;
+
+    /**
+     * Spoke to hub: may I talk? Answered with {@link #TYPE_FLOOR_GRANT} or {@link
+     * #TYPE_FLOOR_TAKEN}.
+     */
+    static final int TYPE_FLOOR_REQUEST = 0x10;
+
+    /** Hub to spoke: go ahead, you have the floor. */
+    static final int TYPE_FLOOR_GRANT = 0x11;
+
+    /** Either way: whoever had the floor has let go of it. */
+    static final int TYPE_FLOOR_RELEASE = 0x12;
+
+    /** Hub to spoke: someone else is talking. */
+    static final int TYPE_FLOOR_TAKEN = 0x13;
+
+    /** Asks the peer to send the body straight back, to time the round trip. */
+    static final int TYPE_PING = 0x20;
+
+    /** The answer to a {@link #TYPE_PING}, with its body, and when it was answered. */
+    static final int TYPE_PONG = 0x21;
+
+    /** Filler, sent in back-to-back trains to measure how fast the link is. */
+    static final int TYPE_PROBE = 0x22;
+
+    /** Wraps another packet so it can be passed on across a mesh. See {@link MeshRelay}. */
+    static final int TYPE_RELAY = 0x30;
+
+    /**
+     * A voice message is on its way, in a FILE payload of its own. Only goes to peers at {@link
+     * EndpointInfo#PROTOCOL_VERSION_VOICE_MESSAGES} or later, just before the file.
+     */
+    static final int TYPE_VOICE_MESSAGE = 0x40;
+
+    /**
+     * A secret to prove who you are with next time: answerer to caller when the caller's trusted,
+     * and either way for the call. Only goes to peers at {@link
+     * EndpointInfo#PROTOCOL_VERSION_PAIRING} or later. See {@link PeerVerifier}.
+     */
+    static final int TYPE_PAIR = 0x50;
+
+    /** Prove you have the secret we gave you. Answered with {@link #TYPE_CHALLENGE_RESPONSE}. */
+    static final int TYPE_CHALLENGE = 0x51;
+
+    /** The answer to a {@link #TYPE_CHALLENGE}. */
+    static final int TYPE_CHALLENGE_RESPONSE = 0x52;
+
+    /** The secret the user's choice to always answer the caller rests on. */
+    static final int SECRET_TRUSTED = 0x01;
+
+    /** A secret for the call, for getting it back if the link drops. */
+    static final int SECRET_CALL = 0x02;
+
+    private static final int HEADER_SIZE = 1;
+
+    private static final int AUDIO_HEADER_SIZE = HEADER_SIZE + 1;
+
+    private static final int TIMESTAMP_SIZE = 8;
+
+    private static final int TIMED_AUDIO_HEADER_SIZE = AUDIO_HEADER_SIZE + TIMESTAMP_SIZE;
+
+    private static final int STAMPED_AUDIO_HEADER_SIZE = AUDIO_HEADER_SIZE + TIMESTAMP_SIZE + 4 + 4;
+
+    private static final int PAIR_SIZE = HEADER_SIZE + 1 + PeerVerifier.SECRET_SIZE;
+
+    private static final int CHALLENGE_SIZE = HEADER_SIZE + 1 + PeerVerifier.NONCE_SIZE;
+
+    private static final int CHALLENGE_RESPONSE_SIZE = HEADER_SIZE + PeerVerifier.RESPONSE_SIZE;
+
+    private static final int RELAY_HEADER_SIZE = HEADER_SIZE + 4 + 4 + 1 + 1;
+
+    private static final int RELAY_TTL_OFFSET = HEADER_SIZE + 8;
+
+    private static final int RELAY_HOPS_OFFSET = RELAY_TTL_OFFSET + 1;
+
+    private Packet() {}
+
+    /**
+     * @param pcm The first {@code length} bytes are the frame.
+     * @param sampleRate The frame's sample rate. Must be one of {@link EndpointInfo#SAMPLE_RATES}.
+     * @return A frame of audio, ready to send.
+     */
+    static byte[] audio(byte[] pcm, int length, int sampleRate) {
+        byte[] packet = new byte[AUDIO_HEADER_SIZE + length];
+        packet[0] = TYPE_AUDIO;
+        packet[1] = (byte) sampleRateCode(sampleRate);
+        System.arraycopy(pcm, 0, packet, AUDIO_HEADER_SIZE, length);
+        return packet;
+    }
+
+    /**
+     * @param pcm The first {@code length} bytes are the frame.
+     * @param sampleRate The frame's sample rate. Must be one of {@link EndpointInfo#SAMPLE_RATES}.
+     * @param playAtNanos When every listener should hear it, on our {@link System#nanoTime()}.
+     * @return A frame of timed audio, ready to send.
+     */
+    static byte[] audioTimed(byte[] pcm, int length, int sampleRate, long playAtNanos) {
+        return ByteBuffer.allocate(TIMED_AUDIO_HEADER_SIZE + length)
+                .put((byte) TYPE_AUDIO_TIMED)
+                .put((byte) sampleRateCode(sampleRate))
+                .putLong(playAtNanos)
+                .put(pcm, 0, length)
+                .array();
+    }
+
+    /**
+     * @param pcm The first {@code length} bytes are the frame.
+     * @param sampleRate The frame's sample rate. Must be one of {@link EndpointInfo#SAMPLE_RATES}.
+     * @param sentNanos Our {@link System#nanoTime()} now.
+     * @param capturedNanos When the frame was captured, on the same clock.
+     * @param playAtNanos When every listener should hear it, on the same clock, or 0 for whenever
+     *     it gets there.
+     * @return A frame of stamped audio, ready to send.
+     */
+    static byte[] audioStamped(
+            byte[] pcm,
+            int length,
+            int sampleRate,
+            long sentNanos,
+            long capturedNanos,
+            long playAtNanos) {
+        long captureMicros = Math.max(0, (sentNanos - capturedNanos) / 1_000);
+        long playMicros = playAtNanos == 0 ? 0 : Math.max(1, (playAtNanos - sentNanos) / 1_000);
+        return ByteBuffer.allocate(STAMPED_AUDIO_HEADER_SIZE + length)
+                .put((byte) TYPE_AUDIO_STAMPED)
+                .put((byte) sampleRateCode(sampleRate))
+                .putLong(sentNanos)
+                .putInt((int) Math.min(captureMicros, Integer.MAX_VALUE))
+                .putInt((int) Math.min(playMicros, Integer.MAX_VALUE))
+                .put(pcm, 0, length)
+                .array();
+    }
+
+    /**
+     * @return The biggest packet that can carry {@code pcmBytes} of audio: stamped, and wrapped to
+     *     be relayed.
+     */
+    static int maxAudioSize(int pcmBytes) {
+        return RELAY_HEADER_SIZE + STAMPED_AUDIO_HEADER_SIZE + pcmBytes;
+    }
+
+    /** @return A probe of the given total size, ready to send. */
+    static byte[] probe(int size) {
+        byte[] packet = new byte[Math.max(HEADER_SIZE, size)];
+        packet[0] = TYPE_PROBE;
+        return packet;
+    }
+
+    /** @return A floor control message of the given type, ready to send. */
+    static byte[] floor(int type) {
+        return new byte[] {(byte) type};
+    }
+
+    /** @return A ping stamped with the given time, ready to send. */
+    static byte[] ping(long nanos) {
+        return ByteBuffer.allocate(HEADER_SIZE + TIMESTAMP_SIZE)
+                .put((byte) TYPE_PING)
+                .putLong(nanos)
+                .array();
+    }
+
+    /**
+     * @param nanos Our {@link System#nanoTime()} now.
+     * @return The answer to the given ping, ready to send.
+     */
+    static byte[] pong(byte[] ping, long nanos) {
+        return ByteBuffer.allocate(ping.length + TIMESTAMP_SIZE)
+                .put((byte) TYPE_PONG)
+                .put(ping, HEADER_SIZE, ping.length - HEADER_SIZE)
+                .putLong(nanos)
+                .array();
+    }
+
+    /**
+     * @param payloadId The id of the FILE payload the message is in.
+     * @return Word of a voice message, ready to send.
+     */
+    static byte[] voiceMessage(long payloadId, int durationMs) {
+        return ByteBuffer.allocate(HEADER_SIZE + 8 + 4)
+                .put((byte) TYPE_VOICE_MESSAGE)
+                .putLong(payloadId)
+                .putInt(durationMs)
+                .array();
+    }
+
+    /** @return The id of the FILE payload a voice message is in, or 0 if it's too short. */
+    static long getVoiceMessagePayloadId(byte[] packet) {
+        if (packet.length < HEADER_SIZE + 8 + 4) {
+            return 0;
+        }
+        return ByteBuffer.wrap(packet).getLong(HEADER_SIZE);
+    }
+
+    /** @return How long a voice message is, in ms, or 0 if it's too short. */
+    static int getVoiceMessageDurationMs(byte[] packet) {
+        if (packet.length < HEADER_SIZE + 8 + 4) {
+            return 0;
+        }
+        return ByteBuffer.wrap(packet).getInt(HEADER_SIZE + 8);
+    }
+
+    /**
+     * @param which SECRET_*.
+     * @return A secret for the peer to keep, ready to send.
+     */
+    static byte[] pair(int which, byte[] secret) {
+        return ByteBuffer.allocate(PAIR_SIZE)
+                .put((byte) TYPE_PAIR)
+                .put((byte) which)
+                .put(secret)
+                .array();
+    }
+
+    /**
+     * @param which SECRET_*, the secret to answer with.
+     * @return A challenge, ready to send.
+     */
+    static byte[] challenge(int which, byte[] nonce) {
+        return ByteBuffer.allocate(CHALLENGE_SIZE)
+                .put((byte) TYPE_CHALLENGE)
+                .put((byte) which)
+                .put(nonce)
+                .array();
+    }
+
+    /** @return The answer to a challenge, ready to send. */
+    static byte[] challengeResponse(byte[] response) {
+        return ByteBuffer.allocate(CHALLENGE_RESPONSE_SIZE)
+                .put((byte) TYPE_CHALLENGE_RESPONSE)
+                .put(response)
+                .array();
+    }
+
+    /**
+     * @return Which secret a pair packet carries, or a challenge asks for, as SECRET_*, or -1 if
+     *     it's neither, or too short.
+     */
+    static int getSecretKind(byte[] packet) {
+        switch (getType(packet)) {
+            case TYPE_PAIR:
+                return packet.length >= PAIR_SIZE ? packet[HEADER_SIZE] & 0xFF : -1;
+            case TYPE_CHALLENGE:
+                return packet.length >= CHALLENGE_SIZE ? packet[HEADER_SIZE] & 0xFF : -1;
+            default:
+                return -1;
+        }
+    }
+
+    /** @return The secret in a pair packet, or null if it isn't a complete one. */
+    @Nullable
+    static byte[] getPairSecret(byte[] packet) {
+        if (getType(packet) != TYPE_PAIR || packet.length < PAIR_SIZE) {
+            return null;
+        }
+        return Arrays.copyOfRange(packet, HEADER_SIZE + 1, PAIR_SIZE);
+    }
+
+    /** @return The nonce in a challenge, or null if it isn't a complete one. */
+    @Nullable
+    static byte[] getChallengeNonce(byte[] packet) {
+        if (getType(packet) != TYPE_CHALLENGE || packet.length < CHALLENGE_SIZE) {
+            return null;
+        }
+        return Arrays.copyOfRange(packet, HEADER_SIZE + 1, CHALLENGE_SIZE);
+    }
+
+    /** @return The answer in a challenge response, or null if it isn't a complete one. */
+    @Nullable
+    static byte[] getChallengeResponse(byte[] packet) {
+        if (getType(packet) != TYPE_CHALLENGE_RESPONSE || packet.length < CHALLENGE_RESPONSE_SIZE) {
+            return null;
+        }
+        return Arrays.copyOfRange(packet, HEADER_SIZE, CHALLENGE_RESPONSE_SIZE);
+    }
+
+    /**
+     * @return When the peer answered a pong, on its clock, or -1 if it's from a peer too old to
+     *     say.
+     */
+    static long getPongTime(byte[] pong) {
+        if (pong.length < HEADER_SIZE + 2 * TIMESTAMP_SIZE) {
+            return -1;
+        }
+        return ByteBuffer.wrap(pong, HEADER_SIZE + TIMESTAMP_SIZE, TIMESTAMP_SIZE).getLong();
+    }
+
+    /** @return The time in a ping or pong, or -1 if it's too short to have one. */
+    static long getTimestamp(byte[] packet) {
+        if (packet.length < HEADER_SIZE + TIMESTAMP_SIZE) {
+            return -1;
+        }
+        return ByteBuffer.wrap(packet, HEADER_SIZE, TIMESTAMP_SIZE).getLong();
+    }
+
+    /**
+     * @param origin Whoever first sent {@code inner}.
+     * @param seq The origin's sequence number for it.
+     * @param ttl How many more links it may cross, counting the one it's about to.
+     * @param hops How many links it will have crossed once it arrives, counting that one.
+     * @return {@code inner} wrapped to be relayed, ready to send.
+     */
+    static byte[] relay(int origin, int seq, int ttl, int hops, byte[] inner) {
+        return ByteBuffer.allocate(RELAY_HEADER_SIZE + inner.length)
+                .put((byte) TYPE_RELAY)
+                .putInt(origin)
+                .putInt(seq)
+                .put((byte) ttl)
+                .put((byte) hops)
+                .put(inner)
+                .array();
+    }
+
+    /**
+     * @return A copy of a relay packet as the next device should get it: one hop fewer left, one
+     *     more taken.
+     */
+    static byte[] relayed(byte[] relay) {
+        byte[] packet = relay.clone();
+        packet[RELAY_TTL_OFFSET] = (byte) (getRelayTtl(relay) - 1);
+        packet[RELAY_HOPS_OFFSET] = (byte) (getRelayHops(relay) + 1);
+        return packet;
+    }
+
+    /** @return True if this is a relay packet with a complete header. */
+    static boolean isRelay(byte[] packet) {
+        return getType(packet) == TYPE_RELAY && packet.length >= RELAY_HEADER_SIZE;
+    }
+
+    /** @return Who first sent the packet in a relay packet. */
+    static int getRelayOrigin(byte[] relay) {
+        return ByteBuffer.wrap(relay, HEADER_SIZE, 4).getInt();
+    }
+
+    /** @return The origin's sequence number for the packet in a relay packet. */
+    static int getRelaySeq(byte[] relay) {
+        return ByteBuffer.wrap(relay, HEADER_SIZE + 4, 4).getInt();
+    }
+
+    /** @return How many more links a relay packet may cross, counting the one it just did. */
+    static int getRelayTtl(byte[] relay) {
+        return relay[RELAY_TTL_OFFSET] & 0xFF;
+    }
+
+    /** @return How many links a relay packet has crossed, counting the one it just did. */
+    static int getRelayHops(byte[] relay) {
+        return relay[RELAY_HOPS_OFFSET] & 0xFF;
+    }
+
+    /** @return The packet a relay packet carries. */
+    static byte[] getRelayed(byte[] relay) {
+        return Arrays.copyOfRange(relay, RELAY_HEADER_SIZE, relay.length);
+    }
+
+    /** @return The packet's type, or -1 if it's empty. */
+    static int getType(byte[] packet) {
+        return packet.length < HEADER_SIZE ? -1 : packet[0] & 0xFF;
+    }
+
+    /**
+     * @return True if {@code data} from a peer that sends bare PCM is one of the pairing packets
+     *     rather than a frame of audio. Each is exactly its type's size, and far shorter than the
+     *     smallest frame we ever send, 10ms at 8kHz, so audio can't be mistaken for one.
+     */
+    static boolean isPairingPacket(byte[] data) {
+        switch (getType(data)) {
+            case TYPE_PAIR:
+                return data.length == PAIR_SIZE;
+            case TYPE_CHALLENGE:
+                return data.length == CHALLENGE_SIZE;
+            case TYPE_CHALLENGE_RESPONSE:
+                return data.length == CHALLENGE_RESPONSE_SIZE;
+            default:
+                return false;
+        }
+    }
+
+    /** @return True if the given type is audio, timed or not. */
+    static boolean isAudioType(int type) {
+        return type == TYPE_AUDIO || type == TYPE_AUDIO_TIMED || type == TYPE_AUDIO_STAMPED;
+    }
+
+    /** @return How long an audio packet's header is, or -1 if it isn't a complete one. */
+    private static int audioHeaderSize(byte[] packet) {
+        int size;
+        switch (getType(packet)) {
+            case TYPE_AUDIO:
+                size = AUDIO_HEADER_SIZE;
+                break;
+            case TYPE_AUDIO_TIMED:
+                size = TIMED_AUDIO_HEADER_SIZE;
+                break;
+            case TYPE_AUDIO_STAMPED:
+                size = STAMPED_AUDIO_HEADER_SIZE;
+                break;
+            default:
+                return -1;
+        }
+        return packet.length >= size ? size : -1;
+    }
+
+    /** @return The PCM in an audio packet, timed or not, or null if it isn't one. */
+    @Nullable
+    static byte[] getAudio(byte[] packet) {
+        int headerSize = audioHeaderSize(packet);
+        if (headerSize < 0) {
+            return null;
+        }
+        return Arrays.copyOfRange(packet, headerSize, packet.length);
+    }
+
+    /** @return How many bytes of PCM an audio packet carries, or 0 if it isn't one. */
+    static int getAudioLength(byte[] packet) {
+        int headerSize = audioHeaderSize(packet);
+        return headerSize < 0 ? 0 : packet.length - headerSize;
+    }
+
+    /**
+     * @return When an audio packet should be played, on its sender's {@link System#nanoTime()}
+     *     clock, or 0 if it doesn't say.
+     */
+    static long getPlayAt(byte[] packet) {
+        if (audioHeaderSize(packet) < 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(packet);
+        switch (getType(packet)) {
+            case TYPE_AUDIO_TIMED:
+                return buffer.getLong(AUDIO_HEADER_SIZE);
+            case TYPE_AUDIO_STAMPED:
+                long playMicros = buffer.getInt(AUDIO_HEADER_SIZE + TIMESTAMP_SIZE + 4);
+                return playMicros == 0 ? 0 : getSentAt(packet) + playMicros * 1_000;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return When a stamped audio packet was sent, on its sender's {@link System#nanoTime()}
+     *     clock, or 0 if it isn't one.
+     */
+    static long getSentAt(byte[] packet) {
+        if (getType(packet) != TYPE_AUDIO_STAMPED || audioHeaderSize(packet) < 0) {
+            return 0;
+        }
+        return ByteBuffer.wrap(packet).getLong(AUDIO_HEADER_SIZE);
+    }
+
+    /**
+     * @return How long before a stamped audio packet was sent its audio was captured, in ns, or 0
+     *     if it isn't one.
+     */
+    static long getCaptureDelayNanos(byte[] packet) {
+        if (getType(packet) != TYPE_AUDIO_STAMPED || audioHeaderSize(packet) < 0) {
+            return 0;
+        }
+        return ByteBuffer.wrap(packet).getInt(AUDIO_HEADER_SIZE + TIMESTAMP_SIZE) * 1_000L;
+    }
+
+    /** @return The sample rate of an audio packet, or 0 if it isn't one or the rate's unknown. */
+    static int getSampleRate(byte[] packet) {
+        if (audioHeaderSize(packet) < 0) {
+            return 0;
+        }
+        int code = packet[1] & 0xFF;
+        return code < EndpointInfo.SAMPLE_RATES.length ? EndpointInfo.SAMPLE_RATES[code] : 0;
+    }
+
+    private static int sampleRateCode(int sampleRate) {
+        for (int i = 0; i < EndpointInfo.SAMPLE_RATES.length; i++) {
+            if (EndpointInfo.SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Can't send audio at " + sampleRate + "Hz");
+    }
+
+    /** @return A name for the given type, for logging. */
+    static String typeToString(int type) {
+        switch (type) {
+            case TYPE_AUDIO:
+                return "AUDIO";
+            case TYPE_AUDIO_TIMED:
+                return "AUDIO_TIMED";
+            case TYPE_AUDIO_STAMPED:
+                return "AUDIO_STAMPED";
+            case TYPE_FLOOR_REQUEST:
+                return "FLOOR_REQUEST";
+            case TYPE_FLOOR_GRANT:
+                return "FLOOR_GRANT";
+            case TYPE_FLOOR_RELEASE:
+                return "FLOOR_RELEASE";
+            case TYPE_FLOOR_TAKEN:
+                return "FLOOR_TAKEN";
+            case TYPE_PING:
+                return "PING";
+            case TYPE_PONG:
+                return "PONG";
+            case TYPE_PROBE:
+                return "PROBE";
+            case TYPE_RELAY:
+                return "RELAY";
+            case TYPE_VOICE_MESSAGE:
+                return "VOICE_MESSAGE";
+            case TYPE_PAIR:
+                return "PAIR";
+            case TYPE_CHALLENGE:
+                return "CHALLENGE";
+            case TYPE_CHALLENGE_RESPONSE:
+                return "CHALLENGE_RESPONSE";
+            default:
+                return "0x" + Integer.toHexString(type);
+        }
+    }
+}
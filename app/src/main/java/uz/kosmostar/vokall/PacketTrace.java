@@ -0,0 +1,116 @@
+package uz.kosmostar.vokall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A trace of every payload received during a call, as {@link PacketTraceWriter} writes it: when
+ * it arrived, who from, how big it was, and what its header said. No audio, so a call's worth
+ * fits in a few MB, and the tests' {@code TraceReplay} can play the arrivals back through the
+ * playout path on the desktop.
+ *
+ * <p>Layout, all big-endian:
+ *
+ * <pre>
+ *   Header, {@link #HEADER_SIZE} bytes:
+ *     [0..4)   {@link #MAGIC}
+ *     [4..8)   version
+ *     [8..12)  record size
+ *     [12..16) capacity, in records
+ *     [16..24) how many records were written in all. Past the capacity, the newest overwrote
+ *              the oldest.
+ *     [24..32) {@link System#nanoTime()} when the trace started
+ *   Then the records, {@link #RECORD_SIZE} bytes each, in a ring:
+ *     [0..8)   when it arrived, in ns since the trace started
+ *     [8..12)  who from: the hash of their endpoint id
+ *     [12..16) payload size
+ *     [16..20) how many bytes of PCM it carried
+ *     [20..24) the PCM's sample rate, or 0 if it didn't say
+ *     [24]     {@link Packet} type, or {@link #TYPE_BARE} for bare PCM
+ *     [25]     hops, 1 unless it was relayed
+ *     [26..28) unused
+ *     [28..32) relay sequence number, or 0
+ *     [32..40) the sender's time in it: when it was sent, or else when to play it, or 0
+ *     [40..44) relay origin, or 0
+ *     [44..48) unused
+ * </pre>
+ */
+public final class PacketTrace {
+    static final int MAGIC = 0x56505452; // "VPTR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 48;
+
+    /** The type recorded for bare PCM from peers too old for {@link Packet}s. */
+    static final int TYPE_BARE = 0;
+
+    /** One received payload. */
+    public static final class Record {
+        public final long arrivalNanos;
+        public final int endpoint;
+        public final int size;
+        public final int audioBytes;
+        public final int sampleRate;
+        public final int type;
+        public final int hops;
+        public final int relaySeq;
+        public final long senderNanos;
+        public final int relayOrigin;
+
+        Record(ByteBuffer buffer, int offset) {
+            arrivalNanos = buffer.getLong(offset);
+            endpoint = buffer.getInt(offset + 8);
+            size = buffer.getInt(offset + 12);
+            audioBytes = buffer.getInt(offset + 16);
+            sampleRate = buffer.getInt(offset + 20);
+            type = buffer.get(offset + 24) & 0xFF;
+            hops = buffer.get(offset + 25) & 0xFF;
+            relaySeq = buffer.getInt(offset + 28);
+            senderNanos = buffer.getLong(offset + 32);
+            relayOrigin = buffer.getInt(offset + 40);
+        }
+
+        /** @return True if it carried audio. */
+        public boolean isAudio() {
+            return audioBytes > 0;
+        }
+    }
+
+    private PacketTrace() {}
+
+    /**
+     * @return The records in a trace file, oldest first. Only the newest ones if the trace
+     *     outgrew its file.
+     * @throws IOException If it can't be read, or isn't a trace.
+     */
+    public static List<Record> read(File file) throws IOException {
+        byte[] bytes;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " isn't a packet trace");
+        }
+        if (buffer.getInt(4) != VERSION || buffer.getInt(8) != RECORD_SIZE) {
+            throw new IOException(file + " is a packet trace we can't read");
+        }
+        int capacity = buffer.getInt(12);
+        long written = buffer.getLong(16);
+        if (HEADER_SIZE + (long) capacity * RECORD_SIZE > bytes.length) {
+            throw new IOException(file + " is cut short");
+        }
+        int count = (int) Math.min(written, capacity);
+        long first = written - count;
+        List<Record> records = new ArrayList<>(count);
+        for (long i = first; i < written; i++) {
+            records.add(new Record(buffer, HEADER_SIZE + (int) (i % capacity) * RECORD_SIZE));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,124 @@
+package uz.kosmostar.vokall;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a {@link PacketTrace} as payloads arrive. The file is memory-mapped at its full size up
+ * front, so each record is a few stores into memory rather than a write call, and the kernel
+ * writes it out when it suits it. Once the file is full, the newest records overwrite the oldest,
+ * so the file never grows and always ends with whatever went wrong last.
+ *
+ * <p>Safe to call from any thread.
+ */
+public class PacketTraceWriter implements Closeable {
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final long mStartNanos;
+    private long mWritten;
+    private boolean mClosed;
+
+    private PacketTraceWriter(MappedByteBuffer buffer, int capacity, long startNanos) {
+        mBuffer = buffer;
+        mCapacity = capacity;
+        mStartNanos = startNanos;
+    }
+
+    /**
+     * Starts a trace, replacing whatever was in the file.
+     *
+     * @param maxBytes The most the file may take.
+     */
+    public static PacketTraceWriter open(File file, int maxBytes) throws IOException {
+        int capacity = (maxBytes - PacketTrace.HEADER_SIZE) / PacketTrace.RECORD_SIZE;
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("No room for any records in " + maxBytes + " bytes");
+        }
+        int size = PacketTrace.HEADER_SIZE + capacity * PacketTrace.RECORD_SIZE;
+        MappedByteBuffer buffer;
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(size);
+            // The mapping outlives the file being closed.
+            buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        long startNanos = System.nanoTime();
+        buffer.putInt(0, PacketTrace.MAGIC)
+                .putInt(4, PacketTrace.VERSION)
+                .putInt(8, PacketTrace.RECORD_SIZE)
+                .putInt(12, capacity)
+                .putLong(16, 0)
+                .putLong(24, startNanos);
+        return new PacketTraceWriter(buffer, capacity, startNanos);
+    }
+
+    /**
+     * Records a payload that just arrived.
+     *
+     * @param arrivalNanos When, by {@link System#nanoTime()}.
+     * @param framed True if it's a {@link Packet}, false if it's bare PCM from an older peer.
+     */
+    public synchronized void record(
+            long arrivalNanos, String endpointId, byte[] payload, boolean framed) {
+        if (mClosed) {
+            return;
+        }
+        int type = PacketTrace.TYPE_BARE;
+        int hops = 1;
+        int relaySeq = 0;
+        int relayOrigin = 0;
+        byte[] audio = payload;
+        int audioBytes = payload.length;
+        int sampleRate = 0;
+        long senderNanos = 0;
+        if (framed) {
+            type = Packet.getType(payload);
+            if (Packet.isRelay(payload)) {
+                hops = Packet.getRelayHops(payload);
+                relaySeq = Packet.getRelaySeq(payload);
+                relayOrigin = Packet.getRelayOrigin(payload);
+                audio = Packet.getRelayed(payload);
+            }
+            audioBytes = Packet.getAudioLength(audio);
+            sampleRate = Packet.getSampleRate(audio);
+            senderNanos = Packet.getSentAt(audio);
+            if (senderNanos == 0) {
+                senderNanos = Packet.getPlayAt(audio);
+            }
+        }
+        int offset =
+                PacketTrace.HEADER_SIZE + (int) (mWritten % mCapacity) * PacketTrace.RECORD_SIZE;
+        mBuffer.putLong(offset, arrivalNanos - mStartNanos)
+                .putInt(offset + 8, endpointId.hashCode())
+                .putInt(offset + 12, payload.length)
+                .putInt(offset + 16, audioBytes)
+                .putInt(offset + 20, sampleRate)
+                .put(offset + 24, (byte) type)
+                .put(offset + 25, (byte) hops)
+                .putShort(offset + 26, (short) 0)
+                .putInt(offset + 28, relaySeq)
+                .putLong(offset + 32, senderNanos)
+                .putInt(offset + 40, relayOrigin)
+                .putInt(offset + 44, 0);
+        mWritten++;
+        mBuffer.putLong(16, mWritten);
+    }
+
+    /** @return How many payloads we've recorded, including any since overwritten. */
+    public synchronized long getWrittenCount() {
+        return mWritten;
+    }
+
+    /** Stops recording and asks for what's left to be written out. */
+    @Override
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mBuffer.force();
+    }
+}
@@ -0,0 +1,119 @@
+package uz.kosmostar.vokall;
+
+import static android.os.Process.THREAD_PRIORITY_AUDIO;
+import static android.os.Process.setThreadPriority;
+import static uz.kosmostar.vokall.Constants.TAG;
+
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the frames a peer's {@link PayloadStreamWriter} sends in its STREAM payload, on a thread of
+ * its own, and hands each one over as soon as it's all there.
+ *
+ * <p>A frame's length comes from the peer, so it's checked against the most we expect before
+ * anything is allocated for it. A stream that says more than that is broken or lying, and is
+ * closed: there's no telling where its next frame starts.
+ */
+public class PayloadStreamReader implements Closeable {
+    /** Told about each frame. */
+    public interface Callback {
+        /**
+         * Called on the reader's thread.
+         *
+         * @param receivedNanos When the frame was all there, by {@link System#nanoTime()}.
+         */
+        void onFrame(byte[] frame, long receivedNanos);
+    }
+
+    private final String mEndpointId;
+    private final InputStream mIn;
+    private final int mMaxFrameLength;
+    private final Callback mCallback;
+    private final Thread mThread;
+    private volatile boolean mClosed;
+    private volatile long mFrames;
+
+    /**
+     * @param in The payload's stream. Closed when the reader is.
+     * @param maxFrameLength The longest frame the peer should send. Up to {@link
+     *     PayloadStreamWriter#MAX_FRAME_BYTES}.
+     */
+    public PayloadStreamReader(
+            String endpointId, InputStream in, int maxFrameLength, Callback callback) {
+        mEndpointId = endpointId;
+        mIn = in;
+        mMaxFrameLength = maxFrameLength;
+        mCallback = callback;
+        mThread = new Thread(this::run, "PayloadStreamReader");
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /** @return True once the reader's been closed, the peer ended the stream, or it broke. */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /** Stops reading. The thread stops once the read it's blocked in fails. */
+    @Override
+    public void close() {
+        mClosed = true;
+        try {
+            mIn.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the stream from " + mEndpointId, e);
+        }
+    }
+
+    private void run() {
+        setThreadPriority(THREAD_PRIORITY_AUDIO);
+        // Buffered reads only take what's there, so this never holds a frame back.
+        DataInputStream in = new DataInputStream(new BufferedInputStream(mIn));
+        try {
+            while (!mClosed) {
+                int length = in.readUnsignedShort();
+                if (length == 0) {
+                    continue;
+                }
+                if (length > mMaxFrameLength) {
+                    Log.w(
+                            TAG,
+                            "Frame of "
+                                    + length
+                                    + " bytes from "
+                                    + mEndpointId
+                                    + ", more than the "
+                                    + mMaxFrameLength
+                                    + " we expect; dropping the stream");
+                    break;
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                mFrames++;
+                mCallback.onFrame(frame, System.nanoTime());
+            }
+        } catch (EOFException e) {
+            // The peer ended the stream.
+        } catch (IOException e) {
+            if (!mClosed) {
+                Log.w(TAG, "Stream from " + mEndpointId + " broke", e);
+            }
+        } finally {
+            close();
+            Log.d(TAG, toString());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PayloadStreamReader{" + mEndpointId + ", frames=" + mFrames + "}";
+    }
+}
@@ -0,0 +1,193 @@
+package uz.kosmostar.vokall;
+
+import static android.os.Process.THREAD_PRIORITY_AUDIO;
+import static android.os.Process.setThreadPriority;
+import static uz.kosmostar.vokall.Constants.TAG;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.android.gms.nearby.connection.Payload;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Carries a peer's audio as one long-lived STREAM payload, instead of a BYTES payload per frame.
+ * We write into one end of a pipe, and Nearby reads the other end and sends what it finds there.
+ *
+ * <p>Nearby doesn't keep our writes apart, so each frame goes into the stream as a 2-byte
+ * big-endian length, then that many bytes, and {@link PayloadStreamReader} splits them up again.
+ * Each frame, length and all, goes into the pipe in one write, straight to the file descriptor
+ * with no buffer in between, so it's there for Nearby to read as soon as it's captured.
+ *
+ * <p>The pipe blocks when Nearby falls behind, so the audio thread never writes to it. It hands
+ * frames to {@link #write(byte[])}, which queues them for a thread of our own and never blocks.
+ * If {@link #MAX_QUEUED_FRAMES} are already waiting, the oldest is dropped; it would be too late
+ * to play by the time it got there anyway.
+ */
+public class PayloadStreamWriter implements Closeable {
+    /** The biggest frame the 2-byte length can describe. */
+    static final int MAX_FRAME_BYTES = 0xFFFF;
+
+    /** How many frames may wait for the pipe before the oldest is dropped. */
+    static final int MAX_QUEUED_FRAMES = 16;
+
+    /** How many bytes go in front of each frame. */
+    static final int HEADER_SIZE = 2;
+
+    private final String mEndpointId;
+    @Nullable private final Payload mPayload;
+    private final OutputStream mOut;
+    private final BlockingQueue<byte[]> mQueue = new ArrayBlockingQueue<>(MAX_QUEUED_FRAMES);
+    private final Thread mThread;
+    private volatile boolean mClosed;
+    private boolean mStarted;
+
+    // Written by whoever calls write(), normally the audio thread.
+    private volatile long mDroppedFrames;
+
+    // Written by the writer thread.
+    private volatile long mFrames;
+    private volatile long mBytes;
+    private volatile long mMaxWriteNanos;
+
+    /** Opens the pipe. Send {@link #getPayload()} to the peer, then {@link #start()}. */
+    public PayloadStreamWriter(String endpointId) throws IOException {
+        this(endpointId, ParcelFileDescriptor.createPipe());
+    }
+
+    private PayloadStreamWriter(String endpointId, ParcelFileDescriptor[] pipe) {
+        this(
+                endpointId,
+                Payload.fromStream(pipe[0]),
+                new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]));
+    }
+
+    /**
+     * Writes into a stream of the caller's, for tests.
+     *
+     * @param out Written to without a buffer, so it should pass each write on as it gets it.
+     */
+    PayloadStreamWriter(String endpointId, @Nullable Payload payload, OutputStream out) {
+        mEndpointId = endpointId;
+        mPayload = payload;
+        mOut = out;
+        mThread = new Thread(this::run, "PayloadStreamWriter");
+    }
+
+    public String getEndpointId() {
+        return mEndpointId;
+    }
+
+    /** @return The payload Nearby reads the stream from. */
+    public Payload getPayload() {
+        return mPayload;
+    }
+
+    /** Starts writing what's queued into the pipe. */
+    public synchronized void start() {
+        if (!mClosed) {
+            mStarted = true;
+            mThread.start();
+        }
+    }
+
+    /**
+     * Queues a frame to go into the stream. Never blocks. From one thread at a time.
+     *
+     * @return False if the stream's closed, or broke, so the frame has to go some other way.
+     */
+    public boolean write(byte[] frame) {
+        if (mClosed) {
+            return false;
+        }
+        if (frame.length == 0 || frame.length > MAX_FRAME_BYTES) {
+            return false;
+        }
+        while (!mQueue.offer(frame)) {
+            if (mQueue.poll() != null) {
+                mDroppedFrames++;
+            }
+        }
+        return true;
+    }
+
+    /** @return True once the stream's been closed, or broke. */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /** Ends the stream, and so the payload. Doesn't wait for what's still queued. */
+    @Override
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mStarted) {
+            mThread.interrupt();
+        } else {
+            closeQuietly();
+        }
+    }
+
+    private void run() {
+        setThreadPriority(THREAD_PRIORITY_AUDIO);
+        byte[] buffer = new byte[HEADER_SIZE + 2048];
+        try {
+            while (!mClosed) {
+                byte[] frame = mQueue.take();
+                int length = HEADER_SIZE + frame.length;
+                if (buffer.length < length) {
+                    buffer = new byte[length];
+                }
+                buffer[0] = (byte) (frame.length >> 8);
+                buffer[1] = (byte) frame.length;
+                System.arraycopy(frame, 0, buffer, HEADER_SIZE, frame.length);
+                long startNanos = System.nanoTime();
+                // Unbuffered, so this is the flush: the whole frame is in the pipe once it returns.
+                mOut.write(buffer, 0, length);
+                long writeNanos = System.nanoTime() - startNanos;
+                if (writeNanos > mMaxWriteNanos) {
+                    mMaxWriteNanos = writeNanos;
+                }
+                mFrames++;
+                mBytes += length;
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        } catch (IOException e) {
+            if (!mClosed) {
+                Log.w(TAG, "Stream to " + mEndpointId + " broke", e);
+            }
+        } finally {
+            mClosed = true;
+            closeQuietly();
+            Log.d(TAG, toString());
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the stream to " + mEndpointId, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                Locale.US,
+                "PayloadStreamWriter{%s, frames=%d, bytes=%d, dropped=%d, max write=%.1fms}",
+                mEndpointId,
+                mFrames,
+                mBytes,
+                mDroppedFrames,
+                mMaxWriteNanos / 1e6);
+    }
+}
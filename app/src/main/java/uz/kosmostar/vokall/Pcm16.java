@@ -0,0 +1,48 @@
+package uz.kosmostar.vokall;
+
+/**
+ * Helpers for moving 16-bit little-endian PCM between the {@code byte[]}s we send over Nearby
+ * Connections and the {@code short[]}s we process. Nothing here allocates, so it's safe to call
+ * once per frame on an audio thread.
+ */
+public final class Pcm16 {
+    private Pcm16() {}
+
+    /**
+     * Decodes {@code length} bytes of PCM from {@code src} into {@code dst}.
+     *
+     * @return The number of samples written.
+     */
+    public static int toShorts(byte[] src, int offset, int length, short[] dst) {
+        int samples = length / 2;
+        for (int i = 0, j = offset; i < samples; i++, j += 2) {
+            dst[i] = (short) ((src[j] & 0xFF) | (src[j + 1] << 8));
+        }
+        return samples;
+    }
+
+    /**
+     * Encodes {@code samples} samples from {@code src} into {@code dst} starting at {@code offset}.
+     *
+     * @return The number of bytes written.
+     */
+    public static int toBytes(short[] src, int samples, byte[] dst, int offset) {
+        for (int i = 0, j = offset; i < samples; i++, j += 2) {
+            short sample = src[i];
+            dst[j] = (byte) sample;
+            dst[j + 1] = (byte) (sample >> 8);
+        }
+        return samples * 2;
+    }
+
+    /** Saturates an int to the 16-bit range. */
+    public static short clip(int sample) {
+        if (sample > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (sample < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) sample;
+    }
+}
@@ -0,0 +1,368 @@
+package uz.kosmostar.vokall;
+
+import static uz.kosmostar.vokall.Constants.TAG;
+
+import android.os.Handler;
+import android.util.Log;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import uz.kosmostar.vokall.ConnectionsService.Endpoint;
+
+/**
+ * Keeps track of who has to prove who they are before they're let into a call, and of the secrets
+ * they prove it with, and does the asking and answering. See {@link PeerVerifier} for how the
+ * proof itself works.
+ *
+ * <p>A peer we accept without asking the user, because the user trusts it, or because it's the
+ * peer we lost coming back, is {@link #isUnverified(String) unverified} until it answers our
+ * {@link Packet#TYPE_CHALLENGE}. It's connected as far as Nearby is concerned, but not part of the
+ * call. Whether to ask is up to the caller, through {@link #expectCallProof(Endpoint)} and {@link
+ * #expectTrustedProof(Endpoint)}; this only keeps track and checks the answer.
+ *
+ * <p>{@link #isUnverified(String)} and {@link #hasUnverified()} may be called from any thread; the
+ * rest from the main thread.
+ */
+public class PeerPairing {
+    /** How long a peer we accepted without asking has to prove who it is before it's cut off. */
+    static final long VERIFY_TIMEOUT_MS = 5_000;
+
+    /** Carries out what pairing decides. */
+    public interface Callback {
+        /** Sends one of our {@link Packet}s to a peer, whether or not it's proven itself. */
+        void sendTo(Endpoint endpoint, byte[] packet);
+
+        /** A peer we challenged proved who it is, and may now join the call. */
+        void onVerified(Endpoint endpoint);
+
+        /**
+         * A peer we challenged didn't prove who it is, and should be cut off before it's ever
+         * heard. It rings like anyone else from now on.
+         */
+        void onVerificationFailed(Endpoint endpoint, String why);
+    }
+
+    /** What a peer we accepted without asking has to prove it knows. */
+    private static final class Challenge {
+        /** Which secret, as Packet.SECRET_*. */
+        final int which;
+        final byte[] secret;
+        final byte[] nonce = PeerVerifier.newNonce();
+
+        Challenge(int which, byte[] secret) {
+            this.which = which;
+            this.secret = secret;
+        }
+    }
+
+    private final TrustedPeerStore mTrustedPeers;
+    private final Handler mHandler;
+    private final Callback mCallback;
+
+    /** Nearby's token for each connection, which both ends see, by endpoint id. */
+    private final Map<String, byte[]> mAuthTokens = new HashMap<>();
+
+    /** Endpoints that asked to connect to us, rather than us to them. */
+    private final Set<String> mIncomingPeers = new HashSet<>();
+
+    /**
+     * Peers we accepted without asking who have yet to prove they're who they say, by endpoint id.
+     * Read from the audio thread too.
+     */
+    private final Map<String, Challenge> mUnverifiedPeers = new ConcurrentHashMap<>();
+
+    /** Endpoints the user chose to always answer, who still have to be given their secret. */
+    private final Set<String> mPairingPeers = new HashSet<>();
+
+    /** Device ids that couldn't prove who they were. They ring like anyone else from now on. */
+    private final Set<UUID> mFailedPeers = new HashSet<>();
+
+    /**
+     * A secret we share with the peer on the call, by device id, for proving who we are to each
+     * other if the link drops and we get the call back. Forgotten when the call ends.
+     */
+    private final Map<UUID, byte[]> mCallSecrets = new HashMap<>();
+
+    /** @param handler Where the time a peer has to prove itself is counted. */
+    public PeerPairing(TrustedPeerStore trustedPeers, Handler handler, Callback callback) {
+        mTrustedPeers = trustedPeers;
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    /**
+     * Nearby's asked whether to accept a connection. Keeps what we'll need to prove who we are on
+     * it, and to check the peer's proof.
+     *
+     * @param authToken Nearby's token for the connection, or null if it didn't give one.
+     * @param incoming True if the peer asked to connect to us.
+     */
+    @MainThread
+    public void onConnectionInitiated(
+            Endpoint endpoint, @Nullable byte[] authToken, boolean incoming) {
+        mAuthTokens.put(endpoint.getId(), authToken == null ? new byte[0] : authToken);
+        if (incoming) {
+            mIncomingPeers.add(endpoint.getId());
+        }
+    }
+
+    /**
+     * The peer has gone. Forgets what we knew about its connection.
+     *
+     * @return True if it went before it proved who it was, so it was never part of the call.
+     */
+    @MainThread
+    public boolean onDisconnected(Endpoint endpoint) {
+        mAuthTokens.remove(endpoint.getId());
+        mIncomingPeers.remove(endpoint.getId());
+        mPairingPeers.remove(endpoint.getId());
+        return mUnverifiedPeers.remove(endpoint.getId()) != null;
+    }
+
+    /**
+     * Drops what we knew about each connection, once they've all been cut without telling us, and
+     * the call's secrets, since the call's over.
+     */
+    @MainThread
+    public void forgetConnections() {
+        mUnverifiedPeers.clear();
+        mAuthTokens.clear();
+        mIncomingPeers.clear();
+        mPairingPeers.clear();
+        mCallSecrets.clear();
+    }
+
+    /** @return True if calls from this device are answered without asking. */
+    public boolean isTrusted(Endpoint endpoint) {
+        return mTrustedPeers.isTrusted(endpoint.getInfo().getDeviceId());
+    }
+
+    /** Asks before answering this device again. */
+    @MainThread
+    public void forget(Endpoint endpoint) {
+        UUID deviceId = endpoint.getInfo().getDeviceId();
+        if (deviceId != null) {
+            mTrustedPeers.forget(deviceId);
+        }
+    }
+
+    /** @return True if we answer this endpoint without asking, once it's proven who it is. */
+    public boolean isAlwaysAnswered(Endpoint endpoint) {
+        UUID deviceId = endpoint.getInfo().getDeviceId();
+        return mTrustedPeers.isTrusted(deviceId)
+                && endpoint.getInfo().supportsPairing()
+                && !mFailedPeers.contains(deviceId);
+    }
+
+    /** @return True if we and this endpoint share a secret for the call we're on. */
+    public boolean hasCallSecret(Endpoint endpoint) {
+        UUID deviceId = endpoint.getInfo().getDeviceId();
+        return deviceId != null && mCallSecrets.containsKey(deviceId);
+    }
+
+    /**
+     * Has this endpoint prove it's the peer we lost, with the secret we shared for the call,
+     * before it's part of the call. Only for ones we {@link #hasCallSecret(Endpoint) have one
+     * with}.
+     */
+    @MainThread
+    public void expectCallProof(Endpoint endpoint) {
+        byte[] callSecret = mCallSecrets.get(endpoint.getInfo().getDeviceId());
+        mUnverifiedPeers.put(endpoint.getId(), new Challenge(Packet.SECRET_CALL, callSecret));
+    }
+
+    /**
+     * Has this endpoint prove it's the device the user trusts before it's part of the call. Only
+     * for ones {@link #isAlwaysAnswered(Endpoint) always answered}.
+     */
+    @MainThread
+    public void expectTrustedProof(Endpoint endpoint) {
+        byte[] secret = mTrustedPeers.getSecret(endpoint.getInfo().getDeviceId());
+        mUnverifiedPeers.put(endpoint.getId(), new Challenge(Packet.SECRET_TRUSTED, secret));
+    }
+
+    /** @return True if this endpoint has yet to prove who it is, so isn't part of the call. */
+    public boolean isUnverified(String endpointId) {
+        return mUnverifiedPeers.containsKey(endpointId);
+    }
+
+    /** @return True if anyone has yet to prove who they are. */
+    public boolean hasUnverified() {
+        return !mUnverifiedPeers.isEmpty();
+    }
+
+    /**
+     * Asks a peer we accepted without asking to prove who it is, now it's connected, and gives up
+     * on it if it doesn't soon.
+     */
+    @MainThread
+    public void challenge(Endpoint endpoint) {
+        Challenge challenge = mUnverifiedPeers.get(endpoint.getId());
+        if (challenge == null) {
+            return;
+        }
+        mCallback.sendTo(endpoint, Packet.challenge(challenge.which, challenge.nonce));
+        mHandler.postDelayed(
+                () -> {
+                    if (mUnverifiedPeers.get(endpoint.getId()) == challenge) {
+                        fail(endpoint, "timed out");
+                    }
+                },
+                VERIFY_TIMEOUT_MS);
+    }
+
+    /** Proves who we are to a peer that's asked, with the secret it gave us, if it did. */
+    @MainThread
+    public void answerChallenge(Endpoint endpoint, byte[] packet) {
+        byte[] nonce = Packet.getChallengeNonce(packet);
+        UUID deviceId = endpoint.getInfo().getDeviceId();
+        byte[] secret = null;
+        if (Packet.getSecretKind(packet) == Packet.SECRET_TRUSTED) {
+            secret = mTrustedPeers.getKey(deviceId);
+        } else if (Packet.getSecretKind(packet) == Packet.SECRET_CALL && deviceId != null) {
+            secret = mCallSecrets.get(deviceId);
+        }
+        if (nonce == null || secret == null) {
+            // It'll cut us off, and ask its user next time.
+            Log.w(TAG, "Nothing to prove who we are to " + endpoint + " with");
+            return;
+        }
+        for (Challenge challenge : mUnverifiedPeers.values()) {
+            if (Arrays.equals(challenge.nonce, nonce)) {
+                // Our own challenge, sent back to get our answer to it. Whoever has a secret with
+                // us makes up their own nonces.
+                fail(endpoint, "sent our challenge back");
+                return;
+            }
+        }
+        boolean caller = !mIncomingPeers.contains(endpoint.getId());
+        byte[] response = PeerVerifier.respond(secret, nonce, getAuthToken(endpoint), caller);
+        mCallback.sendTo(endpoint, Packet.challengeResponse(response));
+    }
+
+    /** A peer we challenged has answered. Lets it into the call if it got it right. */
+    @MainThread
+    public void onChallengeResponse(Endpoint endpoint, byte[] packet) {
+        Challenge challenge = mUnverifiedPeers.get(endpoint.getId());
+        if (challenge == null) {
+            return;
+        }
+        byte[] response = Packet.getChallengeResponse(packet);
+        boolean peerCaller = mIncomingPeers.contains(endpoint.getId());
+        if (response == null
+                || !PeerVerifier.verify(
+                        challenge.secret,
+                        challenge.nonce,
+                        getAuthToken(endpoint),
+                        peerCaller,
+                        response)) {
+            fail(endpoint, "wrong answer");
+            return;
+        }
+        mUnverifiedPeers.remove(endpoint.getId());
+        mCallback.onVerified(endpoint);
+    }
+
+    /** Forgets a peer that didn't prove who it is, and leaves it to the user next time. */
+    @MainThread
+    private void fail(Endpoint endpoint, String why) {
+        mUnverifiedPeers.remove(endpoint.getId());
+        mAuthTokens.remove(endpoint.getId());
+        mIncomingPeers.remove(endpoint.getId());
+        UUID deviceId = endpoint.getInfo().getDeviceId();
+        if (deviceId != null) {
+            mFailedPeers.add(deviceId);
+        }
+        mCallback.onVerificationFailed(endpoint, why);
+    }
+
+    /**
+     * The user chose to always answer this endpoint. Once it's connected, {@link
+     * #onConnected(Endpoint)} gives it the secret it'll prove itself with.
+     */
+    @MainThread
+    public void pairWhenConnected(Endpoint endpoint) {
+        if (endpoint.getInfo().supportsPairing()) {
+            mPairingPeers.add(endpoint.getId());
+        }
+    }
+
+    /**
+     * A peer is part of the call. Shares a secret with it for the call, and if the user chose to
+     * always answer it, trusts it and gives it the secret that proves it.
+     */
+    @MainThread
+    public void onConnected(Endpoint endpoint) {
+        shareCallSecret(endpoint);
+        if (mPairingPeers.remove(endpoint.getId())) {
+            pair(endpoint);
+        }
+    }
+
+    /** Trusts a peer the user chose to always answer, and gives it the secret that proves it. */
+    @MainThread
+    private void pair(Endpoint endpoint) {
+        UUID deviceId = endpoint.getInfo().getDeviceId();
+        if (deviceId == null) {
+            return;
+        }
+        byte[] secret = PeerVerifier.newSecret();
+        mTrustedPeers.trust(deviceId, endpoint.getName(), secret);
+        mFailedPeers.remove(deviceId);
+        mCallback.sendTo(endpoint, Packet.pair(Packet.SECRET_TRUSTED, secret));
+    }
+
+    /**
+     * Makes sure we share a secret with this peer for the call, so that if the link drops, each
+     * can prove who it is when it's back. Whoever was asked to connect makes it up, so they don't
+     * both, and so it's never sent before the other end has let us into the call.
+     */
+    @MainThread
+    private void shareCallSecret(Endpoint endpoint) {
+        UUID deviceId = endpoint.getInfo().getDeviceId();
+        if (deviceId == null
+                || !endpoint.getInfo().supportsPairing()
+                || !mIncomingPeers.contains(endpoint.getId())
+                || mCallSecrets.containsKey(deviceId)) {
+            return;
+        }
+        byte[] secret = PeerVerifier.newSecret();
+        mCallSecrets.put(deviceId, secret);
+        mCallback.sendTo(endpoint, Packet.pair(Packet.SECRET_CALL, secret));
+    }
+
+    /** A peer gave us a secret to prove ourselves with, for the call or for good. */
+    @MainThread
+    public void onPair(Endpoint endpoint, byte[] packet) {
+        UUID deviceId = endpoint.getInfo().getDeviceId();
+        byte[] secret = Packet.getPairSecret(packet);
+        if (deviceId == null || secret == null) {
+            Log.w(TAG, "Ignoring a bad secret from " + endpoint);
+            return;
+        }
+        switch (Packet.getSecretKind(packet)) {
+            case Packet.SECRET_TRUSTED:
+                Log.d(TAG, endpoint + " will answer us without asking");
+                mTrustedPeers.saveKey(deviceId, secret);
+                break;
+            case Packet.SECRET_CALL:
+                mCallSecrets.put(deviceId, secret);
+                break;
+            default:
+                Log.w(TAG, "Ignoring a secret of an unknown kind from " + endpoint);
+                break;
+        }
+    }
+
+    /** @return Nearby's token for our connection with this endpoint. */
+    private byte[] getAuthToken(Endpoint endpoint) {
+        byte[] authToken = mAuthTokens.get(endpoint.getId());
+        return authToken == null ? new byte[0] : authToken;
+    }
+}
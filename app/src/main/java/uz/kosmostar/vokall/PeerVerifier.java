@@ -0,0 +1,99 @@
+package uz.kosmostar.vokall;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Proves a peer is the device we chose to trust, or were just on a call with, rather than one that
+ * copied its {@link EndpointInfo#getDeviceId() device id}, which anyone nearby can read.
+ *
+ * <p>When the user first chooses to always answer a peer, we make up a secret and send it over the
+ * call in a {@link Packet#TYPE_PAIR}. Both ends keep it, in their {@link TrustedPeerStore}s. The
+ * next time that device id calls, we accept the connection but don't let the call be heard either
+ * way until it's proven itself: we send a {@link Packet#TYPE_CHALLENGE} with a random nonce, and it
+ * has to answer with an HMAC of the nonce and Nearby's token for the connection, keyed by the
+ * secret. Both ends see the same token, and it's different for every connection, so an answer
+ * overheard on one connection is no use on another. The answer also says which end of the
+ * connection gave it, so a peer can't send our own challenge back to us and pass our answer off
+ * as its own.
+ *
+ * <p>Every call works the same way for getting it back when the link drops. Each pair of peers on
+ * it share a secret for the call, made up by whichever was asked to connect. Whoever shows up
+ * as the peer we lost, whichever way the new connection goes, answers a challenge keyed by it
+ * before the call carries on, and we answer its.
+ */
+final class PeerVerifier {
+    /** How many bytes a secret is. */
+    static final int SECRET_SIZE = 32;
+
+    /** How many bytes a challenge's nonce is. */
+    static final int NONCE_SIZE = 16;
+
+    /** How many bytes an answer is. */
+    static final int RESPONSE_SIZE = 32;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /** Goes in front of what's signed, so the secret can't be used to sign anything else. */
+    private static final byte[] CONTEXT = "vokall pairing 2".getBytes(StandardCharsets.US_ASCII);
+
+    /** Signed by the end that asked for the connection. */
+    private static final byte SIDE_CALLER = 1;
+
+    /** Signed by the end that accepted it. */
+    private static final byte SIDE_ANSWERER = 2;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    private PeerVerifier() {}
+
+    /** @return A new secret, to give a peer we'll answer without asking. */
+    static byte[] newSecret() {
+        byte[] secret = new byte[SECRET_SIZE];
+        sRandom.nextBytes(secret);
+        return secret;
+    }
+
+    /** @return A new nonce, to challenge a peer with. */
+    static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_SIZE];
+        sRandom.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * @param authToken Nearby's token for the connection the challenge came over.
+     * @param caller True if we asked for that connection, false if we accepted it.
+     * @return The answer to a challenge, proving we have {@code secret}.
+     */
+    static byte[] respond(byte[] secret, byte[] nonce, byte[] authToken, boolean caller) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret, ALGORITHM));
+            mac.update(CONTEXT);
+            mac.update(caller ? SIDE_CALLER : SIDE_ANSWERER);
+            mac.update(nonce);
+            mac.update(authToken);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            // Every Android has HMAC-SHA256, and any key length will do for it.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param authToken Nearby's token for the connection the challenge went over.
+     * @param peerCaller True if the peer asked for that connection, false if it accepted it. It's
+     *     always the other end from us, so our own answer, sent back, is wrong.
+     * @return True if {@code response} proves the peer has {@code secret}.
+     */
+    static boolean verify(
+            byte[] secret, byte[] nonce, byte[] authToken, boolean peerCaller, byte[] response) {
+        // Takes as long however much of it matches, so that can't be timed.
+        return MessageDigest.isEqual(respond(secret, nonce, authToken, peerCaller), response);
+    }
+}
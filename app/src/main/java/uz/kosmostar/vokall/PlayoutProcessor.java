@@ -0,0 +1,287 @@
+package uz.kosmostar.vokall;
+
+/**
+ * Everything that happens to a received frame between the playout queue and the {@link
+ * android.media.AudioTrack}. Kept free of Android classes so the same logic can run anywhere.
+ *
+ * <p>Each frame first goes through a {@link DspChain}. Then two things keep the playout delay where we want it:
+ *
+ * <ul>
+ *   <li>{@link TimeStretcher} plays a backlog up to 12% faster until we're back at the target
+ *       delay, and plays 10% slower when the queue is about to run dry, to ride out short stalls.
+ *   <li>{@link DriftCompensator} and {@link PlayoutResampler} take care of the slow, steady creep
+ *       caused by the two devices' clocks running at slightly different speeds.
+ * </ul>
+ *
+ * <p>Frames that say when they should be heard go through {@link #processScheduled(byte[], int,
+ * int)} instead, which steers towards that time rather than towards a delay. The clocks are
+ * already {@link ClockSync matched up} then, so there's no drift to make up for.
+ */
+public class PlayoutProcessor {
+    /** Tempo used to work through a backlog. */
+    static final double SPEED_UP_TEMPO = 1.12;
+    /** Tempo used when the queue is about to run dry. */
+    static final double SLOW_DOWN_TEMPO = 0.9;
+
+    /** The playout delay we aim for, unless told otherwise. */
+    static final int TARGET_DELAY_MS = 60;
+    /** How far past the target the delay has to get before we start catching up. */
+    private static final int CATCH_UP_THRESHOLD_MS = 100;
+
+    /** How far from its time a scheduled frame may be heard before we do anything about it. */
+    private static final int SYNC_DEADBAND_MS = 2;
+    /**
+     * How far from its time a scheduled frame may be heard before we stop steering it back gently.
+     * Further late than this we catch up at {@link #SPEED_UP_TEMPO}; further early, {@link
+     * AudioPlayer} waits with silence first.
+     */
+    static final int SYNC_STEER_MS = 40;
+    /** The most we speed up or slow down while steering, at {@link #SYNC_STEER_MS} off. */
+    private static final double SYNC_MAX_TEMPO_CHANGE = 0.05;
+    /** How much each scheduled frame counts towards {@link #getSyncErrorMs()}. */
+    private static final double SYNC_ERROR_WEIGHT = 0.05;
+
+    private static final int MODE_NORMAL = 0;
+    private static final int MODE_SPEED_UP = 1;
+    private static final int MODE_SLOW_DOWN = 2;
+
+    private final int mSampleRate;
+    private int mTargetDelayMs;
+    private int mTargetSamples;
+    private int mCatchUpSamples;
+    private final TimeStretcher mStretcher;
+    private final DriftCompensator mDrift;
+    private final PlayoutResampler mResampler;
+    private final DspChain mDspChain;
+
+    private short[] mSamples;
+    private int mMode = MODE_NORMAL;
+
+    private long mSpeedUpFrames;
+    private long mSlowDownFrames;
+    private int mSpeedUps;
+    private int mSlowDowns;
+
+    /** Like {@link #mMode}, but for scheduled frames, which don't go by the queue. */
+    private int mScheduledMode = MODE_NORMAL;
+    private long mScheduledFrames;
+    private double mSyncErrorMs;
+
+    public PlayoutProcessor(int sampleRate, int maxFrameSamples) {
+        this(sampleRate, maxFrameSamples, new DspChain());
+    }
+
+    public PlayoutProcessor(int sampleRate, int maxFrameSamples, DspChain dspChain) {
+        mDspChain = dspChain;
+        mSampleRate = sampleRate;
+        setTarget(TARGET_DELAY_MS);
+        mSamples = new short[maxFrameSamples];
+        mStretcher = new TimeStretcher(sampleRate, maxFrameSamples);
+        mDrift = new DriftCompensator(sampleRate);
+        mResampler = new PlayoutResampler(mStretcher.getMaxOutputSamples(maxFrameSamples));
+    }
+
+    /**
+     * Processes one received frame.
+     *
+     * @param frame 16-bit PCM, as it came off the wire.
+     * @param length How many bytes of {@code frame} are valid.
+     * @param queuedSamples How many samples are still waiting in the queue behind this frame.
+     * @return The number of samples now in {@link #getOutput()}.
+     */
+    public int process(byte[] frame, int length, int queuedSamples) {
+        int frameSamples = toSamples(frame, length);
+        int delay = queuedSamples + mStretcher.getBufferedSamples();
+        double tempo = chooseTempo(delay, frameSamples);
+        int stretched = mStretcher.process(mSamples, frameSamples, tempo);
+
+        // Nudge the playback rate so the queue neither grows nor drains as the two clocks
+        // wander apart. While we're deliberately moving the delay, the level says nothing
+        // about drift, so the estimate is left alone.
+        if (mMode == MODE_NORMAL) {
+            mDrift.update(delay, frameSamples);
+        }
+        return mResampler.process(mStretcher.getOutput(), stretched, mDrift.getRatio());
+    }
+
+    /**
+     * Processes one received frame that should be heard at a given time.
+     *
+     * @param frame 16-bit PCM, as it came off the wire.
+     * @param length How many bytes of {@code frame} are valid.
+     * @param lateSamples How long after its time the frame's first sample will be heard if played
+     *     as it is, in samples. Negative if it'll be early.
+     * @return The number of samples now in {@link #getOutput()}.
+     */
+    public int processScheduled(byte[] frame, int length, int lateSamples) {
+        int frameSamples = toSamples(frame, length);
+        // The stretcher holds some of what it's given back, which will be heard later still.
+        int late = lateSamples + mStretcher.getBufferedSamples();
+        int deadband = mSampleRate * SYNC_DEADBAND_MS / 1000;
+        int steer = mSampleRate * SYNC_STEER_MS / 1000;
+        double tempo;
+        int mode = MODE_NORMAL;
+        if (Math.abs(late) <= deadband) {
+            tempo = 1;
+        } else if (late > steer) {
+            tempo = SPEED_UP_TEMPO;
+            mode = MODE_SPEED_UP;
+            mSpeedUpFrames++;
+        } else if (late < -steer) {
+            tempo = SLOW_DOWN_TEMPO;
+            mode = MODE_SLOW_DOWN;
+            mSlowDownFrames++;
+        } else {
+            tempo = 1 + SYNC_MAX_TEMPO_CHANGE * late / steer;
+        }
+        if (mode != mScheduledMode) {
+            if (mode == MODE_SPEED_UP) {
+                mSpeedUps++;
+            } else if (mode == MODE_SLOW_DOWN) {
+                mSlowDowns++;
+            }
+            mScheduledMode = mode;
+        }
+        mScheduledFrames++;
+        double errorMs = Math.abs(late) * 1000.0 / mSampleRate;
+        mSyncErrorMs += (errorMs - mSyncErrorMs) * SYNC_ERROR_WEIGHT;
+
+        int stretched = mStretcher.process(mSamples, frameSamples, tempo);
+        return mResampler.process(mStretcher.getOutput(), stretched, 1);
+    }
+
+    /** Unpacks a frame into {@link #mSamples} and runs it through the DSP chain. */
+    private int toSamples(byte[] frame, int length) {
+        int frameSamples = length / 2;
+        if (mSamples.length < frameSamples) {
+            mSamples = new short[frameSamples];
+        }
+        Pcm16.toShorts(frame, 0, length, mSamples);
+        mDspChain.process(mSamples, frameSamples);
+        return frameSamples;
+    }
+
+    /**
+     * Aims for a different playout delay, e.g. because the talker is further away over a mesh and
+     * their audio arrives with more jitter. We slow down or speed up until we're there.
+     */
+    public void setTargetDelayMs(int targetDelayMs) {
+        int oldTarget = mTargetSamples;
+        setTarget(targetDelayMs);
+        if (mTargetSamples > oldTarget && mMode != MODE_SLOW_DOWN) {
+            mMode = MODE_SLOW_DOWN;
+            mSlowDowns++;
+        } else if (mTargetSamples < oldTarget && mMode != MODE_SPEED_UP) {
+            mMode = MODE_SPEED_UP;
+            mSpeedUps++;
+        }
+    }
+
+    /** @return The playout delay we aim for, in ms. */
+    public int getTargetDelayMs() {
+        return mTargetDelayMs;
+    }
+
+    private void setTarget(int targetDelayMs) {
+        mTargetDelayMs = targetDelayMs;
+        mTargetSamples = mSampleRate * targetDelayMs / 1000;
+        mCatchUpSamples = mTargetSamples + mSampleRate * CATCH_UP_THRESHOLD_MS / 1000;
+    }
+
+    /**
+     * @return The buffer {@link #process(byte[], int, int)} and {@link #processScheduled(byte[],
+     *     int, int)} write into.
+     */
+    public short[] getOutput() {
+        return mResampler.getOutput();
+    }
+
+    /** @return How many frames were played faster than real time to catch up. */
+    public long getSpeedUpFrames() {
+        return mSpeedUpFrames;
+    }
+
+    /** @return How many frames were played slower than real time to avoid running dry. */
+    public long getSlowDownFrames() {
+        return mSlowDownFrames;
+    }
+
+    /** @return How many times we started catching up on a backlog. */
+    public int getSpeedUpCount() {
+        return mSpeedUps;
+    }
+
+    /** @return How many times we started slowing down to ride out a stall. */
+    public int getSlowDownCount() {
+        return mSlowDowns;
+    }
+
+    /** @return How many frames were played at a given time. */
+    public long getScheduledFrames() {
+        return mScheduledFrames;
+    }
+
+    /**
+     * @return How far from their time scheduled frames have been heard lately, on average, in ms.
+     *     Every listener aiming for the same time, that's how far apart they are, plus how far off
+     *     each one's {@link ClockSync} is.
+     */
+    public double getSyncErrorMs() {
+        return mSyncErrorMs;
+    }
+
+    /** @return The estimated clock drift between the sender and us, in parts per million. */
+    public double getDriftPpm() {
+        return mDrift.getDriftPpm();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "PlayoutProcessor{speedUps=%d (%d frames), slowDowns=%d (%d frames), "
+                        + "drift=%.1fppm, scheduled=%d, syncError=%.1fms, %s}",
+                mSpeedUps, mSpeedUpFrames, mSlowDowns, mSlowDownFrames, getDriftPpm(),
+                mScheduledFrames, mSyncErrorMs, mDspChain);
+    }
+
+    private double chooseTempo(int delay, int frameSamples) {
+        switch (mMode) {
+            case MODE_SPEED_UP:
+                if (delay <= mTargetSamples) {
+                    settle(delay);
+                }
+                break;
+            case MODE_SLOW_DOWN:
+                if (delay >= mTargetSamples) {
+                    settle(delay);
+                }
+                break;
+            default:
+                if (delay > mCatchUpSamples) {
+                    mMode = MODE_SPEED_UP;
+                    mSpeedUps++;
+                } else if (delay < frameSamples / 2) {
+                    mMode = MODE_SLOW_DOWN;
+                    mSlowDowns++;
+                }
+                break;
+        }
+
+        switch (mMode) {
+            case MODE_SPEED_UP:
+                mSpeedUpFrames++;
+                return SPEED_UP_TEMPO;
+            case MODE_SLOW_DOWN:
+                mSlowDownFrames++;
+                return SLOW_DOWN_TEMPO;
+            default:
+                return 1;
+        }
+    }
+
+    /** We're back at the target delay. Stop stretching and let drift compensation hold us here. */
+    private void settle(int delay) {
+        mMode = MODE_NORMAL;
+        mDrift.setTargetLevel(delay);
+    }
+}
@@ -0,0 +1,74 @@
+package uz.kosmostar.vokall;
+
+/**
+ * Plays audio back a tiny bit faster or slower than it was recorded by linearly interpolating
+ * between samples. Meant for ratios within a fraction of a percent of 1, where the pitch change is
+ * inaudible, so it's used to soak up clock drift. {@link SampleRateConverter} uses it with bigger
+ * ratios, filtering first, to convert between sample rates.
+ *
+ * <p>State carries over between calls so frame boundaries don't click. The output buffer is
+ * allocated once, up front.
+ */
+public class PlayoutResampler {
+    private short[] mOutput;
+
+    /** The last input sample of the previous frame. */
+    private short mLast;
+
+    /** Where the next output sample falls, in input samples after {@link #mLast}. */
+    private double mPhase;
+
+    /**
+     * @param maxFrameSamples The largest frame we expect to be handed. Bigger frames still work,
+     *     but cost an allocation.
+     */
+    public PlayoutResampler(int maxFrameSamples) {
+        mOutput = new short[outputCapacity(maxFrameSamples)];
+    }
+
+    /**
+     * Resamples a frame.
+     *
+     * @param input The samples to play.
+     * @param length How many samples of {@code input} are valid.
+     * @param ratio How many input samples to consume per output sample.
+     * @return The number of samples now in {@link #getOutput()}.
+     */
+    public int process(short[] input, int length, double ratio) {
+        if (length <= 0) {
+            return 0;
+        }
+        if (mOutput.length < outputCapacity(length, ratio)) {
+            mOutput = new short[outputCapacity(length, ratio)];
+        }
+
+        int out = 0;
+        double position = mPhase - 1;
+        int last = length - 1;
+        while (position < last) {
+            int index = (int) Math.floor(position);
+            double fraction = position - index;
+            int a = index < 0 ? mLast : input[index];
+            int b = input[index + 1];
+            mOutput[out++] = (short) Math.round(a + fraction * (b - a));
+            position += ratio;
+        }
+        mPhase = position - last;
+        mLast = input[last];
+        return out;
+    }
+
+    /** @return The buffer {@link #process(short[], int, double)} writes into. */
+    public short[] getOutput() {
+        return mOutput;
+    }
+
+    private static int outputCapacity(int frameSamples) {
+        return outputCapacity(frameSamples, 1);
+    }
+
+    private static int outputCapacity(int frameSamples, double ratio) {
+        double minRatio = Math.min(ratio, 1) * (1 - 2 * DriftCompensator.MAX_CORRECTION);
+        return (int) Math.ceil(frameSamples / minRatio) + 2;
+    }
+}
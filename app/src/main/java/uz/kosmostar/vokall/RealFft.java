@@ -0,0 +1,154 @@
+package uz.kosmostar.vokall;
+
+/**
+ * A fast Fourier transform of real signals, with every table and buffer allocated up front so it
+ * can run on an audio thread.
+ *
+ * <p>A real signal of length n is packed into a complex one of length n/2 (even samples as the real
+ * part, odd as the imaginary), run through a radix-2 FFT, and then split back into the n/2+1 bins
+ * of the real signal's spectrum. That's about half the work of a complex FFT of length n.
+ */
+public class RealFft {
+    private final int mSize;
+    private final int mHalf;
+    private final int[] mBitReverse;
+    /** Twiddles for the n/2 complex FFT. */
+    private final float[] mCos;
+    private final float[] mSin;
+    /** Twiddles for splitting the packed spectrum. */
+    private final float[] mSplitCos;
+    private final float[] mSplitSin;
+    private final float[] mRe;
+    private final float[] mIm;
+
+    /** @param size The transform length. Must be a power of two, at least 4. */
+    public RealFft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        mSize = size;
+        mHalf = size / 2;
+        mRe = new float[mHalf];
+        mIm = new float[mHalf];
+
+        mBitReverse = new int[mHalf];
+        int bits = Integer.numberOfTrailingZeros(mHalf);
+        for (int i = 0; i < mHalf; i++) {
+            mBitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+
+        mCos = new float[mHalf / 2];
+        mSin = new float[mHalf / 2];
+        for (int i = 0; i < mHalf / 2; i++) {
+            mCos[i] = (float) Math.cos(2 * Math.PI * i / mHalf);
+            mSin[i] = (float) -Math.sin(2 * Math.PI * i / mHalf);
+        }
+        mSplitCos = new float[mHalf];
+        mSplitSin = new float[mHalf];
+        for (int i = 0; i < mHalf; i++) {
+            mSplitCos[i] = (float) Math.cos(2 * Math.PI * i / size);
+            mSplitSin[i] = (float) -Math.sin(2 * Math.PI * i / size);
+        }
+    }
+
+    /** @return The transform length. */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Transforms {@code size} real samples into {@code size/2 + 1} complex bins.
+     *
+     * @param input The time-domain signal. Left untouched.
+     * @param re Receives the real parts of bins 0 to size/2.
+     * @param im Receives the imaginary parts of bins 0 to size/2.
+     */
+    public void forward(float[] input, float[] re, float[] im) {
+        for (int i = 0; i < mHalf; i++) {
+            int j = mBitReverse[i];
+            mRe[j] = input[2 * i];
+            mIm[j] = input[2 * i + 1];
+        }
+        transform(mRe, mIm);
+
+        // Untangle the spectra of the even and odd samples, then combine them.
+        re[0] = mRe[0] + mIm[0];
+        im[0] = 0;
+        re[mHalf] = mRe[0] - mIm[0];
+        im[mHalf] = 0;
+        for (int k = 1; k < mHalf; k++) {
+            float zr = mRe[k];
+            float zi = mIm[k];
+            float cr = mRe[mHalf - k];
+            float ci = -mIm[mHalf - k];
+            float evenRe = (zr + cr) / 2;
+            float evenIm = (zi + ci) / 2;
+            float oddRe = (zi - ci) / 2;
+            float oddIm = -(zr - cr) / 2;
+            float wr = mSplitCos[k];
+            float wi = mSplitSin[k];
+            re[k] = evenRe + oddRe * wr - oddIm * wi;
+            im[k] = evenIm + oddRe * wi + oddIm * wr;
+        }
+    }
+
+    /**
+     * The inverse of {@link #forward(float[], float[], float[])}, including the 1/size scaling.
+     *
+     * @param re The real parts of bins 0 to size/2. Left untouched.
+     * @param im The imaginary parts of bins 0 to size/2. Left untouched.
+     * @param output Receives {@code size} real samples.
+     */
+    public void inverse(float[] re, float[] im, float[] output) {
+        // Rebuild the packed spectrum from the real one, conjugated so the forward
+        // transform runs it backwards.
+        for (int k = 0; k < mHalf; k++) {
+            float xr = re[k];
+            float xi = im[k];
+            float cr = re[mHalf - k];
+            float ci = -im[mHalf - k];
+            float evenRe = (xr + cr) / 2;
+            float evenIm = (xi + ci) / 2;
+            float diffRe = (xr - cr) / 2;
+            float diffIm = (xi - ci) / 2;
+            // Undo the twiddle: odd = diff * conj(w).
+            float wr = mSplitCos[k];
+            float wi = -mSplitSin[k];
+            float oddRe = diffRe * wr - diffIm * wi;
+            float oddIm = diffRe * wi + diffIm * wr;
+            int j = mBitReverse[k];
+            mRe[j] = evenRe - oddIm;
+            mIm[j] = -(evenIm + oddRe);
+        }
+        transform(mRe, mIm);
+
+        float scale = 1f / mHalf;
+        for (int i = 0; i < mHalf; i++) {
+            output[2 * i] = mRe[i] * scale;
+            output[2 * i + 1] = -mIm[i] * scale;
+        }
+    }
+
+    /** An in-place iterative radix-2 FFT over input that's already in bit-reversed order. */
+    private void transform(float[] re, float[] im) {
+        int n = mHalf;
+        for (int length = 2; length <= n; length <<= 1) {
+            int half = length >> 1;
+            int stride = n / length;
+            for (int start = 0; start < n; start += length) {
+                for (int i = 0; i < half; i++) {
+                    float wr = mCos[i * stride];
+                    float wi = mSin[i * stride];
+                    int a = start + i;
+                    int b = a + half;
+                    float tr = re[b] * wr - im[b] * wi;
+                    float ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package uz.kosmostar.vokall;
+
+import java.util.Random;
+
+/**
+ * How long to wait between attempts to reach a peer we lost. The wait doubles after each failed
+ * attempt, up to a limit, and is jittered: each wait is picked at random between half and all of
+ * the current step. Both ends of a dropped call retry at once, so without the jitter they'd keep
+ * asking each other at exactly the same moments.
+ *
+ * <p>Not thread-safe; use it from one thread.
+ */
+public class ReconnectBackoff {
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom;
+
+    private long mStepMs;
+    private int mAttempts;
+
+    /**
+     * @param initialDelayMs The first step; the first wait is between half this and this.
+     * @param maxDelayMs The step stops doubling here.
+     */
+    public ReconnectBackoff(long initialDelayMs, long maxDelayMs) {
+        this(initialDelayMs, maxDelayMs, new Random());
+    }
+
+    ReconnectBackoff(long initialDelayMs, long maxDelayMs, Random random) {
+        mInitialDelayMs = Math.max(1, initialDelayMs);
+        mMaxDelayMs = Math.max(mInitialDelayMs, maxDelayMs);
+        mRandom = random;
+        reset();
+    }
+
+    /** Starts over from the first step, e.g. when a new reconnect begins. */
+    public void reset() {
+        mStepMs = mInitialDelayMs;
+        mAttempts = 0;
+    }
+
+    /** @return How long to wait before the next attempt. Each call counts as an attempt. */
+    public long nextDelayMs() {
+        long half = mStepMs / 2;
+        long delay = half + (long) (mRandom.nextDouble() * (mStepMs - half + 1));
+        mStepMs = Math.min(mMaxDelayMs, mStepMs * 2);
+        mAttempts++;
+        return delay;
+    }
+
+    /** @return How many delays were handed out since the last {@link #reset()}. */
+    public int getAttempts() {
+        return mAttempts;
+    }
+}
@@ -0,0 +1,109 @@
+package uz.kosmostar.vokall;
+
+/**
+ * Converts a stream of frames from one sample rate to another, e.g. so we can send at a lower rate
+ * than the call's when the link is slow, and the peer can play it at the call's rate anyway.
+ *
+ * <p>Going down, a fourth-order low-pass (the same Butterworth section twice) first takes out what
+ * the lower rate can't hold, so it doesn't alias. Then {@link PlayoutResampler} interpolates.
+ * Linear interpolation dulls the top end a little, which for speech at these rates doesn't matter.
+ *
+ * <p>State carries over between frames so their boundaries don't click. Not thread-safe.
+ */
+public class SampleRateConverter {
+    /** Where the low-pass cuts off, as a fraction of the lower rate's Nyquist frequency. */
+    private static final double CUTOFF = 0.9;
+
+    private final int mInputRate;
+    private final int mOutputRate;
+    private final double mRatio;
+    private final PlayoutResampler mResampler;
+
+    /** The low-pass's coefficients, or all 0 if we're not going down. */
+    private final float mB0;
+    private final float mB1;
+    private final float mB2;
+    private final float mA1;
+    private final float mA2;
+    private final boolean mFilter;
+    /** Both sections' state: z1 and z2 of the first, then of the second. */
+    private final float[] mZ = new float[4];
+
+    /** Where the filtered input goes, so the caller's frame isn't changed. */
+    private short[] mFiltered;
+
+    /**
+     * @param maxFrameSamples The largest input frame we expect. Bigger frames still work, but cost
+     *     an allocation.
+     */
+    public SampleRateConverter(int inputRate, int outputRate, int maxFrameSamples) {
+        mInputRate = inputRate;
+        mOutputRate = outputRate;
+        mRatio = (double) inputRate / outputRate;
+        mResampler = new PlayoutResampler(maxFrameSamples);
+        mFiltered = new short[maxFrameSamples];
+        mFilter = outputRate < inputRate;
+        if (mFilter) {
+            double w0 = Math.PI * CUTOFF * outputRate / inputRate;
+            double cos = Math.cos(w0);
+            double alpha = Math.sin(w0) / (2 * Math.sqrt(0.5));
+            double a0 = 1 + alpha;
+            mB0 = (float) ((1 - cos) / 2 / a0);
+            mB1 = (float) ((1 - cos) / a0);
+            mB2 = mB0;
+            mA1 = (float) (-2 * cos / a0);
+            mA2 = (float) ((1 - alpha) / a0);
+        } else {
+            mB0 = mB1 = mB2 = mA1 = mA2 = 0;
+        }
+    }
+
+    public int getInputRate() {
+        return mInputRate;
+    }
+
+    public int getOutputRate() {
+        return mOutputRate;
+    }
+
+    /**
+     * Converts a frame.
+     *
+     * @param input The samples at the input rate.
+     * @param length How many samples of {@code input} are valid.
+     * @return The number of samples now in {@link #getOutput()}.
+     */
+    public int process(short[] input, int length) {
+        if (!mFilter) {
+            return mResampler.process(input, length, mRatio);
+        }
+        if (mFiltered.length < length) {
+            mFiltered = new short[length];
+        }
+        float z1a = mZ[0];
+        float z2a = mZ[1];
+        float z1b = mZ[2];
+        float z2b = mZ[3];
+        for (int i = 0; i < length; i++) {
+            float x = input[i];
+            float y = mB0 * x + z1a;
+            z1a = mB1 * x - mA1 * y + z2a;
+            z2a = mB2 * x - mA2 * y;
+            x = y;
+            y = mB0 * x + z1b;
+            z1b = mB1 * x - mA1 * y + z2b;
+            z2b = mB2 * x - mA2 * y;
+            mFiltered[i] = Pcm16.clip(Math.round(y));
+        }
+        mZ[0] = z1a;
+        mZ[1] = z2a;
+        mZ[2] = z1b;
+        mZ[3] = z2b;
+        return mResampler.process(mFiltered, length, mRatio);
+    }
+
+    /** @return The buffer {@link #process(short[], int)} writes into. */
+    public short[] getOutput() {
+        return mResampler.getOutput();
+    }
+}
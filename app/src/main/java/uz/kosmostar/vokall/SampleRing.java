@@ -0,0 +1,77 @@
+package uz.kosmostar.vokall;
+
+/**
+ * Hands audio from an audio thread to a thread that's slower to get to it, like one writing to
+ * disk. Like {@link EchoReference}, there's one writer and one reader, and nothing but a volatile
+ * position is shared, so neither ever blocks. Unlike it, nothing is ever overwritten before it's
+ * read: if the reader falls a whole ring behind, what doesn't fit is dropped and counted.
+ */
+public class SampleRing {
+    private final short[] mRing;
+
+    /** Total samples ever written. Only the writer writes it. */
+    private volatile long mWritten;
+
+    /** Total samples ever read. Only the reader writes it. */
+    private volatile long mRead;
+
+    /** Samples that didn't fit. Only the writer writes it. */
+    private volatile long mDropped;
+
+    /** @param capacity How many samples the ring holds. */
+    public SampleRing(int capacity) {
+        mRing = new short[capacity];
+    }
+
+    /** Adds samples, dropping what doesn't fit. Writer only. */
+    public void write(short[] samples, int length) {
+        long written = mWritten;
+        int room = (int) Math.min(length, mRing.length - (written - mRead));
+        for (int i = 0; i < room; i++) {
+            mRing[(int) ((written + i) % mRing.length)] = samples[i];
+        }
+        mWritten = written + room;
+        if (room < length) {
+            mDropped += length - room;
+        }
+    }
+
+    /** Adds {@code length} bytes of 16-bit PCM, dropping what doesn't fit. Writer only. */
+    public void write(byte[] pcm, int length) {
+        long written = mWritten;
+        int samples = length / 2;
+        int room = (int) Math.min(samples, mRing.length - (written - mRead));
+        for (int i = 0, j = 0; i < room; i++, j += 2) {
+            mRing[(int) ((written + i) % mRing.length)] =
+                    (short) ((pcm[j] & 0xFF) | (pcm[j + 1] << 8));
+        }
+        mWritten = written + room;
+        if (room < samples) {
+            mDropped += samples - room;
+        }
+    }
+
+    /** @return How many samples are waiting to be read. */
+    public long available() {
+        return mWritten - mRead;
+    }
+
+    /**
+     * Reads {@code length} samples into every {@code stride}th element of {@code dst}, from
+     * {@code offset}. Past what's been written, it reads silence. Reader only.
+     */
+    public void read(short[] dst, int offset, int stride, int length) {
+        long read = mRead;
+        long written = mWritten;
+        for (int i = 0, j = offset; i < length; i++, j += stride) {
+            long position = read + i;
+            dst[j] = position < written ? mRing[(int) (position % mRing.length)] : 0;
+        }
+        mRead = Math.min(read + length, written);
+    }
+
+    /** @return How many samples have been dropped because the reader was too far behind. */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+}
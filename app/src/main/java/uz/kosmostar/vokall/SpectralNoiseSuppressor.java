@@ -0,0 +1,183 @@
+package uz.kosmostar.vokall;
+
+import java.util.Arrays;
+
+/**
+ * Takes steady background noise (fans, traffic, hiss) out of captured speech, for devices where the
+ * platform {@link android.media.audiofx.NoiseSuppressor} is missing or does little.
+ *
+ * <p>Audio is cut into half-overlapping blocks, windowed with a square-root Hann window and taken
+ * into the frequency domain with {@link RealFft}. Each frequency bin gets a Wiener gain, computed
+ * from how far the bin's power is above the noise estimate. The a-priori SNR is smoothed with the
+ * decision-directed method, which keeps the "musical noise" of plain spectral subtraction down.
+ * Gains never drop below a floor, so what's left of the noise sounds natural rather than gated.
+ * The blocks then go back through the same window and are overlap-added.
+ *
+ * <p>The noise estimate follows each bin's smoothed power straight down, and creeps up by only a
+ * few dB a second, so speech doesn't register as noise but a new noise source is learned within a
+ * couple of seconds.
+ *
+ * <p>Processing adds one block of delay: 16ms at 16kHz. Everything is allocated up front.
+ */
+public class SpectralNoiseSuppressor implements DspStage {
+    /** Block length is the power of two closest to this. */
+    private static final int BLOCK_MS = 16;
+    /** Weight of the previous block's clean speech estimate in the a-priori SNR. */
+    private static final float DECISION_DIRECTED = 0.98f;
+    /** Smoothing of each bin's power before the noise estimate looks at it. */
+    private static final float POWER_SMOOTHING = 0.7f;
+    /** How fast the noise estimate can rise. */
+    private static final float NOISE_RISE_DB_PER_SECOND = 3;
+    /** Don't attenuate any bin by more than this. */
+    private static final float DEFAULT_FLOOR_DB = -15;
+
+    private final RealFft mFft;
+    private final int mBlock;
+    private final int mHop;
+    private final int mBins;
+    private final float mFloor;
+    private final float mNoiseRise;
+
+    private final float[] mWindow;
+    private final float[] mInput;
+    private final float[] mTime;
+    private final float[] mAccumulator;
+    private final short[] mOutput;
+    private final float[] mRe;
+    private final float[] mIm;
+    private final float[] mPower;
+    private final float[] mNoise;
+    private final float[] mCleanPower;
+    private int mFill;
+    private int mOutputPos;
+
+    private float mReductionDb;
+    private long mBlocks;
+
+    public SpectralNoiseSuppressor(int sampleRate) {
+        this(sampleRate, DEFAULT_FLOOR_DB);
+    }
+
+    /** @param floorDb The most any frequency is turned down, e.g. -15. */
+    public SpectralNoiseSuppressor(int sampleRate, float floorDb) {
+        mBlock = Integer.highestOneBit(Math.max(4, sampleRate * BLOCK_MS / 1000 * 3 / 2));
+        mHop = mBlock / 2;
+        mBins = mBlock / 2 + 1;
+        mFft = new RealFft(mBlock);
+        mFloor = (float) Math.pow(10, floorDb / 20);
+        float blocksPerSecond = (float) sampleRate / mHop;
+        mNoiseRise = (float) Math.pow(10, NOISE_RISE_DB_PER_SECOND / 10 / blocksPerSecond);
+
+        // A periodic Hann window, square-rooted so analysis and synthesis together sum to one.
+        mWindow = new float[mBlock];
+        for (int i = 0; i < mBlock; i++) {
+            mWindow[i] = (float) Math.sqrt(0.5 - 0.5 * Math.cos(2 * Math.PI * i / mBlock));
+        }
+
+        mInput = new float[mBlock];
+        mTime = new float[mBlock];
+        mAccumulator = new float[mBlock];
+        mOutput = new short[mHop];
+        mRe = new float[mBins];
+        mIm = new float[mBins];
+        mPower = new float[mBins];
+        mNoise = new float[mBins];
+        mCleanPower = new float[mBins];
+        reset();
+    }
+
+    @Override
+    public void process(short[] samples, int length) {
+        for (int i = 0; i < length; i++) {
+            mInput[mFill++] = samples[i];
+            samples[i] = mOutput[mOutputPos++];
+            if (mFill == mBlock) {
+                processBlock();
+                System.arraycopy(mInput, mHop, mInput, 0, mBlock - mHop);
+                mFill = mBlock - mHop;
+                mOutputPos = 0;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(mInput, 0);
+        Arrays.fill(mAccumulator, 0);
+        Arrays.fill(mOutput, (short) 0);
+        Arrays.fill(mPower, 0);
+        Arrays.fill(mNoise, Float.MAX_VALUE);
+        Arrays.fill(mCleanPower, 0);
+        mFill = mBlock - mHop;
+        mOutputPos = 0;
+        mReductionDb = 0;
+        mBlocks = 0;
+    }
+
+    /** @return How much quieter the output is than the input, smoothed, in decibels. */
+    public float getNoiseReductionDb() {
+        return mReductionDb;
+    }
+
+    /** @return The estimated noise level, summed across frequencies, in dBFS. */
+    public float getNoiseLevelDbfs() {
+        if (mBlocks == 0) {
+            return -Float.MAX_VALUE;
+        }
+        double energy = 0;
+        for (int k = 0; k < mBins; k++) {
+            energy += mNoise[k];
+        }
+        // Parseval over half the spectrum, undoing the window's mean square of one half.
+        double meanSquare = energy * 4 / ((double) mBlock * mBlock);
+        return (float) (10 * Math.log10(meanSquare / (32768.0 * 32768.0) + 1e-12));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "SpectralNoiseSuppressor{reduction=%.1fdB, noise=%.0fdBFS}",
+                mReductionDb, getNoiseLevelDbfs());
+    }
+
+    private void processBlock() {
+        for (int i = 0; i < mBlock; i++) {
+            mTime[i] = mInput[i] * mWindow[i];
+        }
+        mFft.forward(mTime, mRe, mIm);
+
+        float inputEnergy = 0;
+        float outputEnergy = 0;
+        for (int k = 0; k < mBins; k++) {
+            float power = mRe[k] * mRe[k] + mIm[k] * mIm[k];
+            mPower[k] = POWER_SMOOTHING * mPower[k] + (1 - POWER_SMOOTHING) * power;
+            float noise = Math.max(1e-3f, Math.min(mPower[k], mNoise[k] * mNoiseRise));
+            mNoise[k] = noise;
+
+            float posteriori = power / noise;
+            float priori =
+                    DECISION_DIRECTED * mCleanPower[k] / noise
+                            + (1 - DECISION_DIRECTED) * Math.max(posteriori - 1, 0);
+            float gain = Math.max(mFloor, priori / (1 + priori));
+            mCleanPower[k] = gain * gain * power;
+
+            mRe[k] *= gain;
+            mIm[k] *= gain;
+            inputEnergy += power;
+            outputEnergy += mCleanPower[k];
+        }
+        float reduction = (float) (10 * Math.log10((inputEnergy + 1) / (outputEnergy + 1)));
+        mReductionDb += 0.05f * (reduction - mReductionDb);
+        mBlocks++;
+
+        mFft.inverse(mRe, mIm, mTime);
+        for (int i = 0; i < mBlock; i++) {
+            mAccumulator[i] += mTime[i] * mWindow[i];
+        }
+        for (int i = 0; i < mHop; i++) {
+            mOutput[i] = Pcm16.clip(Math.round(mAccumulator[i]));
+        }
+        System.arraycopy(mAccumulator, mHop, mAccumulator, 0, mBlock - mHop);
+        Arrays.fill(mAccumulator, mBlock - mHop, mBlock, 0);
+    }
+}
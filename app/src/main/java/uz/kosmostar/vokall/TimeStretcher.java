@@ -0,0 +1,215 @@
+package uz.kosmostar.vokall;
+
+/**
+ * Changes how fast audio plays without changing its pitch, using WSOLA (waveform similarity
+ * overlap-add). Audio is cut into overlapping segments; each new segment is taken from slightly
+ * further ahead (to speed up) or slightly behind (to slow down) in the input, nudged by up to a
+ * seek window so it lines up with the tail of the previous one, and cross-faded in.
+ *
+ * <p>At a tempo of exactly 1 the stretcher gets out of the way and frames pass straight through, so
+ * it costs nothing while the playout queue is healthy. Switching back to 1 flushes whatever is
+ * buffered with a cross-fade, so there's no click either way. Every buffer is allocated up front.
+ */
+public class TimeStretcher {
+    /** Length of each segment. */
+    private static final int SEQUENCE_MS = 20;
+    /** Length of the cross-fade between segments. */
+    private static final int OVERLAP_MS = 8;
+    /** How far we search for the best-matching segment start. */
+    private static final int SEEK_MS = 10;
+
+    /** The slowest tempo we accept. Used to size the output buffer. */
+    private static final double MIN_TEMPO = 0.5;
+    /** The fastest tempo we accept. */
+    private static final double MAX_TEMPO = 2.0;
+
+    private final int mSequence;
+    private final int mOverlap;
+    private final int mSeek;
+
+    /** The tail of the last segment, waiting to be cross-faded with the next. */
+    private final short[] mMid;
+
+    private short[] mInput;
+    private int mInputPos;
+    private int mInputEnd;
+    private short[] mOutput;
+
+    /** The fraction of a sample we still owe the input after the last skip. */
+    private double mSkipFraction;
+
+    /** True while audio is being stretched, rather than passed through. */
+    private boolean mActive;
+
+    public TimeStretcher(int sampleRate, int maxFrameSamples) {
+        mSequence = Math.max(8, sampleRate * SEQUENCE_MS / 1000);
+        mOverlap = Math.max(4, sampleRate * OVERLAP_MS / 1000);
+        mSeek = Math.max(1, sampleRate * SEEK_MS / 1000);
+        mMid = new short[mOverlap];
+        allocate(maxFrameSamples);
+    }
+
+    /**
+     * Stretches a frame.
+     *
+     * @param input The samples to play.
+     * @param length How many samples of {@code input} are valid.
+     * @param tempo How fast to play. 1.1 plays 10% faster, 0.9 plays 10% slower.
+     * @return The number of samples now in {@link #getOutput()}. May be 0 while the stretcher
+     *     collects enough input.
+     */
+    public int process(short[] input, int length, double tempo) {
+        tempo = Math.max(MIN_TEMPO, Math.min(MAX_TEMPO, tempo));
+        if (mInput.length < inputCapacity(length)) {
+            allocate(length);
+        }
+
+        if (!mActive) {
+            if (tempo == 1 || length < mOverlap) {
+                System.arraycopy(input, 0, mOutput, 0, length);
+                return length;
+            }
+            // Start stretching. The first few samples seed the cross-fade.
+            System.arraycopy(input, 0, mInput, 0, length);
+            System.arraycopy(input, 0, mMid, 0, mOverlap);
+            mInputPos = mOverlap;
+            mInputEnd = length;
+            mSkipFraction = 0;
+            mActive = true;
+        } else {
+            append(input, length);
+        }
+
+        if (tempo == 1) {
+            return flush();
+        }
+
+        int out = 0;
+        int copyLength = mSequence - 2 * mOverlap;
+        double nominalSkip = tempo * (mSequence - mOverlap);
+        while (mInputEnd - mInputPos >= mSequence + mSeek) {
+            int start = mInputPos + seekBestOffset();
+
+            // Cross-fade the previous tail into the start of this segment.
+            for (int i = 0; i < mOverlap; i++) {
+                mOutput[out++] =
+                        (short) ((mInput[start + i] * i + mMid[i] * (mOverlap - i)) / mOverlap);
+            }
+            // The middle of the segment goes out as-is.
+            System.arraycopy(mInput, start + mOverlap, mOutput, out, copyLength);
+            out += copyLength;
+            // And its tail waits for the next segment.
+            System.arraycopy(mInput, start + mSequence - mOverlap, mMid, 0, mOverlap);
+
+            mSkipFraction += nominalSkip;
+            int skip = (int) mSkipFraction;
+            mSkipFraction -= skip;
+            mInputPos += skip;
+        }
+        return out;
+    }
+
+    /** @return The buffer {@link #process(short[], int, double)} writes into. */
+    public short[] getOutput() {
+        return mOutput;
+    }
+
+    /** @return The largest number of samples one call can produce for the given frame size. */
+    public int getMaxOutputSamples(int frameSamples) {
+        return outputCapacity(inputCapacity(frameSamples));
+    }
+
+    /** @return How many samples are held back inside the stretcher, waiting to be played. */
+    public int getBufferedSamples() {
+        return mActive ? mInputEnd - mInputPos : 0;
+    }
+
+    /** @return True if audio is currently being stretched rather than passed through. */
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /** Drops anything buffered and goes back to passing audio through. */
+    public void reset() {
+        mActive = false;
+        mInputPos = 0;
+        mInputEnd = 0;
+    }
+
+    /** Plays out whatever's buffered at normal speed, then goes back to passing audio through. */
+    private int flush() {
+        int out = 0;
+        int available = mInputEnd - mInputPos;
+        int fade = Math.min(mOverlap, available);
+        for (int i = 0; i < fade; i++) {
+            mOutput[out++] =
+                    (short) ((mInput[mInputPos + i] * i + mMid[i] * (mOverlap - i)) / mOverlap);
+        }
+        System.arraycopy(mInput, mInputPos + fade, mOutput, out, available - fade);
+        out += available - fade;
+        reset();
+        return out;
+    }
+
+    /**
+     * Finds where, within the seek window, the input best continues the previous segment's tail.
+     * Scored by normalized cross-correlation; the energy term is updated incrementally.
+     */
+    private int seekBestOffset() {
+        long energy = 0;
+        for (int i = 0; i < mOverlap; i++) {
+            int x = mInput[mInputPos + i];
+            energy += x * x;
+        }
+
+        int bestOffset = 0;
+        double bestScore = -Double.MAX_VALUE;
+        for (int offset = 0; offset < mSeek; offset++) {
+            int start = mInputPos + offset;
+            long correlation = 0;
+            for (int i = 0; i < mOverlap; i++) {
+                correlation += mMid[i] * mInput[start + i];
+            }
+            double score = correlation / Math.sqrt(energy + 1.0);
+            if (score > bestScore) {
+                bestScore = score;
+                bestOffset = offset;
+            }
+            int leaving = mInput[start];
+            int entering = mInput[start + mOverlap];
+            energy += entering * entering - leaving * leaving;
+        }
+        return bestOffset;
+    }
+
+    private void append(short[] input, int length) {
+        if (mInputPos > 0) {
+            System.arraycopy(mInput, mInputPos, mInput, 0, mInputEnd - mInputPos);
+            mInputEnd -= mInputPos;
+            mInputPos = 0;
+        }
+        System.arraycopy(input, 0, mInput, mInputEnd, length);
+        mInputEnd += length;
+    }
+
+    private void allocate(int frameSamples) {
+        short[] input = new short[inputCapacity(frameSamples)];
+        if (mInput != null) {
+            System.arraycopy(mInput, mInputPos, input, 0, mInputEnd - mInputPos);
+            mInputEnd -= mInputPos;
+            mInputPos = 0;
+        }
+        mInput = input;
+        mOutput = new short[outputCapacity(input.length)];
+    }
+
+    /** Leftovers never reach a full segment plus seek window, so that plus one frame always fits. */
+    private int inputCapacity(int frameSamples) {
+        return frameSamples + mSequence + mSeek + mOverlap;
+    }
+
+    private int outputCapacity(int inputCapacity) {
+        int minSkip = (int) (MIN_TEMPO * (mSequence - mOverlap));
+        return (inputCapacity / Math.max(1, minSkip) + 1) * (mSequence - mOverlap) + inputCapacity;
+    }
+}
@@ -0,0 +1,77 @@
+package uz.kosmostar.vokall;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.StringRes;
+import com.google.android.gms.nearby.connection.BandwidthInfo;
+
+/**
+ * How our audio goes to each peer. Control packets always go as {@link #BYTES}, whichever this is,
+ * since {@link BandwidthEstimator} times them one by one.
+ */
+public enum Transport {
+    /** A BYTES payload per frame: one Nearby payload, and one send, per frame. */
+    BYTES(R.string.transport_bytes),
+
+    /**
+     * One long-lived STREAM payload per peer, fed through a pipe by a {@link PayloadStreamWriter}.
+     * Only to peers that {@link EndpointInfo#supportsAudioStreams() read them}; the rest still get
+     * BYTES.
+     */
+    STREAM(R.string.transport_stream);
+
+    /**
+     * How good Nearby says a link is: its {@link BandwidthInfo.Quality bandwidth quality}. That's
+     * all it tells us. It doesn't say which medium it picked, and more than one medium can land on
+     * the same quality, so this is only a bucket to compare like with like in.
+     */
+    public enum Quality {
+        UNKNOWN,
+        LOW,
+        MEDIUM,
+        HIGH;
+
+        /** @param quality One of {@link BandwidthInfo.Quality}. */
+        public static Quality fromBandwidthInfo(int quality) {
+            switch (quality) {
+                case BandwidthInfo.Quality.LOW:
+                    return LOW;
+                case BandwidthInfo.Quality.MEDIUM:
+                    return MEDIUM;
+                case BandwidthInfo.Quality.HIGH:
+                    return HIGH;
+                default:
+                    return UNKNOWN;
+            }
+        }
+    }
+
+    @StringRes private final int mLabel;
+
+    Transport(@StringRes int label) {
+        mLabel = label;
+    }
+
+    /** @return What to call this transport in the UI. */
+    @StringRes
+    public int getLabel() {
+        return mLabel;
+    }
+
+    /** @return The transport after this one, going round, for a button that cycles through them. */
+    public Transport next() {
+        Transport[] transports = values();
+        return transports[(ordinal() + 1) % transports.length];
+    }
+
+    /** @return The transport with this {@link #name()}, or {@code fallback} if there isn't one. */
+    public static Transport fromName(@Nullable String name, Transport fallback) {
+        if (name != null) {
+            for (Transport transport : values()) {
+                if (transport.name().equals(name)) {
+                    return transport;
+                }
+            }
+        }
+        return fallback;
+    }
+}
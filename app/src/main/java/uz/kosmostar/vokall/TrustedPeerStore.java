@@ -0,0 +1,146 @@
+package uz.kosmostar.vokall;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The peers the user has chosen to always answer, keyed by their {@link EndpointInfo#getDeviceId()
+ * device id}. The random names we show change every launch, so they can't be used for this.
+ *
+ * <p>The device id is whatever the peer advertises, so it's only a name to look the peer up by.
+ * Each trusted peer was also given a secret when it was trusted, and has to prove it has it before
+ * its call is heard. See {@link PeerVerifier}. The other way round, this keeps the secrets peers
+ * that trust us have given us, to prove ourselves to them with.
+ *
+ * <p>Everything is read from disk once, when the store is made, into maps in memory. Looking a
+ * peer up is a hash lookup, so it stays quick with thousands of peers, and doesn't touch the disk
+ * on the Nearby callback thread. Changes are written back in the background.
+ */
+public class TrustedPeerStore {
+    private static final String PREFS_NAME = "trusted_peers";
+    private static final String PREFS_SECRETS = "trusted_peer_secrets";
+    private static final String PREFS_KEYS = "peer_keys";
+
+    private final SharedPreferences mPrefs;
+    private final SharedPreferences mSecretPrefs;
+    private final SharedPreferences mKeyPrefs;
+    private final Map<String, String> mPeers = new HashMap<>();
+
+    /** The secrets we gave the peers we trust. */
+    private final Map<String, byte[]> mSecrets = new HashMap<>();
+
+    /** The secrets peers that trust us gave us. */
+    private final Map<String, byte[]> mKeys = new HashMap<>();
+
+    public TrustedPeerStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mSecretPrefs = context.getSharedPreferences(PREFS_SECRETS, Context.MODE_PRIVATE);
+        mKeyPrefs = context.getSharedPreferences(PREFS_KEYS, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            Object name = entry.getValue();
+            mPeers.put(entry.getKey(), name instanceof String ? (String) name : "");
+        }
+        load(mSecretPrefs, mSecrets);
+        load(mKeyPrefs, mKeys);
+    }
+
+    /**
+     * @return True if calls from this device should be answered without asking, once it's proven
+     *     it has {@link #getSecret(UUID) its secret}.
+     */
+    public synchronized boolean isTrusted(@Nullable UUID deviceId) {
+        return deviceId != null && mSecrets.containsKey(deviceId.toString());
+    }
+
+    /** @return The secret we gave this trusted device, or null if it isn't trusted. */
+    @Nullable
+    public synchronized byte[] getSecret(@Nullable UUID deviceId) {
+        return deviceId == null ? null : mSecrets.get(deviceId.toString());
+    }
+
+    /**
+     * Always answer this device from now on, once it's proven it has {@code secret}.
+     *
+     * @param name What it was called when it was trusted, so the user can tell entries apart.
+     * @param secret What we're giving it to prove itself with. See {@link PeerVerifier}.
+     */
+    public synchronized void trust(
+            @NonNull UUID deviceId, @NonNull String name, @NonNull byte[] secret) {
+        String key = deviceId.toString();
+        mPeers.put(key, name);
+        mSecrets.put(key, secret.clone());
+        mPrefs.edit().putString(key, name).apply();
+        mSecretPrefs.edit().putString(key, toHex(secret)).apply();
+    }
+
+    /** Ask before answering this device again. */
+    public synchronized void forget(@NonNull UUID deviceId) {
+        String key = deviceId.toString();
+        if (mPeers.remove(key) != null) {
+            mPrefs.edit().remove(key).apply();
+        }
+        if (mSecrets.remove(key) != null) {
+            mSecretPrefs.edit().remove(key).apply();
+        }
+    }
+
+    /** @return The secret this device gave us when it chose to trust us, or null if it hasn't. */
+    @Nullable
+    public synchronized byte[] getKey(@Nullable UUID deviceId) {
+        return deviceId == null ? null : mKeys.get(deviceId.toString());
+    }
+
+    /** Keeps the secret this device gave us, to prove ourselves to it when we next call it. */
+    public synchronized void saveKey(@NonNull UUID deviceId, @NonNull byte[] secret) {
+        String key = deviceId.toString();
+        mKeys.put(key, secret.clone());
+        mKeyPrefs.edit().putString(key, toHex(secret)).apply();
+    }
+
+    /** @return How many devices are trusted. */
+    public synchronized int size() {
+        return mSecrets.size();
+    }
+
+    private static void load(SharedPreferences prefs, Map<String, byte[]> secrets) {
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            Object hex = entry.getValue();
+            byte[] secret = hex instanceof String ? fromHex((String) hex) : null;
+            if (secret != null) {
+                secrets.put(entry.getKey(), secret);
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /** @return The bytes {@code hex} spells out, or null if it isn't hex. */
+    @Nullable
+    private static byte[] fromHex(String hex) {
+        if (hex.isEmpty() || hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
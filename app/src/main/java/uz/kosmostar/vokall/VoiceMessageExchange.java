@@ -0,0 +1,434 @@
+package uz.kosmostar.vokall;
+
+import static uz.kosmostar.vokall.Constants.TAG;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import com.google.android.gms.nearby.connection.Payload;
+import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import uz.kosmostar.vokall.ConnectionsService.Endpoint;
+
+/**
+ * Records, sends, receives and plays voice messages: what's said while nobody's there to hear it,
+ * kept until someone is.
+ *
+ * <p>A message is {@link VoiceMessageRecorder recorded} into the outbox, and sent from there to
+ * everyone we're connected to who takes voice messages, as a {@link Packet#TYPE_VOICE_MESSAGE}
+ * saying it's coming, then a FILE payload, which Nearby streams from disk. It's only deleted once
+ * it's got to someone; otherwise it goes again next time. One that comes in is copied into the
+ * inbox and {@link VoiceMessagePlayer played}, unless we're on a call, where it would talk over
+ * whoever we're talking to, or already playing one. Then it waits its turn.
+ *
+ * <p>{@link #write(byte[], int)} is called from {@link AudioRecorder}'s thread; the rest from the
+ * main thread.
+ */
+public class VoiceMessageExchange {
+    /** Voice messages shorter than this were most likely a slip of the finger, and are dropped. */
+    static final long MIN_DURATION_MS = 500;
+
+    /** Where voice messages wait to be sent, under the app's external files directory. */
+    private static final String OUTBOX = "voice-messages/outbox";
+
+    /** Where voice messages we've received are kept, under the app's external files directory. */
+    private static final String INBOX = "voice-messages/inbox";
+
+    /** Carries out what the exchange needs, and hears how it's going. */
+    public interface Callback {
+        /** @return Who we're connected to that takes voice messages, by endpoint id. */
+        List<String> getRecipients();
+
+        /** Sends one of our {@link Packet}s to these peers. */
+        void sendPacket(byte[] packet, List<String> endpointIds);
+
+        /** Sends a message's FILE payload to these peers. */
+        void sendFile(Payload payload, List<String> endpointIds);
+
+        /** @return True while we're on a call, which messages that come in don't talk over. */
+        boolean isInCall();
+
+        /**
+         * A voice message is on its way to or from this device.
+         *
+         * @param incoming True if it's coming to us.
+         */
+        void onProgress(
+                Endpoint endpoint, boolean incoming, long bytesTransferred, long totalBytes);
+
+        /** A voice message we recorded got to this device. */
+        void onSent(Endpoint endpoint);
+
+        /**
+         * A voice message came in from this device.
+         *
+         * @param waiting True if it waits its turn, rather than being played now.
+         */
+        void onReceived(Endpoint endpoint, long durationMs, boolean waiting);
+    }
+
+    /** A voice message we're sending. */
+    private static final class Outgoing {
+        final File file;
+        /** How many peers it's still on its way to. */
+        int pending;
+        /** True once it's got to any of them. */
+        boolean delivered;
+
+        Outgoing(File file, int pending) {
+            this.file = file;
+            this.pending = pending;
+        }
+    }
+
+    /** A voice message coming in. We hear about it and get its file in either order. */
+    private static final class Incoming {
+        int durationMs;
+        @Nullable Payload payload;
+    }
+
+    private final Context mContext;
+    private final Executor mMainExecutor;
+    private final Callback mCallback;
+
+    /** Recording a voice message, if we are. */
+    @Nullable private volatile VoiceMessageRecorder mRecorder;
+
+    /** Voice messages on their way out, by the id of the payload they're in. */
+    private final Map<Long, Outgoing> mOutgoing = new HashMap<>();
+
+    /** Voice messages on their way in, by the id of the payload they're in. */
+    private final Map<Long, Incoming> mIncoming = new HashMap<>();
+
+    /** Playing a voice message, if we are. */
+    @Nullable private VoiceMessagePlayer mPlayer;
+
+    /** Voice messages that came in while we were busy, oldest first, to play when we're not. */
+    private final ArrayDeque<File> mWaiting = new ArrayDeque<>();
+
+    /** @param mainExecutor Runs things on the main thread. */
+    public VoiceMessageExchange(Context context, Executor mainExecutor, Callback callback) {
+        mContext = context;
+        mMainExecutor = mainExecutor;
+        mCallback = callback;
+    }
+
+    /**
+     * Starts recording a voice message into the outbox, from what's {@link #write(byte[], int)
+     * written}.
+     *
+     * @return False if we're already recording one, or there's nowhere to put it.
+     */
+    @MainThread
+    public boolean startRecording(int sampleRate) {
+        if (mRecorder != null) {
+            return false;
+        }
+        File dir = getDir(OUTBOX);
+        if (dir == null) {
+            return false;
+        }
+        String name = "message-" + newTimestamp() + ".wav";
+        VoiceMessageRecorder recorder = new VoiceMessageRecorder(new File(dir, name), sampleRate);
+        recorder.start();
+        mRecorder = recorder;
+        return true;
+    }
+
+    /**
+     * Stops recording a voice message, and sends it once it's written, if anyone can take it.
+     *
+     * @return False if we weren't recording one.
+     */
+    @MainThread
+    public boolean finishRecording() {
+        VoiceMessageRecorder recorder = mRecorder;
+        if (recorder == null) {
+            return false;
+        }
+        mRecorder = null;
+        recorder.stop(mMainExecutor, this::onRecorded);
+        return true;
+    }
+
+    /** @return True while we're recording a voice message. */
+    public boolean isRecording() {
+        return mRecorder != null;
+    }
+
+    /** Hands over what we just captured, if we're recording. {@link AudioRecorder}'s thread. */
+    public void write(byte[] pcm, int length) {
+        VoiceMessageRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.write(pcm, length);
+        }
+    }
+
+    private void onRecorded(@Nullable File file, long durationMs) {
+        if (file == null) {
+            return;
+        }
+        if (durationMs < MIN_DURATION_MS) {
+            Log.d(TAG, "Dropping a " + durationMs + "ms voice message");
+            if (!file.delete()) {
+                Log.w(TAG, "Failed to delete " + file);
+            }
+            return;
+        }
+        send();
+    }
+
+    /**
+     * Sends what's in the outbox, and isn't already on its way, to everyone we're connected to who
+     * takes voice messages.
+     */
+    @MainThread
+    public void send() {
+        List<String> endpoints = mCallback.getRecipients();
+        File dir = getDir(OUTBOX);
+        File[] files = dir == null ? null : dir.listFiles((d, name) -> name.endsWith(".wav"));
+        if (endpoints.isEmpty() || files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        Set<File> sending = new HashSet<>();
+        for (Outgoing message : mOutgoing.values()) {
+            sending.add(message.file);
+        }
+        for (File file : files) {
+            if (sending.contains(file)) {
+                continue;
+            }
+            long durationMs;
+            Payload payload;
+            try (WavReader reader = new WavReader(file)) {
+                durationMs = reader.getDurationMs();
+                payload = Payload.fromFile(file);
+            } catch (FileNotFoundException e) {
+                Log.w(TAG, "Failed to send " + file, e);
+                continue;
+            } catch (IOException e) {
+                Log.w(TAG, "Dropping a voice message we can't read: " + file, e);
+                if (!file.delete()) {
+                    Log.w(TAG, "Failed to delete " + file);
+                }
+                continue;
+            }
+            Log.d(TAG, "Sending a " + durationMs + "ms voice message to " + endpoints);
+            mOutgoing.put(payload.getId(), new Outgoing(file, endpoints.size()));
+            mCallback.sendPacket(Packet.voiceMessage(payload.getId(), (int) durationMs), endpoints);
+            mCallback.sendFile(payload, endpoints);
+        }
+    }
+
+    /** A peer says a voice message is on its way. */
+    @MainThread
+    public void onNotice(Endpoint endpoint, byte[] packet) {
+        // Too short to say which payload it's in, or saying one Nearby never hands out.
+        long payloadId = Packet.getVoiceMessagePayloadId(packet);
+        if (payloadId == 0) {
+            Log.w(TAG, "Ignoring a bad voice message notice from " + endpoint);
+            return;
+        }
+        incoming(payloadId).durationMs = Packet.getVoiceMessageDurationMs(packet);
+    }
+
+    /** A peer started sending us a FILE payload. Only whole once its transfer says so. */
+    @MainThread
+    public void onFile(Payload payload) {
+        incoming(payload.getId()).payload = payload;
+    }
+
+    private Incoming incoming(long payloadId) {
+        Incoming message = mIncoming.get(payloadId);
+        if (message == null) {
+            message = new Incoming();
+            mIncoming.put(payloadId, message);
+        }
+        return message;
+    }
+
+    /** @return True if the update was for a voice message. */
+    @MainThread
+    public boolean onTransferUpdate(Endpoint endpoint, PayloadTransferUpdate update) {
+        long payloadId = update.getPayloadId();
+        int status = update.getStatus();
+        boolean done = status != PayloadTransferUpdate.Status.IN_PROGRESS;
+        Outgoing outgoing = mOutgoing.get(payloadId);
+        if (outgoing != null) {
+            if (status == PayloadTransferUpdate.Status.SUCCESS) {
+                outgoing.delivered = true;
+                mCallback.onSent(endpoint);
+            } else if (!done) {
+                mCallback.onProgress(
+                        endpoint, false, update.getBytesTransferred(), update.getTotalBytes());
+            }
+            if (done && --outgoing.pending <= 0) {
+                mOutgoing.remove(payloadId);
+                Log.d(TAG, "Voice message " + outgoing.file.getName()
+                        + (outgoing.delivered ? " delivered" : " not delivered; will try again"));
+                if (outgoing.delivered && !outgoing.file.delete()) {
+                    Log.w(TAG, "Failed to delete " + outgoing.file);
+                }
+            }
+            return true;
+        }
+        Incoming incoming = mIncoming.get(payloadId);
+        if (incoming == null || incoming.payload == null) {
+            return false;
+        }
+        if (!done) {
+            mCallback.onProgress(
+                    endpoint, true, update.getBytesTransferred(), update.getTotalBytes());
+            return true;
+        }
+        mIncoming.remove(payloadId);
+        if (status == PayloadTransferUpdate.Status.SUCCESS) {
+            save(endpoint, incoming);
+        } else {
+            Log.w(TAG, "Voice message from " + endpoint.getName() + " didn't arrive");
+        }
+        return true;
+    }
+
+    /** The peers have gone. Anything still on its way goes again next time. */
+    @MainThread
+    public void cancelTransfers() {
+        mOutgoing.clear();
+        mIncoming.clear();
+    }
+
+    /**
+     * Copies a voice message Nearby has received into the inbox, a bit at a time, off the main
+     * thread, then plays it, or has it wait its turn.
+     */
+    private void save(Endpoint endpoint, Incoming message) {
+        Payload.File received = message.payload == null ? null : message.payload.asFile();
+        File dir = getDir(INBOX);
+        if (received == null || dir == null) {
+            return;
+        }
+        String sender = endpoint.getName().replaceAll("[^A-Za-z0-9_-]", "_");
+        File file = new File(dir, "message-" + newTimestamp() + "-" + sender + ".wav");
+        new Thread(() -> {
+            try (InputStream in = openReceivedFile(received);
+                    OutputStream out = new FileOutputStream(file)) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save a voice message to " + file, e);
+                if (!file.delete()) {
+                    Log.w(TAG, "Failed to delete " + file);
+                }
+                return;
+            }
+            // Nearby leaves its copy in Downloads; we've got ours.
+            try {
+                if (received.asUri() != null) {
+                    mContext.getContentResolver().delete(received.asUri(), null, null);
+                } else if (received.asJavaFile() != null && !received.asJavaFile().delete()) {
+                    Log.w(TAG, "Failed to delete " + received.asJavaFile());
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to delete Nearby's copy of a voice message", e);
+            }
+            mMainExecutor.execute(() -> onSaved(endpoint, file, message.durationMs));
+        }, "VoiceMessageSave").start();
+    }
+
+    private static InputStream openReceivedFile(Payload.File received) throws IOException {
+        ParcelFileDescriptor descriptor = received.asParcelFileDescriptor();
+        if (descriptor != null) {
+            return new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+        }
+        File file = received.asJavaFile();
+        if (file == null) {
+            throw new FileNotFoundException("Nearby didn't say where the file is");
+        }
+        return new FileInputStream(file);
+    }
+
+    private void onSaved(Endpoint endpoint, File file, long durationMs) {
+        Log.d(TAG, "Voice message from " + endpoint.getName() + " saved to " + file);
+        mWaiting.add(file);
+        boolean waiting = mCallback.isInCall() || mPlayer != null;
+        playWaiting();
+        mCallback.onReceived(endpoint, durationMs, waiting);
+    }
+
+    /**
+     * Plays the oldest voice message that's waiting, if there is one and we're free to, e.g. now
+     * the call it came in during is over.
+     */
+    @MainThread
+    public void playWaiting() {
+        if (mCallback.isInCall() || mPlayer != null || mWaiting.isEmpty()) {
+            return;
+        }
+        play(mWaiting.poll());
+    }
+
+    /** Plays a voice message, instead of any that's playing, then any that are waiting. */
+    @MainThread
+    public void play(File file) {
+        stopPlaying();
+        VoiceMessagePlayer player = new VoiceMessagePlayer(file);
+        mPlayer = player;
+        player.start(mMainExecutor, () -> {
+            if (mPlayer == player) {
+                mPlayer = null;
+                playWaiting();
+            }
+        });
+    }
+
+    /** Stops playing a voice message, if one is playing. */
+    @MainThread
+    public void stopPlaying() {
+        if (mPlayer != null) {
+            mPlayer.stop();
+            mPlayer = null;
+        }
+    }
+
+    /** @return One of the voice message directories, made if need be, or null if there's none. */
+    @Nullable
+    private File getDir(String name) {
+        File root = mContext.getExternalFilesDir(null);
+        if (root == null) {
+            return null;
+        }
+        File dir = new File(root, name);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to make " + dir);
+            return null;
+        }
+        return dir;
+    }
+
+    private static String newTimestamp() {
+        return new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+    }
+}
@@ -0,0 +1,141 @@
+package uz.kosmostar.vokall;
+
+import static android.os.Process.THREAD_PRIORITY_AUDIO;
+import static android.os.Process.setThreadPriority;
+import static uz.kosmostar.vokall.Constants.TAG;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * Plays a voice message from disk, a bit at a time through a {@link WavReader}, so a long one
+ * never has to fit in memory. Plays on the media stream, on a thread of its own, and can be
+ * stopped part way.
+ */
+public class VoiceMessagePlayer {
+    /** How much is read from the file and written to the track at a time. */
+    private static final int CHUNK_MS = 40;
+
+    /** How much longer than its buffer we give the track to play out at the end. */
+    private static final long PLAY_OUT_SLACK_MS = 200;
+
+    private final File mFile;
+    private final Thread mThread;
+    private volatile boolean mStopped;
+    @Nullable private Executor mCallbackExecutor;
+    @Nullable private Runnable mOnFinished;
+
+    public VoiceMessagePlayer(File file) {
+        mFile = file;
+        mThread = new Thread(this::run, "VoiceMessagePlayer");
+    }
+
+    /** Starts playing. Returns straight away. */
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Starts playing, and says when it's played to the end, or couldn't be played. Not if it's
+     * stopped first.
+     *
+     * @param callbackExecutor Where to call {@code onFinished}, e.g. the UI thread.
+     */
+    public void start(Executor callbackExecutor, Runnable onFinished) {
+        mCallbackExecutor = callbackExecutor;
+        mOnFinished = onFinished;
+        mThread.start();
+    }
+
+    /**
+     * Stops playing, if it hasn't finished already. Returns straight away; the thread stops within
+     * {@link #CHUNK_MS} or so.
+     */
+    public void stop() {
+        mStopped = true;
+    }
+
+    private void run() {
+        play();
+        Executor executor = mCallbackExecutor;
+        Runnable onFinished = mOnFinished;
+        if (!mStopped && executor != null && onFinished != null) {
+            executor.execute(onFinished);
+        }
+    }
+
+    private void play() {
+        setThreadPriority(THREAD_PRIORITY_AUDIO);
+        try (WavReader reader = new WavReader(mFile)) {
+            int sampleRate = reader.getSampleRate();
+            int channels = reader.getChannels();
+            if (channels > 2) {
+                throw new IOException(mFile + " has " + channels + " channels");
+            }
+            int channelMask =
+                    channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+            int chunkFrames = sampleRate * CHUNK_MS / 1000;
+            int size =
+                    Math.max(
+                            AudioTrack.getMinBufferSize(
+                                    sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT),
+                            chunkFrames * channels * 2 * 2);
+            AudioTrack audioTrack =
+                    new AudioTrack(
+                            AudioManager.STREAM_MUSIC,
+                            sampleRate,
+                            channelMask,
+                            AudioFormat.ENCODING_PCM_16BIT,
+                            size,
+                            AudioTrack.MODE_STREAM);
+            try {
+                if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+                    throw new IOException("Failed to open a track at " + sampleRate + "Hz");
+                }
+                Log.d(TAG, "Playing " + reader.getDurationMs() + "ms voice message " + mFile);
+                audioTrack.play();
+                short[] samples = new short[chunkFrames * channels];
+                int frames;
+                long written = 0;
+                while (!mStopped && (frames = reader.read(samples, chunkFrames)) > 0) {
+                    audioTrack.write(samples, 0, frames * channels);
+                    written += frames;
+                }
+                if (mStopped) {
+                    audioTrack.pause();
+                    audioTrack.flush();
+                } else {
+                    // Let what's still in the track play out before it's released.
+                    audioTrack.stop();
+                    long bufferMs = size / (channels * 2) * 1000L / sampleRate;
+                    awaitPlayedOut(audioTrack, written, bufferMs + PLAY_OUT_SLACK_MS);
+                }
+            } finally {
+                audioTrack.release();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to play " + mFile, e);
+        }
+    }
+
+    /** Waits until the track has played {@code frames} frames, or for {@code timeoutMs}. */
+    private void awaitPlayedOut(AudioTrack audioTrack, long frames, long timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        while (!mStopped
+                && (audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL) < frames
+                && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package uz.kosmostar.vokall;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+import static android.os.Process.setThreadPriority;
+import static uz.kosmostar.vokall.Constants.TAG;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records a voice message to a file as it's spoken, as mono {@link ImaAdpcm}, so there's nothing
+ * left to encode by the time it's done. {@link AudioRecorder}'s thread hands what it captures over
+ * through a {@link SampleRing}, and a background thread writes it out, like {@link CallRecorder}.
+ *
+ * <p>The file is written under a temporary name, and only moved to its own once it's finished, so
+ * anything looking for finished messages never sees half of one.
+ */
+public class VoiceMessageRecorder {
+    /** The longest a message may be. Anything said after that is left out. */
+    static final int MAX_DURATION_MS = 120_000;
+
+    private static final int POLL_MS = 50;
+    private static final int RING_MS = 2_000;
+
+    /** Told when the message is finished. */
+    public interface Callback {
+        /**
+         * @param file The message, or null if it couldn't be written.
+         * @param durationMs How long it is.
+         */
+        void onFinished(@Nullable File file, long durationMs);
+    }
+
+    private final File mFile;
+    private final File mPartFile;
+    private final int mSampleRate;
+    private final SampleRing mRing;
+    private final Thread mThread;
+    private volatile boolean mStopping;
+    @Nullable private volatile Executor mCallbackExecutor;
+    @Nullable private volatile Callback mCallback;
+
+    /** @param file Where the message goes once it's finished. */
+    public VoiceMessageRecorder(File file, int sampleRate) {
+        mFile = file;
+        mPartFile = new File(file.getPath() + ".part");
+        mSampleRate = sampleRate;
+        mRing = new SampleRing(sampleRate * RING_MS / 1000);
+        mThread = new Thread(this::run, "VoiceMessageRecorder");
+    }
+
+    /** Starts writing. */
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Finishes the message once what's been captured so far is written out, and says so. Doesn't
+     * wait for that, so it's safe on the main thread.
+     *
+     * @param callbackExecutor Where to call {@code callback}, e.g. the UI thread.
+     */
+    public void stop(Executor callbackExecutor, Callback callback) {
+        mCallbackExecutor = callbackExecutor;
+        mCallback = callback;
+        mStopping = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /** Hands over what we just captured. {@link AudioRecorder}'s thread only. */
+    public void write(byte[] pcm, int length) {
+        mRing.write(pcm, length);
+    }
+
+    private void run() {
+        setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+        long maxFrames = (long) mSampleRate * MAX_DURATION_MS / 1000;
+        short[] samples = new short[mSampleRate * POLL_MS / 1000];
+        File finished = null;
+        long frames = 0;
+        try (WavWriter writer = new WavWriter(mPartFile, mSampleRate, 1, true)) {
+            while (true) {
+                // Checked before emptying the ring, so nothing handed over before stop() is lost.
+                boolean stopping = mStopping;
+                long available = mRing.available();
+                while (available > 0) {
+                    int chunk = (int) Math.min(available, samples.length);
+                    mRing.read(samples, 0, 1, chunk);
+                    available -= chunk;
+                    chunk = (int) Math.min(chunk, maxFrames - writer.getFrames());
+                    if (chunk > 0) {
+                        writer.write(samples, chunk);
+                    }
+                }
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(POLL_MS * 1_000_000L);
+            }
+            frames = writer.getFrames();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to record a voice message to " + mPartFile, e);
+        }
+        if (frames > 0) {
+            if (mPartFile.renameTo(mFile)) {
+                finished = mFile;
+            } else {
+                Log.w(TAG, "Failed to finish " + mFile);
+            }
+        }
+        if (finished == null && mPartFile.exists() && !mPartFile.delete()) {
+            Log.w(TAG, "Failed to delete " + mPartFile);
+        }
+        long durationMs = frames * 1000 / mSampleRate;
+        Log.d(
+                TAG,
+                "Recorded a " + durationMs + "ms voice message to " + finished + ", dropped "
+                        + mRing.getDroppedCount() + " samples");
+        File file = finished;
+        Executor executor = mCallbackExecutor;
+        Callback callback = mCallback;
+        if (executor != null && callback != null) {
+            executor.execute(() -> callback.onFinished(file, durationMs));
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package uz.kosmostar.vokall;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads a WAV file as {@link WavWriter} writes it, 16-bit PCM or {@link ImaAdpcm}, a bit at a
+ * time, so even a long one never has to fit in memory.
+ *
+ * <p>Not thread-safe.
+ */
+public class WavReader implements Closeable {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final DataInputStream mIn;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final boolean mCompressed;
+    private final long mFrames;
+    private long mFramesRead;
+    private long mBytesLeft;
+
+    // Only when compressed.
+    private final int mBlockSize;
+    private final int mSamplesPerBlock;
+    private final byte[] mBlock;
+    private final short[] mDecoded;
+    private final ImaAdpcm.Channel[] mAdpcm;
+    private int mDecodedFrames;
+    private int mDecodedRead;
+
+    private final byte[] mPcm;
+
+    /** @throws IOException If it can't be read, or isn't a WAV file we can play. */
+    public WavReader(File file) throws IOException {
+        mIn =
+                new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE));
+        boolean ok = false;
+        try {
+            byte[] riff = new byte[12];
+            mIn.readFully(riff);
+            if (!tagIs(riff, 0, "RIFF") || !tagIs(riff, 8, "WAVE")) {
+                throw new IOException(file + " isn't a WAV file");
+            }
+            ByteBuffer format = null;
+            long factFrames = -1;
+            byte[] chunk = new byte[8];
+            while (true) {
+                mIn.readFully(chunk);
+                ByteBuffer header = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+                long size = header.getInt(4) & 0xFFFFFFFFL;
+                if (tagIs(chunk, 0, "data")) {
+                    mBytesLeft = size;
+                    break;
+                }
+                byte[] body = new byte[(int) Math.min(size, 1024)];
+                mIn.readFully(body);
+                skipFully(size - body.length + (size & 1));
+                ByteBuffer buffer = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+                if (tagIs(chunk, 0, "fmt ")) {
+                    format = buffer;
+                } else if (tagIs(chunk, 0, "fact") && body.length >= 4) {
+                    factFrames = buffer.getInt(0) & 0xFFFFFFFFL;
+                }
+            }
+            if (format == null || format.capacity() < 16) {
+                throw new IOException(file + " has no format");
+            }
+            int tag = format.getShort(0) & 0xFFFF;
+            mChannels = format.getShort(2);
+            mSampleRate = format.getInt(4);
+            if (mChannels <= 0 || mSampleRate <= 0) {
+                throw new IOException(file + " has a bad format");
+            }
+            if (tag == 1 && format.getShort(14) == 16) {
+                mCompressed = false;
+                mBlockSize = 0;
+                mSamplesPerBlock = 0;
+                mBlock = null;
+                mDecoded = null;
+                mAdpcm = null;
+                mFrames = mBytesLeft / (2 * mChannels);
+            } else if (tag == ImaAdpcm.WAVE_FORMAT && format.capacity() >= 20) {
+                mCompressed = true;
+                mBlockSize = format.getShort(12) & 0xFFFF;
+                mSamplesPerBlock = ImaAdpcm.getSamplesPerBlock(mChannels, mBlockSize);
+                if (mSamplesPerBlock <= 1) {
+                    throw new IOException(file + " has a bad block size");
+                }
+                mBlock = new byte[mBlockSize];
+                mDecoded = new short[mSamplesPerBlock * mChannels];
+                mAdpcm = new ImaAdpcm.Channel[mChannels];
+                for (int i = 0; i < mChannels; i++) {
+                    mAdpcm[i] = new ImaAdpcm.Channel();
+                }
+                long blockFrames = mBytesLeft / mBlockSize * mSamplesPerBlock;
+                mFrames = factFrames >= 0 ? Math.min(factFrames, blockFrames) : blockFrames;
+            } else {
+                throw new IOException(file + " is in a format we can't play: " + tag);
+            }
+            mPcm = new byte[READ_BUFFER_SIZE];
+            ok = true;
+        } finally {
+            if (!ok) {
+                mIn.close();
+            }
+        }
+    }
+
+    private static boolean tagIs(byte[] bytes, int offset, String tag) {
+        for (int i = 0; i < 4; i++) {
+            if (bytes[offset + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipFully(long bytes) throws IOException {
+        while (bytes > 0) {
+            int skipped = mIn.skipBytes((int) Math.min(bytes, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            bytes -= skipped;
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /** @return How many frames there are in all. */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    public long getDurationMs() {
+        return mFrames * 1000 / mSampleRate;
+    }
+
+    /**
+     * Reads the next frames into {@code dst}, interleaved if there's more than one channel.
+     *
+     * @param maxFrames The most to read.
+     * @return How many frames were read, or 0 at the end.
+     */
+    public int read(short[] dst, int maxFrames) throws IOException {
+        maxFrames = (int) Math.min(maxFrames, mFrames - mFramesRead);
+        int frames = 0;
+        if (mCompressed) {
+            while (frames < maxFrames) {
+                if (mDecodedRead == mDecodedFrames) {
+                    if (mBytesLeft < mBlockSize) {
+                        break;
+                    }
+                    mIn.readFully(mBlock);
+                    mBytesLeft -= mBlockSize;
+                    mDecodedFrames =
+                            ImaAdpcm.decodeBlock(mBlock, 0, mAdpcm, mSamplesPerBlock, mDecoded);
+                    mDecodedRead = 0;
+                }
+                int n = Math.min(maxFrames - frames, mDecodedFrames - mDecodedRead);
+                System.arraycopy(
+                        mDecoded, mDecodedRead * mChannels, dst, frames * mChannels, n * mChannels);
+                mDecodedRead += n;
+                frames += n;
+            }
+        } else {
+            int frameBytes = 2 * mChannels;
+            maxFrames = Math.min(maxFrames, mPcm.length / frameBytes);
+            if (maxFrames > 0) {
+                mIn.readFully(mPcm, 0, maxFrames * frameBytes);
+                mBytesLeft -= maxFrames * frameBytes;
+                Pcm16.toShorts(mPcm, 0, maxFrames * frameBytes, dst);
+                frames = maxFrames;
+            }
+        }
+        mFramesRead += frames;
+        return frames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
@@ -0,0 +1,190 @@
+package uz.kosmostar.vokall;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes a WAV file as it goes, as 16-bit PCM or {@link ImaAdpcm}. What's written goes through a
+ * buffer, and out to the file in big sequential writes when it fills. The header only covers
+ * what's reached the file, and is brought up to date by {@link #updateHeader()}, so a file cut
+ * short still plays up to there.
+ *
+ * <p>Not thread-safe, and it writes to disk, so keep it off the audio threads.
+ */
+public class WavWriter implements Closeable {
+    /** How many bytes each channel gets in an ADPCM block. */
+    static final int ADPCM_BLOCK_SIZE_PER_CHANNEL = 512;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int RIFF_HEADER_SIZE = 12;
+    private static final int CHUNK_HEADER_SIZE = 8;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer =
+            ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final int mSampleRate;
+    private final int mChannels;
+    private final boolean mCompressed;
+    private final int mDataOffset;
+    private long mFrames;
+
+    // Only when compressed.
+    private final int mBlockSize;
+    private final int mSamplesPerBlock;
+    private final short[] mBlock;
+    private final byte[] mEncoded;
+    private final ImaAdpcm.Channel[] mAdpcm;
+    private int mBlockFrames;
+
+    /**
+     * Starts a file, replacing whatever was there.
+     *
+     * @param compressed True for IMA ADPCM, a quarter of the size, or false for 16-bit PCM.
+     */
+    public WavWriter(File file, int sampleRate, int channels, boolean compressed)
+            throws IOException {
+        mFile = file;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mCompressed = compressed;
+        if (compressed) {
+            mBlockSize = ADPCM_BLOCK_SIZE_PER_CHANNEL * channels;
+            mSamplesPerBlock = ImaAdpcm.getSamplesPerBlock(channels, mBlockSize);
+            mBlock = new short[mSamplesPerBlock * channels];
+            mEncoded = new byte[mBlockSize];
+            mAdpcm = new ImaAdpcm.Channel[channels];
+            for (int i = 0; i < channels; i++) {
+                mAdpcm[i] = new ImaAdpcm.Channel();
+            }
+        } else {
+            mBlockSize = 0;
+            mSamplesPerBlock = 0;
+            mBlock = null;
+            mEncoded = null;
+            mAdpcm = null;
+        }
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mRandomAccessFile.setLength(0);
+        mChannel = mRandomAccessFile.getChannel();
+        ByteBuffer header = header();
+        mDataOffset = header.remaining();
+        mChannel.write(header, 0);
+        mChannel.position(mDataOffset);
+    }
+
+    /** Writes {@code frames} frames of samples, interleaved if there's more than one channel. */
+    public void write(short[] samples, int frames) throws IOException {
+        if (mCompressed) {
+            for (int i = 0; i < frames; i++) {
+                for (int c = 0; c < mChannels; c++) {
+                    mBlock[mBlockFrames * mChannels + c] = samples[i * mChannels + c];
+                }
+                if (++mBlockFrames == mSamplesPerBlock) {
+                    writeBlock();
+                }
+            }
+        } else {
+            for (int i = 0; i < frames * mChannels; i++) {
+                if (!mBuffer.hasRemaining()) {
+                    flush();
+                }
+                mBuffer.putShort(samples[i]);
+            }
+        }
+        mFrames += frames;
+    }
+
+    private void writeBlock() throws IOException {
+        int length = ImaAdpcm.encodeBlock(mBlock, mAdpcm, mSamplesPerBlock, mEncoded, 0);
+        if (mBuffer.remaining() < length) {
+            flush();
+        }
+        mBuffer.put(mEncoded, 0, length);
+        mBlockFrames = 0;
+    }
+
+    private void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /** @return How many frames have been written. */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /** Rewrites the header to cover what's in the file so far. */
+    public void updateHeader() throws IOException {
+        mChannel.write(header(), 0);
+    }
+
+    /** Writes out what's left, with the last ADPCM block filled out with silence, and closes. */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mCompressed && mBlockFrames > 0) {
+                Arrays.fill(mBlock, mBlockFrames * mChannels, mBlock.length, (short) 0);
+                writeBlock();
+            }
+            flush();
+            updateHeader();
+        } finally {
+            mRandomAccessFile.close();
+        }
+    }
+
+    /** @return The header, sized for what's been written out to the file so far. */
+    private ByteBuffer header() throws IOException {
+        long dataBytes = Math.max(0, mChannel.position() - mDataOffset);
+        int formatSize = mCompressed ? 20 : 16;
+        int size =
+                RIFF_HEADER_SIZE
+                        + CHUNK_HEADER_SIZE
+                        + formatSize
+                        + (mCompressed ? CHUNK_HEADER_SIZE + 4 : 0)
+                        + CHUNK_HEADER_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] {'R', 'I', 'F', 'F'})
+                .putInt((int) (size - 8 + dataBytes))
+                .put(new byte[] {'W', 'A', 'V', 'E'})
+                .put(new byte[] {'f', 'm', 't', ' '})
+                .putInt(formatSize);
+        if (mCompressed) {
+            header.putShort((short) ImaAdpcm.WAVE_FORMAT)
+                    .putShort((short) mChannels)
+                    .putInt(mSampleRate)
+                    .putInt(mSampleRate * mBlockSize / mSamplesPerBlock)
+                    .putShort((short) mBlockSize)
+                    .putShort((short) 4)
+                    .putShort((short) 2)
+                    .putShort((short) mSamplesPerBlock);
+            long frames = Math.min(mFrames, dataBytes / mBlockSize * mSamplesPerBlock);
+            header.put(new byte[] {'f', 'a', 'c', 't'}).putInt(4).putInt((int) frames);
+        } else {
+            header.putShort((short) 1)
+                    .putShort((short) mChannels)
+                    .putInt(mSampleRate)
+                    .putInt(mSampleRate * mChannels * 2)
+                    .putShort((short) (mChannels * 2))
+                    .putShort((short) 16);
+        }
+        header.put(new byte[] {'d', 'a', 't', 'a'}).putInt((int) dataBytes);
+        header.flip();
+        return header;
+    }
+}
@@ -0,0 +1,61 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AutomaticGainControlTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME = 320;
+
+    @Test
+    public void bringsAQuietTalkerUpToTheTarget() {
+        AutomaticGainControl agc = new AutomaticGainControl(SAMPLE_RATE);
+        double peakDbfs = run(agc, -36, 3);
+        assertEquals(-18, peakDbfs, 2);
+        assertEquals(18, agc.getGainDb(), 2);
+    }
+
+    @Test
+    public void turnsALoudTalkerDownNoMoreThanTheMinimumGain() {
+        AutomaticGainControl agc = new AutomaticGainControl(SAMPLE_RATE);
+        double peakDbfs = run(agc, -3, 3);
+        assertEquals(-12, agc.getGainDb(), 1);
+        assertEquals(-15, peakDbfs, 2);
+    }
+
+    @Test
+    public void doesNotPumpUpNoiseBelowTheGate() {
+        AutomaticGainControl agc = new AutomaticGainControl(SAMPLE_RATE);
+        double peakDbfs = run(agc, -60, 3);
+        assertTrue("gain " + agc.getGainDb(), agc.getGainDb() <= 0.5);
+        assertTrue("peak " + peakDbfs, peakDbfs <= -60);
+    }
+
+    /**
+     * Runs a 440 Hz tone with peaks at {@code inputDbfs} through for {@code seconds}.
+     *
+     * @return The output's peak level over the last second.
+     */
+    private static double run(AutomaticGainControl agc, double inputDbfs, int seconds) {
+        double amplitude = 32767 * Math.pow(10, inputDbfs / 20);
+        short[] frame = new short[FRAME];
+        int frames = seconds * SAMPLE_RATE / FRAME;
+        int peak = 0;
+        for (int f = 0; f < frames; f++) {
+            for (int i = 0; i < FRAME; i++) {
+                long n = (long) f * FRAME + i;
+                double phase = 2 * Math.PI * 440 * n / SAMPLE_RATE;
+                frame[i] = (short) Math.round(amplitude * Math.sin(phase));
+            }
+            agc.process(frame, FRAME);
+            if (f >= frames - SAMPLE_RATE / FRAME) {
+                for (short sample : frame) {
+                    peak = Math.max(peak, Math.abs(sample));
+                }
+            }
+        }
+        return 20 * Math.log10(Math.max(1, peak) / 32767.0);
+    }
+}
@@ -0,0 +1,135 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class BandwidthEstimatorTest {
+    private static final long MS = 1_000_000;
+
+    /** What the listener heard, in order. */
+    private final List<long[]> mReports = new ArrayList<>();
+
+    private final BandwidthEstimator mEstimator =
+            new BandwidthEstimator(
+                    (bitsPerSecond, step) ->
+                            mReports.add(new long[] {bitsPerSecond, step ? 1 : 0}));
+
+    private final Link mLink = new Link();
+
+    @Test
+    public void settlesOnTheLinksCapacity() {
+        mLink.bitsPerSecond = 200_000;
+        for (int second = 0; second < 5; second++) {
+            mLink.probeTrain();
+            mLink.audio(200);
+        }
+        assertEquals(200_000, mEstimator.getEstimateBps(), 20_000);
+    }
+
+    @Test
+    public void jumpsWhenTheLinkSpeedsUp() {
+        mLink.bitsPerSecond = 200_000;
+        for (int second = 0; second < 5; second++) {
+            mLink.probeTrain();
+        }
+        int before = mReports.size();
+        mLink.bitsPerSecond = 2_000_000;
+        mLink.probeTrain();
+        assertTrue("no step reported", hasStep(before));
+        assertEquals(2_000_000, mEstimator.getEstimateBps(), 200_000);
+    }
+
+    @Test
+    public void jumpsWhenTheLinkSlowsDown() {
+        mLink.bitsPerSecond = 2_000_000;
+        for (int second = 0; second < 5; second++) {
+            mLink.probeTrain();
+        }
+        int before = mReports.size();
+        mLink.bitsPerSecond = 200_000;
+        mLink.probeTrain();
+        assertTrue("no step reported", hasStep(before));
+        assertEquals(200_000, mEstimator.getEstimateBps(), 20_000);
+    }
+
+    @Test
+    public void idleAudioDoesntDragTheEstimateDown() {
+        mLink.bitsPerSecond = 2_000_000;
+        mLink.probeTrain();
+        long estimate = mEstimator.getEstimateBps();
+        for (int second = 1; second < 10; second++) {
+            mLink.audio(200);
+        }
+        assertEquals(estimate, mEstimator.getEstimateBps());
+    }
+
+    @Test
+    public void forgetsEverythingWhenTheMediumChanges() {
+        mLink.bitsPerSecond = 200_000;
+        mLink.probeTrain();
+        mEstimator.onMediumChanged();
+        assertEquals(0, mEstimator.getEstimateBps());
+        mLink.bitsPerSecond = 1_000_000;
+        mLink.probeTrain();
+        assertEquals(1_000_000, mEstimator.getEstimateBps(), 100_000);
+    }
+
+    private boolean hasStep(int from) {
+        for (int i = from; i < mReports.size(); i++) {
+            if (mReports.get(i)[1] == 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A link that carries one payload at a time, at {@link #bitsPerSecond}, after a fixed latency,
+     * with a little jitter on when Nearby gets round to saying each one's done.
+     */
+    private final class Link {
+        long bitsPerSecond;
+        private final Random mRandom = new Random(5);
+        private long mNowNanos = 1_000 * MS;
+        private long mBusyUntilNanos;
+        private long mNextId = 1;
+
+        /** Sends a probe train, and lets a second go by. */
+        void probeTrain() {
+            long[] ids = new long[BandwidthEstimator.PROBE_COUNT];
+            long[] done = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = mNextId++;
+                mEstimator.onPayloadSent(ids[i], BandwidthEstimator.PROBE_BYTES, mNowNanos);
+                done[i] = carry(BandwidthEstimator.PROBE_BYTES);
+            }
+            for (int i = 0; i < ids.length; i++) {
+                mEstimator.onPayloadTransferred(ids[i], done[i]);
+            }
+            mNowNanos += 1_000 * MS;
+        }
+
+        /** Sends a 20ms frame of audio every 20ms for a second, each finishing before the next. */
+        void audio(int bytes) {
+            for (int frame = 0; frame < 50; frame++) {
+                long id = mNextId++;
+                mEstimator.onPayloadSent(id, bytes, mNowNanos);
+                mEstimator.onPayloadTransferred(id, carry(bytes));
+                mNowNanos += 20 * MS;
+            }
+        }
+
+        /** @return When a payload handed over now finishes going out. */
+        private long carry(int bytes) {
+            long start = Math.max(mNowNanos, mBusyUntilNanos);
+            mBusyUntilNanos = start + bytes * 8L * 1_000_000_000L / bitsPerSecond;
+            long jitter = (long) (mRandom.nextDouble() * MS);
+            return mBusyUntilNanos + 5 * MS + jitter;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CallRecorderTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME = 320;
+
+    @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void recordsUsOnTheLeftAndThemOnTheRight() throws Exception {
+        File dir = new File(mFolder.getRoot(), "recordings");
+        CallRecorder recorder = new CallRecorder(dir, SAMPLE_RATE, false);
+        recorder.start();
+        int frames = 10;
+        for (int f = 0; f < frames; f++) {
+            recorder.writeLocal(pcm(constant(100 + f)), 2 * FRAME);
+            recorder.writeRemote(constant(-100 - f), FRAME);
+        }
+        recorder.stop();
+
+        short[] samples = readWhenDone(dir, frames * FRAME);
+        for (int i = 0; i < frames * FRAME; i++) {
+            assertEquals("left at " + i, 100 + i / FRAME, samples[2 * i]);
+            assertEquals("right at " + i, -100 - i / FRAME, samples[2 * i + 1]);
+        }
+    }
+
+    @Test
+    public void fillsAQuietSideWithSilence() throws Exception {
+        File dir = mFolder.newFolder();
+        CallRecorder recorder = new CallRecorder(dir, SAMPLE_RATE, true);
+        recorder.start();
+        // Only we talk, as in push-to-talk with nobody answering.
+        int frames = 100;
+        for (int f = 0; f < frames; f++) {
+            recorder.writeLocal(pcm(constant(1000)), 2 * FRAME);
+        }
+        recorder.stop();
+
+        short[] samples = readWhenDone(dir, frames * FRAME);
+        for (int i = 0; i < frames * FRAME; i++) {
+            assertEquals("right at " + i, 0, samples[2 * i + 1], 8);
+        }
+        // The start of the left is the ADPCM step size growing to fit.
+        assertEquals(1000, samples[2 * (frames * FRAME - 1)], 8);
+    }
+
+    private static short[] constant(int value) {
+        short[] frame = new short[FRAME];
+        Arrays.fill(frame, (short) value);
+        return frame;
+    }
+
+    private static byte[] pcm(short[] samples) {
+        byte[] bytes = new byte[2 * samples.length];
+        Pcm16.toBytes(samples, samples.length, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Waits for the recording to be finished, which it is once its header says it holds {@code
+     * frames} frames, and reads it.
+     */
+    private static short[] readWhenDone(File dir, int frames) throws Exception {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (true) {
+            File[] files = dir.listFiles((d, name) -> name.startsWith("call-"));
+            if (files != null && files.length == 1) {
+                try (WavReader reader = new WavReader(files[0])) {
+                    if (reader.getFrames() == frames) {
+                        assertEquals(2, reader.getChannels());
+                        short[] samples = new short[2 * frames];
+                        int read = 0;
+                        short[] chunk = new short[2 * FRAME];
+                        int n;
+                        while ((n = reader.read(chunk, FRAME)) > 0) {
+                            System.arraycopy(chunk, 0, samples, 2 * read, 2 * n);
+                            read += n;
+                        }
+                        assertEquals(frames, read);
+                        return samples;
+                    }
+                } catch (IOException e) {
+                    // Not all of the header's there yet.
+                }
+            }
+            if (System.nanoTime() > deadline) {
+                fail("The recording was never finished");
+            }
+            Thread.sleep(20);
+        }
+    }
+}
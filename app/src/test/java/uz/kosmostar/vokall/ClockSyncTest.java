@@ -0,0 +1,97 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class ClockSyncTest {
+    private static final long MS = 1_000_000;
+
+    /** A ping every 2s, like {@link LinkStats} sends. */
+    private static final long PING_INTERVAL_NANOS = 2_000 * MS;
+
+    private final ClockSync mSync = new ClockSync();
+    private final Random mRandom = new Random(42);
+
+    /** Our clock. */
+    private long mNow = 1_000 * MS;
+
+    @Test
+    public void needsAFewExchangesFirst() {
+        for (int i = 1; i < ClockSync.MIN_SAMPLES; i++) {
+            exchange(3_000 * MS, 0, 0);
+            assertFalse(mSync.isSynced());
+        }
+        exchange(3_000 * MS, 0, 0);
+        assertTrue(mSync.isSynced());
+    }
+
+    @Test
+    public void findsTheOffsetOnAQuietLink() {
+        for (int i = 0; i < ClockSync.WINDOW; i++) {
+            exchange(-7_250 * MS, 0, 0);
+        }
+        assertEquals(0, error(-7_250 * MS, 0), 100_000);
+        assertEquals(0, mSync.getSkewPpm(), 1e-3);
+    }
+
+    @Test
+    public void findsTheOffsetThroughJitter() {
+        long offset = 3_000 * MS;
+        for (int i = 0; i < 3 * ClockSync.WINDOW; i++) {
+            exchange(offset, 0, 20 * MS);
+        }
+        long error = error(offset, 0);
+        // Far less than the jitter, and no worse than the sync says it might be.
+        assertEquals(mSync.toString(), 0, error, 2 * MS);
+        assertTrue(mSync.toString(), Math.abs(error) <= mSync.getUncertaintyNanos());
+    }
+
+    @Test
+    public void findsTheSkewThroughJitter() {
+        long offset = -50 * MS;
+        double skew = 40e-6;
+        for (int i = 0; i < 3 * ClockSync.WINDOW; i++) {
+            exchange(offset, skew, 3 * MS);
+        }
+        long error = error(offset, skew);
+        assertEquals(mSync.toString(), 40, mSync.getSkewPpm(), 10);
+        assertEquals(mSync.toString(), 0, error, 2 * MS);
+    }
+
+    @Test
+    public void ignoresSkewItCantTellFromJitter() {
+        for (int i = 0; i < ClockSync.WINDOW; i++) {
+            exchange(0, 0, 50 * MS);
+        }
+        // 50ms of jitter over a minute could look like hundreds of ppm.
+        assertEquals(0, mSync.getSkewPpm(), 50);
+    }
+
+    /**
+     * Pings the peer and hands the pong to the sync.
+     *
+     * @param offset The peer's clock minus ours, at {@code mNow == 0}.
+     * @param skew How much faster the peer's clock runs.
+     * @param jitter Up to how much longer than 5ms each leg may take, at random.
+     */
+    private void exchange(long offset, double skew, long jitter) {
+        mNow += PING_INTERVAL_NANOS;
+        long sent = mNow;
+        long answered = sent + 5 * MS + (long) (mRandom.nextDouble() * jitter);
+        long received = answered + 5 * MS + (long) (mRandom.nextDouble() * jitter);
+        mSync.onExchange(sent, peerClock(answered, offset, skew), received);
+    }
+
+    /** @return How far off the sync is about when the peer's clock reads what it does now. */
+    private long error(long offset, double skew) {
+        return mSync.toLocal(peerClock(mNow, offset, skew)) - mNow;
+    }
+
+    private static long peerClock(long local, long offset, double skew) {
+        return local + offset + Math.round(skew * local);
+    }
+}
@@ -0,0 +1,108 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import org.junit.Test;
+
+/**
+ * Plays a sender whose clock runs fast or slow through {@link DriftCompensator} and {@link
+ * PlayoutResampler}, on our clock, and watches the queue between them.
+ */
+public class DriftCompensatorTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME = 320;
+    /** What's queued when playback starts: 60ms. */
+    private static final int START_FRAMES = 3;
+    private static final int SECONDS = 600;
+
+    @Test
+    public void holdsTheQueueAgainstAFastSender() {
+        checkSkew(100e-6);
+    }
+
+    @Test
+    public void holdsTheQueueAgainstASlowSender() {
+        checkSkew(-100e-6);
+    }
+
+    @Test
+    public void resamplesByTheRatio() {
+        PlayoutResampler resampler = new PlayoutResampler(FRAME);
+        short[] frame = new short[FRAME];
+        for (double ratio : new double[] {1 - DriftCompensator.MAX_CORRECTION, 1, 1.001}) {
+            long out = 0;
+            int frames = 1_000;
+            for (int i = 0; i < frames; i++) {
+                out += resampler.process(frame, FRAME, ratio);
+            }
+            assertEquals("ratio " + ratio, frames * FRAME / ratio, out, 2);
+        }
+    }
+
+    @Test
+    public void interpolatesAcrossFrames() {
+        PlayoutResampler resampler = new PlayoutResampler(4);
+        // A ramp, split over two frames, comes out a ramp at half the step, with no join. Each
+        // frame starts from the last sample of the one before.
+        assertEquals(8, resampler.process(new short[] {0, 2, 4, 6}, 4, 0.5));
+        assertEquals(8, resampler.process(new short[] {8, 10, 12, 14}, 4, 0.5));
+        short[] output = resampler.getOutput();
+        for (int i = 0; i < 8; i++) {
+            assertEquals(6 + i, output[i]);
+        }
+    }
+
+    /**
+     * Plays {@link #SECONDS} of a sender whose clock runs {@code skew} fast. Without any
+     * correction, 100ppm over 10 minutes would move the queue by 60ms, three frames.
+     */
+    private static void checkSkew(double skew) {
+        DriftCompensator drift = new DriftCompensator(SAMPLE_RATE);
+        PlayoutResampler resampler = new PlayoutResampler(FRAME);
+        short[] frame = new short[FRAME];
+
+        long played = 0;
+        long taken = 0;
+        int stalls = 0;
+        double maxCorrection = 0;
+        int minLevel = Integer.MAX_VALUE;
+        int maxLevel = 0;
+        long end = (long) SECONDS * SAMPLE_RATE;
+        while (played < end) {
+            // What the sender has sent by now, by its clock.
+            long sent = START_FRAMES + (long) (played * (1 + skew) / FRAME);
+            if (sent <= taken) {
+                // Ran dry: a frame of silence while we wait.
+                stalls++;
+                played += FRAME;
+                continue;
+            }
+            taken++;
+            int queued = (int) (sent - taken) * FRAME;
+            drift.update(queued, FRAME);
+            played += resampler.process(frame, FRAME, drift.getRatio());
+
+            maxCorrection = Math.max(maxCorrection, Math.abs(drift.getRatio() - 1));
+            if (played > end / 2) {
+                // Once the estimate has settled.
+                minLevel = Math.min(minLevel, queued);
+                maxLevel = Math.max(maxLevel, queued);
+            }
+        }
+
+        String report =
+                String.format(
+                        Locale.US,
+                        "skew %.0fppm: drift %.1fppm, level %d..%d, stalls %d",
+                        skew * 1e6, drift.getDriftPpm(), minLevel, maxLevel, stalls);
+        assertEquals(report, 0, stalls);
+        assertTrue(report, maxCorrection <= DriftCompensator.MAX_CORRECTION);
+        assertEquals(report, skew * 1e6, drift.getDriftPpm(), 20);
+        // Within a frame either way of where it started.
+        int startLevel = (START_FRAMES - 1) * FRAME;
+        assertTrue(report, minLevel >= startLevel - FRAME);
+        assertTrue(report, maxLevel <= startLevel + FRAME);
+    }
+}
@@ -0,0 +1,96 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Runs the echo canceller against a simulated room: what's played comes back to the microphone
+ * 120 ms later, quieter and with a couple of reflections, over a little noise.
+ */
+public class EchoCancellerTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME = 320;
+    private static final int ECHO_DELAY_MS = 120;
+
+    /** ERLE has to stay above this once the canceller has settled. */
+    private static final float MIN_ERLE_DB = 15;
+
+    @Test
+    public void locksOntoTheDelayAndCancelsTheEcho() {
+        EchoReference reference = new EchoReference(SAMPLE_RATE, FRAME);
+        EchoCanceller canceller = new EchoCanceller(SAMPLE_RATE, reference, FRAME);
+        Room room = new Room();
+
+        short[] far = new short[FRAME];
+        short[] mic = new short[FRAME];
+        int frames = 10 * SAMPLE_RATE / FRAME;
+        float minErle = Float.MAX_VALUE;
+        for (int f = 0; f < frames; f++) {
+            room.next(far, mic);
+            reference.write(far, FRAME);
+            canceller.process(mic, FRAME);
+            if (f >= frames / 2) {
+                minErle = Math.min(minErle, canceller.getErleDb());
+            }
+        }
+
+        // The player and recorder start together here, so the reference doesn't lag; the canceller
+        // aims 2 ms short of the peak so the filter sees the onset.
+        assertEquals(ECHO_DELAY_MS - 2, canceller.getDelayMs(), 1);
+        assertTrue("ERLE fell to " + minErle + " dB", minErle > MIN_ERLE_DB);
+    }
+
+    @Test
+    public void passesNearEndSpeechThroughWhenNothingIsPlayed() {
+        EchoReference reference = new EchoReference(SAMPLE_RATE, FRAME);
+        EchoCanceller canceller = new EchoCanceller(SAMPLE_RATE, reference, FRAME);
+        Random random = new Random(1);
+        short[] mic = new short[FRAME];
+        for (int f = 0; f < 50; f++) {
+            for (int i = 0; i < FRAME; i++) {
+                mic[i] = (short) (random.nextGaussian() * 3000);
+            }
+            short[] before = mic.clone();
+            canceller.process(mic, FRAME);
+            for (int i = 0; i < FRAME; i++) {
+                assertEquals(before[i], mic[i]);
+            }
+        }
+    }
+
+    /** Speech-like far-end noise, and what the microphone hears of it. */
+    private static final class Room {
+        private static final int DELAY = SAMPLE_RATE * ECHO_DELAY_MS / 1000;
+        private final Random mRandom = new Random(42);
+        private final float[] mHistory = new float[DELAY + 64];
+        private long mSample;
+        private float mLowPass;
+
+        void next(short[] far, short[] mic) {
+            for (int i = 0; i < far.length; i++, mSample++) {
+                // Noise, low-passed and switched on and off a few times a second like syllables.
+                mLowPass += 0.3f * ((float) mRandom.nextGaussian() - mLowPass);
+                double syllable = 0.6 + 0.4 * Math.sin(2 * Math.PI * 3 * mSample / SAMPLE_RATE);
+                float x = (float) (8000 * mLowPass * syllable);
+                far[i] = Pcm16.clip(Math.round(x));
+
+                int at = (int) (mSample % mHistory.length);
+                mHistory[at] = far[i];
+                float echo =
+                        0.5f * tap(DELAY) + 0.2f * tap(DELAY + 17) - 0.1f * tap(DELAY + 41);
+                float noise = (float) mRandom.nextGaussian() * 20;
+                mic[i] = Pcm16.clip(Math.round(echo + noise));
+            }
+        }
+
+        private float tap(int delay) {
+            if (mSample < delay) {
+                return 0;
+            }
+            return mHistory[(int) ((mSample - delay) % mHistory.length)];
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import org.junit.Test;
+
+public class EndpointInfoTest {
+    private static final UUID DEVICE_ID = new UUID(0x0123456789abcdefL, 0xfedcba9876543210L);
+
+    @Test
+    public void readsBackWhatItWrote() {
+        EndpointInfo info =
+                EndpointInfo.local(
+                        "Yulduz",
+                        DEVICE_ID,
+                        EndpointInfo.ROLE_RELAY,
+                        EndpointInfo.CODEC_PCM_16BIT,
+                        EndpointInfo.sampleRateBit(16000) | EndpointInfo.sampleRateBit(48000),
+                        EndpointInfo.frameDurationBit(20));
+        EndpointInfo parsed = EndpointInfo.parse(info.toBytes(), "ignored");
+
+        assertEquals(EndpointInfo.PROTOCOL_VERSION, parsed.getProtocolVersion());
+        assertEquals(EndpointInfo.ROLE_RELAY, parsed.getRole());
+        assertTrue(parsed.supportsCodec(EndpointInfo.CODEC_PCM_16BIT));
+        assertTrue(parsed.supportsSampleRate(48000));
+        assertFalse(parsed.supportsSampleRate(8000));
+        assertTrue(parsed.supportsFrameDuration(20));
+        assertFalse(parsed.supportsFrameDuration(40));
+        assertEquals("Yulduz", parsed.getName());
+        assertEquals(DEVICE_ID, parsed.getDeviceId());
+        assertFalse(parsed.isLegacy());
+    }
+
+    @Test
+    public void leavesTheDeviceIdOutIfThereIsntOne() {
+        EndpointInfo info = EndpointInfo.local("Oy", null, EndpointInfo.ROLE_PEER, 1, 4, 2);
+        EndpointInfo parsed = EndpointInfo.parse(info.toBytes(), null);
+        assertEquals("Oy", parsed.getName());
+        assertNull(parsed.getDeviceId());
+    }
+
+    @Test
+    public void takesAnythingElseForAPlainName() {
+        EndpointInfo parsed =
+                EndpointInfo.parse("Quyosh".getBytes(StandardCharsets.UTF_8), "fallback");
+        assertTrue(parsed.isLegacy());
+        assertEquals("Quyosh", parsed.getName());
+        assertTrue(parsed.supportsSampleRate(16000));
+        assertNull(parsed.getDeviceId());
+
+        assertEquals("fallback", EndpointInfo.parse(null, "fallback").getName());
+        assertEquals("fallback", EndpointInfo.parse(new byte[0], "fallback").getName());
+        assertEquals("", EndpointInfo.parse(null, null).getName());
+    }
+
+    @Test
+    public void copesWithTruncatedBlobs() {
+        byte[] bytes = EndpointInfo.local("Yulduz", DEVICE_ID, 0, 1, 4, 2).toBytes();
+
+        // Too short for the header: not one of ours.
+        assertTrue(EndpointInfo.parse(Arrays.copyOf(bytes, 3), null).isLegacy());
+
+        // Cut through the name: what's there of it, and no device id.
+        EndpointInfo cutName = EndpointInfo.parse(Arrays.copyOf(bytes, 10), null);
+        assertEquals("Yul", cutName.getName());
+        assertNull(cutName.getDeviceId());
+
+        // Cut through the device id.
+        EndpointInfo cutId = EndpointInfo.parse(Arrays.copyOf(bytes, bytes.length - 1), null);
+        assertEquals("Yulduz", cutId.getName());
+        assertNull(cutId.getDeviceId());
+    }
+
+    @Test
+    public void versionOnePeersHaveNoDeviceId() {
+        byte[] bytes = EndpointInfo.local("Yulduz", DEVICE_ID, 0, 1, 4, 2).toBytes();
+        bytes[1] = 1;
+        EndpointInfo parsed = EndpointInfo.parse(bytes, null);
+        assertEquals(1, parsed.getProtocolVersion());
+        assertEquals("Yulduz", parsed.getName());
+        assertNull(parsed.getDeviceId());
+        assertFalse(parsed.supportsPairing());
+    }
+
+    @Test
+    public void cutsLongNamesBetweenCharacters() {
+        // 21 three-byte characters make 63 bytes, so the 22nd doesn't fit in 64.
+        char[] chars = new char[30];
+        Arrays.fill(chars, '\u4e2d');
+        String name = new String(chars);
+        EndpointInfo parsed =
+                EndpointInfo.parse(EndpointInfo.local(name, DEVICE_ID, 0, 1, 4, 2).toBytes(), null);
+        assertEquals(name.substring(0, 21), parsed.getName());
+        assertEquals(DEVICE_ID, parsed.getDeviceId());
+
+        String ascii = new String(new char[100]).replace('\0', 'a');
+        assertEquals(
+                64,
+                EndpointInfo.parse(EndpointInfo.local(ascii, null, 0, 1, 4, 2).toBytes(), null)
+                        .getName()
+                        .length());
+    }
+}
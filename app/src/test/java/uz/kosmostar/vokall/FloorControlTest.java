@@ -0,0 +1,188 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class FloorControlTest {
+    private static final String HUB = "hub";
+    private static final String ALICE = "alice";
+    private static final String BOB = "bob";
+
+    /** Writes down what floor control asks for, as "to/except/type", or "state". */
+    private static class FakeCallback implements FloorControl.Callback {
+        final List<String> messages = new ArrayList<>();
+        final List<FloorControl.State> states = new ArrayList<>();
+
+        @Override
+        public void sendFloorMessage(String endpointId, String exceptId, int type) {
+            messages.add(endpointId + "/" + exceptId + "/" + name(type));
+        }
+
+        @Override
+        public void onFloorStateChanged(FloorControl.State oldState, FloorControl.State newState) {
+            states.add(newState);
+        }
+
+        /** @return What was sent since last time. */
+        List<String> takeMessages() {
+            List<String> sent = new ArrayList<>(messages);
+            messages.clear();
+            return sent;
+        }
+
+        private static String name(int type) {
+            switch (type) {
+                case Packet.TYPE_FLOOR_REQUEST:
+                    return "REQUEST";
+                case Packet.TYPE_FLOOR_GRANT:
+                    return "GRANT";
+                case Packet.TYPE_FLOOR_TAKEN:
+                    return "TAKEN";
+                case Packet.TYPE_FLOOR_RELEASE:
+                    return "RELEASE";
+                default:
+                    return String.valueOf(type);
+            }
+        }
+    }
+
+    @Test
+    public void spokeTalksOnceTheHubGrantsIt() {
+        FakeCallback callback = new FakeCallback();
+        FloorControl spoke = FloorControl.spoke(HUB, callback);
+        spoke.press();
+        assertEquals(FloorControl.State.REQUESTING, spoke.getState());
+        assertEquals(Arrays.asList("hub/null/REQUEST"), callback.takeMessages());
+
+        spoke.onMessage(HUB, Packet.TYPE_FLOOR_GRANT);
+        assertEquals(FloorControl.State.TALKING, spoke.getState());
+
+        spoke.release();
+        assertEquals(FloorControl.State.IDLE, spoke.getState());
+        assertEquals(Arrays.asList("hub/null/RELEASE"), callback.takeMessages());
+    }
+
+    @Test
+    public void spokeIgnoresAGrantThatArrivesAfterItLetGo() {
+        FakeCallback callback = new FakeCallback();
+        FloorControl spoke = FloorControl.spoke(HUB, callback);
+        spoke.press();
+        spoke.release();
+        callback.takeMessages();
+
+        spoke.onMessage(HUB, Packet.TYPE_FLOOR_GRANT);
+        assertEquals(FloorControl.State.IDLE, spoke.getState());
+        // It already let go, which the hub hears after its grant.
+        assertEquals(0, callback.takeMessages().size());
+        assertEquals(
+                Arrays.asList(FloorControl.State.REQUESTING, FloorControl.State.IDLE),
+                callback.states);
+    }
+
+    @Test
+    public void spokeWaitsItsTurnWhenTheFloorIsTakenWhileItAsks() {
+        FakeCallback callback = new FakeCallback();
+        FloorControl spoke = FloorControl.spoke(HUB, callback);
+        spoke.press();
+        callback.takeMessages();
+
+        spoke.onMessage(HUB, Packet.TYPE_FLOOR_TAKEN);
+        assertEquals(FloorControl.State.LISTENING, spoke.getState());
+
+        // Still holding the button when it's freed, so it asks again.
+        spoke.onMessage(HUB, Packet.TYPE_FLOOR_RELEASE);
+        assertEquals(FloorControl.State.REQUESTING, spoke.getState());
+        assertEquals(Arrays.asList("hub/null/REQUEST"), callback.takeMessages());
+    }
+
+    @Test
+    public void spokeDoesntAskAgainIfItLetGoWhileListening() {
+        FakeCallback callback = new FakeCallback();
+        FloorControl spoke = FloorControl.spoke(HUB, callback);
+        spoke.onMessage(HUB, Packet.TYPE_FLOOR_TAKEN);
+        spoke.press();
+        spoke.release();
+        spoke.onMessage(HUB, Packet.TYPE_FLOOR_RELEASE);
+        assertEquals(FloorControl.State.IDLE, spoke.getState());
+        assertEquals(0, callback.takeMessages().size());
+    }
+
+    @Test
+    public void spokeOnlyListensToTheHub() {
+        FakeCallback callback = new FakeCallback();
+        FloorControl spoke = FloorControl.spoke(HUB, callback);
+        spoke.onMessage(ALICE, Packet.TYPE_FLOOR_TAKEN);
+        assertEquals(FloorControl.State.IDLE, spoke.getState());
+    }
+
+    @Test
+    public void spokeFreesTheFloorWhenTheHubGoes() {
+        FakeCallback callback = new FakeCallback();
+        FloorControl spoke = FloorControl.spoke(HUB, callback);
+        spoke.press();
+        spoke.onMessage(HUB, Packet.TYPE_FLOOR_GRANT);
+
+        spoke.onEndpointDisconnected(ALICE);
+        assertEquals(FloorControl.State.TALKING, spoke.getState());
+        spoke.onEndpointDisconnected(HUB);
+        assertEquals(FloorControl.State.IDLE, spoke.getState());
+    }
+
+    @Test
+    public void hubGrantsTheFirstAndTurnsDownTheSecond() {
+        FakeCallback callback = new FakeCallback();
+        FloorControl hub = FloorControl.hub(callback);
+        hub.onMessage(ALICE, Packet.TYPE_FLOOR_REQUEST);
+        assertEquals(FloorControl.State.LISTENING, hub.getState());
+        assertEquals(
+                Arrays.asList("alice/null/GRANT", "null/alice/TAKEN"), callback.takeMessages());
+
+        hub.onMessage(BOB, Packet.TYPE_FLOOR_REQUEST);
+        assertEquals(Arrays.asList("bob/null/TAKEN"), callback.takeMessages());
+
+        // Only whoever has it can let go of it.
+        hub.onMessage(BOB, Packet.TYPE_FLOOR_RELEASE);
+        assertEquals(FloorControl.State.LISTENING, hub.getState());
+        hub.onMessage(ALICE, Packet.TYPE_FLOOR_RELEASE);
+        assertEquals(FloorControl.State.IDLE, hub.getState());
+        assertEquals(Arrays.asList("null/alice/RELEASE"), callback.takeMessages());
+    }
+
+    @Test
+    public void hubTalksAsSoonAsTheFloorIsFreedIfItsButtonIsHeld() {
+        FakeCallback callback = new FakeCallback();
+        FloorControl hub = FloorControl.hub(callback);
+        hub.onMessage(ALICE, Packet.TYPE_FLOOR_REQUEST);
+        hub.press();
+        assertEquals(FloorControl.State.LISTENING, hub.getState());
+        callback.takeMessages();
+
+        hub.onMessage(ALICE, Packet.TYPE_FLOOR_RELEASE);
+        assertEquals(FloorControl.State.TALKING, hub.getState());
+        assertEquals(
+                Arrays.asList("null/alice/RELEASE", "null/null/TAKEN"), callback.takeMessages());
+    }
+
+    @Test
+    public void hubFreesTheFloorWhenItsHolderGoes() {
+        FakeCallback callback = new FakeCallback();
+        FloorControl hub = FloorControl.hub(callback);
+        hub.onMessage(ALICE, Packet.TYPE_FLOOR_REQUEST);
+        callback.takeMessages();
+
+        hub.onEndpointDisconnected(BOB);
+        assertEquals(FloorControl.State.LISTENING, hub.getState());
+        hub.onEndpointDisconnected(ALICE);
+        assertEquals(FloorControl.State.IDLE, hub.getState());
+        assertEquals(Arrays.asList("null/alice/RELEASE"), callback.takeMessages());
+
+        // And it's free for the next one.
+        hub.onMessage(BOB, Packet.TYPE_FLOOR_REQUEST);
+        assertEquals(
+                Arrays.asList("bob/null/GRANT", "null/bob/TAKEN"), callback.takeMessages());
+    }
+}
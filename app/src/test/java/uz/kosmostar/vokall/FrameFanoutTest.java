@@ -0,0 +1,144 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class FrameFanoutTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final byte[] FRAME = new byte[640];
+
+    private static final FrameFanout.Format PACKET =
+            new FrameFanout.Format(FrameFanout.KIND_PACKET, 0);
+    private static final FrameFanout.Format PACKET_8K =
+            new FrameFanout.Format(FrameFanout.KIND_PACKET, 8000);
+    private static final FrameFanout.Format RELAY_8K =
+            new FrameFanout.Format(FrameFanout.KIND_RELAY, 8000);
+    private static final FrameFanout.Format BARE =
+            new FrameFanout.Format(FrameFanout.KIND_BARE, 0);
+
+    @Test
+    public void encodesOncePerFormatAndSendsEachPayloadToEveryoneWhoWantsIt() {
+        List<FrameFanout.Format> encoded = new ArrayList<>();
+        Map<String, Integer> received = new HashMap<>();
+        FrameFanout fanout =
+                new FrameFanout(
+                        (format, pcm, length, sampleRate, captureNanos) -> {
+                            encoded.add(format);
+                            return Packet.audio(pcm, length, sampleRate);
+                        },
+                        (bytes, endpointIds) -> {
+                            for (String endpointId : endpointIds) {
+                                received.merge(endpointId, 1, Integer::sum);
+                            }
+                        });
+        fanout.setFormats(listeners(20, PACKET, PACKET_8K, BARE));
+        assertEquals(3, fanout.getFormatCount());
+
+        fanout.send(FRAME, SAMPLE_RATE, 0);
+        assertEquals(3, encoded.size());
+        assertEquals(new HashSet<>(encoded).size(), encoded.size());
+        assertEquals(20, received.size());
+        for (int times : received.values()) {
+            assertEquals(1, times);
+        }
+    }
+
+    @Test
+    public void convertsOncePerRate() {
+        Map<FrameFanout.Format, byte[]> frames = new HashMap<>();
+        Map<FrameFanout.Format, Integer> rates = new HashMap<>();
+        Map<FrameFanout.Format, Integer> lengths = new HashMap<>();
+        FrameFanout fanout =
+                new FrameFanout(
+                        (format, pcm, length, sampleRate, captureNanos) -> {
+                            frames.put(format, pcm);
+                            rates.put(format, sampleRate);
+                            lengths.put(format, length);
+                            return new byte[0];
+                        },
+                        (bytes, endpointIds) -> {});
+        fanout.setFormats(listeners(6, PACKET_8K, RELAY_8K, PACKET));
+        fanout.send(FRAME, SAMPLE_RATE, 0);
+        assertEquals(3, frames.size());
+        assertSame(FRAME, frames.get(PACKET));
+        assertEquals(SAMPLE_RATE, (int) rates.get(PACKET));
+        assertEquals(FRAME.length, (int) lengths.get(PACKET));
+        // Both formats at 8kHz get the same conversion.
+        assertSame(frames.get(PACKET_8K), frames.get(RELAY_8K));
+        assertEquals(8000, (int) rates.get(RELAY_8K));
+        assertEquals(FRAME.length / 2, (int) lengths.get(RELAY_8K));
+        assertTrue(fanout.toString(), fanout.toString().contains("conversions=1}"));
+    }
+
+    @Test
+    public void sendsNothingWithNoListeners() {
+        int[] sends = new int[1];
+        FrameFanout fanout =
+                new FrameFanout(
+                        (format, pcm, length, sampleRate, captureNanos) -> new byte[0],
+                        (bytes, endpointIds) -> sends[0]++);
+        fanout.setFormats(listeners(4, PACKET));
+        fanout.clear();
+        fanout.send(FRAME, SAMPLE_RATE, 0);
+        assertEquals(0, sends[0]);
+    }
+
+    @Test
+    public void allocatesNoMoreForTwentyListenersThanForTwo() {
+        com.sun.management.ThreadMXBean threads = threadMxBean();
+        assumeTrue(threads != null && threads.isThreadAllocatedMemoryEnabled());
+        double two = allocatedPerFrame(threads, 2);
+        double twenty = allocatedPerFrame(threads, 20);
+        // What's left is the payload per format, however many get it.
+        assertTrue(twenty + " vs " + two, twenty < two * 1.1 + 64);
+    }
+
+    /** @return How many bytes a frame costs to send to {@code count} listeners in 2 formats. */
+    private static double allocatedPerFrame(
+            com.sun.management.ThreadMXBean threads, int count) {
+        FrameFanout fanout =
+                new FrameFanout(
+                        (format, pcm, length, sampleRate, captureNanos) ->
+                                Packet.audio(pcm, length, sampleRate),
+                        (bytes, endpointIds) -> {});
+        fanout.setFormats(listeners(count, PACKET, PACKET_8K));
+        // Let the converters be made, and the JIT settle.
+        for (int i = 0; i < 5_000; i++) {
+            fanout.send(FRAME, SAMPLE_RATE, i);
+        }
+        int frames = 20_000;
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < frames; i++) {
+            fanout.send(FRAME, SAMPLE_RATE, i);
+        }
+        return (double) (threads.getThreadAllocatedBytes(thread) - before) / frames;
+    }
+
+    private static com.sun.management.ThreadMXBean threadMxBean() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads
+                : null;
+    }
+
+    /** @return {@code count} listeners, taking the given formats in turn. */
+    private static Map<String, FrameFanout.Format> listeners(
+            int count, FrameFanout.Format... formats) {
+        Map<String, FrameFanout.Format> listeners = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            listeners.put("endpoint" + i, formats[i % formats.length]);
+        }
+        return listeners;
+    }
+}
@@ -0,0 +1,138 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ImaAdpcmTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int BLOCK_SIZE = WavWriter.ADPCM_BLOCK_SIZE_PER_CHANNEL;
+
+    /** Roughly what IMA ADPCM manages on a voice-band tone, once its step size has caught up. */
+    private static final double MIN_SNR_DB = 35;
+
+    @Test
+    public void blockSizesAgree() {
+        int mono = ImaAdpcm.getSamplesPerBlock(1, BLOCK_SIZE);
+        assertEquals(1017, mono);
+        assertEquals(BLOCK_SIZE, ImaAdpcm.getBlockSize(1, mono));
+        int stereo = ImaAdpcm.getSamplesPerBlock(2, 2 * BLOCK_SIZE);
+        assertEquals(mono, stereo);
+        assertEquals(2 * BLOCK_SIZE, ImaAdpcm.getBlockSize(2, stereo));
+    }
+
+    @Test
+    public void keepsAToneCleanInMono() {
+        int samplesPerBlock = ImaAdpcm.getSamplesPerBlock(1, BLOCK_SIZE);
+        short[] tone = tone(400, 8000, 20 * samplesPerBlock, 1, 0);
+        short[] decoded = roundTrip(tone, 1, samplesPerBlock);
+        double snr = snrDb(tone, decoded, 1, 0, samplesPerBlock);
+        assertTrue("SNR " + snr + " dB", snr > MIN_SNR_DB);
+    }
+
+    @Test
+    public void keepsStereoChannelsApart() {
+        int samplesPerBlock = ImaAdpcm.getSamplesPerBlock(2, 2 * BLOCK_SIZE);
+        int frames = 20 * samplesPerBlock;
+        short[] both = new short[2 * frames];
+        short[] left = tone(400, 8000, frames, 1, 0);
+        for (int i = 0; i < frames; i++) {
+            both[2 * i] = left[i];
+        }
+        // Quiet on the right, which would pick up the left's error if they were mixed up.
+        short[] decoded = roundTrip(both, 2, samplesPerBlock);
+        double snr = snrDb(both, decoded, 2, 0, samplesPerBlock);
+        assertTrue("SNR " + snr + " dB", snr > MIN_SNR_DB);
+        for (int i = 0; i < frames; i++) {
+            assertEquals("right at " + i, 0, decoded[2 * i + 1], 16);
+        }
+    }
+
+    @Test
+    public void eachBlockStartsFromItsHeader() {
+        int samplesPerBlock = ImaAdpcm.getSamplesPerBlock(1, BLOCK_SIZE);
+        short[] tone = tone(400, 8000, samplesPerBlock, 1, 0);
+        byte[] block = new byte[BLOCK_SIZE];
+        ImaAdpcm.Channel[] encoder = {new ImaAdpcm.Channel()};
+        assertEquals(BLOCK_SIZE, ImaAdpcm.encodeBlock(tone, encoder, samplesPerBlock, block, 0));
+        // A decoder that's seen other blocks first gets the same out of it.
+        ImaAdpcm.Channel used = new ImaAdpcm.Channel();
+        used.decode(7);
+        used.decode(7);
+        short[] fresh = new short[samplesPerBlock];
+        short[] reused = new short[samplesPerBlock];
+        ImaAdpcm.decodeBlock(
+                block, 0, new ImaAdpcm.Channel[] {new ImaAdpcm.Channel()}, samplesPerBlock, fresh);
+        ImaAdpcm.decodeBlock(block, 0, new ImaAdpcm.Channel[] {used}, samplesPerBlock, reused);
+        assertEquals(tone[0], fresh[0]);
+        for (int i = 0; i < samplesPerBlock; i++) {
+            assertEquals(fresh[i], reused[i]);
+        }
+    }
+
+    @Test
+    public void survivesFullScaleSquareWaves() {
+        int samplesPerBlock = ImaAdpcm.getSamplesPerBlock(1, BLOCK_SIZE);
+        short[] square = new short[4 * samplesPerBlock];
+        for (int i = 0; i < square.length; i++) {
+            square[i] = (i / 20) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+        }
+        short[] decoded = roundTrip(square, 1, samplesPerBlock);
+        // Steps that big take a while to reach, but it gets there without wrapping round.
+        for (int i = 0; i < decoded.length; i++) {
+            if (i % 40 == 19) {
+                assertTrue("at " + i + ": " + decoded[i], decoded[i] > 16000);
+            }
+        }
+    }
+
+    /** @return A tone in {@code channel} of {@code channels}, and silence in the rest. */
+    static short[] tone(double hz, double amplitude, int frames, int channels, int channel) {
+        short[] samples = new short[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            samples[i * channels + channel] =
+                    (short) Math.round(amplitude * Math.sin(2 * Math.PI * hz * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    /**
+     * @param skipFrames How many frames at the start to leave out, e.g. while the step size
+     *     grows from its smallest to fit the signal.
+     * @return The signal to error ratio of {@code channel}, in dB.
+     */
+    static double snrDb(
+            short[] original, short[] decoded, int channels, int channel, int skipFrames) {
+        double signal = 0;
+        double error = 0;
+        for (int i = skipFrames * channels + channel; i < original.length; i += channels) {
+            double diff = original[i] - decoded[i];
+            signal += (double) original[i] * original[i];
+            error += diff * diff;
+        }
+        return 10 * Math.log10(signal / error);
+    }
+
+    /** Encodes and decodes whole blocks. */
+    private static short[] roundTrip(short[] samples, int channels, int samplesPerBlock) {
+        ImaAdpcm.Channel[] encoder = new ImaAdpcm.Channel[channels];
+        ImaAdpcm.Channel[] decoder = new ImaAdpcm.Channel[channels];
+        for (int c = 0; c < channels; c++) {
+            encoder[c] = new ImaAdpcm.Channel();
+            decoder[c] = new ImaAdpcm.Channel();
+        }
+        int blockSamples = samplesPerBlock * channels;
+        short[] in = new short[blockSamples];
+        short[] out = new short[blockSamples];
+        byte[] block = new byte[ImaAdpcm.getBlockSize(channels, samplesPerBlock)];
+        short[] decoded = new short[samples.length];
+        for (int offset = 0; offset < samples.length; offset += blockSamples) {
+            System.arraycopy(samples, offset, in, 0, blockSamples);
+            ImaAdpcm.encodeBlock(in, encoder, samplesPerBlock, block, 0);
+            ImaAdpcm.decodeBlock(block, 0, decoder, samplesPerBlock, out);
+            System.arraycopy(out, 0, decoded, offset, blockSamples);
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,59 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LatencyMonitorTest {
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void startsFromTheFirstFrameAndAveragesAfterThat() {
+        LatencyMonitor monitor = new LatencyMonitor();
+        monitor.onReceived(10 * MS, 30 * MS);
+        assertEquals(10, monitor.getCaptureMs(), 1e-9);
+        assertEquals(30, monitor.getNetworkMs(), 1e-9);
+
+        // Each frame after the first moves the average 5% of the way.
+        monitor.onReceived(30 * MS, 30 * MS);
+        assertEquals(11, monitor.getCaptureMs(), 1e-9);
+        assertEquals(30, monitor.getNetworkMs(), 1e-9);
+
+        // A steady figure wins out.
+        for (int i = 0; i < 500; i++) {
+            monitor.onPlayed(60 * MS, 40 * MS);
+        }
+        assertEquals(60, monitor.getJitterBufferMs(), 1e-9);
+        assertEquals(40, monitor.getOutputMs(), 1e-9);
+    }
+
+    @Test
+    public void hasNoTotalUntilBothEndsHaveReported() {
+        LatencyMonitor monitor = new LatencyMonitor();
+        assertEquals(-1, monitor.getTotalMs(), 0);
+        monitor.onPlayed(60 * MS, 40 * MS);
+        assertEquals(-1, monitor.getTotalMs(), 0);
+        monitor.onReceived(10 * MS, 30 * MS);
+        assertEquals(10 + 30 + 60 + 40, monitor.getTotalMs(), 1e-9);
+
+        LatencyMonitor received = new LatencyMonitor();
+        received.onReceived(10 * MS, 30 * MS);
+        assertEquals(-1, received.getTotalMs(), 0);
+    }
+
+    @Test
+    public void resetStartsOver() {
+        LatencyMonitor monitor = new LatencyMonitor();
+        monitor.onReceived(10 * MS, 30 * MS);
+        monitor.onPlayed(60 * MS, 40 * MS);
+        monitor.reset();
+        assertEquals(-1, monitor.getTotalMs(), 0);
+        assertEquals(0, monitor.getCaptureMs(), 0);
+        assertEquals(0, monitor.getOutputMs(), 0);
+
+        // The next call's first frame counts in full again.
+        monitor.onReceived(20 * MS, 5 * MS);
+        monitor.onPlayed(80 * MS, 20 * MS);
+        assertEquals(20 + 5 + 80 + 20, monitor.getTotalMs(), 1e-9);
+    }
+}
@@ -0,0 +1,100 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/** {@link LinkStats} and the totals {@link LinkStatsStore} keeps of them. */
+public class LinkStatsStoreTest {
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void countsWhatWentOverALink() {
+        LinkStats stats = call(1_000, 30, 10);
+        assertEquals(1, stats.getCalls());
+        assertEquals(1_000, stats.getBytesSent());
+        assertEquals(500, stats.getBytesReceived());
+        assertEquals(2, stats.getRttCount());
+        assertEquals(40, stats.getMeanRttMs(), 1e-9);
+        assertEquals(30, stats.getMinRttMs(), 1e-9);
+        assertEquals(10, stats.getMeanTransitMs(), 1e-9);
+    }
+
+    @Test
+    public void hasNoTimesUntilSomethingWasTimed() {
+        LinkStats stats = new LinkStats();
+        assertEquals(-1, stats.getMeanRttMs(), 0);
+        assertEquals(-1, stats.getMinRttMs(), 0);
+        assertEquals(-1, stats.getMeanTransitMs(), 0);
+        assertEquals(0, stats.getReceiveKbps(), 0);
+    }
+
+    @Test
+    public void addsUpCallsOfTheSameKind() {
+        LinkStatsStore store = new LinkStatsStore(new FakeSharedPreferences());
+        store.record(CallType.DIRECT, call(1_000, 30, 10));
+        store.record(CallType.DIRECT, call(3_000, 20, 30));
+
+        LinkStats total = store.get(CallType.DIRECT);
+        assertEquals(2, total.getCalls());
+        assertEquals(4_000, total.getBytesSent());
+        assertEquals(4, total.getRttCount());
+        assertEquals(20, total.getMinRttMs(), 1e-9);
+        assertEquals(20, total.getMeanTransitMs(), 1e-9);
+
+        // Each kind has its own.
+        assertEquals(0, store.get(CallType.GROUP).getCalls());
+        assertEquals(-1, store.get(CallType.GROUP).getMinRttMs(), 0);
+    }
+
+    @Test
+    public void keepsTheTotalsForTheNextLaunch() {
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        LinkStatsStore store = new LinkStatsStore(prefs);
+        store.record(Transport.STREAM, Transport.Quality.HIGH, call(1_000, 30, 10));
+        store.record(CallType.MESH, call(2_000, 25, 5));
+
+        LinkStatsStore reloaded = new LinkStatsStore(prefs);
+        LinkStats stream = reloaded.get(Transport.STREAM, Transport.Quality.HIGH);
+        assertEquals(1, stream.getCalls());
+        assertEquals(1_000, stream.getBytesSent());
+        assertEquals(30, stream.getMinRttMs(), 1e-9);
+        assertEquals(0, reloaded.get(Transport.BYTES, Transport.Quality.HIGH).getCalls());
+        assertEquals(0, reloaded.get(Transport.STREAM, Transport.Quality.LOW).getCalls());
+        assertEquals(2_000, reloaded.get(CallType.MESH).getBytesSent());
+
+        // What's recorded after the reload goes on top of what was there.
+        reloaded.record(Transport.STREAM, Transport.Quality.HIGH, call(500, 10, 20));
+        LinkStats merged = new LinkStatsStore(prefs).get(Transport.STREAM, Transport.Quality.HIGH);
+        assertEquals(2, merged.getCalls());
+        assertEquals(1_500, merged.getBytesSent());
+        assertEquals(10, merged.getMinRttMs(), 1e-9);
+        assertEquals(15, merged.getMeanTransitMs(), 1e-9);
+    }
+
+    @Test
+    public void handsOutCopies() {
+        LinkStatsStore store = new LinkStatsStore(new FakeSharedPreferences());
+        store.record(CallType.DIRECT, call(1_000, 30, 10));
+        store.get(CallType.DIRECT).add(call(1_000, 30, 10));
+        assertEquals(1, store.get(CallType.DIRECT).getCalls());
+    }
+
+    /**
+     * @return A finished call that sent {@code bytesSent} and got half that back, with two pings,
+     *     the shortest {@code minRttMs} and the other 20ms longer, and two frames timed at {@code
+     *     transitMs}.
+     */
+    private static LinkStats call(int bytesSent, long minRttMs, long transitMs) {
+        LinkStats stats = LinkStats.start();
+        stats.onSent(bytesSent / 2);
+        stats.onSent(bytesSent - bytesSent / 2);
+        stats.onReceived(bytesSent / 2);
+        stats.onRtt(minRttMs * MS);
+        stats.onRtt((minRttMs + 20) * MS);
+        stats.onTransit(transitMs * MS);
+        stats.onTransit(transitMs * MS);
+        stats.stop();
+        return stats;
+    }
+}
@@ -0,0 +1,401 @@
+package uz.kosmostar.vokall;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+
+/**
+ * Runs {@link MeshRelay} over simulated meshes, to see how far audio gets, how late, and how many
+ * copies of it the flooding costs. See {@link MeshSimulationTest}.
+ *
+ * <p>Each device gets a real {@link MeshRelay} and real {@link Packet}s. Each link is a queue in
+ * each direction that carries {@link #LINK_KBPS} with some latency, jitter and loss, so the extra
+ * copies a mesh makes slow everyone down as they would over the air. Every device talks in turn,
+ * in 20ms frames at 16kHz, as push-to-talk would have it.
+ *
+ * <p>For each distance from the talker, in hops, it counts how many frames arrived, how late they
+ * were, and how many arrived too late for the playout delay {@link MeshRelay#playoutDelayMs(int)}
+ * aims for at that distance. Then how many copies each device got per frame it played, and how
+ * many times each frame was sent in all. {@link #toString()} sums it all up.
+ */
+class MeshSimulation {
+    /** How fast each link is. About what Nearby gets over Bluetooth. */
+    static final int LINK_KBPS = 1_000;
+
+    /** Each link's fixed latency. */
+    static final double LINK_LATENCY_MS = 6;
+
+    /** Each link's mean extra latency, exponentially distributed. */
+    static final double LINK_JITTER_MS = 4;
+
+    /** The chance a link loses a payload. */
+    static final double LINK_LOSS = 0.01;
+
+    /** How long it takes a device to pass a packet on. */
+    static final double RELAY_MS = 1;
+
+    /** How often each device sends a frame while talking. */
+    static final double FRAME_MS = 20;
+
+    /** How many frames each device sends when it's its turn. */
+    static final int FRAMES_PER_TALKER = 150;
+
+    /** A frame of 16kHz audio. */
+    private static final byte[] PCM = new byte[640];
+
+    /** Something happening at a point in time. */
+    private static class Event implements Comparable<Event> {
+        final double timeMs;
+        final long order;
+        final Runnable action;
+
+        Event(double timeMs, long order, Runnable action) {
+            this.timeMs = timeMs;
+            this.order = order;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Double.compare(timeMs, other.timeMs);
+            return byTime != 0 ? byTime : Long.compare(order, other.order);
+        }
+    }
+
+    /** One direction of a link. Payloads go out one at a time. */
+    private static class Link {
+        final int to;
+        double freeAtMs;
+
+        Link(int to) {
+            this.to = to;
+        }
+    }
+
+    /** How the frames that crossed a given number of hops did. */
+    private static class HopStats {
+        long expected;
+        final List<Double> latencies = new ArrayList<>();
+        long late;
+    }
+
+    private final String mName;
+    private final int mCount;
+    private final List<List<Link>> mLinks = new ArrayList<>();
+    private final MeshRelay[] mRelays;
+    private final Random mRandom;
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+    private long mEventCount;
+    private double mNowMs;
+
+    /** When each frame was sent, by origin node id and sequence number. */
+    private final Map<Long, Double> mSentAtMs = new HashMap<>();
+
+    /** Each device's distance from each other, in hops. */
+    private int[][] mDistances;
+
+    private final Map<Integer, HopStats> mHopStats = new HashMap<>();
+    private long mSends;
+    private long mCopiesReceived;
+    private long mFramesSent;
+
+    MeshSimulation(String name, int count, long seed) {
+        mName = name;
+        mCount = count;
+        mRandom = new Random(seed);
+        mRelays = new MeshRelay[count];
+        for (int i = 0; i < count; i++) {
+            mLinks.add(new ArrayList<>());
+            final int node = i;
+            MeshRelay.Callback callback =
+                    (packet, exceptId) -> forward(node, packet, Integer.parseInt(exceptId));
+            mRelays[i] = new MeshRelay(mRandom.nextInt(), callback);
+            mRelays[i].setForwarding(true);
+        }
+    }
+
+    /** Connects two devices both ways. */
+    void connect(int a, int b) {
+        mLinks.get(a).add(new Link(b));
+        mLinks.get(b).add(new Link(a));
+    }
+
+    /** Has every device talk in turn. */
+    void run() {
+        mDistances = new int[mCount][];
+        for (int i = 0; i < mCount; i++) {
+            mDistances[i] = distancesFrom(i);
+        }
+        double talkerStartMs = 0;
+        for (int talker = 0; talker < mCount; talker++) {
+            for (int frame = 0; frame < FRAMES_PER_TALKER; frame++) {
+                final int from = talker;
+                schedule(talkerStartMs + frame * FRAME_MS, () -> originate(from));
+            }
+            // A second of quiet between talkers, so their frames don't share the links.
+            talkerStartMs += FRAMES_PER_TALKER * FRAME_MS + 1_000;
+        }
+        while (!mEvents.isEmpty()) {
+            Event event = mEvents.poll();
+            mNowMs = event.timeMs;
+            event.action.run();
+        }
+    }
+
+    /**
+     * @return Of the frames that should have got this many hops from their talker, the fraction
+     *     that did. 0 if none should have.
+     */
+    double getDeliveryRatio(int hops) {
+        HopStats stats = mHopStats.get(hops);
+        return stats == null || stats.expected == 0
+                ? 0
+                : (double) stats.latencies.size() / stats.expected;
+    }
+
+    /** @return Of the frames due at each device in range, the fraction that got there. */
+    double getDeliveryRatio() {
+        long expected = 0;
+        long delivered = 0;
+        for (HopStats stats : mHopStats.values()) {
+            expected += stats.expected;
+            delivered += stats.latencies.size();
+        }
+        return expected == 0 ? 0 : (double) delivered / expected;
+    }
+
+    /** @return How many frames got further than {@link MeshRelay#DEFAULT_TTL} hops. */
+    long getDeliveredBeyondTtl() {
+        long delivered = 0;
+        for (Map.Entry<Integer, HopStats> entry : mHopStats.entrySet()) {
+            if (entry.getKey() > MeshRelay.DEFAULT_TTL) {
+                delivered += entry.getValue().latencies.size();
+            }
+        }
+        return delivered;
+    }
+
+    /** @return Of the frames that got this many hops from their talker, the fraction too late. */
+    double getLateRatio(int hops) {
+        HopStats stats = mHopStats.get(hops);
+        return stats == null || stats.latencies.isEmpty()
+                ? 0
+                : (double) stats.late / stats.latencies.size();
+    }
+
+    /** @return Of every copy of every frame any device got, the fraction it already had. */
+    double getDuplicateRatio() {
+        long duplicates = 0;
+        for (MeshRelay relay : mRelays) {
+            duplicates += relay.getDuplicateCount();
+        }
+        return mCopiesReceived == 0 ? 0 : (double) duplicates / mCopiesReceived;
+    }
+
+    /** @return How many times, across all devices, a frame wasn't passed on for its TTL. */
+    long getExpiredCount() {
+        long expired = 0;
+        for (MeshRelay relay : mRelays) {
+            expired += relay.getExpiredCount();
+        }
+        return expired;
+    }
+
+    /** @return How many links each frame crossed, on average. */
+    double getSendsPerFrame() {
+        return (double) mSends / mFramesSent;
+    }
+
+    /** @return How many pairs of devices are more than {@link MeshRelay#DEFAULT_TTL} hops apart. */
+    long getPairsBeyondTtl() {
+        long beyondTtl = 0;
+        for (int[] distances : mDistances) {
+            for (int distance : distances) {
+                if (distance > MeshRelay.DEFAULT_TTL && distance != Integer.MAX_VALUE) {
+                    beyondTtl++;
+                }
+            }
+        }
+        return beyondTtl;
+    }
+
+    private void originate(int node) {
+        byte[] packet = mRelays[node].originate(Packet.audio(PCM, PCM.length, 16000));
+        mSentAtMs.put(key(packet), mNowMs);
+        mFramesSent++;
+        for (int i = 0; i < mCount; i++) {
+            if (i != node && mDistances[node][i] <= MeshRelay.DEFAULT_TTL) {
+                hopStats(mDistances[node][i]).expected++;
+            }
+        }
+        forward(node, packet, -1);
+    }
+
+    /** Sends a packet from a device to every neighbour but one. */
+    private void forward(int node, byte[] packet, int except) {
+        double readyMs = mNowMs + (except < 0 ? 0 : RELAY_MS);
+        for (Link link : mLinks.get(node)) {
+            if (link.to == except) {
+                continue;
+            }
+            mSends++;
+            double transmitMs = packet.length * 8.0 / LINK_KBPS;
+            link.freeAtMs = Math.max(readyMs, link.freeAtMs) + transmitMs;
+            if (mRandom.nextDouble() < LINK_LOSS) {
+                continue;
+            }
+            double arriveMs =
+                    link.freeAtMs
+                            + LINK_LATENCY_MS
+                            - LINK_JITTER_MS * Math.log(1 - mRandom.nextDouble());
+            final int to = link.to;
+            schedule(arriveMs, () -> receive(to, node, packet));
+        }
+    }
+
+    private void receive(int node, int from, byte[] packet) {
+        mCopiesReceived++;
+        if (!mRelays[node].onReceive(Integer.toString(from), packet)) {
+            return;
+        }
+        Double sentAtMs = mSentAtMs.get(key(packet));
+        int origin = originIndex(Packet.getRelayOrigin(packet));
+        int hops = mDistances[origin][node];
+        double latencyMs = mNowMs - sentAtMs;
+        HopStats stats = hopStats(hops);
+        stats.latencies.add(latencyMs);
+        // What the playout delay is there to soak up is how much later than the fastest frames
+        // this one is. Take the fixed part of the path as the fastest any frame could be.
+        double fastestMs = hops * (PCM.length * 8.0 / LINK_KBPS + LINK_LATENCY_MS + RELAY_MS);
+        if (latencyMs - fastestMs > MeshRelay.playoutDelayMs(hops)) {
+            stats.late++;
+        }
+    }
+
+    private void schedule(double timeMs, Runnable action) {
+        mEvents.add(new Event(timeMs, mEventCount++, action));
+    }
+
+    private HopStats hopStats(int hops) {
+        HopStats stats = mHopStats.get(hops);
+        if (stats == null) {
+            stats = new HopStats();
+            mHopStats.put(hops, stats);
+        }
+        return stats;
+    }
+
+    private int originIndex(int nodeId) {
+        for (int i = 0; i < mCount; i++) {
+            if (mRelays[i].getNodeId() == nodeId) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Unknown origin " + nodeId);
+    }
+
+    private static long key(byte[] relay) {
+        return ((long) Packet.getRelayOrigin(relay) << 32)
+                | (Packet.getRelaySeq(relay) & 0xFFFFFFFFL);
+    }
+
+    private int[] distancesFrom(int start) {
+        int[] distances = new int[mCount];
+        Arrays.fill(distances, Integer.MAX_VALUE);
+        distances[start] = 0;
+        Queue<Integer> queue = new ArrayDeque<>();
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (Link link : mLinks.get(node)) {
+                if (distances[link.to] == Integer.MAX_VALUE) {
+                    distances[link.to] = distances[node] + 1;
+                    queue.add(link.to);
+                }
+            }
+        }
+        return distances;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.US, "%s: %d devices%n", mName, mCount));
+        out.append("  hops  delivered   mean ms   p95 ms  late  playout ms\n");
+        long delivered = 0;
+        for (int hops = 1; mHopStats.containsKey(hops); hops++) {
+            HopStats stats = mHopStats.get(hops);
+            delivered += stats.latencies.size();
+            double[] latencies = new double[stats.latencies.size()];
+            double sum = 0;
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = stats.latencies.get(i);
+                sum += latencies[i];
+            }
+            Arrays.sort(latencies);
+            out.append(
+                    String.format(
+                            Locale.US,
+                            "  %4d  %8.1f%%  %8.1f  %7.1f  %3.1f%%  %10d%n",
+                            hops,
+                            100.0 * latencies.length / stats.expected,
+                            latencies.length == 0 ? 0 : sum / latencies.length,
+                            latencies.length == 0 ? 0 : latencies[latencies.length * 95 / 100],
+                            latencies.length == 0 ? 0 : 100.0 * stats.late / latencies.length,
+                            MeshRelay.playoutDelayMs(hops)));
+        }
+        long beyondTtl = getPairsBeyondTtl();
+        if (beyondTtl > 0) {
+            out.append(
+                    String.format(
+                            Locale.US,
+                            "  %d pairs are more than %d hops apart, and can't hear each other%n",
+                            beyondTtl,
+                            MeshRelay.DEFAULT_TTL));
+        }
+        out.append(
+                String.format(
+                        Locale.US,
+                        "  copies per frame played: %.2f (%.1f%% duplicates); sends per frame:"
+                                + " %.1f; expired: %d%n",
+                        (double) mCopiesReceived / delivered,
+                        100.0 * getDuplicateRatio(),
+                        getSendsPerFrame(),
+                        getExpiredCount()));
+        return out.toString();
+    }
+
+    /** A line of devices, each only in range of the ones either side. */
+    static MeshSimulation chain(int count, long seed) {
+        MeshSimulation simulation = new MeshSimulation("Chain", count, seed);
+        for (int i = 1; i < count; i++) {
+            simulation.connect(i - 1, i);
+        }
+        return simulation;
+    }
+
+    /** Devices on a grid, each in range of the ones next to it. */
+    static MeshSimulation grid(int width, int height, long seed) {
+        MeshSimulation simulation =
+                new MeshSimulation(width + "x" + height + " grid", width * height, seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int node = y * width + x;
+                if (x > 0) {
+                    simulation.connect(node - 1, node);
+                }
+                if (y > 0) {
+                    simulation.connect(node - width, node);
+                }
+            }
+        }
+        return simulation;
+    }
+}
@@ -0,0 +1,68 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Floods audio across simulated meshes with {@link MeshSimulation}. */
+public class MeshSimulationTest {
+    private static final long SEED = 1;
+
+    @Test
+    public void chainDeliversAsFarAsTheTtlAndNoFurther() {
+        MeshSimulation chain = MeshSimulation.chain(12, SEED);
+        chain.run();
+
+        // Each link loses 1%, and a chain has no other way round, so ten hops lose about 10%.
+        for (int hops = 1; hops <= MeshRelay.DEFAULT_TTL; hops++) {
+            double expected = Math.pow(1 - MeshSimulation.LINK_LOSS, hops);
+            assertEquals("hops " + hops, expected, chain.getDeliveryRatio(hops), 0.03);
+        }
+        // The two ends are 11 hops apart.
+        assertEquals(2, chain.getPairsBeyondTtl());
+        assertEquals(0, chain.getDeliveredBeyondTtl());
+        // Only ever one way to go, so no device hears anything twice.
+        assertEquals(0, chain.getDuplicateRatio(), 0);
+        // The talkers at each end and one in from each end have a device exactly ten hops away,
+        // which doesn't pass their frames on.
+        long expired = chain.getExpiredCount();
+        long expectedExpired =
+                Math.round(
+                        4
+                                * MeshSimulation.FRAMES_PER_TALKER
+                                * Math.pow(1 - MeshSimulation.LINK_LOSS, MeshRelay.DEFAULT_TTL));
+        assertEquals(expectedExpired, expired, 0.05 * expectedExpired);
+    }
+
+    @Test
+    public void gridRoutesAroundLossAtTheCostOfDuplicates() {
+        MeshSimulation grid = MeshSimulation.grid(5, 5, SEED);
+        grid.run();
+
+        // Lost copies are made up for by others coming another way.
+        assertTrue("delivered " + grid.getDeliveryRatio(), grid.getDeliveryRatio() > 0.995);
+        // Nothing's more than 8 hops from anything else.
+        assertEquals(0, grid.getPairsBeyondTtl());
+        assertEquals(0, grid.getExpiredCount());
+        // A device hears each frame from most of its 2 to 4 neighbours, and plays only the first.
+        double duplicates = grid.getDuplicateRatio();
+        assertTrue("duplicates " + duplicates, duplicates > 0.45 && duplicates < 0.65);
+        // Every device sends each frame once to each neighbour but the one it came from: 40
+        // links, so 80 directions, less one for each of the 24 devices that didn't send it first.
+        assertEquals(80 - 24, grid.getSendsPerFrame(), 1);
+        // The playout delay each distance aims for soaks up nearly all of the jitter.
+        for (int hops = 1; hops <= 8; hops++) {
+            assertTrue("late at " + hops + " hops", grid.getLateRatio(hops) < 0.02);
+        }
+    }
+
+    @Test
+    public void squareGridReachesEveryoneToo() {
+        MeshSimulation grid = MeshSimulation.grid(4, 4, SEED);
+        grid.run();
+        assertTrue("delivered " + grid.getDeliveryRatio(), grid.getDeliveryRatio() > 0.995);
+        assertEquals(0, grid.getExpiredCount());
+        assertEquals(2 * 24 - 15, grid.getSendsPerFrame(), 1);
+    }
+}
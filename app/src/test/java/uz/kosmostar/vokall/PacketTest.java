@@ -0,0 +1,179 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+public class PacketTest {
+    private static final byte[] PCM = pcm(320);
+
+    @Test
+    public void readsEachKindOfAudioBack() {
+        byte[] bare = Packet.audio(PCM, PCM.length, 16000);
+        assertArrayEquals(PCM, Packet.getAudio(bare));
+        assertEquals(16000, Packet.getSampleRate(bare));
+        assertEquals(0, Packet.getPlayAt(bare));
+
+        byte[] timed = Packet.audioTimed(PCM, PCM.length, 8000, 123_456_789L);
+        assertArrayEquals(PCM, Packet.getAudio(timed));
+        assertEquals(8000, Packet.getSampleRate(timed));
+        assertEquals(123_456_789L, Packet.getPlayAt(timed));
+
+        long sent = 5_000_000_000L;
+        byte[] stamped =
+                Packet.audioStamped(
+                        PCM, PCM.length, 48000, sent, sent - 3_000_000, sent + 40_000_000);
+        assertArrayEquals(PCM, Packet.getAudio(stamped));
+        assertEquals(PCM.length, Packet.getAudioLength(stamped));
+        assertEquals(48000, Packet.getSampleRate(stamped));
+        assertEquals(sent, Packet.getSentAt(stamped));
+        assertEquals(3_000_000, Packet.getCaptureDelayNanos(stamped));
+        assertEquals(sent + 40_000_000, Packet.getPlayAt(stamped));
+    }
+
+    @Test
+    public void onlyTakesWhatFitsFromTheFrame() {
+        byte[] packet = Packet.audio(PCM, 100, 16000);
+        assertArrayEquals(Arrays.copyOf(PCM, 100), Packet.getAudio(packet));
+    }
+
+    @Test
+    public void makesNothingOfTruncatedAudio() {
+        long sent = 5_000_000_000L;
+        byte[][] packets = {
+            Packet.audio(PCM, PCM.length, 16000),
+            Packet.audioTimed(PCM, PCM.length, 16000, sent),
+            Packet.audioStamped(PCM, PCM.length, 16000, sent, sent, sent + 1),
+        };
+        for (byte[] packet : packets) {
+            // Cut off inside the header, whatever the kind.
+            int header = packet.length - PCM.length;
+            for (int length = 1; length < header; length++) {
+                byte[] truncated = Arrays.copyOf(packet, length);
+                String what = Packet.typeToString(Packet.getType(packet)) + " cut to " + length;
+                assertNull(what, Packet.getAudio(truncated));
+                assertEquals(what, 0, Packet.getAudioLength(truncated));
+                assertEquals(what, 0, Packet.getSampleRate(truncated));
+                assertEquals(what, 0, Packet.getPlayAt(truncated));
+                assertEquals(what, 0, Packet.getSentAt(truncated));
+                assertEquals(what, 0, Packet.getCaptureDelayNanos(truncated));
+            }
+            // Cut off inside the PCM, it's just a shorter frame.
+            byte[] truncated = Arrays.copyOf(packet, header + 10);
+            assertArrayEquals(Arrays.copyOf(PCM, 10), Packet.getAudio(truncated));
+        }
+    }
+
+    @Test
+    public void makesNothingOfAnEmptyPacket() {
+        byte[] empty = new byte[0];
+        assertEquals(-1, Packet.getType(empty));
+        assertNull(Packet.getAudio(empty));
+        assertFalse(Packet.isRelay(empty));
+        assertEquals(-1, Packet.getTimestamp(empty));
+        assertEquals(-1, Packet.getPongTime(empty));
+        assertEquals(0, Packet.getVoiceMessagePayloadId(empty));
+        assertEquals(-1, Packet.getSecretKind(empty));
+    }
+
+    @Test
+    public void makesNothingOfTruncatedControlPackets() {
+        byte[] pong = Packet.pong(Packet.ping(1234), 5678);
+        assertEquals(1234, Packet.getTimestamp(pong));
+        assertEquals(5678, Packet.getPongTime(pong));
+        assertEquals(-1, Packet.getPongTime(Arrays.copyOf(pong, pong.length - 1)));
+        assertEquals(-1, Packet.getTimestamp(Arrays.copyOf(pong, 5)));
+
+        byte[] voiceMessage = Packet.voiceMessage(99, 2500);
+        assertEquals(99, Packet.getVoiceMessagePayloadId(voiceMessage));
+        assertEquals(2500, Packet.getVoiceMessageDurationMs(voiceMessage));
+        byte[] cut = Arrays.copyOf(voiceMessage, voiceMessage.length - 1);
+        assertEquals(0, Packet.getVoiceMessagePayloadId(cut));
+        assertEquals(0, Packet.getVoiceMessageDurationMs(cut));
+
+        byte[] secret = PeerVerifier.newSecret();
+        byte[] pair = Packet.pair(Packet.SECRET_TRUSTED, secret);
+        assertEquals(Packet.SECRET_TRUSTED, Packet.getSecretKind(pair));
+        assertArrayEquals(secret, Packet.getPairSecret(pair));
+        cut = Arrays.copyOf(pair, pair.length - 1);
+        assertEquals(-1, Packet.getSecretKind(cut));
+        assertNull(Packet.getPairSecret(cut));
+
+        byte[] nonce = PeerVerifier.newNonce();
+        byte[] challenge = Packet.challenge(Packet.SECRET_CALL, nonce);
+        assertEquals(Packet.SECRET_CALL, Packet.getSecretKind(challenge));
+        assertArrayEquals(nonce, Packet.getChallengeNonce(challenge));
+        assertNull(Packet.getChallengeNonce(Arrays.copyOf(challenge, challenge.length - 1)));
+
+        byte[] response = Packet.challengeResponse(new byte[PeerVerifier.RESPONSE_SIZE]);
+        assertNull(Packet.getChallengeResponse(Arrays.copyOf(response, response.length - 1)));
+    }
+
+    @Test
+    public void unwrapsARelayedPacket() {
+        byte[] inner = Packet.audioTimed(PCM, PCM.length, 16000, 42);
+        byte[] relay = Packet.relay(0x12345678, 0xFFFFFFF0, 4, 1, inner);
+        assertTrue(Packet.isRelay(relay));
+        assertEquals(0x12345678, Packet.getRelayOrigin(relay));
+        assertEquals(0xFFFFFFF0, Packet.getRelaySeq(relay));
+        assertEquals(4, Packet.getRelayTtl(relay));
+        assertEquals(1, Packet.getRelayHops(relay));
+        assertArrayEquals(inner, Packet.getRelayed(relay));
+        // Relay packets aren't audio themselves.
+        assertNull(Packet.getAudio(relay));
+        assertEquals(42, Packet.getPlayAt(Packet.getRelayed(relay)));
+
+        byte[] next = Packet.relayed(relay);
+        assertEquals(3, Packet.getRelayTtl(next));
+        assertEquals(2, Packet.getRelayHops(next));
+        assertEquals(0x12345678, Packet.getRelayOrigin(next));
+        assertArrayEquals(inner, Packet.getRelayed(next));
+        // The one we got is left as it was.
+        assertEquals(4, Packet.getRelayTtl(relay));
+    }
+
+    @Test
+    public void makesNothingOfATruncatedRelay() {
+        byte[] inner = Packet.audioStamped(PCM, PCM.length, 16000, 10, 5, 0);
+        byte[] relay = Packet.relay(1, 2, 3, 1, inner);
+        int header = relay.length - inner.length;
+        for (int length = 1; length < header; length++) {
+            assertFalse("cut to " + length, Packet.isRelay(Arrays.copyOf(relay, length)));
+        }
+        // A complete header around nothing, or around a cut off packet, unwraps to nothing usable.
+        byte[] empty = Arrays.copyOf(relay, header);
+        assertTrue(Packet.isRelay(empty));
+        assertEquals(-1, Packet.getType(Packet.getRelayed(empty)));
+        byte[] cut = Arrays.copyOf(relay, header + 5);
+        assertTrue(Packet.isRelay(cut));
+        assertNull(Packet.getAudio(Packet.getRelayed(cut)));
+    }
+
+    @Test
+    public void relaysARelay() {
+        byte[] inner = Packet.relay(7, 8, 2, 1, Packet.floor(Packet.TYPE_FLOOR_REQUEST));
+        byte[] outer = Packet.relay(9, 10, 3, 1, inner);
+        assertArrayEquals(inner, Packet.getRelayed(outer));
+        assertEquals(
+                Packet.TYPE_FLOOR_REQUEST,
+                Packet.getType(Packet.getRelayed(Packet.getRelayed(outer))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesARateItCantName() {
+        Packet.audio(PCM, PCM.length, 12345);
+    }
+
+    private static byte[] pcm(int length) {
+        byte[] pcm = new byte[length];
+        for (int i = 0; i < length; i++) {
+            pcm[i] = (byte) (i * 7 + 3);
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,206 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Runs {@link PayloadStreamWriter} into {@link PayloadStreamReader} over an in-memory pipe, in
+ * place of the one Nearby reads from and the stream it hands the peer.
+ */
+public class PayloadStreamTest {
+    /** 20ms at 16kHz. */
+    private static final byte[] PCM = new byte[640];
+
+    /** How many frames may be on their way at once, well inside the writer's queue. */
+    private static final int IN_FLIGHT = PayloadStreamWriter.MAX_QUEUED_FRAMES / 2;
+
+    private static final long TIMEOUT_MS = 5_000;
+
+    /** Like a real pipe, hands each write over to the reader as soon as it's made. */
+    private static final class Pipe extends PipedOutputStream {
+        final PipedInputStream in = new PipedInputStream(64 * 1024);
+        long bytes;
+
+        Pipe() throws IOException {
+            connect(in);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            flush();
+            bytes += len;
+        }
+    }
+
+    /** Collects what the reader hands over, and lets the next frame be written. */
+    private static final class Collector implements PayloadStreamReader.Callback {
+        final List<byte[]> frames = new ArrayList<>();
+        final List<Long> latencies = new ArrayList<>();
+        final Semaphore room = new Semaphore(IN_FLIGHT);
+
+        @Override
+        public synchronized void onFrame(byte[] frame, long receivedNanos) {
+            frames.add(frame);
+            long sentNanos = Packet.getSentAt(frame);
+            if (sentNanos != 0) {
+                latencies.add(receivedNanos - sentNanos);
+            }
+            room.release();
+        }
+
+        synchronized List<byte[]> getFrames() {
+            return new ArrayList<>(frames);
+        }
+    }
+
+    @Test
+    public void carriesFramesWhole() throws Exception {
+        Pipe pipe = new Pipe();
+        Collector collector = new Collector();
+        PayloadStreamReader reader =
+                new PayloadStreamReader(
+                        "alpha", pipe.in, PayloadStreamWriter.MAX_FRAME_BYTES, collector);
+        PayloadStreamWriter writer = new PayloadStreamWriter("alpha", null, pipe);
+        reader.start();
+        writer.start();
+
+        List<byte[]> sent = new ArrayList<>();
+        long expectedBytes = 0;
+        for (int i = 0; i < 1_000; i++) {
+            byte[] frame = new byte[1 + i * 37 % 2_000];
+            Arrays.fill(frame, (byte) i);
+            assertTrue(collector.room.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertTrue(writer.write(frame));
+            sent.add(frame);
+            expectedBytes += PayloadStreamWriter.HEADER_SIZE + frame.length;
+        }
+        // Everything's arrived once all the room's back.
+        assertTrue(collector.room.tryAcquire(IN_FLIGHT, TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        writer.close();
+        waitUntilClosed(reader);
+
+        List<byte[]> received = collector.getFrames();
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertArrayEquals("frame " + i, sent.get(i), received.get(i));
+        }
+        // Two bytes of length in front of each, and nothing else.
+        assertEquals(expectedBytes, pipe.bytes);
+    }
+
+    @Test
+    public void refusesFramesItCantCarry() throws IOException {
+        PayloadStreamWriter writer = new PayloadStreamWriter("alpha", null, new Pipe());
+        assertFalse(writer.write(new byte[0]));
+        assertFalse(writer.write(new byte[PayloadStreamWriter.MAX_FRAME_BYTES + 1]));
+        writer.close();
+        assertTrue(writer.isClosed());
+        assertFalse(writer.write(PCM));
+    }
+
+    @Test
+    public void dropsAStreamWithAFrameLongerThanItExpects() throws Exception {
+        Pipe pipe = new Pipe();
+        Collector collector = new Collector();
+        PayloadStreamReader reader = new PayloadStreamReader("alpha", pipe.in, 100, collector);
+        // All in the pipe first: once the reader gives up, writing to it fails.
+        writeFrame(pipe, new byte[100]);
+        writeFrame(pipe, new byte[101]);
+        writeFrame(pipe, new byte[10]);
+        reader.start();
+        waitUntilClosed(reader);
+        List<byte[]> received = collector.getFrames();
+        assertEquals(1, received.size());
+        assertEquals(100, received.get(0).length);
+    }
+
+    /**
+     * Streams a few seconds' worth of stamped frames as fast as they'll go, and times how long each
+     * took from being built to being read, against building and reading each as its own BYTES
+     * packet, which is all the framing a BYTES payload needs from us.
+     */
+    @Test
+    public void framingKeepsUpWithManyCalls() throws Exception {
+        int frames = 5_000;
+        Pipe pipe = new Pipe();
+        Collector collector = new Collector();
+        PayloadStreamReader reader =
+                new PayloadStreamReader(
+                        "alpha", pipe.in, Packet.maxAudioSize(PCM.length), collector);
+        PayloadStreamWriter writer = new PayloadStreamWriter("alpha", null, pipe);
+        reader.start();
+        writer.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            assertTrue(collector.room.tryAcquire(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            long now = System.nanoTime();
+            writer.write(Packet.audioStamped(PCM, PCM.length, 16000, now, now, 0));
+        }
+        assertTrue(collector.room.tryAcquire(IN_FLIGHT, TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        double streamSeconds = (System.nanoTime() - start) / 1e9;
+        writer.close();
+        waitUntilClosed(reader);
+        assertEquals(frames, collector.getFrames().size());
+
+        long[] latencies = new long[collector.latencies.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = collector.latencies.get(i);
+        }
+        Arrays.sort(latencies);
+        long median = latencies[latencies.length / 2];
+        long p99 = latencies[latencies.length * 99 / 100];
+
+        // The same frames, each built into a packet and read back, with nothing in between.
+        long checksum = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            long now = System.nanoTime();
+            byte[] packet = Packet.audioStamped(PCM, PCM.length, 16000, now, now, 0);
+            checksum += Packet.getAudio(packet).length;
+        }
+        double bytesSeconds = (System.nanoTime() - start) / 1e9;
+        assertEquals((long) frames * PCM.length, checksum);
+
+        String report =
+                String.format(
+                        Locale.US,
+                        "%.0f frames/s, latency median %.3fms, p99 %.3fms; "
+                                + "BYTES packets alone: %.0f frames/s",
+                        frames / streamSeconds,
+                        median / 1e6,
+                        p99 / 1e6,
+                        frames / bytesSeconds);
+        // A call needs 50 frames a second per peer. This is for a crowd of them, with room over.
+        assertTrue(report, frames / streamSeconds > 5_000);
+        // Far inside a 20ms frame: the framing doesn't hold anything back.
+        assertTrue(report, median < 5_000_000);
+    }
+
+    /** Writes a frame the way the writer does, whatever its length. */
+    private static void writeFrame(Pipe pipe, byte[] frame) throws IOException {
+        pipe.write(new byte[] {(byte) (frame.length >> 8), (byte) frame.length}, 0, 2);
+        pipe.write(frame, 0, frame.length);
+    }
+
+    private static void waitUntilClosed(PayloadStreamReader reader) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!reader.isClosed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(reader.isClosed());
+    }
+}
@@ -0,0 +1,88 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+public class PeerVerifierTest {
+    private static final byte[] TOKEN = {1, 2, 3, 4, 5};
+
+    @Test
+    public void acceptsTheAnswerFromWhoeverHasTheSecret() {
+        byte[] secret = PeerVerifier.newSecret();
+        byte[] nonce = PeerVerifier.newNonce();
+        byte[] response = PeerVerifier.respond(secret, nonce, TOKEN, true);
+        assertEquals(PeerVerifier.RESPONSE_SIZE, response.length);
+        assertTrue(PeerVerifier.verify(secret, nonce, TOKEN, true, response));
+    }
+
+    @Test
+    public void rejectsAnAnswerWithTheWrongSecret() {
+        byte[] nonce = PeerVerifier.newNonce();
+        byte[] response = PeerVerifier.respond(PeerVerifier.newSecret(), nonce, TOKEN, true);
+        assertFalse(PeerVerifier.verify(PeerVerifier.newSecret(), nonce, TOKEN, true, response));
+    }
+
+    @Test
+    public void rejectsAnAnswerReplayedOnAnotherConnection() {
+        byte[] secret = PeerVerifier.newSecret();
+        byte[] nonce = PeerVerifier.newNonce();
+        byte[] response = PeerVerifier.respond(secret, nonce, TOKEN, true);
+        assertFalse(PeerVerifier.verify(secret, nonce, new byte[] {9, 9, 9, 9, 9}, true, response));
+        assertFalse(PeerVerifier.verify(secret, PeerVerifier.newNonce(), TOKEN, true, response));
+    }
+
+    @Test
+    public void rejectsOurOwnAnswerSentBack() {
+        // Both ends share the secret and the token. The peer that accepted the connection sends
+        // our challenge back to us, and replies with what we answered it with.
+        byte[] secret = PeerVerifier.newSecret();
+        byte[] nonce = PeerVerifier.newNonce();
+        byte[] ours = PeerVerifier.respond(secret, nonce, TOKEN, true);
+        assertFalse(PeerVerifier.verify(secret, nonce, TOKEN, false, ours));
+        byte[] theirs = PeerVerifier.respond(secret, nonce, TOKEN, false);
+        assertTrue(PeerVerifier.verify(secret, nonce, TOKEN, false, theirs));
+    }
+
+    @Test
+    public void packetsCarryTheSecretNonceAndAnswer() {
+        byte[] secret = PeerVerifier.newSecret();
+        byte[] pair = Packet.pair(Packet.SECRET_TRUSTED, secret);
+        assertEquals(Packet.SECRET_TRUSTED, Packet.getSecretKind(pair));
+        assertArrayEquals(secret, Packet.getPairSecret(pair));
+
+        byte[] nonce = PeerVerifier.newNonce();
+        byte[] challenge = Packet.challenge(Packet.SECRET_TRUSTED, nonce);
+        assertEquals(Packet.SECRET_TRUSTED, Packet.getSecretKind(challenge));
+        assertArrayEquals(nonce, Packet.getChallengeNonce(challenge));
+
+        byte[] response = PeerVerifier.respond(secret, nonce, TOKEN, true);
+        byte[] answer = Packet.challengeResponse(response);
+        assertArrayEquals(response, Packet.getChallengeResponse(answer));
+    }
+
+    @Test
+    public void audioIsNeverTakenForAPairingPacket() {
+        byte[] challenge = Packet.challenge(Packet.SECRET_TRUSTED, PeerVerifier.newNonce());
+        assertTrue(Packet.isPairingPacket(challenge));
+        byte[] frame = new byte[160];
+        frame[0] = (byte) Packet.TYPE_CHALLENGE;
+        assertFalse(Packet.isPairingPacket(frame));
+        assertFalse(Packet.isPairingPacket(new byte[0]));
+    }
+
+    @Test
+    public void truncatedPacketsCarryNothing() {
+        byte[] pair = Packet.pair(Packet.SECRET_TRUSTED, PeerVerifier.newSecret());
+        byte[] shortPair = Arrays.copyOf(pair, pair.length - 1);
+        assertEquals(-1, Packet.getSecretKind(shortPair));
+        assertNull(Packet.getPairSecret(shortPair));
+        assertNull(Packet.getChallengeNonce(new byte[] {(byte) Packet.TYPE_CHALLENGE, 1}));
+        assertNull(Packet.getChallengeResponse(new byte[] {(byte) Packet.TYPE_CHALLENGE_RESPONSE}));
+    }
+}
@@ -0,0 +1,44 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PlayoutProcessorTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME = 320;
+
+    @Test
+    public void countsEachTimeScheduledPlayoutStartsCatchingUp() {
+        PlayoutProcessor processor = new PlayoutProcessor(SAMPLE_RATE, FRAME);
+        byte[] frame = new byte[FRAME * 2];
+        int late = SAMPLE_RATE * (PlayoutProcessor.SYNC_STEER_MS + 100) / 1000;
+
+        for (int i = 0; i < 5; i++) {
+            processor.processScheduled(frame, frame.length, late);
+        }
+        processor.processScheduled(frame, frame.length, 0);
+        for (int i = 0; i < 5; i++) {
+            processor.processScheduled(frame, frame.length, late);
+        }
+
+        assertEquals(2, processor.getSpeedUpCount());
+        assertEquals(10, processor.getSpeedUpFrames());
+        assertEquals(0, processor.getSlowDownCount());
+    }
+
+    @Test
+    public void countsEachTimeScheduledPlayoutStartsSlowingDown() {
+        PlayoutProcessor processor = new PlayoutProcessor(SAMPLE_RATE, FRAME);
+        byte[] frame = new byte[FRAME * 2];
+        int early = -SAMPLE_RATE * (PlayoutProcessor.SYNC_STEER_MS + 100) / 1000;
+
+        for (int i = 0; i < 3; i++) {
+            processor.processScheduled(frame, frame.length, early);
+        }
+
+        assertEquals(1, processor.getSlowDownCount());
+        assertEquals(3, processor.getSlowDownFrames());
+        assertEquals(0, processor.getSpeedUpCount());
+    }
+}
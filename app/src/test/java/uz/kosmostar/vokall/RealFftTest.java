@@ -0,0 +1,57 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class RealFftTest {
+    @Test
+    public void inverseUndoesForward() {
+        Random random = new Random(7);
+        for (int size = 4; size <= 1024; size *= 2) {
+            RealFft fft = new RealFft(size);
+            float[] input = new float[size];
+            for (int i = 0; i < size; i++) {
+                input[i] = (float) (random.nextGaussian() * 10000);
+            }
+            float[] re = new float[size / 2 + 1];
+            float[] im = new float[size / 2 + 1];
+            float[] output = new float[size];
+            fft.forward(input, re, im);
+            fft.inverse(re, im, output);
+            for (int i = 0; i < size; i++) {
+                assertEquals("size " + size + " sample " + i, input[i], output[i], 0.5f);
+            }
+        }
+    }
+
+    @Test
+    public void forwardMatchesADirectDft() {
+        int size = 64;
+        Random random = new Random(3);
+        float[] input = new float[size];
+        for (int i = 0; i < size; i++) {
+            input[i] = (float) random.nextGaussian();
+        }
+        float[] re = new float[size / 2 + 1];
+        float[] im = new float[size / 2 + 1];
+        new RealFft(size).forward(input, re, im);
+        for (int k = 0; k <= size / 2; k++) {
+            double expectedRe = 0;
+            double expectedIm = 0;
+            for (int n = 0; n < size; n++) {
+                double angle = -2 * Math.PI * k * n / size;
+                expectedRe += input[n] * Math.cos(angle);
+                expectedIm += input[n] * Math.sin(angle);
+            }
+            assertEquals("re " + k, expectedRe, re[k], 1e-3);
+            assertEquals("im " + k, expectedIm, im[k], 1e-3);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizesThatAreNotPowersOfTwo() {
+        new RealFft(48);
+    }
+}
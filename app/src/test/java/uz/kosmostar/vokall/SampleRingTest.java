@@ -0,0 +1,63 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SampleRingTest {
+    @Test
+    public void readsBackInOrderAcrossTheWrap() {
+        SampleRing ring = new SampleRing(5);
+        ring.write(new short[] {1, 2, 3}, 3);
+        short[] out = new short[3];
+        ring.read(out, 0, 1, 3);
+        assertArrayEquals(new short[] {1, 2, 3}, out);
+
+        ring.write(new short[] {4, 5, 6, 7}, 4);
+        assertEquals(4, ring.available());
+        out = new short[4];
+        ring.read(out, 0, 1, 4);
+        assertArrayEquals(new short[] {4, 5, 6, 7}, out);
+        assertEquals(0, ring.available());
+    }
+
+    @Test
+    public void takesLittleEndianPcm() {
+        SampleRing ring = new SampleRing(4);
+        ring.write(new byte[] {1, 0, (byte) 0xFF, (byte) 0xFF, 0, (byte) 0x80}, 6);
+        short[] out = new short[3];
+        ring.read(out, 0, 1, 3);
+        assertArrayEquals(new short[] {1, -1, Short.MIN_VALUE}, out);
+    }
+
+    @Test
+    public void dropsWhatDoesntFitAndCountsIt() {
+        SampleRing ring = new SampleRing(4);
+        ring.write(new short[] {1, 2, 3}, 3);
+        ring.write(new short[] {4, 5, 6}, 3);
+        ring.write(new byte[4], 4);
+        assertEquals(4, ring.available());
+        assertEquals(4, ring.getDroppedCount());
+        short[] out = new short[4];
+        ring.read(out, 0, 1, 4);
+        // Nothing that was there got overwritten.
+        assertArrayEquals(new short[] {1, 2, 3, 4}, out);
+    }
+
+    @Test
+    public void interleavesAndFillsWithSilence() {
+        SampleRing left = new SampleRing(8);
+        SampleRing right = new SampleRing(8);
+        left.write(new short[] {1, 2, 3}, 3);
+        right.write(new short[] {-1}, 1);
+        short[] out = new short[6];
+        left.read(out, 0, 2, 3);
+        right.read(out, 1, 2, 3);
+        assertArrayEquals(new short[] {1, -1, 2, 0, 3, 0}, out);
+        // The silence wasn't taken from what's written next.
+        right.write(new short[] {-2}, 1);
+        right.read(out, 0, 1, 1);
+        assertEquals(-2, out[0]);
+    }
+}
@@ -0,0 +1,106 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class SpectralNoiseSuppressorTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME = 320;
+    private static final double TONE_HZ = 500;
+
+    @Test
+    public void learnsSteadyNoiseAndTakesItDown() {
+        SpectralNoiseSuppressor suppressor = new SpectralNoiseSuppressor(SAMPLE_RATE);
+        Signal signal = run(suppressor, 0, 1000, 3);
+        double reductionDb = 10 * Math.log10(signal.inputPower / signal.outputPower);
+        assertTrue("reduced by " + reductionDb + " dB", reductionDb > 6);
+        // 1000 rms white noise is about -30 dBFS. The estimate follows the dips in each bin's
+        // power, so it sits a few dB under that.
+        float noiseDbfs = suppressor.getNoiseLevelDbfs();
+        assertTrue("noise at " + noiseDbfs + " dBFS", noiseDbfs < -30 && noiseDbfs > -38);
+    }
+
+    @Test
+    public void keepsATonePlayedOverTheNoise() {
+        SpectralNoiseSuppressor suppressor = new SpectralNoiseSuppressor(SAMPLE_RATE);
+        Signal signal = run(suppressor, 2000, 1000, 3);
+        double toneLossDb = 10 * Math.log10(signal.inputTone / signal.outputTone);
+        assertEquals(0, toneLossDb, 1);
+        double inputSnr = signal.inputTone / (signal.inputPower - signal.inputTone);
+        double outputSnr = signal.outputTone / (signal.outputPower - signal.outputTone);
+        double snrGainDb = 10 * Math.log10(outputSnr / inputSnr);
+        assertTrue("SNR up by " + snrGainDb + " dB", snrGainDb > 4);
+    }
+
+    /**
+     * Power in and out over the last second, in all and at the tone, which only plays during that
+     * second. A tone held for longer would be learned as noise, as a fan's hum should be.
+     */
+    private static final class Signal {
+        double inputPower;
+        double outputPower;
+        double inputTone;
+        double outputTone;
+    }
+
+    private static Signal run(
+            SpectralNoiseSuppressor suppressor,
+            double toneAmplitude,
+            double noiseRms,
+            int seconds) {
+        Random random = new Random(11);
+        int frames = seconds * SAMPLE_RATE / FRAME;
+        int measured = SAMPLE_RATE / FRAME;
+        short[] input = new short[measured * FRAME];
+        short[] output = new short[measured * FRAME];
+        short[] frame = new short[FRAME];
+        for (int f = 0; f < frames; f++) {
+            for (int i = 0; i < FRAME; i++) {
+                long n = (long) f * FRAME + i;
+                double tone = 0;
+                if (f >= frames - measured) {
+                    tone = toneAmplitude * Math.sin(2 * Math.PI * TONE_HZ * n / SAMPLE_RATE);
+                }
+                frame[i] = Pcm16.clip((int) Math.round(tone + random.nextGaussian() * noiseRms));
+            }
+            int at = (f - (frames - measured)) * FRAME;
+            if (at >= 0) {
+                System.arraycopy(frame, 0, input, at, FRAME);
+            }
+            suppressor.process(frame, FRAME);
+            if (at >= 0) {
+                System.arraycopy(frame, 0, output, at, FRAME);
+            }
+        }
+        Signal signal = new Signal();
+        signal.inputPower = power(input);
+        signal.outputPower = power(output);
+        signal.inputTone = tonePower(input);
+        signal.outputTone = tonePower(output);
+        return signal;
+    }
+
+    private static double power(short[] samples) {
+        double sum = 0;
+        for (short sample : samples) {
+            sum += (double) sample * sample;
+        }
+        return sum / samples.length;
+    }
+
+    /** @return The mean power of the part of {@code samples} at {@link #TONE_HZ}. */
+    private static double tonePower(short[] samples) {
+        double re = 0;
+        double im = 0;
+        for (int n = 0; n < samples.length; n++) {
+            double angle = 2 * Math.PI * TONE_HZ * n / SAMPLE_RATE;
+            re += samples[n] * Math.cos(angle);
+            im += samples[n] * Math.sin(angle);
+        }
+        double amplitude = 2 * Math.hypot(re, im) / samples.length;
+        return amplitude * amplitude / 2;
+    }
+}
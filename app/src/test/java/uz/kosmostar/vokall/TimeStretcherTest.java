@@ -0,0 +1,92 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+public class TimeStretcherTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME = 320;
+    private static final double TONE_HZ = 200;
+
+    @Test
+    public void passesFramesThroughAtTempoOne() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, FRAME);
+        short[] frame = tone(0, FRAME);
+        assertEquals(FRAME, stretcher.process(frame, FRAME, 1));
+        assertArrayEquals(frame, Arrays.copyOf(stretcher.getOutput(), FRAME));
+        assertFalse(stretcher.isActive());
+    }
+
+    @Test
+    public void speedsUpWithoutChangingPitch() {
+        checkTempo(1.12);
+    }
+
+    @Test
+    public void slowsDownWithoutChangingPitch() {
+        checkTempo(0.9);
+    }
+
+    @Test
+    public void flushesEverythingWhenBackAtTempoOne() {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, FRAME);
+        long in = 0;
+        long out = 0;
+        for (int i = 0; i < 10; i++) {
+            out += stretcher.process(tone(in, FRAME), FRAME, 1.12);
+            in += FRAME;
+        }
+        assertTrue(stretcher.isActive());
+        int buffered = stretcher.getBufferedSamples();
+        assertTrue(buffered > 0);
+        int flushed = stretcher.process(tone(in, FRAME), FRAME, 1);
+        assertEquals(buffered + FRAME, flushed);
+        assertFalse(stretcher.isActive());
+        assertEquals(0, stretcher.getBufferedSamples());
+    }
+
+    /** Runs 5 s of tone through at {@code tempo}, and checks its length and pitch. */
+    private static void checkTempo(double tempo) {
+        TimeStretcher stretcher = new TimeStretcher(SAMPLE_RATE, FRAME);
+        int frames = 250;
+        short[] output = new short[frames * FRAME * 2];
+        int out = 0;
+        for (int i = 0; i < frames; i++) {
+            int n = stretcher.process(tone((long) i * FRAME, FRAME), FRAME, tempo);
+            assertTrue(n <= stretcher.getMaxOutputSamples(FRAME));
+            System.arraycopy(stretcher.getOutput(), 0, output, out, n);
+            out += n;
+        }
+        int consumed = frames * FRAME - stretcher.getBufferedSamples();
+        assertEquals(consumed / tempo, out, 0.02 * out);
+
+        double hz = zeroCrossingHz(output, SAMPLE_RATE, out);
+        assertEquals(TONE_HZ, hz, TONE_HZ * 0.03);
+    }
+
+    private static short[] tone(long offset, int length) {
+        short[] samples = new short[length];
+        for (int i = 0; i < length; i++) {
+            samples[i] =
+                    (short) (8000 * Math.sin(2 * Math.PI * TONE_HZ * (offset + i) / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    /** @return The tone's frequency, from its zero crossings, leaving out the first 100 ms. */
+    private static double zeroCrossingHz(short[] samples, int sampleRate, int length) {
+        int start = sampleRate / 10;
+        int crossings = 0;
+        for (int i = start + 1; i < length; i++) {
+            if ((samples[i - 1] < 0) != (samples[i] < 0)) {
+                crossings++;
+            }
+        }
+        return crossings / 2.0 * sampleRate / (length - start - 1);
+    }
+}
@@ -0,0 +1,323 @@
+package uz.kosmostar.vokall;
+
+import androidx.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Plays a {@link PacketTrace} back through {@link PlayoutProcessor} on the desktop, at the times
+ * the payloads really arrived, to see how a change to buffering would have done on a real call.
+ * See {@link TraceReplayTest}, which also replays a trace pulled off a device, and writes how it
+ * went to packet-trace.txt:
+ *
+ * <pre>
+ *   adb pull /sdcard/Android/data/uz.kosmostar.vokall/files/packet-trace.bin
+ *   PACKET_TRACE=packet-trace.bin ./gradlew testDebugUnitTest --tests '*TraceReplayTest'
+ * </pre>
+ *
+ * <p>The trace has no audio in it, so each frame is made up, at the size it was. The audio thread
+ * is modelled as {@link AudioPlayer} runs it: it takes frames off the queue as long as the track
+ * has room for them, and the track plays {@link #TRACK_BUFFER_MS} of buffer out in real time.
+ * Frames are played in arrival order whoever they came from, and whenever they get there, as they
+ * are when they don't say when to play them.
+ *
+ * <p>For each target delay, it counts how many frames were dropped because the queue got too
+ * long, how long the track ran dry while someone was talking, how long frames took from arriving
+ * to being heard, and how often the processor sped up or slowed down. {@link #toString()} sums up
+ * what's in the trace.
+ */
+class TraceReplay {
+    /** How much the track buffers. About what {@link AudioBuffer} asks for. */
+    static final int TRACK_BUFFER_MS = 40;
+
+    /** Gaps in arrivals longer than this are someone not talking, rather than the link stalling. */
+    static final int TALK_GAP_MS = 200;
+
+    /** As in {@link AudioPlayer}. */
+    private static final int MAX_QUEUED_FRAMES = 50;
+
+    private static final long MS = 1_000_000L;
+
+    /** A frame waiting to be played. */
+    private static class Frame {
+        final byte[] pcm;
+        final long arrivalNanos;
+
+        Frame(byte[] pcm, long arrivalNanos) {
+            this.pcm = pcm;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+
+    /** How one replay went. */
+    static final class Result {
+        /** The column names for {@link #toString()}. */
+        static final String HEADER =
+                "  target  dropped  dry ms  stalls  mean ms  p50 ms  p95 ms  speedUps  slowDowns"
+                        + "    drift";
+
+        final int targetDelayMs;
+        final long dropped;
+        final double dryMs;
+        final int stalls;
+        final double meanDelayMs;
+        final double medianDelayMs;
+        final double p95DelayMs;
+        final int speedUps;
+        final int slowDowns;
+        final double driftPpm;
+
+        Result(
+                int targetDelayMs,
+                long dropped,
+                double dryMs,
+                int stalls,
+                double[] sortedDelaysMs,
+                PlayoutProcessor processor) {
+            this.targetDelayMs = targetDelayMs;
+            this.dropped = dropped;
+            this.dryMs = dryMs;
+            this.stalls = stalls;
+            double sum = 0;
+            for (double delay : sortedDelaysMs) {
+                sum += delay;
+            }
+            meanDelayMs = sum / sortedDelaysMs.length;
+            medianDelayMs = sortedDelaysMs[sortedDelaysMs.length / 2];
+            p95DelayMs = sortedDelaysMs[sortedDelaysMs.length * 95 / 100];
+            speedUps = processor.getSpeedUpCount();
+            slowDowns = processor.getSlowDownCount();
+            driftPpm = processor.getDriftPpm();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    Locale.US,
+                    "  %6d  %7d  %6.0f  %6d  %7.1f  %6.1f  %6.1f  %8d  %9d  %7.1f",
+                    targetDelayMs,
+                    dropped,
+                    dryMs,
+                    stalls,
+                    meanDelayMs,
+                    medianDelayMs,
+                    p95DelayMs,
+                    speedUps,
+                    slowDowns,
+                    driftPpm);
+        }
+    }
+
+    private final List<PacketTrace.Record> mRecords;
+    private final List<PacketTrace.Record> mAudio = new ArrayList<>();
+    private final int mSampleRate;
+    private final Random mRandom = new Random(1);
+
+    TraceReplay(List<PacketTrace.Record> records) {
+        mRecords = records;
+        Map<Integer, Integer> rates = new HashMap<>();
+        for (PacketTrace.Record record : records) {
+            if (record.isAudio()) {
+                mAudio.add(record);
+                if (record.sampleRate > 0) {
+                    rates.merge(record.sampleRate, 1, Integer::sum);
+                }
+            }
+        }
+        // We'd play at the call's rate, which is the one most frames come at.
+        int sampleRate = 16_000;
+        int most = 0;
+        for (Map.Entry<Integer, Integer> entry : rates.entrySet()) {
+            if (entry.getValue() > most) {
+                most = entry.getValue();
+                sampleRate = entry.getKey();
+            }
+        }
+        mSampleRate = sampleRate;
+    }
+
+    /** @return How many frames of audio there are to play. */
+    int getAudioCount() {
+        return mAudio.size();
+    }
+
+    /** @return The rate we play at: the one most frames came at. */
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /** @return What's in the trace. */
+    @Override
+    public String toString() {
+        List<PacketTrace.Record> records = mRecords;
+        StringBuilder out = new StringBuilder();
+        Map<Integer, Integer> byType = new HashMap<>();
+        Map<Integer, Integer> byEndpoint = new HashMap<>();
+        for (PacketTrace.Record record : records) {
+            byType.merge(record.type, 1, Integer::sum);
+            if (record.isAudio()) {
+                byEndpoint.merge(record.endpoint, 1, Integer::sum);
+            }
+        }
+        double seconds =
+                records.isEmpty()
+                        ? 0
+                        : (records.get(records.size() - 1).arrivalNanos
+                                        - records.get(0).arrivalNanos)
+                                / 1e9;
+        out.append(
+                String.format(
+                        Locale.US,
+                        "%d payloads over %.1fs, %d of them audio from %d senders, "
+                                + "played at %dHz%n",
+                        records.size(),
+                        seconds,
+                        mAudio.size(),
+                        byEndpoint.size(),
+                        mSampleRate));
+        for (Map.Entry<Integer, Integer> entry : byType.entrySet()) {
+            String name =
+                    entry.getKey() == PacketTrace.TYPE_BARE
+                            ? "BARE"
+                            : Packet.typeToString(entry.getKey());
+            out.append(String.format(Locale.US, "  %-14s %d%n", name, entry.getValue()));
+        }
+
+        // How far from evenly spaced the audio came in, per sender.
+        Map<Integer, Long> lastArrival = new HashMap<>();
+        List<Double> gapsMs = new ArrayList<>();
+        for (PacketTrace.Record record : mAudio) {
+            Long last = lastArrival.put(record.endpoint, record.arrivalNanos);
+            if (last != null) {
+                gapsMs.add((record.arrivalNanos - last) / 1e6);
+            }
+        }
+        if (!gapsMs.isEmpty()) {
+            double[] gaps = toSortedArray(gapsMs);
+            out.append(
+                    String.format(
+                            Locale.US,
+                            "  gaps between frames: median %.1fms, p95 %.1fms, p99 %.1fms, "
+                                    + "max %.1fms%n",
+                            gaps[gaps.length / 2],
+                            gaps[gaps.length * 95 / 100],
+                            gaps[gaps.length * 99 / 100],
+                            gaps[gaps.length - 1]));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Replays the trace aiming for the given delay.
+     *
+     * @return How it went, or null if there's no audio to play.
+     */
+    @Nullable
+    Result replay(int targetDelayMs) {
+        if (mAudio.isEmpty()) {
+            return null;
+        }
+        int maxFrameSamples = 0;
+        for (PacketTrace.Record record : mAudio) {
+            maxFrameSamples = Math.max(maxFrameSamples, frameSamples(record));
+        }
+        PlayoutProcessor processor = new PlayoutProcessor(mSampleRate, maxFrameSamples);
+        if (targetDelayMs != processor.getTargetDelayMs()) {
+            processor.setTargetDelayMs(targetDelayMs);
+        }
+        int trackCapacity = mSampleRate * TRACK_BUFFER_MS / 1000;
+        double samplesPerMs = mSampleRate / 1000.0;
+
+        ArrayDeque<Frame> queue = new ArrayDeque<>();
+        int queuedSamples = 0;
+        double trackLevel = 0;
+        int next = 0;
+        long dropped = 0;
+        double dryMs = 0;
+        int stalls = 0;
+        boolean dry = false;
+        List<Double> delaysMs = new ArrayList<>();
+
+        long startNanos = mAudio.get(0).arrivalNanos;
+        long endNanos = mAudio.get(mAudio.size() - 1).arrivalNanos + 1_000 * MS;
+        for (long now = startNanos; now <= endNanos; now += MS) {
+            while (next < mAudio.size() && mAudio.get(next).arrivalNanos <= now) {
+                PacketTrace.Record record = mAudio.get(next++);
+                if (queue.size() > MAX_QUEUED_FRAMES) {
+                    dropped += queue.size();
+                    queue.clear();
+                    queuedSamples = 0;
+                }
+                byte[] pcm = makeFrame(frameSamples(record));
+                queue.add(new Frame(pcm, record.arrivalNanos));
+                queuedSamples += pcm.length / 2;
+            }
+            // The audio thread writes as long as the track will take it.
+            while (!queue.isEmpty() && trackLevel < trackCapacity) {
+                Frame frame = queue.poll();
+                queuedSamples -= frame.pcm.length / 2;
+                int length = processor.process(frame.pcm, frame.pcm.length, queuedSamples);
+                double heardInMs = trackLevel / samplesPerMs;
+                delaysMs.add((now - frame.arrivalNanos) / 1e6 + heardInMs);
+                trackLevel += length;
+            }
+            // A millisecond of it plays out.
+            if (trackLevel >= samplesPerMs) {
+                trackLevel -= samplesPerMs;
+                dry = false;
+            } else {
+                boolean talking =
+                        next < mAudio.size()
+                                && mAudio.get(next).arrivalNanos - now < TALK_GAP_MS * MS;
+                if (talking) {
+                    dryMs += 1 - trackLevel / samplesPerMs;
+                    if (!dry) {
+                        stalls++;
+                    }
+                }
+                dry = talking;
+                trackLevel = 0;
+            }
+        }
+
+        return new Result(
+                targetDelayMs, dropped, dryMs, stalls, toSortedArray(delaysMs), processor);
+    }
+
+    /** @return How many samples a frame has once it's at the rate we play at. */
+    private int frameSamples(PacketTrace.Record record) {
+        int samples = record.audioBytes / 2;
+        if (record.sampleRate <= 0 || record.sampleRate == mSampleRate) {
+            return samples;
+        }
+        return (int) ((long) samples * mSampleRate / record.sampleRate);
+    }
+
+    /** @return A frame of speech-like noise: a wobbling tone with some hiss. */
+    private byte[] makeFrame(int samples) {
+        short[] pcm = new short[samples];
+        double phase = mRandom.nextDouble() * 2 * Math.PI;
+        double step = 2 * Math.PI * (150 + mRandom.nextInt(100)) / mSampleRate;
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) (6_000 * Math.sin(phase + step * i) + 500 * mRandom.nextGaussian());
+        }
+        byte[] bytes = new byte[samples * 2];
+        Pcm16.toBytes(pcm, samples, bytes, 0);
+        return bytes;
+    }
+
+    private static double[] toSortedArray(List<Double> values) {
+        double[] array = new double[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        Arrays.sort(array);
+        return array;
+    }
+}
@@ -0,0 +1,214 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes traces with {@link PacketTraceWriter}, reads them back with {@link PacketTrace}, and plays
+ * them through {@link TraceReplay}.
+ */
+public class TraceReplayTest {
+    private static final long MS = 1_000_000;
+
+    /** 20ms at 16kHz. */
+    private static final byte[] PCM = new byte[640];
+
+    @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        File file = mFolder.newFile();
+        long start;
+        long sent = 77_000 * MS;
+        byte[] stamped = Packet.audioStamped(PCM, PCM.length, 16000, sent, sent - 2 * MS, 0);
+        byte[] relay = Packet.relay(5, 6, 3, 2, stamped);
+        try (PacketTraceWriter writer = PacketTraceWriter.open(file, maxBytes(1_000))) {
+            start = System.nanoTime();
+            for (int i = 0; i < 300; i++) {
+                long arrival = start + i * 20 * MS + i % 7;
+                switch (i % 3) {
+                    case 0:
+                        writer.record(arrival, "alpha", stamped, true);
+                        break;
+                    case 1:
+                        writer.record(arrival, "bravo", relay, true);
+                        break;
+                    default:
+                        writer.record(arrival, "charlie", PCM, false);
+                        break;
+                }
+            }
+            assertEquals(300, writer.getWrittenCount());
+        }
+
+        List<PacketTrace.Record> records = PacketTrace.read(file);
+        assertEquals(300, records.size());
+        long first = records.get(0).arrivalNanos;
+        for (int i = 0; i < records.size(); i++) {
+            PacketTrace.Record record = records.get(i);
+            // To the nanosecond, relative to the first.
+            assertEquals(i * 20 * MS + i % 7, record.arrivalNanos - first);
+            assertEquals(PCM.length, record.audioBytes);
+        }
+
+        PacketTrace.Record direct = records.get(0);
+        assertEquals("alpha".hashCode(), direct.endpoint);
+        assertEquals(Packet.TYPE_AUDIO_STAMPED, direct.type);
+        assertEquals(stamped.length, direct.size);
+        assertEquals(16000, direct.sampleRate);
+        assertEquals(sent, direct.senderNanos);
+        assertEquals(1, direct.hops);
+
+        PacketTrace.Record relayed = records.get(1);
+        assertEquals(Packet.TYPE_RELAY, relayed.type);
+        assertEquals(relay.length, relayed.size);
+        assertEquals(2, relayed.hops);
+        assertEquals(5, relayed.relayOrigin);
+        assertEquals(6, relayed.relaySeq);
+        assertEquals(sent, relayed.senderNanos);
+
+        PacketTrace.Record bare = records.get(2);
+        assertEquals(PacketTrace.TYPE_BARE, bare.type);
+        assertEquals(0, bare.sampleRate);
+        assertEquals(0, bare.senderNanos);
+    }
+
+    @Test
+    public void keepsTheNewestOnceFull() throws IOException {
+        File file = mFolder.newFile();
+        try (PacketTraceWriter writer = PacketTraceWriter.open(file, maxBytes(100))) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 250; i++) {
+                writer.record(start + i * MS, "alpha", Packet.ping(i), true);
+            }
+        }
+        assertEquals(maxBytes(100), file.length());
+        List<PacketTrace.Record> records = PacketTrace.read(file);
+        assertEquals(100, records.size());
+        // The oldest left is the 150th, and they're in order from there.
+        for (int i = 1; i < records.size(); i++) {
+            assertEquals(MS, records.get(i).arrivalNanos - records.get(i - 1).arrivalNanos);
+        }
+        assertEquals(Packet.TYPE_PING, records.get(0).type);
+    }
+
+    @Test
+    public void ignoresRecordsAfterClosing() throws IOException {
+        File file = mFolder.newFile();
+        PacketTraceWriter writer = PacketTraceWriter.open(file, maxBytes(10));
+        writer.record(System.nanoTime(), "alpha", PCM, false);
+        writer.close();
+        writer.record(System.nanoTime(), "alpha", PCM, false);
+        assertEquals(1, PacketTrace.read(file).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesAFileThatIsntATrace() throws IOException {
+        File file = mFolder.newFile();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.write(new byte[PacketTrace.HEADER_SIZE + PacketTrace.RECORD_SIZE]);
+        }
+        PacketTrace.read(file);
+    }
+
+    @Test
+    public void replaysASteadyCallAtTheTargetDelay() throws IOException {
+        TraceReplay replay = new TraceReplay(writeCall(0, 0));
+        assertEquals(16000, replay.getSampleRate());
+        assertEquals(1_500, replay.getAudioCount());
+
+        TraceReplay.Result result = replay.replay(PlayoutProcessor.TARGET_DELAY_MS);
+        String report = report(result);
+        assertEquals(report, 0, result.dropped);
+        // Only while the processor builds up to the target at the start.
+        assertTrue(report, result.dryMs < 40);
+        // Held back by the target, then by what the track has buffered.
+        double expected = PlayoutProcessor.TARGET_DELAY_MS + TraceReplay.TRACK_BUFFER_MS;
+        assertEquals(report, expected, result.medianDelayMs, 10);
+        assertEquals(report, expected, result.p95DelayMs, 10);
+    }
+
+    @Test
+    public void aLongerTargetRidesOutJitter() throws IOException {
+        TraceReplay replay = new TraceReplay(writeCall(60 * MS, 0.05));
+        TraceReplay.Result shortTarget = replay.replay(40);
+        TraceReplay.Result longTarget = replay.replay(150);
+        String report = report(shortTarget, longTarget);
+        assertTrue(report, shortTarget.stalls > 0);
+        assertTrue(report, longTarget.dryMs < shortTarget.dryMs);
+        assertTrue(report, longTarget.medianDelayMs > shortTarget.medianDelayMs);
+    }
+
+    /**
+     * Replays a trace pulled off a device, if there's one in {@code PACKET_TRACE}, and writes how
+     * it went next to it, in a {@code .txt} file of the same name.
+     */
+    @Test
+    public void replaysATraceFromADevice() throws IOException {
+        String path = System.getenv("PACKET_TRACE");
+        assumeTrue(path != null);
+        List<PacketTrace.Record> records = PacketTrace.read(new File(path));
+        TraceReplay replay = new TraceReplay(records);
+        StringBuilder out = new StringBuilder().append(replay).append(TraceReplay.Result.HEADER);
+        for (int target : new int[] {40, PlayoutProcessor.TARGET_DELAY_MS, 100, 150}) {
+            TraceReplay.Result result = replay.replay(target);
+            assertTrue("no audio in " + path, result != null);
+            out.append('\n').append(result);
+        }
+        File report = new File(path.replaceFirst("\\.bin$", "") + ".txt");
+        Files.write(report.toPath(), out.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** @return The results under their column names, to say what was wrong when a check fails. */
+    private static String report(TraceReplay.Result... results) {
+        StringBuilder out = new StringBuilder(TraceReplay.Result.HEADER);
+        for (TraceReplay.Result result : results) {
+            out.append('\n').append(result);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes 30s of one peer's stamped audio, a frame every 20ms, and reads it back.
+     *
+     * @param spikeNanos Up to how much later than due a frame held up arrives.
+     * @param spikeChance The chance a frame is held up.
+     */
+    private List<PacketTrace.Record> writeCall(long spikeNanos, double spikeChance)
+            throws IOException {
+        File file = mFolder.newFile();
+        Random random = new Random(3);
+        try (PacketTraceWriter writer = PacketTraceWriter.open(file, maxBytes(2_000))) {
+            long start = System.nanoTime();
+            long lastArrival = start;
+            for (int i = 0; i < 1_500; i++) {
+                long sent = start + i * 20 * MS;
+                long arrival = sent + 5 * MS;
+                if (random.nextDouble() < spikeChance) {
+                    arrival += (long) (random.nextDouble() * spikeNanos);
+                }
+                // A held up frame holds up the ones behind it.
+                lastArrival = Math.max(lastArrival, arrival);
+                byte[] packet = Packet.audioStamped(PCM, PCM.length, 16000, sent, sent, 0);
+                writer.record(lastArrival, "alpha", packet, true);
+            }
+        }
+        return PacketTrace.read(file);
+    }
+
+    private static int maxBytes(int records) {
+        return PacketTrace.HEADER_SIZE + records * PacketTrace.RECORD_SIZE;
+    }
+}
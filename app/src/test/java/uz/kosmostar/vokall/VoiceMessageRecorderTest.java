@@ -0,0 +1,121 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VoiceMessageRecorderTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME = 320;
+
+    @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /** What the recorder said when it finished. */
+    private static class Result implements VoiceMessageRecorder.Callback {
+        final CountDownLatch done = new CountDownLatch(1);
+        File file;
+        long durationMs;
+
+        @Override
+        public void onFinished(File file, long durationMs) {
+            this.file = file;
+            this.durationMs = durationMs;
+            done.countDown();
+        }
+
+        Result await() throws InterruptedException {
+            assertTrue("The recorder never finished", done.await(5, TimeUnit.SECONDS));
+            return this;
+        }
+    }
+
+    @Test
+    public void keepsEverythingSaidBeforeItStopped() throws Exception {
+        File file = new File(mFolder.getRoot(), "message.wav");
+        VoiceMessageRecorder recorder = new VoiceMessageRecorder(file, SAMPLE_RATE);
+        recorder.start();
+        int frames = 150;
+        short[] tone = ImaAdpcmTest.tone(400, 8000, frames * FRAME, 1, 0);
+        byte[] pcm = new byte[2 * FRAME];
+        for (int f = 0; f < frames; f++) {
+            Pcm16.toBytes(copy(tone, f * FRAME), FRAME, pcm, 0);
+            recorder.write(pcm, pcm.length);
+            if (f % 25 == 0) {
+                // Now and then, as if in real time, so some is written while the rest comes in.
+                Thread.sleep(60);
+            }
+        }
+        Result result = new Result();
+        recorder.stop(Runnable::run, result);
+        result.await();
+
+        assertEquals(file, result.file);
+        assertEquals(frames * FRAME * 1000L / SAMPLE_RATE, result.durationMs);
+        assertFalse(new File(file.getPath() + ".part").exists());
+        short[] decoded = read(file, tone.length);
+        int skip = ImaAdpcm.getSamplesPerBlock(1, WavWriter.ADPCM_BLOCK_SIZE_PER_CHANNEL);
+        double snr = ImaAdpcmTest.snrDb(tone, decoded, 1, 0, skip);
+        assertTrue("SNR " + snr + " dB", snr > 35);
+    }
+
+    @Test
+    public void leavesNothingBehindIfNothingWasSaid() throws Exception {
+        File file = new File(mFolder.getRoot(), "message.wav");
+        VoiceMessageRecorder recorder = new VoiceMessageRecorder(file, SAMPLE_RATE);
+        recorder.start();
+        Result result = new Result();
+        recorder.stop(Runnable::run, result);
+        result.await();
+
+        assertNull(result.file);
+        assertEquals(0, result.durationMs);
+        assertEquals(0, mFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void saysSoIfItCantWrite() throws Exception {
+        // Somewhere that can't be written to: a file where its directory should be.
+        File notADir = mFolder.newFile();
+        VoiceMessageRecorder recorder =
+                new VoiceMessageRecorder(new File(notADir, "message.wav"), SAMPLE_RATE);
+        recorder.start();
+        recorder.write(new byte[2 * FRAME], 2 * FRAME);
+        Result result = new Result();
+        recorder.stop(Runnable::run, result);
+        result.await();
+        assertNull(result.file);
+    }
+
+    private static short[] copy(short[] samples, int offset) {
+        short[] frame = new short[FRAME];
+        System.arraycopy(samples, offset, frame, 0, FRAME);
+        return frame;
+    }
+
+    private static short[] read(File file, int frames) throws IOException {
+        try (WavReader reader = new WavReader(file)) {
+            assertEquals(1, reader.getChannels());
+            assertEquals(SAMPLE_RATE, reader.getSampleRate());
+            assertEquals(frames, reader.getFrames());
+            short[] samples = new short[frames];
+            short[] chunk = new short[FRAME];
+            int read = 0;
+            int n;
+            while ((n = reader.read(chunk, FRAME)) > 0) {
+                System.arraycopy(chunk, 0, samples, read, n);
+                read += n;
+            }
+            assertEquals(frames, read);
+            return samples;
+        }
+    }
+}
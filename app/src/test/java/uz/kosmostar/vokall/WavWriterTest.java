@@ -0,0 +1,192 @@
+package uz.kosmostar.vokall;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Writes WAV files with {@link WavWriter} and reads them back with {@link WavReader}. */
+public class WavWriterTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int MONO_BLOCK_FRAMES =
+            ImaAdpcm.getSamplesPerBlock(1, WavWriter.ADPCM_BLOCK_SIZE_PER_CHANNEL);
+
+    @Rule public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsBackMonoPcmExactly() throws IOException {
+        short[] samples = ImaAdpcmTest.tone(400, 8000, 5_000, 1, 0);
+        File file = write(samples, 1, false, 700);
+        assertEquals(44 + 2 * samples.length, file.length());
+        assertArrayEquals(samples, read(file, 1, samples.length));
+    }
+
+    @Test
+    public void readsBackStereoPcmExactly() throws IOException {
+        short[] samples = stereo(5_000);
+        File file = write(samples, 2, false, 333);
+        assertArrayEquals(samples, read(file, 2, samples.length / 2));
+    }
+
+    @Test
+    public void readsBackMonoAdpcmWithAPartialLastBlock() throws IOException {
+        // Three blocks and a bit: the last is filled out with silence, but not played.
+        int frames = 3 * MONO_BLOCK_FRAMES + 100;
+        short[] samples = ImaAdpcmTest.tone(400, 8000, frames, 1, 0);
+        File file = write(samples, 1, true, 250);
+
+        short[] decoded = read(file, 1, frames);
+        double snr = ImaAdpcmTest.snrDb(samples, decoded, 1, 0, MONO_BLOCK_FRAMES);
+        assertTrue("SNR " + snr + " dB", snr > 35);
+        assertEquals(4 * WavWriter.ADPCM_BLOCK_SIZE_PER_CHANNEL, dataSize(file));
+    }
+
+    @Test
+    public void readsBackStereoAdpcm() throws IOException {
+        int frames = 4_000;
+        short[] samples = stereo(frames);
+        File file = write(samples, 2, true, 160);
+        short[] decoded = read(file, 2, frames);
+        int samplesPerBlock =
+                ImaAdpcm.getSamplesPerBlock(2, 2 * WavWriter.ADPCM_BLOCK_SIZE_PER_CHANNEL);
+        assertTrue(ImaAdpcmTest.snrDb(samples, decoded, 2, 0, samplesPerBlock) > 35);
+        assertTrue(ImaAdpcmTest.snrDb(samples, decoded, 2, 1, samplesPerBlock) > 30);
+    }
+
+    @Test
+    public void headerOnlyCoversWhatReachedTheFile() throws IOException {
+        File file = mFolder.newFile();
+        int frames = 2 * MONO_BLOCK_FRAMES;
+        WavWriter writer = new WavWriter(file, SAMPLE_RATE, 1, true);
+        try {
+            // Nothing's reached the file yet: it's all still buffered.
+            writer.write(new short[frames], frames);
+            writer.updateHeader();
+            assertEquals(frames, writer.getFrames());
+            try (WavReader reader = new WavReader(file)) {
+                assertEquals(0, reader.getFrames());
+            }
+        } finally {
+            writer.close();
+        }
+        try (WavReader reader = new WavReader(file)) {
+            assertEquals(frames, reader.getFrames());
+            assertEquals(SAMPLE_RATE, reader.getSampleRate());
+            assertEquals(1, reader.getChannels());
+        }
+    }
+
+    @Test
+    public void keepsTheFrameCountInTheFactChunk() throws IOException {
+        int frames = 1_234;
+        File file = write(new short[2 * frames], 2, true, frames);
+        try (WavReader reader = new WavReader(file)) {
+            assertEquals(frames, reader.getFrames());
+            assertEquals(frames * 1000L / SAMPLE_RATE, reader.getDurationMs());
+        }
+    }
+
+    @Test
+    public void emptyFilesHaveNoFrames() throws IOException {
+        for (boolean compressed : new boolean[] {false, true}) {
+            File file = write(new short[0], 1, compressed, 1);
+            try (WavReader reader = new WavReader(file)) {
+                assertEquals(0, reader.getFrames());
+                assertEquals(0, reader.read(new short[16], 16));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesAFileThatIsntWav() throws IOException {
+        File file = mFolder.newFile();
+        Files.write(file.toPath(), new byte[64]);
+        new WavReader(file).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesAFormatItCantPlay() throws IOException {
+        File file = write(new short[100], 1, false, 100);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            // The format tag, little-endian: 3 is floating point.
+            out.seek(20);
+            out.write(new byte[] {3, 0});
+        }
+        new WavReader(file).close();
+    }
+
+    /** @return A tone on the left and a different, quieter one on the right. */
+    private static short[] stereo(int frames) {
+        short[] left = ImaAdpcmTest.tone(400, 8000, frames, 1, 0);
+        short[] right = ImaAdpcmTest.tone(250, 2000, frames, 1, 0);
+        short[] samples = new short[2 * frames];
+        for (int i = 0; i < frames; i++) {
+            samples[2 * i] = left[i];
+            samples[2 * i + 1] = right[i];
+        }
+        return samples;
+    }
+
+    /** Writes {@code samples} in chunks of {@code chunkFrames}, as a recording would. */
+    private File write(short[] samples, int channels, boolean compressed, int chunkFrames)
+            throws IOException {
+        File file = mFolder.newFile();
+        try (WavWriter writer = new WavWriter(file, SAMPLE_RATE, channels, compressed)) {
+            int frames = samples.length / channels;
+            for (int offset = 0; offset < frames; offset += chunkFrames) {
+                int chunk = Math.min(chunkFrames, frames - offset);
+                short[] part =
+                        Arrays.copyOfRange(
+                                samples, offset * channels, (offset + chunk) * channels);
+                writer.write(part, chunk);
+            }
+            assertEquals(frames, writer.getFrames());
+        }
+        return file;
+    }
+
+    /** Reads the whole file, in odd-sized bits, and checks it has {@code frames} frames. */
+    private static short[] read(File file, int channels, int frames) throws IOException {
+        try (WavReader reader = new WavReader(file)) {
+            assertEquals(channels, reader.getChannels());
+            assertEquals(SAMPLE_RATE, reader.getSampleRate());
+            assertEquals(frames, reader.getFrames());
+            short[] samples = new short[frames * channels];
+            short[] chunk = new short[777 * channels];
+            int read = 0;
+            int n;
+            while ((n = reader.read(chunk, 777)) > 0) {
+                System.arraycopy(chunk, 0, samples, read * channels, n * channels);
+                read += n;
+            }
+            assertEquals(frames, read);
+            return samples;
+        }
+    }
+
+    /** @return What the header says the data chunk holds, in bytes. */
+    private static long dataSize(File file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 12; i + 8 <= bytes.length; ) {
+            long size = buffer.getInt(i + 4) & 0xFFFFFFFFL;
+            if (new String(bytes, i, 4, StandardCharsets.US_ASCII).equals("data")) {
+                assertEquals(bytes.length - i - 8, size);
+                return size;
+            }
+            i += 8 + (int) size;
+        }
+        throw new AssertionError("no data chunk");
+    }
+}